@@ -44,4 +44,26 @@ public interface ResponseCollector
      * transaction that has just failed.
      */
     public void processTimeout(StunTimeoutEvent event);
+
+    /**
+     * Notifies this collector that the request could not be sent, e.g.
+     * because its destination is unreachable, after it had been queued for
+     * sending, and that the request should be considered unanswered. Failures
+     * which occur while the request is being sent on the thread of the caller
+     * are thrown to it instead.
+     * <p>
+     * The default implementation reports the failure as a timeout.
+     *
+     * @param event the <tt>StunFailureEvent</tt> containing the exception
+     * that has just occurred.
+     */
+    default void processUnreachable(StunFailureEvent event)
+    {
+        processTimeout(
+            new StunTimeoutEvent(
+                    event.getStunStack(),
+                    event.getMessage(),
+                    event.getLocalAddress(),
+                    event.getTransactionID()));
+    }
 }
@@ -70,6 +70,12 @@ public class StunException extends Exception
      */
     public static final int TRANSACTION_ALREADY_ANSWERED = 5;
 
+    /**
+     * Thrown when a received message carries a FINGERPRINT attribute whose
+     * value does not match the CRC32 of the message.
+     */
+    public static final int FINGERPRINT_MISMATCH = 6;
+
     /**
      * Identifies the exception.
      */
@@ -63,6 +63,31 @@ public class StunFailureEvent
         this.cause = cause;
     }
 
+    /**
+     * Constructs a <tt>StunFailureEvent</tt> for the failure of a specific
+     * transaction.
+     *
+     * @param stunStack the <tt>StunStack</tt> to be associated with the new
+     * instance
+     * @param message the message itself
+     * @param localAddress the local address that the message was sent from.
+     * @param transactionID the ID of the transaction which failed.
+     * @param cause the <tt>Exception</tt> that caused this failure or
+     * <tt>null</tt> if there's no <tt>Exception</tt> associated with this
+     * failure
+     */
+    public StunFailureEvent(
+            StunStack stunStack,
+            Message message,
+            TransportAddress localAddress,
+            TransactionID transactionID,
+            Throwable cause)
+    {
+        this(stunStack, message, localAddress, cause);
+
+        setTransactionID(transactionID);
+    }
+
     /**
      * Returns the <tt>TransportAddress</tt> that the message was supposed to
      * leave from.
@@ -46,6 +46,12 @@ public class StunMessageEvent
      */
     private final RawMessage rawMessage;
 
+    /**
+     * The address that sent the message. Kept separately because the
+     * {@link #rawMessage} may be recycled once the event has been dispatched.
+     */
+    private final TransportAddress remoteAddress;
+
     /**
      * Constructs a StunMessageEvent according to the specified message.
      *
@@ -62,6 +68,7 @@ public class StunMessageEvent
         super(stunStack, rawMessage.getLocalAddress(), parsedMessage);
 
         this.rawMessage = rawMessage;
+        this.remoteAddress = rawMessage.getRemoteAddress();
     }
 
     /**
@@ -82,7 +89,7 @@ public class StunMessageEvent
      */
     public TransportAddress getRemoteAddress()
     {
-        return rawMessage.getRemoteAddress();
+        return remoteAddress;
     }
 
     /**
@@ -105,7 +112,9 @@ public class StunMessageEvent
     }
 
     /**
-     * Returns the raw message that caused this event.
+     * Returns the raw message that caused this event. The message may be
+     * pooled, so it must not be accessed after the event has been dispatched
+     * unless it has been {@link RawMessage#retain() retained}.
      *
      * @return the {@link RawMessage} that caused this event.
      */
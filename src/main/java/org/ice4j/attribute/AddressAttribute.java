@@ -233,6 +233,32 @@ abstract class AddressAttribute extends Attribute
         return binValue;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int encode(byte[] buffer, int offset)
+    {
+        if (!isTypeValid(getAttributeType()))
+            throw new IllegalStateException(((int)getAttributeType())
+                            + "is not a valid address attribute!");
+
+        int valueOffset = encodeHeader(buffer, offset);
+        byte[] addressBytes = getAddressBytes();
+
+        //Not used
+        buffer[valueOffset] = 0x00;
+        //Family
+        buffer[valueOffset + 1] = getFamily();
+        //port
+        buffer[valueOffset + 2] = (byte)(getPort() >> 8);
+        buffer[valueOffset + 3] = (byte)(getPort() & 0x00FF);
+        //address
+        System.arraycopy(
+                addressBytes, 0, buffer, valueOffset + 4, addressBytes.length);
+        return HEADER_LENGTH + getDataLength();
+    }
+
     /**
      * Sets address to be the address transported by this attribute.
      * @param address that this attribute should encapsulate.
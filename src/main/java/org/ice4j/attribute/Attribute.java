@@ -363,6 +363,45 @@ public abstract class Attribute
      */
     public abstract byte[] encode();
 
+    /**
+     * Writes the binary representation of this attribute, without padding,
+     * into a buffer supplied by the caller. The default implementation copies
+     * the result of {@link #encode()}; attributes which are encoded on hot
+     * paths write themselves directly.
+     *
+     * @param buffer the buffer to write into.
+     * @param offset the offset in <tt>buffer</tt> to write at.
+     * @return the number of bytes written, i.e.
+     * <tt>HEADER_LENGTH + getDataLength()</tt>.
+     */
+    public int encode(byte[] buffer, int offset)
+    {
+        byte[] binValue = encode();
+        int length = HEADER_LENGTH + getDataLength();
+
+        System.arraycopy(binValue, 0, buffer, offset, length);
+        return length;
+    }
+
+    /**
+     * Writes the type and the length of this attribute into a buffer.
+     *
+     * @param buffer the buffer to write into.
+     * @param offset the offset in <tt>buffer</tt> to write at.
+     * @return the offset in <tt>buffer</tt> of the value of this attribute.
+     */
+    protected int encodeHeader(byte[] buffer, int offset)
+    {
+        char type = getAttributeType();
+        char length = getDataLength();
+
+        buffer[offset] = (byte)(type >> 8);
+        buffer[offset + 1] = (byte)(type & 0x00FF);
+        buffer[offset + 2] = (byte)(length >> 8);
+        buffer[offset + 3] = (byte)(length & 0x00FF);
+        return offset + HEADER_LENGTH;
+    }
+
     /**
      * For attributes that have arriving in incoming messages, this method
      * stores their original location in the binary array so that we could
@@ -54,4 +54,31 @@ public interface ContentDependentAttribute
     public byte[] encode(
             StunStack stunStack,
             byte[] content, int offset, int length);
+
+    /**
+     * Writes this attribute into the message it is transported in, right
+     * after the content it depends on. The message length in the header of
+     * the message must already account for this attribute.
+     * <p>
+     * The default implementation copies the result of
+     * {@link #encode(StunStack, byte[], int, int)}.
+     *
+     * @param stunStack the <tt>StunStack</tt> in the context of which the
+     * request to encode this <tt>ContentDependentAttribute</tt> is being made
+     * @param message the buffer which holds the message
+     * @param offset the offset in <tt>message</tt> where the message starts
+     * @param location the offset in <tt>message</tt> where this attribute is
+     * to be written, i.e. the end of the content it depends on
+     *
+     * @return the number of bytes written, without padding.
+     */
+    public default int encodeInPlace(
+            StunStack stunStack,
+            byte[] message, int offset, int location)
+    {
+        byte[] binValue = encode(stunStack, message, offset, location - offset);
+
+        System.arraycopy(binValue, 0, message, location, binValue.length);
+        return binValue.length;
+    }
 }
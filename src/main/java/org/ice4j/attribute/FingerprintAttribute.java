@@ -83,6 +83,18 @@ public class FingerprintAttribute
      */
     public static final byte[] XOR_MASK = { 0x53, 0x54, 0x55, 0x4e};
 
+    /**
+     * {@link #XOR_MASK} as a big-endian <tt>int</tt>.
+     */
+    private static final int XOR_MASK_VALUE = 0x5354554e;
+
+    /**
+     * The <tt>CRC32</tt> engine of each thread, reset and reused for every
+     * checksum so that verifying a message does not allocate.
+     */
+    private static final ThreadLocal<CRC32> threadCRC32
+        = ThreadLocal.withInitial(CRC32::new);
+
     /**
      *
      * 这个属性的检查码 .. 仅仅应用于进入的消息 ...
@@ -213,6 +225,25 @@ public class FingerprintAttribute
         return binValue;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int encodeInPlace(
+            StunStack stunStack,
+            byte[] message, int offset, int location)
+    {
+        int xorCrc32
+            = calculateXorCRC32Value(message, offset, location - offset);
+        int valueOffset = encodeHeader(message, location);
+
+        message[valueOffset]     = (byte)(xorCrc32 >> 24);
+        message[valueOffset + 1] = (byte)(xorCrc32 >> 16);
+        message[valueOffset + 2] = (byte)(xorCrc32 >> 8);
+        message[valueOffset + 3] = (byte)xorCrc32;
+        return HEADER_LENGTH + getDataLength();
+    }
+
     /**
      * Sets this attribute's fields according to the message and attributeValue
      * arrays.
@@ -246,6 +277,21 @@ public class FingerprintAttribute
         this.crc = incomingCrcBytes;
     }
 
+    /**
+     * Returns the CRC32 checksum that this attribute is carrying as a
+     * big-endian <tt>int</tt>. Only makes sense for incoming messages.
+     *
+     * @return the CRC32 checksum that this attribute is carrying.
+     * @throws NullPointerException if the checksum has not been set.
+     */
+    public int getChecksumValue()
+    {
+        return ((crc[0] & 0xFF) << 24)
+            | ((crc[1] & 0xFF) << 16)
+            | ((crc[2] & 0xFF) << 8)
+            | (crc[3] & 0xFF);
+    }
+
     /**
      * Calculates and returns the CRC32 checksum for <tt>message</tt> after
      * applying the <tt>XOR_MASK</tt> specified by RFC 5389.
@@ -262,20 +308,40 @@ public class FingerprintAttribute
      */
     public static byte[] calculateXorCRC32(byte[] message, int offset, int len)
     {
-        //now check whether the CRC really is what it's supposed to be.
-        //re calculate the check sum
-        CRC32 checksum = new CRC32();
-        checksum.update(message, offset, len);
+        int xorCrc = calculateXorCRC32Value(message, offset, len);
 
-        // 计算出的crc 余数 ...
-        long crc = checksum.getValue();
-        byte[] xorCRC32 = new byte[4];
+        return new byte[]
+            {
+                (byte) (xorCrc >> 24),
+                (byte) (xorCrc >> 16),
+                (byte) (xorCrc >> 8),
+                (byte) xorCrc
+            };
+    }
 
-        xorCRC32[0] = (byte)((byte)((crc >> 24) & 0xff) ^ XOR_MASK[0]);
-        xorCRC32[1] = (byte)((byte)((crc >> 16) & 0xff) ^ XOR_MASK[1]);
-        xorCRC32[2] = (byte)((byte)((crc >> 8)  & 0xff) ^ XOR_MASK[2]);
-        xorCRC32[3] = (byte)((byte) (crc        & 0xff) ^ XOR_MASK[3]);
+    /**
+     * Calculates the CRC32 checksum for <tt>message</tt> after applying the
+     * <tt>XOR_MASK</tt> specified by RFC 5389, like
+     * {@link #calculateXorCRC32(byte[], int, int)}, but without allocating:
+     * the bytes are fed straight from <tt>message</tt> into a per-thread
+     * <tt>CRC32</tt>.
+     *
+     * @param message the message whose checksum we'd like to have
+     * @param offset the location in <tt>message</tt> where the actual message
+     * starts.
+     * @param len the number of message bytes in <tt>message</tt>
+     *
+     * @return the CRC value that should be sent in a <tt>FINGERPRINT</tt>
+     * attribute traveling in the <tt>message</tt> message, as a big-endian
+     * <tt>int</tt>.
+     */
+    public static int calculateXorCRC32Value(
+            byte[] message, int offset, int len)
+    {
+        CRC32 checksum = threadCRC32.get();
 
-        return xorCRC32;
+        checksum.reset();
+        checksum.update(message, offset, len);
+        return ((int) checksum.getValue()) ^ XOR_MASK_VALUE;
     }
 }
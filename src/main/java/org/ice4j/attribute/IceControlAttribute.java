@@ -115,6 +115,19 @@ public abstract class IceControlAttribute
         return binValue;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int encode(byte[] buffer, int offset)
+    {
+        int valueOffset = encodeHeader(buffer, offset);
+
+        for (int i = 0; i < 8; i++)
+            buffer[valueOffset + i] = (byte)(tieBreaker >> (56 - 8 * i));
+        return HEADER_LENGTH + getDataLength();
+    }
+
     /**
      * Compares two STUN Attributes. Attributes are considered equal when their
      * type, length, and all data are the same.
@@ -21,9 +21,9 @@ import java.util.*;
 import java.util.logging.*;
 
 import javax.crypto.*;
-import javax.crypto.spec.*;
 
 import org.ice4j.message.*;
+import org.ice4j.security.*;
 import org.ice4j.stack.*;
 
 /**
@@ -109,6 +109,13 @@ public class MessageIntegrityAttribute
      */
     public static final char DATA_LENGTH = (char)20;
 
+    /**
+     * The buffer of each thread which {@link #verifyHmacSha1(byte[], int, int,
+     * byte[], byte[])} computes the HMAC of a received message into.
+     */
+    private static final ThreadLocal<byte[]> threadHmac
+        = ThreadLocal.withInitial(() -> new byte[DATA_LENGTH]);
+
     /**
      * The actual content of the message
      */
@@ -198,22 +205,9 @@ public class MessageIntegrityAttribute
 
         try
         {
-            // get an HMAC-SHA1 key from the raw key bytes
-            SecretKeySpec signingKey
-                = new SecretKeySpec(key, HMAC_SHA1_ALGORITHM);
-            // get an HMAC-SHA1 Mac instance and initialize it with the key
-            Mac mac = Mac.getInstance(HMAC_SHA1_ALGORITHM);
-
-            mac.init(signingKey);
-
-            // compute the hmac on input data bytes
-            byte[] macInput = new byte[length];
-
-            //doFinal seems incapable to only work with a part of an array
-            //so we'd need to create an array that only contains what we
-            //actually need to work with.
-            System.arraycopy(message, offset, macInput, 0, length);
-            hmac = mac.doFinal(macInput);
+            // Use an HMAC-SHA1 Mac which is already initialized with the key,
+            // and compute the hmac on input data bytes without copying them.
+            hmac = HmacSha1Cache.calculate(key, message, offset, length);
         }
         catch (Exception exc)
         {
@@ -223,6 +217,77 @@ public class MessageIntegrityAttribute
         return hmac;
     }
 
+    /**
+     * Verifies the HMAC-SHA1 of a received STUN message against the value
+     * brought by its <tt>MessageIntegrityAttribute</tt>, without copying the
+     * message. The HMAC is computed over the bytes preceding the
+     * MESSAGE-INTEGRITY attribute with the message length of the header
+     * adjusted to end right after MESSAGE-INTEGRITY, as RFC 5389 requires
+     * when other attributes (e.g. FINGERPRINT) follow it. The adjusted length
+     * is fed to the <tt>Mac</tt> separately rather than patched into a copy.
+     *
+     * @param message the array holding the received message.
+     * @param offset the index where the message starts in <tt>message</tt>.
+     * @param location the index in <tt>message</tt> where the
+     * MESSAGE-INTEGRITY attribute starts.
+     * @param key the key the message is expected to have been signed with.
+     * @param expected the HMAC-SHA1 carried by the MESSAGE-INTEGRITY
+     * attribute.
+     *
+     * @return <tt>true</tt> if the HMAC-SHA1 of the message matches
+     * <tt>expected</tt> and <tt>false</tt> otherwise.
+     *
+     * @throws IllegalArgumentException if the HMAC cannot be computed.
+     */
+    public static boolean verifyHmacSha1(byte[] message,
+                                         int    offset,
+                                         int    location,
+                                         byte[] key,
+                                         byte[] expected)
+        throws IllegalArgumentException
+    {
+        if (expected == null
+                || expected.length != DATA_LENGTH
+                || location - offset < Message.HEADER_LENGTH
+                || location > message.length)
+        {
+            return false;
+        }
+
+        int messageLength
+            = location - offset
+                + HEADER_LENGTH
+                + DATA_LENGTH
+                - Message.HEADER_LENGTH;
+        byte[] hmac = threadHmac.get();
+
+        try
+        {
+            Mac mac = HmacSha1Cache.getMac(key);
+
+            // Message type, then the adjusted message length, then the rest
+            // of the header and the attributes preceding MESSAGE-INTEGRITY.
+            mac.update(message, offset, 2);
+            mac.update((byte) (messageLength >> 8));
+            mac.update((byte) messageLength);
+            mac.update(message, offset + 4, location - offset - 4);
+            mac.doFinal(hmac, 0);
+        }
+        catch (Exception exc)
+        {
+            throw new IllegalArgumentException(
+                        "Could not verify HMAC-SHA1: ", exc);
+        }
+
+        // Compare all bytes, so that the time taken does not reveal how much
+        // of a forged value was correct.
+        int diff = 0;
+
+        for (int i = 0; i < DATA_LENGTH; i++)
+            diff |= hmac[i] ^ expected[i];
+        return diff == 0;
+    }
+
     /**
      * Sets this attribute's fields according to the message and attributeValue
      * arrays.
@@ -287,9 +352,63 @@ public class MessageIntegrityAttribute
         binValue[2] = (byte)(getDataLength() >> 8);
         binValue[3] = (byte)(getDataLength() & 0x00FF);
 
+        byte[] key = getKey(stunStack, content, offset);
+
+        //now calculate the HMAC-SHA1
+        this.hmacSha1Content = calculateHmacSha1(content, offset, length, key);
+
+        //username
+        System.arraycopy(hmacSha1Content, 0, binValue, HEADER_LENGTH, getDataLength());
+
+        return binValue;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Computes the HMAC-SHA1 straight into <tt>message</tt>, so unlike
+     * {@link #encode(StunStack, byte[], int, int)} it does not update
+     * {@link #getHmacSha1Content()}.
+     */
+    @Override
+    public int encodeInPlace(
+            StunStack stunStack,
+            byte[] message, int offset, int location)
+    {
+        byte[] key = getKey(stunStack, message, offset);
+        int valueOffset = encodeHeader(message, location);
+
+        try
+        {
+            Mac mac = HmacSha1Cache.getMac(key);
+
+            mac.update(message, offset, location - offset);
+            mac.doFinal(message, valueOffset);
+        }
+        catch (Exception exc)
+        {
+            throw new IllegalArgumentException(
+                        "Could not create HMAC-SHA1 request encoding: ", exc);
+        }
+        return HEADER_LENGTH + DATA_LENGTH;
+    }
+
+    /**
+     * Returns the key to sign a message with: the remote key of
+     * {@link #username} for a request and its local key for a response.
+     *
+     * @param stunStack the <tt>StunStack</tt> whose credentials to use.
+     * @param message the buffer which holds the message.
+     * @param offset the offset in <tt>message</tt> where the message starts.
+     * @return the key.
+     * @throws NullPointerException if there is no key for {@link #username}.
+     */
+    private byte[] getKey(StunStack stunStack, byte[] message, int offset)
+    {
         byte[] key = null;
         char msgType =
-            (char) (((content[0] & 0xFF) << 8) | (content[1] & 0xFF));
+            (char) (((message[offset] & 0xFF) << 8)
+                | (message[offset + 1] & 0xFF));
 
         if (Message.isRequestType(msgType))
         {
@@ -309,13 +428,7 @@ public class MessageIntegrityAttribute
         }
 
         Objects.requireNonNull(key, "key=null; msgType=" + String.format("%04X", (int)msgType));
-        //now calculate the HMAC-SHA1
-        this.hmacSha1Content = calculateHmacSha1(content, offset, length, key);
-
-        //username
-        System.arraycopy(hmacSha1Content, 0, binValue, HEADER_LENGTH, getDataLength());
-
-        return binValue;
+        return key;
     }
 
     /**
@@ -109,6 +109,21 @@ public class PriorityAttribute
         return binValue;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int encode(byte[] buffer, int offset)
+    {
+        int valueOffset = encodeHeader(buffer, offset);
+
+        buffer[valueOffset]     = (byte)(priority >> 24);
+        buffer[valueOffset + 1] = (byte)(priority >> 16);
+        buffer[valueOffset + 2] = (byte)(priority >> 8);
+        buffer[valueOffset + 3] = (byte)priority;
+        return HEADER_LENGTH + getDataLength();
+    }
+
     /**
      * Compares two STUN Attributes. Two attributes are considered equal when
      * they have the same type length and value.
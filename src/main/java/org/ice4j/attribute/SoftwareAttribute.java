@@ -89,6 +89,18 @@ public class SoftwareAttribute
         return binValue;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int encode(byte[] buffer, int offset)
+    {
+        int valueOffset = encodeHeader(buffer, offset);
+
+        System.arraycopy(software, 0, buffer, valueOffset, software.length);
+        return HEADER_LENGTH + software.length;
+    }
+
     /**
      * Returns the length of this attribute's body.
      *
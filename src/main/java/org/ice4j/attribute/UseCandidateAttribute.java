@@ -80,6 +80,16 @@ public class UseCandidateAttribute
         return binValue;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int encode(byte[] buffer, int offset)
+    {
+        encodeHeader(buffer, offset);
+        return HEADER_LENGTH + DATA_LENGTH_USE_CANDIDATE;
+    }
+
     /**
      * Compares two STUN Attributes. Two attributes are considered equal when
      * they have the same type, length and value.
@@ -89,6 +89,18 @@ public class UsernameAttribute extends Attribute
         return binValue;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int encode(byte[] buffer, int offset)
+    {
+        int valueOffset = encodeHeader(buffer, offset);
+
+        System.arraycopy(username, 0, buffer, valueOffset, username.length);
+        return HEADER_LENGTH + username.length;
+    }
+
     /**
      * Returns the length of this attribute's body.
      *
@@ -20,9 +20,8 @@ package org.ice4j.ice;
 import org.ice4j.*;
 import org.ice4j.ice.harvest.*;
 import org.ice4j.stack.*;
-import org.ice4j.util.PeriodicRunnable;
+import org.ice4j.util.*;
 import org.jitsi.utils.collections.*;
-import org.jitsi.utils.concurrent.*;
 import org.jitsi.utils.logging2.Logger;
 import org.jitsi.utils.logging2.*;
 
@@ -105,15 +104,13 @@ public class Agent
      *  The ScheduledExecutorService to execute Agent's scheduled tasks
      */
     private static final ScheduledExecutorService agentTasksScheduler
-        = ExecutorFactory.createSingleThreadScheduledExecutor(
-            "ice4j.Agent-timer-", 60, TimeUnit.SECONDS);
+        = Ice4jExecutors.newScheduledExecutor("ice4j.Agent-timer-");
 
     /**
      *  The ExecutorService to execute Agent's tasks
      */
     private static final ExecutorService agentTasksExecutor
-        = Executors.newCachedThreadPool(
-            new CustomizableThreadFactory("ice4j.Agent-executor-", true));
+        = Ice4jExecutors.newExecutor("ice4j.Agent-executor-");
 
     /**
      * Termination task which will be scheduled with timeout
@@ -278,6 +275,19 @@ public class Agent
      */
     private StunStack stunStack;
 
+    /**
+     * Whether {@link #stunStack} is shared with other <tt>Agent</tt>s, in
+     * which case freeing this <tt>Agent</tt> removes only its own
+     * transactions and listeners from it instead of shutting it down.
+     */
+    private boolean stunStackShared;
+
+    /**
+     * The <tt>StunStack</tt> shared by the <tt>Agent</tt>s which do not
+     * have one of their own, created on demand.
+     */
+    private static StunStack sharedStunStack;
+
     /**
      * The scheduled task to terminate this <tt>Agent</tt>
      */
@@ -353,6 +363,36 @@ public class Agent
      */
     public Agent(String ufragPrefix, Logger parentLogger)
     {
+        this(ufragPrefix, parentLogger, null);
+    }
+
+    /**
+     * Creates an empty <tt>Agent</tt> with no streams, and no address, which
+     * uses a <tt>StunStack</tt> shared with other <tt>Agent</tt>s. The
+     * <tt>Agent</tt>s sharing a stack are told apart by their local ufrags:
+     * connectivity checks and credential lookups are routed by ufrag, and
+     * freeing an <tt>Agent</tt> removes only its own transactions and
+     * listeners from the stack. The owner of the stack is responsible for
+     * shutting it down.
+     *
+     * @param ufragPrefix an optional prefix to the generated local ICE username
+     * fragment.
+     * @param parentLogger the parent of the logger of the new instance, or
+     * <tt>null</tt>.
+     * @param sharedStunStack the <tt>StunStack</tt> to share, or
+     * <tt>null</tt> to use a stack as configured.
+     */
+    public Agent(
+            String ufragPrefix,
+            Logger parentLogger,
+            StunStack sharedStunStack)
+    {
+        if (sharedStunStack != null)
+        {
+            stunStack = sharedStunStack;
+            stunStackShared = true;
+        }
+
         // 获取一个 严格的强随机数生成器
         SecureRandom random = new SecureRandom();
 
@@ -1341,7 +1381,17 @@ public class Agent
     public synchronized StunStack getStunStack()
     {
         if (stunStack == null)
-            stunStack = new StunStack();
+        {
+            if (config.getUseSharedStunStack())
+            {
+                stunStack = getSharedStunStack();
+                stunStackShared = true;
+            }
+            else
+            {
+                stunStack = new StunStack();
+            }
+        }
         return stunStack;
     }
     
@@ -1356,6 +1406,32 @@ public class Agent
         this.stunStack = stunStack;
     }
 
+    /**
+     * Determines whether the <tt>StunStack</tt> of this <tt>Agent</tt> is
+     * shared with other <tt>Agent</tt>s.
+     *
+     * @return <tt>true</tt> if the <tt>StunStack</tt> of this <tt>Agent</tt>
+     * is shared with other <tt>Agent</tt>s.
+     */
+    public synchronized boolean isStunStackShared()
+    {
+        return stunStackShared;
+    }
+
+    /**
+     * Returns the <tt>StunStack</tt> which is used by the <tt>Agent</tt>s
+     * created while <tt>ice4j.ice.shared-stun-stack</tt> is enabled. It is
+     * never shut down.
+     *
+     * @return the shared <tt>StunStack</tt>.
+     */
+    public static synchronized StunStack getSharedStunStack()
+    {
+        if (sharedStunStack == null)
+            sharedStunStack = new StunStack();
+        return sharedStunStack;
+    }
+
     /**
      * Returns the number of {@link CheckList}s that are currently active.
      *
@@ -2387,7 +2463,17 @@ public class Agent
         }
 
         /* Stop all outstanding transactions */
-        getStunStack().shutDown();
+        if (isStunStackShared())
+        {
+            StunStack stunStack = getStunStack();
+
+            stunStack.cancelClientTransactions(connCheckClient);
+            stunStack.expireServerTransactions(getLocalUfrag());
+        }
+        else
+        {
+            getStunStack().shutDown();
+        }
 
         // Free its IceMediaStreams, Components and Candidates.
         boolean interrupted = false;
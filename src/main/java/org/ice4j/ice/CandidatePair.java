@@ -127,6 +127,12 @@ public class CandidatePair
      */
     private long consentFreshness = CONSENT_FRESHNESS_UNKNOWN;
 
+    /**
+     * The pre-encoded Binding request which the connectivity checks and
+     * consent freshness checks over this pair are sent from.
+     */
+    private volatile ConnectivityCheckTemplate checkTemplate;
+
     /**
      * Creates a <tt>CandidatePair</tt> instance mapping <tt>localCandidate</tt>
      * to <tt>remoteCandidate</tt>.
@@ -689,6 +695,28 @@ public class CandidatePair
         return consentFreshness;
     }
 
+    /**
+     * Returns the pre-encoded Binding request which the checks over this pair
+     * are sent from.
+     *
+     * @return the template of the checks over this pair, or <tt>null</tt>.
+     */
+    ConnectivityCheckTemplate getCheckTemplate()
+    {
+        return checkTemplate;
+    }
+
+    /**
+     * Sets the pre-encoded Binding request which the checks over this pair
+     * are sent from.
+     *
+     * @param checkTemplate the template of the checks over this pair.
+     */
+    void setCheckTemplate(ConnectivityCheckTemplate checkTemplate)
+    {
+        this.checkTemplate = checkTemplate;
+    }
+
     /**
      * Sets the time in milliseconds of the latest consent freshness
      * confirmation to now.
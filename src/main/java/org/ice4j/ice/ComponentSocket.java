@@ -67,7 +67,7 @@ public class ComponentSocket
     ComponentSocket(Component component, org.jitsi.utils.logging2.Logger parentLogger)
         throws SocketException
     {
-        super(parentLogger);
+        super(parentLogger, AgentConfig.config.getPushComponentSocket());
 
         this.component = component;
         component.getParentStream().addPairChangeListener(this);
@@ -256,41 +256,24 @@ class ConnectivityCheckClient
         //we don't need to do a canReach() verification here as it has been
         //already verified during the gathering process.
 
-        Request request = MessageFactory.createBindingRequest();
-
         //the priority we'd like the remote party to use for a peer
         //reflexive candidate if one is discovered as a consequence of this
         //check.
-        PriorityAttribute priority
-            = AttributeFactory.createPriorityAttribute(
-                    localCandidate.computePriorityForType(
-                            CandidateType.PEER_REFLEXIVE_CANDIDATE));
+        long priority
+            = localCandidate.computePriorityForType(
+                    CandidateType.PEER_REFLEXIVE_CANDIDATE);
+        boolean controlling = parentAgent.isControlling();
+        long tieBreaker = parentAgent.getTieBreaker();
 
-        request.putAttribute(priority);
+        //if we are the controlling agent then we need to indicate our
+        //nominated pairs.
+        boolean useCandidate = controlling && candidatePair.isNominated();
 
-        //controlling controlled
-        if (parentAgent.isControlling())
+        if (useCandidate)
         {
-            request.putAttribute(
-                    AttributeFactory.createIceControllingAttribute(
-                            parentAgent.getTieBreaker()));
-
-            //if we are the controlling agent then we need to indicate our
-            //nominated pairs.
-            if (candidatePair.isNominated())
-            {
-                logger.debug(() ->
-                        "Add USE-CANDIDATE in check for: "
-                            + candidatePair.toShortString());
-                request.putAttribute(
-                        AttributeFactory.createUseCandidateAttribute());
-            }
-        }
-        else
-        {
-            request.putAttribute(
-                    AttributeFactory.createIceControlledAttribute(
-                            parentAgent.getTieBreaker()));
+            logger.debug(() ->
+                    "Add USE-CANDIDATE in check for: "
+                        + candidatePair.toShortString());
         }
 
         //credentials
@@ -302,23 +285,6 @@ class ConnectivityCheckClient
         if (localUserName == null)
             return null;
 
-        UsernameAttribute unameAttr
-            = AttributeFactory.createUsernameAttribute(localUserName);
-
-        request.putAttribute(unameAttr);
-
-        // TODO Also implement SASL prepare
-        MessageIntegrityAttribute msgIntegrity
-            = AttributeFactory.createMessageIntegrityAttribute(
-                    localUserName);
-
-        // when we will encode the MESSAGE-INTEGRITY attribute (thus
-        // generate the HMAC-SHA1 authentication), we need to know the
-        // remote key of the current stream, that why we pass the media
-        // name.
-        msgIntegrity.setMedia(media);
-        request.putAttribute(msgIntegrity);
-
         TransactionID tran = TransactionID.createNewTransactionID();
 
         tran.setApplicationData(candidatePair);
@@ -329,11 +295,37 @@ class ConnectivityCheckClient
                     "start check for " + candidatePair.toShortString() + " tid "
                             + tran);
         }
+
+        Request request = null;
+
         try
         {
+            //the request is encoded once per pair, and each check only
+            //patches and signs a copy of it.
+            ConnectivityCheckTemplate template
+                = candidatePair.getCheckTemplate();
+
+            if (template == null
+                    || !template.matches(localUserName, priority, useCandidate))
+            {
+                template
+                    = new ConnectivityCheckTemplate(
+                            stunStack,
+                            createCheckRequest(
+                                    priority, controlling, tieBreaker,
+                                    useCandidate, localUserName, media),
+                            localUserName,
+                            priority,
+                            useCandidate);
+                candidatePair.setCheckTemplate(template);
+            }
+            request = template.createRequest(controlling, tieBreaker);
+
             tran
                 = stunStack.sendRequest(
                         request,
+                        template.encode(
+                                stunStack, tran, controlling, tieBreaker),
                         candidatePair
                             .getRemoteCandidate().getTransportAddress(),
                         localCandidate.getBase().getTransportAddress(),
@@ -355,12 +347,17 @@ class ConnectivityCheckClient
         {
             tran = null;
 
+            //the request is null if its template could not be encoded.
+            Object check
+                = (request == null)
+                    ? "a check for " + candidatePair.toShortString()
+                    : request;
             IceSocketWrapper stunSocket = localCandidate.getStunSocket(null);
 
             if (stunSocket != null)
             {
                 String msg
-                    = "Failed to send " + request + " through "
+                    = "Failed to send " + check + " through "
                         + stunSocket.getLocalSocketAddress() + ".";
 
                 if ((ex instanceof NoRouteToHostException)
@@ -374,13 +371,71 @@ class ConnectivityCheckClient
             }
             else
             {
-                logger.warn("Failed to send " + request, ex);
+                logger.warn("Failed to send " + check, ex);
             }
         }
 
         return tran;
     }
 
+    /**
+     * Creates a STUN Binding {@link Request} for a connectivity check.
+     *
+     * @param priority the PRIORITY of the request.
+     * @param controlling whether the agent is controlling.
+     * @param tieBreaker the tie-breaker of the agent.
+     * @param useCandidate whether the request nominates its pair.
+     * @param localUserName the USERNAME of the request.
+     * @param media the name of the stream the request is sent for.
+     * @return a new request.
+     */
+    private static Request createCheckRequest(
+            long priority,
+            boolean controlling,
+            long tieBreaker,
+            boolean useCandidate,
+            String localUserName,
+            String media)
+    {
+        Request request = MessageFactory.createBindingRequest();
+
+        request.putAttribute(
+                AttributeFactory.createPriorityAttribute(priority));
+
+        //controlling controlled
+        if (controlling)
+        {
+            request.putAttribute(
+                    AttributeFactory.createIceControllingAttribute(tieBreaker));
+            if (useCandidate)
+            {
+                request.putAttribute(
+                        AttributeFactory.createUseCandidateAttribute());
+            }
+        }
+        else
+        {
+            request.putAttribute(
+                    AttributeFactory.createIceControlledAttribute(tieBreaker));
+        }
+
+        request.putAttribute(
+                AttributeFactory.createUsernameAttribute(localUserName));
+
+        // TODO Also implement SASL prepare
+        MessageIntegrityAttribute msgIntegrity
+            = AttributeFactory.createMessageIntegrityAttribute(
+                    localUserName);
+
+        // when we will encode the MESSAGE-INTEGRITY attribute (thus
+        // generate the HMAC-SHA1 authentication), we need to know the
+        // remote key of the current stream, that why we pass the media
+        // name.
+        msgIntegrity.setMedia(media);
+        request.putAttribute(msgIntegrity);
+        return request;
+    }
+
     /**
      * Handles the <tt>response</tt> as per the procedures described in RFC 5245
      * or in other words, by either changing the state of the corresponding pair
@@ -885,6 +940,28 @@ class ConnectivityCheckClient
         updateCheckListAndTimerStates(pair);
     }
 
+    /**
+     * Sets the state of the corresponding {@link CandidatePair} to
+     * {@link CandidatePairState#FAILED} and updates check list and timer
+     * states, because the check could not be sent, e.g. because there is no
+     * route to the remote candidate.
+     *
+     * @param ev the {@link StunFailureEvent} containing the original
+     * transaction and hence {@link CandidatePair} that's being checked.
+     */
+    @Override
+    public void processUnreachable(StunFailureEvent ev)
+    {
+        CandidatePair pair
+            = (CandidatePair) ev.getTransactionID().getApplicationData();
+
+        logger.info(
+                "Failed to send a check for pair: " + pair.toShortString()
+                    + ", failing: " + ev.getCause());
+        pair.setStateFailed();
+        updateCheckListAndTimerStates(pair);
+    }
+
     /**
      * A class to control periodically scheduled runnable that actually sends
      * the checks for a particular check list in the pace defined in RFC 5245.
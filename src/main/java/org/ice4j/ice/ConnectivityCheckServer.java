@@ -79,7 +79,6 @@ class ConnectivityCheckServer
         logger = parentAgent.getLogger().createChildLogger(this.getClass().getName());
 
         stunStack = this.parentAgent.getStunStack();
-        stunStack.getCredentialsManager().registerAuthority(this);
 
         start();
     }
@@ -420,7 +419,9 @@ class ConnectivityCheckServer
     {
         if (!started)
         {
-            stunStack.addRequestListener(this);
+            stunStack.getCredentialsManager().registerAuthority(
+                    parentAgent.getLocalUfrag(), this);
+            stunStack.addRequestListener(parentAgent.getLocalUfrag(), this);
             started = true;
         }
     }
@@ -432,7 +433,19 @@ class ConnectivityCheckServer
      */
     public void stop()
     {
-        stunStack.removeRequestListener(this);
+        stunStack.removeRequestListener(parentAgent.getLocalUfrag(), this);
+        stunStack.getCredentialsManager().unregisterAuthority(
+                parentAgent.getLocalUfrag(), this);
+
+        // The CredentialsManager drops the engines keyed with the local
+        // password. Those keyed with the remote passwords have to go too.
+        for (IceMediaStream stream : parentAgent.getStreams())
+        {
+            String remotePassword = stream.getRemotePassword();
+
+            if (remotePassword != null)
+                HmacSha1Cache.invalidate(remotePassword.getBytes());
+        }
         started = false;
     }
 }
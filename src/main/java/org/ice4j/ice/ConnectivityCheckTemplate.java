@@ -0,0 +1,326 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice;
+
+import java.util.*;
+
+import org.ice4j.*;
+import org.ice4j.attribute.*;
+import org.ice4j.message.*;
+import org.ice4j.stack.*;
+
+/**
+ * A Binding request for the connectivity checks over a {@link CandidatePair},
+ * encoded once. Each check copies the encoded request, patches its
+ * transaction ID and its ICE-CONTROLLING/ICE-CONTROLLED attribute, and signs
+ * the copy again, instead of building and serializing a new request.
+ * <p>
+ * A template only applies to checks with the USERNAME, PRIORITY and
+ * USE-CANDIDATE it was created with, because these change the length of the
+ * request. Instances are immutable and may be used by several threads.
+ */
+class ConnectivityCheckTemplate
+{
+    /**
+     * The offset of the transaction ID in a STUN message.
+     */
+    private static final int TRANSACTION_ID_OFFSET = 8;
+
+    /**
+     * The USERNAME of the request.
+     */
+    private final String userName;
+
+    /**
+     * The PRIORITY of the request.
+     */
+    private final long priority;
+
+    /**
+     * Whether the request carries USE-CANDIDATE.
+     */
+    private final boolean useCandidate;
+
+    /**
+     * The attributes of the request, in the order in which they are encoded.
+     */
+    private final List<Attribute> attributes;
+
+    /**
+     * The index in {@link #attributes} of the ICE-CONTROLLING or
+     * ICE-CONTROLLED attribute.
+     */
+    private final int roleIndex;
+
+    /**
+     * The encoded request.
+     */
+    private final byte[] encoded;
+
+    /**
+     * The offset in {@link #encoded} of the ICE-CONTROLLING or ICE-CONTROLLED
+     * attribute.
+     */
+    private final int roleOffset;
+
+    /**
+     * The MESSAGE-INTEGRITY attribute of the request, and its offset in
+     * {@link #encoded}.
+     */
+    private final MessageIntegrityAttribute msgIntegrity;
+
+    private final int msgIntegrityOffset;
+
+    /**
+     * The FINGERPRINT attribute of the request, and its offset in
+     * {@link #encoded}, or <tt>null</tt> and <tt>-1</tt> if the request is
+     * not fingerprinted.
+     */
+    private final FingerprintAttribute fingerprint;
+
+    private final int fingerprintOffset;
+
+    /**
+     * Creates a template by encoding a Binding request.
+     *
+     * @param stunStack the <tt>StunStack</tt> which signs the request.
+     * @param request the request, with a PRIORITY, ICE-CONTROLLING or
+     * ICE-CONTROLLED, USERNAME and MESSAGE-INTEGRITY attributes.
+     * @param userName the USERNAME of <tt>request</tt>.
+     * @param priority the PRIORITY of <tt>request</tt>.
+     * @param useCandidate whether <tt>request</tt> carries USE-CANDIDATE.
+     * @throws IllegalArgumentException if <tt>request</tt> lacks one of the
+     * required attributes.
+     */
+    ConnectivityCheckTemplate(
+            StunStack stunStack,
+            Request request,
+            String userName,
+            long priority,
+            boolean useCandidate)
+    {
+        this.userName = userName;
+        this.priority = priority;
+        this.useCandidate = useCandidate;
+
+        try
+        {
+            request.setTransactionID(
+                TransactionID.createNewTransactionID().getBytes());
+        }
+        catch (StunException ex)
+        {
+            throw new IllegalArgumentException(ex);
+        }
+        encoded = request.encode(stunStack);
+        // Encoding has added the configured attributes, e.g. SOFTWARE.
+        attributes = request.getAttributes();
+
+        MessageView view = new MessageView();
+
+        view.wrap(encoded, 0, encoded.length);
+
+        int roleIndex = indexOfRole(attributes);
+        int roleViewIndex = view.indexOf(Attribute.ICE_CONTROLLING);
+
+        if (roleViewIndex < 0)
+            roleViewIndex = view.indexOf(Attribute.ICE_CONTROLLED);
+
+        int msgIntegrityIndex = view.indexOf(Attribute.MESSAGE_INTEGRITY);
+        int fingerprintIndex = view.indexOf(Attribute.FINGERPRINT);
+
+        if (roleIndex < 0 || roleViewIndex < 0 || msgIntegrityIndex < 0)
+        {
+            throw new IllegalArgumentException(
+                    "Not a connectivity check: " + request);
+        }
+        this.roleIndex = roleIndex;
+        roleOffset = getAttributeOffset(view, roleViewIndex);
+        msgIntegrity
+            = (MessageIntegrityAttribute)
+                request.getAttribute(Attribute.MESSAGE_INTEGRITY);
+        msgIntegrityOffset = getAttributeOffset(view, msgIntegrityIndex);
+        if (fingerprintIndex < 0)
+        {
+            fingerprint = null;
+            fingerprintOffset = -1;
+        }
+        else
+        {
+            fingerprint
+                = (FingerprintAttribute)
+                    request.getAttribute(Attribute.FINGERPRINT);
+            fingerprintOffset = getAttributeOffset(view, fingerprintIndex);
+        }
+    }
+
+    /**
+     * Returns the offset of the header of an attribute in a message.
+     *
+     * @param view the message.
+     * @param index the index of the attribute in <tt>view</tt>.
+     * @return the offset of the attribute at <tt>index</tt>.
+     */
+    private static int getAttributeOffset(MessageView view, int index)
+    {
+        return view.getAttributeValueOffset(index) - Attribute.HEADER_LENGTH;
+    }
+
+    /**
+     * Returns the index of the ICE-CONTROLLING or ICE-CONTROLLED attribute in
+     * a list.
+     *
+     * @param attributes the attributes.
+     * @return the index of the role attribute in <tt>attributes</tt>, or
+     * <tt>-1</tt>.
+     */
+    private static int indexOfRole(List<Attribute> attributes)
+    {
+        for (int i = 0; i < attributes.size(); i++)
+        {
+            if (attributes.get(i) instanceof IceControlAttribute)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Determines whether this template applies to a check.
+     *
+     * @param userName the USERNAME of the check.
+     * @param priority the PRIORITY of the check.
+     * @param useCandidate whether the check carries USE-CANDIDATE.
+     * @return <tt>true</tt> if the check can be sent from this template.
+     */
+    boolean matches(String userName, long priority, boolean useCandidate)
+    {
+        return this.priority == priority
+            && this.useCandidate == useCandidate
+            && this.userName.equals(userName);
+    }
+
+    /**
+     * Creates the request of a check, which shares the attributes of this
+     * template. It is the request {@link #encode(StunStack, TransactionID,
+     * boolean, long)} encodes, once the stack sets its transaction ID.
+     *
+     * @param controlling whether the agent is controlling.
+     * @param tieBreaker the tie-breaker of the agent.
+     * @return a new request.
+     */
+    Request createRequest(boolean controlling, long tieBreaker)
+    {
+        Request request = MessageFactory.createBindingRequest();
+
+        for (int i = 0; i < attributes.size(); i++)
+        {
+            Attribute attribute = attributes.get(i);
+
+            if (i == roleIndex)
+                attribute = getRoleAttribute(attribute, controlling, tieBreaker);
+            request.putAttribute(attribute);
+        }
+        return request;
+    }
+
+    /**
+     * Returns the ICE-CONTROLLING or ICE-CONTROLLED attribute of a check.
+     *
+     * @param attribute the role attribute of this template.
+     * @param controlling whether the agent is controlling.
+     * @param tieBreaker the tie-breaker of the agent.
+     * @return <tt>attribute</tt> if it applies to the check, or a new
+     * attribute.
+     */
+    private static Attribute getRoleAttribute(
+            Attribute attribute, boolean controlling, long tieBreaker)
+    {
+        if (controlling == (attribute instanceof IceControllingAttribute)
+                && ((IceControlAttribute) attribute).getTieBreaker()
+                    == tieBreaker)
+        {
+            return attribute;
+        }
+        return controlling
+            ? AttributeFactory.createIceControllingAttribute(tieBreaker)
+            : AttributeFactory.createIceControlledAttribute(tieBreaker);
+    }
+
+    /**
+     * Encodes the request of a check: copies the encoded template, patches
+     * the transaction ID and the role, then computes MESSAGE-INTEGRITY and
+     * FINGERPRINT over the copy.
+     *
+     * @param stunStack the <tt>StunStack</tt> which signs the request.
+     * @param transactionID the transaction ID of the check.
+     * @param controlling whether the agent is controlling.
+     * @param tieBreaker the tie-breaker of the agent.
+     * @return the encoded request.
+     */
+    byte[] encode(
+            StunStack stunStack,
+            TransactionID transactionID,
+            boolean controlling,
+            long tieBreaker)
+    {
+        byte[] bytes = encoded.clone();
+
+        System.arraycopy(
+                transactionID.getBytes(), 0,
+                bytes, TRANSACTION_ID_OFFSET,
+                Message.TRANSACTION_ID_LENGTH);
+
+        char roleType
+            = controlling
+                ? Attribute.ICE_CONTROLLING
+                : Attribute.ICE_CONTROLLED;
+
+        bytes[roleOffset] = (byte) (roleType >> 8);
+        bytes[roleOffset + 1] = (byte) roleType;
+        for (int i = 0; i < 8; i++)
+        {
+            bytes[roleOffset + Attribute.HEADER_LENGTH + i]
+                = (byte) (tieBreaker >> (56 - 8 * i));
+        }
+
+        // MESSAGE-INTEGRITY sees a message length which ends with it.
+        setMessageLength(
+                bytes,
+                msgIntegrityOffset + Attribute.HEADER_LENGTH
+                    + MessageIntegrityAttribute.DATA_LENGTH);
+        msgIntegrity.encodeInPlace(stunStack, bytes, 0, msgIntegrityOffset);
+        setMessageLength(bytes, bytes.length);
+        if (fingerprint != null)
+            fingerprint.encodeInPlace(stunStack, bytes, 0, fingerprintOffset);
+        return bytes;
+    }
+
+    /**
+     * Sets the length of the body of an encoded message.
+     *
+     * @param bytes the encoded message.
+     * @param end the offset in <tt>bytes</tt> where the message ends.
+     */
+    private static void setMessageLength(byte[] bytes, int end)
+    {
+        int length = end - Message.HEADER_LENGTH;
+
+        bytes[2] = (byte) (length >> 8);
+        bytes[3] = (byte) length;
+    }
+}
@@ -21,6 +21,7 @@ import java.beans.*;
 import java.util.*;
 
 import org.ice4j.*;
+import org.ice4j.security.*;
 import org.jitsi.utils.collections.*;
 import org.jitsi.utils.logging2.*;
 
@@ -915,7 +916,16 @@ public class IceMediaStream
      */
     public void setRemotePassword(String remotePassword)
     {
+        String oldRemotePassword = this.remotePassword;
+
         this.remotePassword = remotePassword;
+
+        // Drop the HMAC-SHA1 engines which are keyed with the old password.
+        if (oldRemotePassword != null
+                && !oldRemotePassword.equals(remotePassword))
+        {
+            HmacSha1Cache.invalidate(oldRemotePassword.getBytes());
+        }
     }
 
     /**
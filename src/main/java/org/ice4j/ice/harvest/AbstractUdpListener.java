@@ -18,7 +18,6 @@
 package org.ice4j.ice.harvest;
 
 import org.ice4j.*;
-import org.ice4j.attribute.*;
 import org.ice4j.message.*;
 import org.jitsi.utils.queue.*;
 
@@ -67,6 +66,14 @@ public abstract class AbstractUdpListener
      */
     private static final int POOL_SIZE = 256;
 
+    /**
+     * The views which {@link #getUfrag(byte[], int, int)} parses the
+     * datagrams from unknown sources with, one per thread, so that they do
+     * not have to be fully decoded.
+     */
+    private static final ThreadLocal<MessageView> messageViews
+        = ThreadLocal.withInitial(MessageView::new);
+
     /**
      * Returns the list of {@link TransportAddress}es, one for each allowed IP
      * address found on each allowed network interface, with the given port.
@@ -124,37 +131,22 @@ public abstract class AbstractUdpListener
             return null;
         }
 
-        try
-        {
-            Message stunMessage = Message.decode(buf, off, len);
-
-            if (stunMessage.getMessageType()
-                != Message.BINDING_REQUEST)
-            {
-                return null;
-            }
-
-            UsernameAttribute usernameAttribute
-                = (UsernameAttribute)
-                stunMessage.getAttribute(Attribute.USERNAME);
-            if (usernameAttribute == null)
-                return null;
+        MessageView view = messageViews.get();
 
-            String usernameString
-                = new String(usernameAttribute.getUsername());
-            return usernameString.split(":")[0];
-        }
-        catch (Exception e)
+        if (!view.wrap(buf, off, len))
         {
-            // Catch everything. We are going to log, and then drop the packet
-            // anyway.
             if (logger.isLoggable(Level.FINE))
             {
-                logger.fine("Failed to extract local ufrag: " + e);
+                logger.fine(
+                        "Failed to extract local ufrag: malformed STUN"
+                            + " message.");
             }
+            return null;
         }
 
-        return null;
+        return (view.getMessageType() == Message.BINDING_REQUEST)
+            ? view.getLocalUfrag()
+            : null;
     }
 
     /**
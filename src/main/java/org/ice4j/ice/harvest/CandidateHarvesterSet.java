@@ -23,6 +23,7 @@ import java.util.logging.*;
 
 import org.ice4j.*;
 import org.ice4j.ice.*;
+import org.ice4j.util.*;
 
 /**
  * Implements {@link Set} of <tt>CandidateHarvester</tt>s which runs the
@@ -50,7 +51,8 @@ public class CandidateHarvesterSet
     /**
      * A pool of thread used for gathering process.
      */
-    private static ExecutorService threadPool = Executors.newCachedThreadPool();
+    private static final ExecutorService threadPool
+        = Ice4jExecutors.newExecutor("ice4j.CandidateHarvesterSet-");
 
     /**
      * Initializes a new <tt>CandidateHarvesterSet</tt> instance.
@@ -0,0 +1,275 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.message;
+
+import java.util.*;
+
+import org.ice4j.attribute.*;
+
+/**
+ * The attributes of a {@link Message}, in the order in which they were
+ * first put: an array of attribute types and a parallel array of attributes.
+ * A message rarely has more than a dozen attributes, so a linear search of
+ * the types is faster and much smaller than a map with boxed keys.
+ * <p>
+ * Instances are not thread-safe; {@link Synchronized} is used for the
+ * messages which have been made thread-safe with
+ * {@link Message#setThreadSafe(boolean)}.
+ */
+class AttributeList
+{
+    /**
+     * The arrays of an empty list, shared until the first attribute is put.
+     */
+    private static final char[] NO_TYPES = new char[0];
+
+    private static final Attribute[] NO_ATTRIBUTES = new Attribute[0];
+
+    /**
+     * The capacity of the arrays when the first attribute is put.
+     */
+    private static final int INITIAL_CAPACITY = 4;
+
+    /**
+     * The types of the attributes.
+     */
+    private char[] types = NO_TYPES;
+
+    /**
+     * The attributes, <tt>attributes[i]</tt> being of type <tt>types[i]</tt>.
+     */
+    private Attribute[] attributes = NO_ATTRIBUTES;
+
+    /**
+     * The number of attributes.
+     */
+    private int size;
+
+    /**
+     * Creates an empty list.
+     */
+    AttributeList()
+    {
+    }
+
+    /**
+     * Creates a list with the attributes of another list.
+     *
+     * @param list the list to copy.
+     */
+    AttributeList(AttributeList list)
+    {
+        types = Arrays.copyOf(list.types, list.size);
+        attributes = Arrays.copyOf(list.attributes, list.size);
+        size = list.size;
+    }
+
+    /**
+     * Determines whether the methods of this list are synchronized.
+     *
+     * @return <tt>true</tt> if the methods of this list synchronize on it.
+     */
+    boolean isSynchronized()
+    {
+        return false;
+    }
+
+    /**
+     * Returns the number of attributes.
+     *
+     * @return the number of attributes.
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the attribute at an index.
+     *
+     * @param index the index, in the order in which the attributes were put.
+     * @return the attribute at <tt>index</tt>.
+     */
+    Attribute get(int index)
+    {
+        if (index >= size)
+            throw new IndexOutOfBoundsException("index=" + index);
+        return attributes[index];
+    }
+
+    /**
+     * Returns the index of the attribute of a specific type.
+     *
+     * @param type the type of the attribute.
+     * @return the index of the attribute of type <tt>type</tt>, or
+     * <tt>-1</tt> if there is none.
+     */
+    int indexOf(char type)
+    {
+        char[] types = this.types;
+
+        for (int i = 0, size = this.size; i < size; i++)
+        {
+            if (types[i] == type)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the attribute of a specific type.
+     *
+     * @param type the type of the attribute.
+     * @return the attribute of type <tt>type</tt>, or <tt>null</tt>.
+     */
+    Attribute get(char type)
+    {
+        int index = indexOf(type);
+
+        return (index < 0) ? null : attributes[index];
+    }
+
+    /**
+     * Puts an attribute. An attribute of the same type is replaced in place,
+     * otherwise the attribute is appended.
+     *
+     * @param attribute the attribute to put.
+     */
+    void put(Attribute attribute)
+    {
+        char type = attribute.getAttributeType();
+        int index = indexOf(type);
+
+        if (index >= 0)
+        {
+            attributes[index] = attribute;
+            return;
+        }
+
+        if (size == types.length)
+        {
+            int capacity
+                = (size == 0) ? INITIAL_CAPACITY : size + (size >> 1) + 1;
+
+            types = Arrays.copyOf(types, capacity);
+            attributes = Arrays.copyOf(attributes, capacity);
+        }
+        types[size] = type;
+        attributes[size] = attribute;
+        size++;
+    }
+
+    /**
+     * Removes the attribute of a specific type.
+     *
+     * @param type the type of the attribute.
+     * @return the removed attribute, or <tt>null</tt> if there was none.
+     */
+    Attribute remove(char type)
+    {
+        int index = indexOf(type);
+
+        if (index < 0)
+            return null;
+
+        Attribute attribute = attributes[index];
+        int moved = size - index - 1;
+
+        System.arraycopy(types, index + 1, types, index, moved);
+        System.arraycopy(attributes, index + 1, attributes, index, moved);
+        size--;
+        attributes[size] = null;
+        return attribute;
+    }
+
+    /**
+     * Returns a copy of the attributes.
+     *
+     * @return a new list of the attributes, in order.
+     */
+    List<Attribute> toList()
+    {
+        return new ArrayList<>(Arrays.asList(attributes).subList(0, size));
+    }
+
+    /**
+     * An <tt>AttributeList</tt> whose methods synchronize on it. Code which
+     * iterates over it synchronizes on it as well.
+     */
+    static class Synchronized
+        extends AttributeList
+    {
+        /**
+         * Creates a synchronized list with the attributes of another list.
+         *
+         * @param list the list to copy.
+         */
+        Synchronized(AttributeList list)
+        {
+            super(list);
+        }
+
+        @Override
+        boolean isSynchronized()
+        {
+            return true;
+        }
+
+        @Override
+        synchronized int size()
+        {
+            return super.size();
+        }
+
+        @Override
+        synchronized Attribute get(int index)
+        {
+            return super.get(index);
+        }
+
+        @Override
+        synchronized int indexOf(char type)
+        {
+            return super.indexOf(type);
+        }
+
+        @Override
+        synchronized Attribute get(char type)
+        {
+            return super.get(type);
+        }
+
+        @Override
+        synchronized void put(Attribute attribute)
+        {
+            super.put(attribute);
+        }
+
+        @Override
+        synchronized Attribute remove(char type)
+        {
+            return super.remove(type);
+        }
+
+        @Override
+        synchronized List<Attribute> toList()
+        {
+            return super.toList();
+        }
+    }
+}
@@ -17,6 +17,7 @@
  */
 package org.ice4j.message;
 
+import java.nio.*;
 import java.util.*;
 import java.util.logging.*;
 
@@ -385,14 +386,19 @@ public abstract class Message
     public static final byte RFC3489_TRANSACTION_ID_LENGTH = 16;
 
     /**
-     * The list of attributes contained by the message. We are using a Map
-     * rather than a uni-dimensional list, in order to facilitate attribute
-     * search (even though it introduces some redundancies). Order is important
-     * so we'll be using a <tt>LinkedHashMap</tt>
+     * The attributes contained by the message, in the order in which they
+     * were put. They are not synchronized unless {@link #setThreadSafe(boolean)}
+     * has been called, which replaces them with a synchronized copy.
      */
-    //not sure this is the best solution but I'm trying to keep entry order
-    protected final LinkedHashMap<Character, Attribute> attributes
-        = new LinkedHashMap<>();
+    private AttributeList attributes = new AttributeList();
+
+    /**
+     * The array of each thread which {@link #encode(StunStack, ByteBuffer)}
+     * encodes messages into before copying them into buffers which are not
+     * backed by an accessible array.
+     */
+    private static final ThreadLocal<byte[]> threadEncodeBuffer
+        = ThreadLocal.withInitial(() -> new byte[0]);
 
     /**
      * Attribute presentity is a thing of RFC 3489 and no longer exists in
@@ -570,19 +576,16 @@ public abstract class Message
      */
     public char getDataLength()
     {
-        char length = 0;
+        AttributeList attributes = this.attributes;
 
-        List<Attribute> attrs = getAttributes();
-        for (Attribute att : attrs)
+        if (attributes.isSynchronized())
         {
-            int attLen = att.getDataLength() + Attribute.HEADER_LENGTH;
-
-            //take attribute padding into account:
-            attLen += (4 - (attLen % 4)) % 4;
-
-            length += attLen;
+            synchronized (attributes)
+            {
+                return getDataLength(attributes, true);
+            }
         }
-        return length;
+        return getDataLength(attributes, true);
     }
 
     /**
@@ -593,18 +596,74 @@ public abstract class Message
      */
     public char getDataLengthWithoutPadding()
     {
-        char length = 0;
+        AttributeList attributes = this.attributes;
 
-        List<Attribute> attrs = getAttributes();
+        if (attributes.isSynchronized())
+        {
+            synchronized (attributes)
+            {
+                return getDataLength(attributes, false);
+            }
+        }
+        return getDataLength(attributes, false);
+    }
+
+    /**
+     * Returns the total length of a list of attributes.
+     *
+     * @param attributes the attributes.
+     * @param padded whether the padding of the attributes is counted.
+     * @return the total length of <tt>attributes</tt>, including their
+     * headers.
+     */
+    private static char getDataLength(AttributeList attributes, boolean padded)
+    {
+        char length = 0;
 
-        for (Attribute att : attrs)
+        for (int i = 0, count = attributes.size(); i < count; i++)
         {
-            int attLen = att.getDataLength() + Attribute.HEADER_LENGTH;
-            length += attLen;
+            Attribute att = attributes.get(i);
+
+            length += padded
+                ? getPaddedLength(att)
+                : att.getDataLength() + Attribute.HEADER_LENGTH;
         }
         return length;
     }
 
+    /**
+     * Makes the attributes of this message thread-safe, or not. Messages are
+     * not thread-safe by default, because most of them are built or decoded,
+     * then encoded or read, by one thread at a time. This method is to be
+     * called before the message is shared between threads which may modify
+     * it concurrently.
+     *
+     * @param threadSafe <tt>true</tt> to synchronize the access to the
+     * attributes of this message, <tt>false</tt> not to.
+     */
+    public void setThreadSafe(boolean threadSafe)
+    {
+        if (threadSafe != attributes.isSynchronized())
+        {
+            attributes
+                = threadSafe
+                    ? new AttributeList.Synchronized(attributes)
+                    : new AttributeList(attributes);
+        }
+    }
+
+    /**
+     * Determines whether the attributes of this message are thread-safe.
+     *
+     * @return <tt>true</tt> if the access to the attributes of this message
+     * is synchronized.
+     * @see #setThreadSafe(boolean)
+     */
+    public boolean isThreadSafe()
+    {
+        return attributes.isSynchronized();
+    }
+
     /**
      * Puts the specified attribute into this message. If an attribute with that
      * name was already added, it would be replaced.
@@ -626,10 +685,7 @@ public abstract class Message
                                     + getName());
         }
 
-        synchronized(attributes)
-        {
-            attributes.put(attribute.getAttributeType(), attribute);
-        }
+        attributes.put(attribute);
     }
 
     /**
@@ -643,7 +699,7 @@ public abstract class Message
      */
     public boolean containsAttribute(char attributeType)
     {
-        return attributes.containsKey(attributeType);
+        return attributes.indexOf(attributeType) >= 0;
     }
 
     /**
@@ -656,10 +712,7 @@ public abstract class Message
      */
     public Attribute getAttribute(char attributeType)
     {
-        synchronized(attributes)
-        {
-            return attributes.get(attributeType);
-        }
+        return attributes.get(attributeType);
     }
 
     /**
@@ -669,10 +722,7 @@ public abstract class Message
      */
     public List<Attribute> getAttributes()
     {
-        synchronized(attributes)
-        {
-            return new LinkedList<>(attributes.values());
-        }
+        return attributes.toList();
     }
 
     /**
@@ -684,10 +734,7 @@ public abstract class Message
      */
     public Attribute removeAttribute(char attributeType)
     {
-        synchronized(attributes)
-        {
-            return attributes.remove(attributeType);
-        }
+        return attributes.remove(attributeType);
     }
 
     /**
@@ -932,12 +979,35 @@ public abstract class Message
             return false;
 
         //compare attributes
-        for (Attribute localAtt : attributes.values())
+        AttributeList attributes = this.attributes;
+
+        if (attributes.isSynchronized())
         {
-            if (!localAtt.equals(msg.getAttribute(localAtt.getAttributeType())))
-                return false;
+            synchronized (attributes)
+            {
+                return msg.containsAttributes(attributes);
+            }
         }
+        return msg.containsAttributes(attributes);
+    }
+
+    /**
+     * Determines whether this message contains attributes equal to those in
+     * a list.
+     *
+     * @param attributes the attributes to look for.
+     * @return <tt>true</tt> if this message contains an equal attribute for
+     * each attribute in <tt>attributes</tt>.
+     */
+    private boolean containsAttributes(AttributeList attributes)
+    {
+        for (int i = 0, count = attributes.size(); i < count; i++)
+        {
+            Attribute att = attributes.get(i);
 
+            if (!att.equals(getAttribute(att.getAttributeType())))
+                return false;
+        }
         return true;
     }
 
@@ -959,97 +1029,253 @@ public abstract class Message
         //make sure we have everything necessary to encode a proper message
         validateAttributePresentity();
 
-        final char dataLength;
+        byte binMsg[] = new byte[HEADER_LENGTH + getDataLength()];
 
-        dataLength = getDataLength();
+        encodeInto(stunStack, binMsg, 0, binMsg.length);
+        return binMsg;
+    }
 
-        byte binMsg[] = new byte[HEADER_LENGTH + dataLength];
-        int offset    = 0;
+    /**
+     * Writes the binary representation of this message into an array
+     * supplied by the caller, e.g. a pooled send buffer. The header and the
+     * attributes are written straight into <tt>buffer</tt>, and
+     * MESSAGE-INTEGRITY and FINGERPRINT are computed over it in place, so
+     * that no intermediate arrays are created.
+     *
+     * @param stunStack the <tt>StunStack</tt> in the context of which the
+     * request to encode this <tt>Message</tt> is being made
+     * @param buffer the array to write the message into.
+     * @param offset the offset in <tt>buffer</tt> to write the message at.
+     * @return the length of the message.
+     *
+     * @throws IllegalStateException if the message does not have all
+     * required attributes.
+     * @throws BufferOverflowException if the message does not fit in
+     * <tt>buffer</tt> after <tt>offset</tt>. Nothing is written in this case.
+     */
+    public int encode(StunStack stunStack, byte[] buffer, int offset)
+        throws IllegalStateException
+    {
+        prepareForEncoding();
+
+        //make sure we have everything necessary to encode a proper message
+        validateAttributePresentity();
+
+        return encodeInto(stunStack, buffer, offset, buffer.length);
+    }
+
+    /**
+     * Writes the binary representation of this message into a
+     * <tt>ByteBuffer</tt> supplied by the caller, at its position, and
+     * advances its position past the message. A buffer backed by an array is
+     * written in place, as by {@link #encode(StunStack, byte[], int)}; other
+     * buffers receive a copy of the message encoded into an array which is
+     * reused by the calling thread.
+     *
+     * @param stunStack the <tt>StunStack</tt> in the context of which the
+     * request to encode this <tt>Message</tt> is being made
+     * @param buffer the buffer to write the message into.
+     * @return the length of the message.
+     *
+     * @throws IllegalStateException if the message does not have all
+     * required attributes.
+     * @throws BufferOverflowException if the message does not fit in the
+     * remaining space of <tt>buffer</tt>. Nothing is written in this case.
+     */
+    public int encode(StunStack stunStack, ByteBuffer buffer)
+        throws IllegalStateException
+    {
+        prepareForEncoding();
+
+        //make sure we have everything necessary to encode a proper message
+        validateAttributePresentity();
+
+        int length;
+
+        if (buffer.hasArray())
+        {
+            int arrayOffset = buffer.arrayOffset();
+
+            length
+                = encodeInto(
+                        stunStack,
+                        buffer.array(),
+                        arrayOffset + buffer.position(),
+                        arrayOffset + buffer.limit());
+            buffer.position(buffer.position() + length);
+        }
+        else
+        {
+            byte[] binMsg = threadEncodeBuffer.get();
+            int required = HEADER_LENGTH + getDataLength();
+
+            if (binMsg.length < required)
+            {
+                binMsg = new byte[required];
+                threadEncodeBuffer.set(binMsg);
+            }
+            length
+                = encodeInto(
+                        stunStack,
+                        binMsg,
+                        0,
+                        Math.min(binMsg.length, buffer.remaining()));
+            buffer.put(binMsg, 0, length);
+        }
+        return length;
+    }
+
+    /**
+     * Writes the binary representation of this message into an array. The
+     * attributes are written in the order in which they were put, which
+     * {@link #prepareForEncoding()} has made end with MESSAGE-INTEGRITY and
+     * FINGERPRINT.
+     *
+     * @param stunStack the <tt>StunStack</tt> in the context of which the
+     * request to encode this <tt>Message</tt> is being made
+     * @param buffer the array to write the message into.
+     * @param offset the offset in <tt>buffer</tt> to write the message at.
+     * @param limit the offset in <tt>buffer</tt> that the message must not
+     * extend beyond.
+     * @return the length of the message.
+     * @throws BufferOverflowException if the message does not fit between
+     * <tt>offset</tt> and <tt>limit</tt>.
+     */
+    private int encodeInto(
+            StunStack stunStack,
+            byte[] buffer, int offset, int limit)
+    {
+        AttributeList attributes = this.attributes;
+
+        // Thread-safe attributes stay locked while they are written, so that
+        // the length computed first remains the length of what is written.
+        if (attributes.isSynchronized())
+        {
+            synchronized (attributes)
+            {
+                return encodeInto(attributes, stunStack, buffer, offset, limit);
+            }
+        }
+        return encodeInto(attributes, stunStack, buffer, offset, limit);
+    }
+
+    /**
+     * Writes the binary representation of this message, with specific
+     * attributes, into an array.
+     *
+     * @param attributes the attributes of this message.
+     * @param stunStack the <tt>StunStack</tt> in the context of which the
+     * request to encode this <tt>Message</tt> is being made
+     * @param buffer the array to write the message into.
+     * @param offset the offset in <tt>buffer</tt> to write the message at.
+     * @param limit the offset in <tt>buffer</tt> that the message must not
+     * extend beyond.
+     * @return the length of the message.
+     * @throws BufferOverflowException if the message does not fit between
+     * <tt>offset</tt> and <tt>limit</tt>.
+     */
+    private int encodeInto(
+            AttributeList attributes,
+            StunStack stunStack,
+            byte[] buffer, int offset, int limit)
+    {
+        char dataLength = getDataLength(attributes, true);
+
+        if (offset < 0 || limit - offset < HEADER_LENGTH + dataLength)
+        {
+            throw new BufferOverflowException();
+        }
+
+        int position = offset;
+        char messageType = getMessageType();
 
         // STUN Message Type
-        binMsg[offset++] = (byte)(getMessageType() >> 8);
-        binMsg[offset++] = (byte)(getMessageType() & 0xFF);
+        buffer[position++] = (byte)(messageType >> 8);
+        buffer[position++] = (byte)(messageType & 0xFF);
 
         // Message Length
-        final int messageLengthOffset = offset;
+        final int messageLengthOffset = position;
 
-        offset += 2;
+        position += 2;
 
         byte tranID[] = getTransactionID();
 
         if (tranID.length == 12)
         {
-            System.arraycopy(MAGIC_COOKIE, 0, binMsg, offset, 4);
-            offset += 4;
-            System.arraycopy(tranID, 0, binMsg, offset, TRANSACTION_ID_LENGTH);
-            offset += TRANSACTION_ID_LENGTH;
+            System.arraycopy(MAGIC_COOKIE, 0, buffer, position, 4);
+            position += 4;
+            System.arraycopy(
+                    tranID, 0, buffer, position, TRANSACTION_ID_LENGTH);
+            position += TRANSACTION_ID_LENGTH;
         }
         else
         {
             /* RFC3489 behavior */
-            System.arraycopy(tranID, 0, binMsg, offset,
+            System.arraycopy(tranID, 0, buffer, position,
                 RFC3489_TRANSACTION_ID_LENGTH);
-            offset += RFC3489_TRANSACTION_ID_LENGTH;
+            position += RFC3489_TRANSACTION_ID_LENGTH;
         }
 
-        Vector<Map.Entry<Character, Attribute>> v = new Vector<>();
-        Iterator<Map.Entry<Character, Attribute>> iter = null;
         char dataLengthForContentDependentAttribute = 0;
 
-        synchronized (attributes)
-        {
-            v.addAll(attributes.entrySet());
-        }
-
-        iter = v.iterator();
-
-        while (iter.hasNext())
+        for (int i = 0, count = attributes.size(); i < count; i++)
         {
-            Attribute attribute = iter.next().getValue();
-            int attributeLength
-                = attribute.getDataLength() + Attribute.HEADER_LENGTH;
+            Attribute attribute = attributes.get(i);
+            int attributeLength = getPaddedLength(attribute);
+            int written;
 
-            //take attribute padding into account:
-            attributeLength += (4 - attributeLength % 4) % 4;
             dataLengthForContentDependentAttribute += attributeLength;
 
             //special handling for message integrity and fingerprint values
-            byte[] binAtt;
-
             if (attribute instanceof ContentDependentAttribute)
             {
                 /*
-                 * The "Message Length" seen by a ContentDependentAttribute is
-                 * up to and including the very Attribute but without any other
-                 * Attribute instances after it.
+                 * The "Message Length" seen by a ContentDependentAttribute
+                 * is up to and including the very Attribute but without
+                 * any other Attribute instances after it.
                  */
-                binMsg[messageLengthOffset]
+                buffer[messageLengthOffset]
                     = (byte)(dataLengthForContentDependentAttribute >> 8);
-                binMsg[messageLengthOffset + 1]
+                buffer[messageLengthOffset + 1]
                     = (byte)(dataLengthForContentDependentAttribute & 0xFF);
-                binAtt
-                    = ((ContentDependentAttribute)attribute)
-                            .encode(stunStack, binMsg, 0, offset);
+                written
+                    = ((ContentDependentAttribute) attribute)
+                        .encodeInPlace(stunStack, buffer, offset, position);
             }
             else
             {
-                binAtt = attribute.encode();
+                written = attribute.encode(buffer, position);
             }
 
-            System.arraycopy(binAtt, 0, binMsg, offset, binAtt.length);
-            /*
-             * Offset by attributeLength and not by binAtt.length because
-             * attributeLength takes the attribute padding into account and
-             * binAtt.length does not.
-             */
-            offset += attributeLength;
+            // The buffer may be reused, so the padding is cleared.
+            Arrays.fill(
+                    buffer,
+                    position + written,
+                    position + attributeLength,
+                    (byte) 0);
+            position += attributeLength;
         }
 
         // Message Length
-        binMsg[messageLengthOffset]     = (byte)(dataLength >> 8);
-        binMsg[messageLengthOffset + 1] = (byte)(dataLength & 0xFF);
+        buffer[messageLengthOffset]     = (byte)(dataLength >> 8);
+        buffer[messageLengthOffset + 1] = (byte)(dataLength & 0xFF);
 
-        return binMsg;
+        return HEADER_LENGTH + dataLength;
+    }
+
+    /**
+     * Returns the number of bytes an attribute takes in a message, including
+     * its header and padding.
+     *
+     * @param attribute the attribute.
+     * @return the number of bytes <tt>attribute</tt> takes in a message.
+     */
+    private static int getPaddedLength(Attribute attribute)
+    {
+        int attLen = attribute.getDataLength() + Attribute.HEADER_LENGTH;
+
+        //take attribute padding into account:
+        return attLen + (4 - (attLen % 4)) % 4;
     }
 
     /**
@@ -1058,6 +1284,11 @@ public abstract class Message
      */
     private void prepareForEncoding()
     {
+        //a message which is encoded again, e.g. a retransmitted request, is
+        //usually prepared already and is then left unmodified.
+        if (isPreparedForEncoding())
+            return;
+
         //remove MESSAGE-INTEGRITY and FINGERPRINT attributes so that we can
         //make sure they are added at the end.
         Attribute msgIntAttr = removeAttribute(Attribute.MESSAGE_INTEGRITY);
@@ -1094,6 +1325,40 @@ public abstract class Message
         }
     }
 
+    /**
+     * Determines whether {@link #prepareForEncoding()} would leave this
+     * message unmodified: it has the SOFTWARE and FINGERPRINT attributes
+     * requested by the configuration, and MESSAGE-INTEGRITY and FINGERPRINT
+     * come last.
+     *
+     * @return <tt>true</tt> if this message is prepared for encoding.
+     */
+    private boolean isPreparedForEncoding()
+    {
+        AttributeList attributes = this.attributes;
+        int count = attributes.size();
+        int fingerprintIndex = attributes.indexOf(Attribute.FINGERPRINT);
+        int msgIntIndex = attributes.indexOf(Attribute.MESSAGE_INTEGRITY);
+
+        if (fingerprintIndex < 0)
+        {
+            if (Boolean.getBoolean(StackProperties.ALWAYS_SIGN))
+                return false;
+        }
+        else if (fingerprintIndex != --count)
+        {
+            return false;
+        }
+        if (msgIntIndex >= 0 && msgIntIndex != count - 1)
+            return false;
+
+        String software = AgentConfig.config.getSoftware();
+
+        return software == null
+            || software.length() == 0
+            || attributes.indexOf(Attribute.SOFTWARE) >= 0;
+    }
+
     /**
      * Constructs a message from its binary representation.
      *
@@ -1207,7 +1472,7 @@ public abstract class Message
                 binMessage, offset, (char)(length - offset));
 
             performAttributeSpecificActions(att, binMessage,
-                originalOffset, offset);
+                originalOffset, offset - originalOffset);
 
             message.putAttribute(att);
             offset += att.getDataLength() + Attribute.HEADER_LENGTH;
@@ -1252,7 +1517,9 @@ public abstract class Message
             {
                 //RFC 5389 says that we should ignore bad CRCs rather than
                 //reply with an error response.
-                throw new StunException("Wrong value in FINGERPRINT");
+                throw new StunException(
+                        StunException.FINGERPRINT_MISMATCH,
+                        "Wrong value in FINGERPRINT");
             }
         }
     }
@@ -1276,24 +1543,23 @@ public abstract class Message
                                                int                  offset,
                                                int                  length)
     {
-
-        byte[] incomingCrcBytes = fingerprint.getChecksum();
+        int incomingCrc = fingerprint.getChecksumValue();
 
         //now check whether the CRC really is what it's supposed to be.
-        //re calculate the check sum
-        byte[] realCrcBytes = FingerprintAttribute.calculateXorCRC32(
+        //re calculate the check sum over the message in place
+        int realCrc = FingerprintAttribute.calculateXorCRC32Value(
                         message, offset, length);
 
         //CRC validation.
-        if ( ! Arrays.equals(incomingCrcBytes, realCrcBytes))
+        if (incomingCrc != realCrc)
         {
             if (logger.isLoggable(Level.FINE))
             {
                 logger.fine(
                         "An incoming message arrived with a wrong FINGERPRINT "
                         +"attribute value. "
-                        +"CRC Was:"  + Arrays.toString(incomingCrcBytes)
-                        + ". Should have been:" + Arrays.toString(realCrcBytes)
+                        +"CRC Was:"  + Integer.toHexString(incomingCrc)
+                        + ". Should have been:" + Integer.toHexString(realCrc)
                         +". Will ignore.");
             }
 
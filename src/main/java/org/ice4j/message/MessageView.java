@@ -0,0 +1,597 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.message;
+
+import java.nio.charset.*;
+import java.util.*;
+
+import org.ice4j.*;
+import org.ice4j.attribute.*;
+
+/**
+ * A read-only view of a STUN message in a byte buffer, for code which only
+ * needs a few fields of the messages it inspects and should not pay for
+ * {@link Message#decode(byte[], int, int)}, which creates an object for
+ * every attribute.
+ * <p>
+ * {@link #wrap(byte[], int, int)} validates the header and the lengths of the
+ * attributes once and indexes the offsets of the attributes. The attributes
+ * are then read in place: the type, the transaction ID, USERNAME, PRIORITY,
+ * ICE-CONTROLLING, ICE-CONTROLLED, USE-CANDIDATE and XOR-MAPPED-ADDRESS
+ * without allocating, any other attribute by decoding it on demand with
+ * {@link #getAttribute(char)}. Integrity and fingerprint are not verified.
+ * <p>
+ * A view may be reused for many messages and is not thread-safe. It reads
+ * the buffer as it is, so the buffer must not be modified while the view is
+ * in use.
+ */
+public class MessageView
+{
+    /**
+     * The initial number of attributes a view can index before its index is
+     * grown.
+     */
+    private static final int INITIAL_ATTRIBUTE_CAPACITY = 16;
+
+    /**
+     * The 32 bits of the magic cookie.
+     */
+    private static final int MAGIC_COOKIE_VALUE = 0x2112A442;
+
+    /**
+     * The families of the addresses of XOR-MAPPED-ADDRESS.
+     */
+    private static final int ADDRESS_FAMILY_IPV4 = 0x01;
+
+    private static final int ADDRESS_FAMILY_IPV6 = 0x02;
+
+    /**
+     * The buffer which holds the message, or <tt>null</tt> if no valid
+     * message is wrapped.
+     */
+    private byte[] buffer;
+
+    /**
+     * The offset of the message in {@link #buffer}.
+     */
+    private int offset;
+
+    /**
+     * The length of the attributes of the message, as in its header.
+     */
+    private int messageLength;
+
+    /**
+     * The number of attributes of the message.
+     */
+    private int attributeCount;
+
+    /**
+     * The types of the attributes, in the order of the message.
+     */
+    private char[] attributeTypes = new char[INITIAL_ATTRIBUTE_CAPACITY];
+
+    /**
+     * The offsets in {@link #buffer} of the values of the attributes.
+     */
+    private int[] attributeOffsets = new int[INITIAL_ATTRIBUTE_CAPACITY];
+
+    /**
+     * The lengths of the values of the attributes, without padding.
+     */
+    private int[] attributeLengths = new int[INITIAL_ATTRIBUTE_CAPACITY];
+
+    /**
+     * Wraps a message. The message must have the magic cookie of RFC 5389,
+     * and its length and the lengths of its attributes must fit in
+     * <tt>length</tt>.
+     *
+     * @param buffer the buffer which holds the message.
+     * @param offset the offset of the message in <tt>buffer</tt>.
+     * @param length the number of bytes available in <tt>buffer</tt> from
+     * <tt>offset</tt>.
+     * @return <tt>true</tt> if a valid message was wrapped, or <tt>false</tt>
+     * if the bytes are not a STUN message, in which case {@link #isValid()}
+     * returns <tt>false</tt> until another message is wrapped.
+     */
+    public boolean wrap(byte[] buffer, int offset, int length)
+    {
+        this.buffer = null;
+        attributeCount = 0;
+
+        if (buffer == null
+                || offset < 0
+                || length < Message.HEADER_LENGTH
+                || buffer.length - offset < length
+                || (buffer[offset] & 0xC0) != 0
+                || getInt(buffer, offset + 4) != MAGIC_COOKIE_VALUE)
+        {
+            return false;
+        }
+
+        int messageLength = getChar(buffer, offset + 2);
+
+        if ((messageLength & 0x3) != 0
+                || Message.HEADER_LENGTH + messageLength > length)
+        {
+            return false;
+        }
+
+        int end = offset + Message.HEADER_LENGTH + messageLength;
+        int attribute = offset + Message.HEADER_LENGTH;
+
+        while (attribute < end)
+        {
+            if (end - attribute < Attribute.HEADER_LENGTH)
+                return false;
+
+            int valueLength = getChar(buffer, attribute + 2);
+            int valueOffset = attribute + Attribute.HEADER_LENGTH;
+
+            if (valueLength > end - valueOffset)
+                return false;
+
+            if (attributeCount == attributeTypes.length)
+                growIndex();
+            attributeTypes[attributeCount]
+                = (char) getChar(buffer, attribute);
+            attributeOffsets[attributeCount] = valueOffset;
+            attributeLengths[attributeCount] = valueLength;
+            attributeCount++;
+
+            attribute = valueOffset + ((valueLength + 3) & ~0x3);
+        }
+
+        this.buffer = buffer;
+        this.offset = offset;
+        this.messageLength = messageLength;
+        return true;
+    }
+
+    /**
+     * Determines whether this view wraps a valid message.
+     *
+     * @return <tt>true</tt> if the last call to
+     * {@link #wrap(byte[], int, int)} succeeded.
+     */
+    public boolean isValid()
+    {
+        return buffer != null;
+    }
+
+    /**
+     * Returns the type of the message.
+     *
+     * @return the type of the message, e.g.
+     * {@link Message#BINDING_REQUEST}.
+     */
+    public char getMessageType()
+    {
+        checkValid();
+        return (char) getChar(buffer, offset);
+    }
+
+    /**
+     * Returns the length of the message, including its header.
+     *
+     * @return the length of the message in bytes.
+     */
+    public int getLength()
+    {
+        checkValid();
+        return Message.HEADER_LENGTH + messageLength;
+    }
+
+    /**
+     * Returns the offset of the transaction ID of the message in the wrapped
+     * buffer. The transaction ID is {@link Message#TRANSACTION_ID_LENGTH}
+     * bytes long.
+     *
+     * @return the offset of the transaction ID.
+     */
+    public int getTransactionIDOffset()
+    {
+        checkValid();
+        return offset + 8;
+    }
+
+    /**
+     * Determines whether the message has a specific transaction ID.
+     *
+     * @param transactionID the transaction ID to compare with.
+     * @return <tt>true</tt> if the message has the transaction ID
+     * <tt>transactionID</tt>.
+     */
+    public boolean transactionIDEquals(byte[] transactionID)
+    {
+        checkValid();
+        return transactionID != null
+            && transactionID.length == Message.TRANSACTION_ID_LENGTH
+            && Arrays.equals(
+                    buffer, offset + 8,
+                    offset + 8 + Message.TRANSACTION_ID_LENGTH,
+                    transactionID, 0, Message.TRANSACTION_ID_LENGTH);
+    }
+
+    /**
+     * Returns a copy of the transaction ID of the message.
+     *
+     * @return a copy of the transaction ID of the message.
+     */
+    public byte[] getTransactionID()
+    {
+        checkValid();
+        return Arrays.copyOfRange(
+                buffer, offset + 8, offset + 8 + Message.TRANSACTION_ID_LENGTH);
+    }
+
+    /**
+     * Returns the number of attributes of the message.
+     *
+     * @return the number of attributes of the message.
+     */
+    public int getAttributeCount()
+    {
+        checkValid();
+        return attributeCount;
+    }
+
+    /**
+     * Returns the type of an attribute.
+     *
+     * @param index the index of the attribute, in the order of the message.
+     * @return the type of the attribute.
+     */
+    public char getAttributeType(int index)
+    {
+        checkIndex(index);
+        return attributeTypes[index];
+    }
+
+    /**
+     * Returns the offset in the wrapped buffer of the value of an attribute.
+     *
+     * @param index the index of the attribute, in the order of the message.
+     * @return the offset of the value of the attribute.
+     */
+    public int getAttributeValueOffset(int index)
+    {
+        checkIndex(index);
+        return attributeOffsets[index];
+    }
+
+    /**
+     * Returns the length of the value of an attribute, without padding.
+     *
+     * @param index the index of the attribute, in the order of the message.
+     * @return the length of the value of the attribute.
+     */
+    public int getAttributeValueLength(int index)
+    {
+        checkIndex(index);
+        return attributeLengths[index];
+    }
+
+    /**
+     * Returns the index of the first attribute of a specific type.
+     *
+     * @param type the type of the attribute.
+     * @return the index of the first attribute of type <tt>type</tt>, or
+     * <tt>-1</tt> if the message has no such attribute.
+     */
+    public int indexOf(char type)
+    {
+        checkValid();
+        for (int i = 0; i < attributeCount; i++)
+        {
+            if (attributeTypes[i] == type)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Determines whether the message has an attribute of a specific type.
+     *
+     * @param type the type of the attribute.
+     * @return <tt>true</tt> if the message has an attribute of type
+     * <tt>type</tt>.
+     */
+    public boolean hasAttribute(char type)
+    {
+        return indexOf(type) >= 0;
+    }
+
+    /**
+     * Decodes the first attribute of a specific type.
+     *
+     * @param type the type of the attribute.
+     * @return the decoded attribute, or <tt>null</tt> if the message has no
+     * attribute of type <tt>type</tt>.
+     * @throws StunException if the attribute can not be decoded.
+     */
+    public Attribute getAttribute(char type)
+        throws StunException
+    {
+        int index = indexOf(type);
+
+        if (index < 0)
+            return null;
+
+        int attribute = attributeOffsets[index] - Attribute.HEADER_LENGTH;
+
+        return AttributeDecoder.decode(
+                buffer,
+                attribute,
+                (char) (Attribute.HEADER_LENGTH + attributeLengths[index]));
+    }
+
+    /**
+     * Returns the offset in the wrapped buffer of the USERNAME.
+     *
+     * @return the offset of the USERNAME, or <tt>-1</tt> if the message has
+     * none.
+     */
+    public int getUsernameOffset()
+    {
+        int index = indexOf(Attribute.USERNAME);
+
+        return (index < 0) ? -1 : attributeOffsets[index];
+    }
+
+    /**
+     * Returns the length of the USERNAME.
+     *
+     * @return the length of the USERNAME, or <tt>-1</tt> if the message has
+     * none.
+     */
+    public int getUsernameLength()
+    {
+        int index = indexOf(Attribute.USERNAME);
+
+        return (index < 0) ? -1 : attributeLengths[index];
+    }
+
+    /**
+     * Returns the length of the local ufrag in the USERNAME of a request,
+     * i.e. of the part of the USERNAME which precedes the colon.
+     *
+     * @return the length of the local ufrag, the length of the whole
+     * USERNAME if it has no colon, or <tt>-1</tt> if the message has no
+     * USERNAME.
+     */
+    public int getLocalUfragLength()
+    {
+        int index = indexOf(Attribute.USERNAME);
+
+        if (index < 0)
+            return -1;
+
+        int start = attributeOffsets[index];
+        int end = start + attributeLengths[index];
+        int colon = start;
+
+        while (colon < end && buffer[colon] != ':')
+            colon++;
+        return colon - start;
+    }
+
+    /**
+     * Returns the local ufrag in the USERNAME of a request. Unlike the other
+     * accessors of USERNAME, allocates the returned string.
+     *
+     * @return the local ufrag, or <tt>null</tt> if the message has no
+     * USERNAME.
+     * @see #getLocalUfragLength()
+     */
+    public String getLocalUfrag()
+    {
+        int length = getLocalUfragLength();
+
+        return (length < 0)
+            ? null
+            : new String(
+                    buffer, getUsernameOffset(), length,
+                    StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the PRIORITY of the message.
+     *
+     * @return the PRIORITY, as an unsigned 32-bit value, or <tt>-1</tt> if
+     * the message has no valid PRIORITY.
+     */
+    public long getPriority()
+    {
+        int index = indexOf(Attribute.PRIORITY);
+
+        if (index < 0 || attributeLengths[index] != 4)
+            return -1;
+        return getInt(buffer, attributeOffsets[index]) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Determines whether the message has an ICE-CONTROLLING attribute.
+     *
+     * @return <tt>true</tt> if the message has an ICE-CONTROLLING attribute.
+     */
+    public boolean isIceControlling()
+    {
+        return hasAttribute(Attribute.ICE_CONTROLLING);
+    }
+
+    /**
+     * Determines whether the message has an ICE-CONTROLLED attribute.
+     *
+     * @return <tt>true</tt> if the message has an ICE-CONTROLLED attribute.
+     */
+    public boolean isIceControlled()
+    {
+        return hasAttribute(Attribute.ICE_CONTROLLED);
+    }
+
+    /**
+     * Returns the tie-breaker of the ICE-CONTROLLING or ICE-CONTROLLED
+     * attribute of the message. Check which of them the message has with
+     * {@link #isIceControlling()} and {@link #isIceControlled()}.
+     *
+     * @return the tie-breaker, or <tt>0</tt> if the message has neither a
+     * valid ICE-CONTROLLING nor a valid ICE-CONTROLLED attribute.
+     */
+    public long getTieBreaker()
+    {
+        int index = indexOf(Attribute.ICE_CONTROLLING);
+
+        if (index < 0)
+            index = indexOf(Attribute.ICE_CONTROLLED);
+        if (index < 0 || attributeLengths[index] != 8)
+            return 0;
+
+        int value = attributeOffsets[index];
+
+        return ((long) getInt(buffer, value) << 32)
+            | (getInt(buffer, value + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Determines whether the message has a USE-CANDIDATE attribute.
+     *
+     * @return <tt>true</tt> if the message has a USE-CANDIDATE attribute.
+     */
+    public boolean hasUseCandidate()
+    {
+        return hasAttribute(Attribute.USE_CANDIDATE);
+    }
+
+    /**
+     * Returns the port of the XOR-MAPPED-ADDRESS of the message.
+     *
+     * @return the port, or <tt>-1</tt> if the message has no valid
+     * XOR-MAPPED-ADDRESS.
+     */
+    public int getXorMappedPort()
+    {
+        int index = indexOfXorMappedAddress();
+
+        if (index < 0)
+            return -1;
+        return getChar(buffer, attributeOffsets[index] + 2)
+            ^ (MAGIC_COOKIE_VALUE >>> 16);
+    }
+
+    /**
+     * Copies the address of the XOR-MAPPED-ADDRESS of the message, with the
+     * XOR removed.
+     *
+     * @param address the array to copy the address into, at least 16 bytes
+     * long for an IPv6 address.
+     * @return the length of the address, <tt>4</tt> for IPv4 and <tt>16</tt>
+     * for IPv6, or <tt>0</tt> if the message has no valid XOR-MAPPED-ADDRESS.
+     */
+    public int getXorMappedAddress(byte[] address)
+    {
+        int index = indexOfXorMappedAddress();
+
+        if (index < 0)
+            return 0;
+
+        int value = attributeOffsets[index] + 4;
+        int length = attributeLengths[index] - 4;
+
+        // The address is XORed with the magic cookie and, for IPv6, with the
+        // transaction ID which follows it in the header.
+        for (int i = 0; i < length; i++)
+            address[i] = (byte) (buffer[value + i] ^ buffer[offset + 4 + i]);
+        return length;
+    }
+
+    /**
+     * Returns the index of a well-formed XOR-MAPPED-ADDRESS attribute.
+     *
+     * @return the index of the XOR-MAPPED-ADDRESS, or <tt>-1</tt> if the
+     * message has none or it is malformed.
+     */
+    private int indexOfXorMappedAddress()
+    {
+        int index = indexOf(Attribute.XOR_MAPPED_ADDRESS);
+
+        if (index < 0)
+            return -1;
+
+        int family = buffer[attributeOffsets[index] + 1];
+        int length = attributeLengths[index];
+
+        if ((family == ADDRESS_FAMILY_IPV4
+                    && length == 8)
+                || (family == ADDRESS_FAMILY_IPV6
+                    && length == 20))
+        {
+            return index;
+        }
+        return -1;
+    }
+
+    /**
+     * Doubles the number of attributes the index can hold.
+     */
+    private void growIndex()
+    {
+        int capacity = attributeTypes.length * 2;
+
+        attributeTypes = Arrays.copyOf(attributeTypes, capacity);
+        attributeOffsets = Arrays.copyOf(attributeOffsets, capacity);
+        attributeLengths = Arrays.copyOf(attributeLengths, capacity);
+    }
+
+    /**
+     * Throws if this view does not wrap a valid message.
+     */
+    private void checkValid()
+    {
+        if (buffer == null)
+            throw new IllegalStateException("No valid message wrapped");
+    }
+
+    /**
+     * Throws if an attribute index is out of bounds.
+     *
+     * @param index the index of an attribute.
+     */
+    private void checkIndex(int index)
+    {
+        checkValid();
+        if (index < 0 || index >= attributeCount)
+        {
+            throw new IndexOutOfBoundsException(
+                    "index=" + index + ", attributes=" + attributeCount);
+        }
+    }
+
+    private static int getChar(byte[] buffer, int offset)
+    {
+        return ((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF);
+    }
+
+    private static int getInt(byte[] buffer, int offset)
+    {
+        return ((buffer[offset] & 0xFF) << 24)
+            | ((buffer[offset + 1] & 0xFF) << 16)
+            | ((buffer[offset + 2] & 0xFF) << 8)
+            | (buffer[offset + 3] & 0xFF);
+    }
+}
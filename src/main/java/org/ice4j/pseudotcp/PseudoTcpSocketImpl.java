@@ -23,6 +23,8 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.logging.*;
 
+import org.ice4j.util.*;
+
 class PseudoTcpSocketImpl 
     extends SocketImpl
     implements PseudoTcpNotify
@@ -703,9 +705,8 @@ class PseudoTcpSocketImpl
      */
     private boolean runClock = false;
 
-    // FIXME: consider larger thread pool and/or making it configurable
-    private final static ScheduledThreadPoolExecutor clockExecutor
-        = new ScheduledThreadPoolExecutor(1);
+    private final static ScheduledExecutorService clockExecutor
+        = Ice4jExecutors.newScheduledExecutor("ice4j.PseudoTcp-clock-");
 
     private volatile ScheduledFuture<?> currentlyScheduledClockTask = null;
 
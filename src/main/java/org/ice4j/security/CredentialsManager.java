@@ -26,6 +26,14 @@ import java.util.*;
  * is to allow use in both applications that would handle large numbers of
  * possible users (such as STUN/TURN servers) or others that would only work
  * with a few, like for example an ICE implementation.
+ * <p>
+ * Authorities which serve a single local ufrag, such as the ICE agents
+ * sharing a <tt>StunStack</tt>, may be registered with
+ * {@link #registerAuthority(String, CredentialsAuthority)} or implement
+ * {@link LocalUfragCredentialsAuthority}. Their credentials are then looked
+ * up by the ufrag in the user name instead of by asking every authority in
+ * turn. The other authorities are still asked in the order of their
+ * registration. Lookups do not lock.
  *
  * TODO: just throwing a user name at the manager and expecting it to find
  * an authority that knows about it may lead to ambiguities so we may need
@@ -43,21 +51,29 @@ import java.util.*;
 public class CredentialsManager
 {
     /**
-     * The list of <tt>CredentialsAuthority</tt>s registered with this manager
-     * as being able to provide credentials.
+     * The <tt>CredentialsAuthority</tt>s registered with this manager as
+     * being able to provide credentials, which are not indexed by ufrag. The
+     * array is never modified: registrations replace it with a modified copy,
+     * so that lookups do not lock.
      *
      * 为这个管理器注册的CredentialsAuthority 列表被用来提供凭证 ...
      */
-    private final List<CredentialsAuthority> authorities = new LinkedList<>();
+    private volatile CredentialsAuthority[] authorities
+        = new CredentialsAuthority[0];
 
     /**
-     * The list of <tt>CredentialsAuthority</tt>s registered with this manager
-     * as being able to provide credentials. If non-<tt>null</tt>, represents
-     * an unmodifiable view of {@link #authorities}. The field was introduced in
-     * order to reduce the scopes of the synchronization blocks of
-     * <tt>CredentialsManager</tt> and to thus reduce the risks of deadlocks.
+     * The lock which serializes the modifications of {@link #authorities} and
+     * {@link #ufragAuthorities}.
      */
-    private CredentialsAuthority[] unmodifiableAuthorities;
+    private final Object registrationLock = new Object();
+
+    /**
+     * The <tt>CredentialsAuthority</tt>s registered for a specific local
+     * ufrag. The map is never modified: registrations replace it with a
+     * modified copy, so that lookups do not lock.
+     */
+    private volatile Map<String, CredentialsAuthority> ufragAuthorities
+        = Collections.emptyMap();
 
     /**
      * Verifies whether <tt>username</tt> is currently known to any of the
@@ -72,7 +88,13 @@ public class CredentialsManager
      */
     public boolean checkLocalUserName(String username)
     {
-        for (CredentialsAuthority auth : getAuthorities())
+        CredentialsAuthority ufragAuth
+            = ufragAuthorities.get(beforeColon(username));
+
+        if (ufragAuth != null && ufragAuth.checkLocalUserName(username))
+            return true;
+
+        for (CredentialsAuthority auth : authorities)
         {
             if (auth.checkLocalUserName(username))
                 return true;
@@ -80,31 +102,6 @@ public class CredentialsManager
         return false;
     }
 
-    /**
-     * Gets the list of <tt>CredentialsAuthority</tt>s registered with this
-     * manager as being able to provide credentials. <b>Warning</b>: the
-     * returned value is an internal state of this instance and is to be
-     * considered unmodifiable.
-     *
-     * @return the list of <tt>CredentialsAuthority</tt>s registered with this
-     * manager as being able to provide credentials. <b>Warning</b>: the
-     * returned value is an internal state of this instance and is to be
-     * considered unmodifiable.
-     */
-    private CredentialsAuthority[] getAuthorities()
-    {
-        synchronized (authorities)
-        {
-            if (unmodifiableAuthorities == null)
-            {
-                unmodifiableAuthorities
-                    = authorities.toArray(
-                            new CredentialsAuthority[authorities.size()]);
-            }
-            return unmodifiableAuthorities;
-        }
-    }
-
     /**
      * Queries all currently registered {@link CredentialsAuthority}s for a
      * password corresponding to the specified local <tt>username</tt> or user
@@ -120,7 +117,18 @@ public class CredentialsManager
      */
     public byte[] getLocalKey(String username)
     {
-        for (CredentialsAuthority auth : getAuthorities())
+        CredentialsAuthority ufragAuth
+            = ufragAuthorities.get(beforeColon(username));
+
+        if (ufragAuth != null)
+        {
+            byte[] passwd = ufragAuth.getLocalKey(username);
+
+            if (passwd != null)
+                return passwd;
+        }
+
+        for (CredentialsAuthority auth : authorities)
         {
             byte[] passwd = auth.getLocalKey(username);
 
@@ -146,7 +154,26 @@ public class CredentialsManager
      */
     public byte[] getRemoteKey(String username, String media)
     {
-        for (CredentialsAuthority auth : getAuthorities())
+        // The user name we send is "remoteUfrag:localUfrag".
+        int colon = username.indexOf(':');
+        Map<String, CredentialsAuthority> ufragAuthorities
+            = this.ufragAuthorities;
+
+        if (colon >= 0)
+        {
+            CredentialsAuthority ufragAuth
+                = ufragAuthorities.get(username.substring(colon + 1));
+
+            if (ufragAuth != null)
+            {
+                byte[] passwd = ufragAuth.getRemoteKey(username, media);
+
+                if (passwd != null)
+                    return passwd;
+            }
+        }
+
+        for (CredentialsAuthority auth : authorities)
         {
             byte[] passwd = auth.getRemoteKey(username, media);
 
@@ -156,22 +183,182 @@ public class CredentialsManager
                 return passwd;
             }
         }
+
+        // A remote ufrag alone does not tell which local ufrag it is used
+        // with.
+        if (colon < 0)
+        {
+            for (CredentialsAuthority auth : ufragAuthorities.values())
+            {
+                byte[] passwd = auth.getRemoteKey(username, media);
+
+                if (passwd != null)
+                    return passwd;
+            }
+        }
         return null;
     }
 
     /**
      * Adds <tt>authority</tt> to the list of {@link CredentialsAuthority}s
-     * registered with this manager.
+     * registered with this manager. A {@link LocalUfragCredentialsAuthority}
+     * with a ufrag is indexed by it.
      *
      * @param authority the {@link CredentialsAuthority} to add to this manager.
      */
     public void registerAuthority(CredentialsAuthority authority)
     {
-        synchronized (authorities)
+        String localUfrag = getLocalUfrag(authority);
+
+        if (localUfrag != null)
+        {
+            registerAuthority(localUfrag, authority);
+            return;
+        }
+
+        synchronized (registrationLock)
+        {
+            CredentialsAuthority[] authorities = this.authorities;
+
+            if (Arrays.asList(authorities).contains(authority))
+                return;
+
+            CredentialsAuthority[] newAuthorities
+                = Arrays.copyOf(authorities, authorities.length + 1);
+
+            newAuthorities[authorities.length] = authority;
+            this.authorities = newAuthorities;
+        }
+    }
+
+    /**
+     * Registers an authority which provides the credentials of a specific
+     * local ufrag, i.e. of the user names "localUfrag" and
+     * "localUfrag:remoteUfrag" for the local key and "remoteUfrag:localUfrag"
+     * for the remote key. Registering another authority for the same ufrag
+     * replaces the previous one.
+     *
+     * @param localUfrag the local ufrag that <tt>authority</tt> serves.
+     * @param authority the {@link CredentialsAuthority} to add to this manager.
+     */
+    public void registerAuthority(
+            String localUfrag,
+            CredentialsAuthority authority)
+    {
+        Objects.requireNonNull(localUfrag, "localUfrag");
+        Objects.requireNonNull(authority, "authority");
+
+        synchronized (registrationLock)
+        {
+            Map<String, CredentialsAuthority> newUfragAuthorities
+                = new HashMap<>(ufragAuthorities);
+
+            newUfragAuthorities.put(localUfrag, authority);
+            ufragAuthorities
+                = Collections.unmodifiableMap(newUfragAuthorities);
+        }
+    }
+
+    /**
+     * Removes an authority registered with
+     * {@link #registerAuthority(String, CredentialsAuthority)}. Does nothing
+     * if another authority has been registered for the ufrag since.
+     *
+     * @param localUfrag the local ufrag that <tt>authority</tt> was
+     * registered with.
+     * @param authority the {@link CredentialsAuthority} to remove from this
+     * manager.
+     */
+    public void unregisterAuthority(
+            String localUfrag,
+            CredentialsAuthority authority)
+    {
+        synchronized (registrationLock)
+        {
+            if (!removeUfragAuthority(localUfrag, authority))
+                return;
+        }
+        invalidateKeys(localUfrag, authority);
+    }
+
+    /**
+     * Drops the HMAC-SHA1 engines keyed with the credentials of an authority
+     * which has been unregistered. Only the engines of the local key of the
+     * authority are dropped if its local ufrag is known, so that the other
+     * sessions keep theirs.
+     *
+     * @param localUfrag the local ufrag of <tt>authority</tt>, or
+     * <tt>null</tt> if its keys cannot be enumerated.
+     * @param authority the authority which has been unregistered.
+     */
+    private static void invalidateKeys(
+            String localUfrag,
+            CredentialsAuthority authority)
+    {
+        if (localUfrag == null)
+            HmacSha1Cache.invalidate();
+        else
+            HmacSha1Cache.invalidate(authority.getLocalKey(localUfrag));
+    }
+
+    /**
+     * Removes an authority from {@link #ufragAuthorities} if it is the one
+     * registered for a ufrag. The caller must hold {@link #registrationLock}.
+     *
+     * @param localUfrag the local ufrag that <tt>authority</tt> was
+     * registered with.
+     * @param authority the {@link CredentialsAuthority} to remove.
+     * @return <tt>true</tt> if <tt>authority</tt> was removed.
+     */
+    private boolean removeUfragAuthority(
+            String localUfrag,
+            CredentialsAuthority authority)
+    {
+        if (localUfrag == null
+                || authority == null
+                || !authority.equals(ufragAuthorities.get(localUfrag)))
         {
-            if (!authorities.contains(authority) && authorities.add(authority))
-                unmodifiableAuthorities = null;
+            return false;
         }
+
+        Map<String, CredentialsAuthority> newUfragAuthorities
+            = new HashMap<>(ufragAuthorities);
+
+        newUfragAuthorities.remove(localUfrag);
+        ufragAuthorities
+            = newUfragAuthorities.isEmpty()
+                ? Collections.emptyMap()
+                : Collections.unmodifiableMap(newUfragAuthorities);
+        return true;
+    }
+
+    /**
+     * Returns the ufrag which an authority is indexed by.
+     *
+     * @param authority the authority.
+     * @return the ufrag of <tt>authority</tt> if it is a
+     * {@link LocalUfragCredentialsAuthority}, or <tt>null</tt>.
+     */
+    private static String getLocalUfrag(CredentialsAuthority authority)
+    {
+        return (authority instanceof LocalUfragCredentialsAuthority)
+            ? ((LocalUfragCredentialsAuthority) authority).getLocalUfrag()
+            : null;
+    }
+
+    /**
+     * Returns the part of a user name which precedes the colon, i.e. the
+     * local ufrag of a user name received in a request, or the whole user
+     * name if it has no colon.
+     *
+     * @param username the user name.
+     * @return the part of <tt>username</tt> which precedes the colon.
+     */
+    private static String beforeColon(String username)
+    {
+        int colon = username.indexOf(':');
+
+        return colon < 0 ? username : username.substring(0, colon);
     }
 
     /**
@@ -183,10 +370,28 @@ public class CredentialsManager
      */
     public void unregisterAuthority(CredentialsAuthority authority)
     {
-        synchronized (authorities)
+        synchronized (registrationLock)
         {
-            if (authorities.remove(authority))
-                unmodifiableAuthorities = null;
+            CredentialsAuthority[] authorities = this.authorities;
+            int index = Arrays.asList(authorities).indexOf(authority);
+
+            if (index >= 0)
+            {
+                CredentialsAuthority[] newAuthorities
+                    = new CredentialsAuthority[authorities.length - 1];
+
+                System.arraycopy(authorities, 0, newAuthorities, 0, index);
+                System.arraycopy(
+                        authorities, index + 1,
+                        newAuthorities, index,
+                        newAuthorities.length - index);
+                this.authorities = newAuthorities;
+            }
+            else if (!removeUfragAuthority(getLocalUfrag(authority), authority))
+            {
+                return;
+            }
         }
+        invalidateKeys(getLocalUfrag(authority), authority);
     }
 }
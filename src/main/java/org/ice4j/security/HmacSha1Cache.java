@@ -0,0 +1,315 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.security;
+
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * A per-thread cache of HMAC-SHA1 <tt>Mac</tt>s which are already
+ * initialized with a specific key. ICE sessions sign and verify all of their
+ * connectivity checks and consent freshness requests with the same few
+ * ufrag/password keys, so caching the initialized engines avoids a provider
+ * lookup and a key schedule per message.
+ * <p>
+ * A <tt>Mac</tt> is not thread-safe, hence each thread keeps its own small
+ * LRU of engines. {@link #invalidate(byte[])} drops the engines of all
+ * threads which are keyed with specific credentials; it is called whenever
+ * credentials are removed or replaced, so that the teardown of a session does
+ * not affect the engines of the other sessions. A thread stops using the
+ * engines of an invalidated key at once, and releases them on its next cache
+ * miss at the latest.
+ */
+public final class HmacSha1Cache
+{
+    /**
+     * The algorithm of the cached <tt>Mac</tt>s.
+     */
+    private static final String HMAC_SHA1_ALGORITHM = "HmacSHA1";
+
+    /**
+     * The maximum number of keys whose <tt>Mac</tt>s a thread keeps.
+     */
+    private static final int MAX_KEYS_PER_THREAD = 16;
+
+    /**
+     * The maximum number of keys in {@link #keyStates}. Reaching it
+     * invalidates all keys, so that the keys which are never invalidated
+     * explicitly are not kept forever.
+     */
+    private static final int MAX_KEYS = 8192;
+
+    /**
+     * The state of the keys which the threads have cached <tt>Mac</tt>s for
+     * and which have not been invalidated.
+     */
+    private static final ConcurrentMap<Key, KeyState> keyStates
+        = new ConcurrentHashMap<>();
+
+    /**
+     * The cache of the current thread.
+     */
+    private static final ThreadLocal<ThreadCache> threadCache
+        = ThreadLocal.withInitial(ThreadCache::new);
+
+    /**
+     * Prevents the initialization of <tt>HmacSha1Cache</tt> instances.
+     */
+    private HmacSha1Cache()
+    {
+    }
+
+    /**
+     * Returns a HMAC-SHA1 <tt>Mac</tt> initialized with a specific key, for
+     * use by the current thread only. The returned instance is reset and
+     * must not be retained, as it may be handed out again by a later call on
+     * the same thread.
+     *
+     * @param key the key to initialize the <tt>Mac</tt> with.
+     * @return a <tt>Mac</tt> initialized with <tt>key</tt>.
+     * @throws GeneralSecurityException if the <tt>Mac</tt> cannot be created
+     * or initialized.
+     */
+    public static Mac getMac(byte[] key)
+        throws GeneralSecurityException
+    {
+        return threadCache.get().getMac(key);
+    }
+
+    /**
+     * Drops the cached <tt>Mac</tt>s of all threads which are keyed with a
+     * specific key.
+     *
+     * @param key the key which is no longer in use, or <tt>null</tt>.
+     */
+    public static void invalidate(byte[] key)
+    {
+        if (key != null)
+        {
+            KeyState state = keyStates.remove(new Key(key));
+
+            if (state != null)
+                state.invalidated = true;
+        }
+    }
+
+    /**
+     * Drops the cached <tt>Mac</tt>s of all threads, for the credentials
+     * whose keys cannot be enumerated.
+     */
+    public static void invalidate()
+    {
+        keyStates.values().removeIf(state ->
+        {
+            state.invalidated = true;
+            return true;
+        });
+    }
+
+    /**
+     * Returns the state of a key which a thread is about to cache a
+     * <tt>Mac</tt> for.
+     *
+     * @param key the key.
+     * @return the state of <tt>key</tt>.
+     */
+    private static KeyState getKeyState(Key key)
+    {
+        KeyState state = keyStates.get(key);
+
+        if (state == null)
+        {
+            if (keyStates.size() >= MAX_KEYS)
+                invalidate();
+            state = keyStates.computeIfAbsent(key, k -> new KeyState());
+        }
+        return state;
+    }
+
+    /**
+     * Computes a HMAC-SHA1 the way the cache is expected to be used.
+     *
+     * @param key the key.
+     * @param data the array holding the data to sign.
+     * @param offset the offset of the data in <tt>data</tt>.
+     * @param length the length of the data.
+     * @return the HMAC-SHA1 of the data.
+     * @throws GeneralSecurityException if the <tt>Mac</tt> cannot be created
+     * or initialized.
+     */
+    public static byte[] calculate(
+            byte[] key,
+            byte[] data,
+            int offset,
+            int length)
+        throws GeneralSecurityException
+    {
+        Mac mac = getMac(key);
+
+        mac.update(data, offset, length);
+        return mac.doFinal();
+    }
+
+    /**
+     * The <tt>Mac</tt>s of a thread.
+     */
+    private static final class ThreadCache
+    {
+        /**
+         * The <tt>Mac</tt>s of this thread in least recently used order.
+         */
+        private final LinkedHashMap<Key, CachedMac> macs
+            = new LinkedHashMap<Key, CachedMac>(
+                    MAX_KEYS_PER_THREAD, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Key, CachedMac> e)
+                {
+                    return size() > MAX_KEYS_PER_THREAD;
+                }
+            };
+
+        /**
+         * The key of {@link #lastMac}, checked before {@link #macs} so that
+         * the common case of consecutive messages signed with the same key
+         * does not allocate.
+         */
+        private byte[] lastKey;
+
+        /**
+         * The <tt>Mac</tt> which was returned last.
+         */
+        private CachedMac lastMac;
+
+        /**
+         * Returns a <tt>Mac</tt> initialized with a specific key.
+         *
+         * @param key the key.
+         * @return a <tt>Mac</tt> initialized with <tt>key</tt>.
+         * @throws GeneralSecurityException if the <tt>Mac</tt> cannot be
+         * created or initialized.
+         */
+        Mac getMac(byte[] key)
+            throws GeneralSecurityException
+        {
+            if (lastMac != null
+                    && !lastMac.state.invalidated
+                    && Arrays.equals(lastKey, key))
+            {
+                lastMac.mac.reset();
+                return lastMac.mac;
+            }
+
+            Key cacheKey = new Key(key);
+            CachedMac mac = macs.get(cacheKey);
+
+            if (mac == null || mac.state.invalidated)
+            {
+                // Release the engines of the keys which have been
+                // invalidated since.
+                macs.values().removeIf(m -> m.state.invalidated);
+
+                Mac newMac = Mac.getInstance(HMAC_SHA1_ALGORITHM);
+
+                newMac.init(new SecretKeySpec(key, HMAC_SHA1_ALGORITHM));
+                mac = new CachedMac(newMac, getKeyState(cacheKey));
+                macs.put(cacheKey, mac);
+            }
+            else
+            {
+                mac.mac.reset();
+            }
+            lastKey = cacheKey.bytes;
+            lastMac = mac;
+            return mac.mac;
+        }
+    }
+
+    /**
+     * Whether a key has been invalidated, shared by the <tt>Mac</tt>s of all
+     * threads which are keyed with it.
+     */
+    private static final class KeyState
+    {
+        /**
+         * Set when the key is invalidated.
+         */
+        volatile boolean invalidated;
+    }
+
+    /**
+     * A <tt>Mac</tt> cached by a thread, along with the state of its key.
+     */
+    private static final class CachedMac
+    {
+        final Mac mac;
+
+        final KeyState state;
+
+        CachedMac(Mac mac, KeyState state)
+        {
+            this.mac = mac;
+            this.state = state;
+        }
+    }
+
+    /**
+     * A copy of a key usable as a map key.
+     */
+    private static final class Key
+    {
+        /**
+         * The bytes of the key.
+         */
+        private final byte[] bytes;
+
+        /**
+         * The hash code of {@link #bytes}.
+         */
+        private final int hashCode;
+
+        /**
+         * Creates a key.
+         *
+         * @param bytes the bytes of the key, which are copied.
+         */
+        Key(byte[] bytes)
+        {
+            this.bytes = bytes.clone();
+            this.hashCode = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            return
+                obj instanceof Key && Arrays.equals(bytes, ((Key) obj).bytes);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hashCode;
+        }
+    }
+}
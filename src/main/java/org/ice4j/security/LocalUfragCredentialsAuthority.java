@@ -0,0 +1,37 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.security;
+
+/**
+ * A {@link CredentialsAuthority} which provides the credentials of a single
+ * local ufrag. {@link CredentialsManager} indexes such authorities by their
+ * ufrag when they are registered, so that their credentials are found
+ * without asking the other authorities.
+ */
+public interface LocalUfragCredentialsAuthority
+    extends CredentialsAuthority
+{
+    /**
+     * Returns the local ufrag whose credentials this authority provides. The
+     * value must not change while the authority is registered.
+     *
+     * @return the local ufrag whose credentials this authority provides, or
+     * <tt>null</tt> if this authority can not be indexed.
+     */
+    String getLocalUfrag();
+}
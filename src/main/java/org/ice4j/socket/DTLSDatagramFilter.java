@@ -25,7 +25,7 @@ import java.net.*;
  * @author Boris Grozev
  */
 public class DTLSDatagramFilter
-    implements DatagramPacketFilter
+    implements FirstByteDatagramPacketFilter
 {
     /**
      * Determines whether {@code p} looks like a DTLS packet.
@@ -69,4 +69,22 @@ public class DTLSDatagramFilter
     {
         return isDTLS(p);
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getMinFirstByte()
+    {
+        return 20;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getMaxFirstByte()
+    {
+        return 63;
+    }
 }
@@ -0,0 +1,69 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.socket;
+
+import java.net.*;
+
+/**
+ * A <tt>DatagramPacketFilter</tt> which only accepts packets whose first byte
+ * is in a specific range, in the manner of the demultiplexing of STUN, DTLS,
+ * RTP and RTCP in RFC 7983. Multiplexing sockets route each packet through a
+ * table indexed by its first byte, so the filters whose range does not
+ * include the first byte of a packet are not asked about it.
+ * <p>
+ * {@link #accept(DatagramPacket)} must be equivalent to the first byte of
+ * the packet being in the range and {@link #acceptInRange(DatagramPacket)}
+ * returning <tt>true</tt>; in particular it must not accept empty packets.
+ * Multiplexing sockets only route by the range if it is declared by the class
+ * which declares <tt>accept</tt> or by a subclass of it, so a subclass which
+ * overrides <tt>accept</tt> without declaring its own range is asked about
+ * every packet.
+ */
+public interface FirstByteDatagramPacketFilter
+    extends DatagramPacketFilter
+{
+    /**
+     * Returns the smallest first byte of the packets accepted by this filter.
+     *
+     * @return the smallest first byte, between 0 and 255, of the accepted
+     * packets.
+     */
+    int getMinFirstByte();
+
+    /**
+     * Returns the largest first byte of the packets accepted by this filter.
+     *
+     * @return the largest first byte, between 0 and 255, of the accepted
+     * packets.
+     */
+    int getMaxFirstByte();
+
+    /**
+     * Determines whether a packet whose first byte is in the range of this
+     * filter is accepted. The default implementation accepts every such
+     * packet.
+     *
+     * @param p a non-empty packet whose first byte is between
+     * {@link #getMinFirstByte()} and {@link #getMaxFirstByte()}.
+     * @return <tt>true</tt> if this filter accepts <tt>p</tt>.
+     */
+    default boolean acceptInRange(DatagramPacket p)
+    {
+        return true;
+    }
+}
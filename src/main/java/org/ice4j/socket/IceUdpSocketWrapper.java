@@ -19,6 +19,8 @@ package org.ice4j.socket;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 
 /**
  * UDP implementation of the <tt>IceSocketWrapper</tt>.
@@ -45,12 +47,32 @@ public class IceUdpSocketWrapper
 
     /**
      * {@inheritDoc}
+     *
+     * If the channel of the delegate has been put in non-blocking mode (e.g.
+     * because the socket is read by a selector), the datagram is sent through
+     * the channel, on which it is dropped if the send buffer is full.
      */
     @Override
     public void send(DatagramPacket p)
         throws IOException
     {
-        socket.send(p);
+        DatagramChannel channel = socket.getChannel();
+
+        if (channel != null && !channel.isBlocking())
+        {
+            ByteBuffer buffer
+                = ByteBuffer.wrap(p.getData(), p.getOffset(), p.getLength());
+
+            // A connected socket may send a packet without an address.
+            if (p.getAddress() == null)
+                channel.write(buffer);
+            else
+                channel.send(buffer, p.getSocketAddress());
+        }
+        else
+        {
+            socket.send(p);
+        }
     }
 
     /**
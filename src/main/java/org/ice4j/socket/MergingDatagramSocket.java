@@ -24,6 +24,7 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * A {@link DatagramSocket} implementation which merges a set of sockets.
@@ -33,6 +34,15 @@ import java.util.concurrent.*;
  * API, in the order in which they were originally received (or close to it,
  * since the implementation is only based on timestamps).
  *
+ * In push mode, the datagrams received from all underlying sockets are instead
+ * put in a single queue in the order in which they arrive, and
+ * {@link #receive(DatagramPacket)} takes the first one. An underlying
+ * {@link MultiplexingDatagramSocket} or {@link MultiplexingSocket} pushes its
+ * datagrams into the queue on the thread which already reads from it on behalf
+ * of one of its multiplexed sockets (e.g. the thread of the STUN stack), so
+ * no thread is started for it. A thread is still started for any other
+ * socket.
+ *
  * One of the underlying sockets is used as a delegate, and handles sending
  * via {@link #send(DatagramPacket)} and calls to
  * {@link #getLocalPort()}, {@link #getLocalAddress()} and
@@ -53,6 +63,23 @@ public class MergingDatagramSocket
      */
     private SocketContainer[] socketContainers = new SocketContainer[0];
 
+    /**
+     * The maximum number of datagrams waiting in {@link #merged}.
+     */
+    private static final int MERGED_QUEUE_CAPACITY = 1000;
+
+    /**
+     * In push mode, the datagrams received from all underlying sockets, in the
+     * order in which they arrived. {@code null} otherwise.
+     */
+    private final ArrayBlockingQueue<SocketContainer.Buffer> merged;
+
+    /**
+     * The number of datagrams which were dropped from {@link #merged} because
+     * it was full.
+     */
+    private final AtomicLong numDroppedPackets = new AtomicLong();
+
     /**
      * Calls to {@link #receive(java.net.DatagramPacket)} will wait on this
      * object in case no packet is available for reading.
@@ -108,8 +135,34 @@ public class MergingDatagramSocket
      */
     public MergingDatagramSocket(Logger parentLogger)
             throws SocketException
+    {
+        this(parentLogger, false);
+    }
+
+    /**
+     * Initializes a new {@link MergingDatagramSocket} instance.
+     * @param parentLogger the {@link Logger} parent logger from which we'll
+     *                     derive this class' logger instance
+     * @param push whether the underlying sockets should push their datagrams
+     *             into a single queue, and only be read by threads of their own
+     *             if they cannot push
+     * @throws SocketException
+     */
+    public MergingDatagramSocket(Logger parentLogger, boolean push)
+            throws SocketException
     {
         logger = parentLogger.createChildLogger(this.getClass().getName());
+        merged = push ? new ArrayBlockingQueue<>(MERGED_QUEUE_CAPACITY) : null;
+    }
+
+    /**
+     * Returns whether the underlying sockets of this instance push their
+     * datagrams into a single queue.
+     * @return {@code true} if this instance is in push mode.
+     */
+    public boolean isPush()
+    {
+        return merged != null;
     }
 
     /**
@@ -475,6 +528,12 @@ public class MergingDatagramSocket
         long start = System.currentTimeMillis();
         int soTimeout = this.soTimeout;
 
+        if (merged != null)
+        {
+            receiveMerged(p, start, soTimeout);
+            return;
+        }
+
         // We need to hold the lock while checking for an available packet,
         // otherwise we might end up wait()-ing if a packet becomes available
         // after our check.
@@ -520,13 +579,7 @@ public class MergingDatagramSocket
                     }
                     else
                     {
-                        numDiscardedPackets++;
-                        if (numDiscardedPackets % 100 == 1)
-                        {
-                            logger.info("Discarded " + numDiscardedPackets
-                                    + " packets. Last remote address:"
-                                    + p.getSocketAddress());
-                        }
+                        discarded(p);
 
                         // Go on and receive the next packet in p.
                         continue;
@@ -563,6 +616,126 @@ public class MergingDatagramSocket
         }
     }
 
+    /**
+     * Implements {@link #receive(DatagramPacket)} in push mode. Copies into
+     * {@code p} the first packet of {@link #merged}.
+     *
+     * @param p the packet to receive into.
+     * @param start the time at which the receive started.
+     * @param soTimeout the socket timeout, or 0.
+     * @throws SocketTimeoutException if a socket timeout is set, and the
+     * call fails to receive a packet within the timeout.
+     * @throws SocketClosedException if the socket is closed.
+     */
+    private void receiveMerged(DatagramPacket p, long start, int soTimeout)
+            throws SocketTimeoutException,
+                   SocketClosedException
+    {
+        do
+        {
+            if (isClosed())
+            {
+                throw new SocketClosedException();
+            }
+
+            // Wake up regularly to notice that the socket was closed.
+            long waitTimeout = 500;
+            if (soTimeout > 0)
+            {
+                long remaining
+                    = start + soTimeout - System.currentTimeMillis();
+                if (remaining <= 0)
+                    throw new SocketTimeoutException();
+
+                waitTimeout = Math.min(waitTimeout, remaining);
+            }
+
+            SocketContainer.Buffer buffer;
+            try
+            {
+                buffer = merged.poll(waitTimeout, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                // We haven't received a packet, but what else can we do?
+                return;
+            }
+
+            if (buffer == null)
+            {
+                continue;
+            }
+
+            SocketContainer socketContainer = buffer.getSocketContainer();
+
+            // The packets of a removed socket are dropped, like those still
+            // in its queue when not in push mode.
+            if (socketContainer.closed)
+            {
+                socketContainer.release(buffer);
+                continue;
+            }
+
+            socketContainer.receive(buffer, p);
+            if (accept(p))
+            {
+                socketContainer.accepted(p);
+                return;
+            }
+            discarded(p);
+        }
+        while (true);
+    }
+
+    /**
+     * Counts and logs a packet which was not accepted by
+     * {@link #accept(DatagramPacket)}.
+     *
+     * @param p the discarded packet.
+     */
+    private void discarded(DatagramPacket p)
+    {
+        int numDiscardedPackets;
+
+        synchronized (receiveLock)
+        {
+            numDiscardedPackets = ++this.numDiscardedPackets;
+        }
+        if (numDiscardedPackets % 100 == 1)
+        {
+            logger.info("Discarded " + numDiscardedPackets
+                    + " packets. Last remote address:"
+                    + p.getSocketAddress());
+        }
+    }
+
+    /**
+     * Adds a packet received from an underlying socket to {@link #merged},
+     * dropping the oldest packet if it is full. Does not block.
+     *
+     * @param buffer the received packet.
+     */
+    private void addMerged(SocketContainer.Buffer buffer)
+    {
+        while (!merged.offer(buffer))
+        {
+            SocketContainer.Buffer dropped = merged.poll();
+
+            if (dropped != null)
+            {
+                dropped.getSocketContainer().release(dropped);
+
+                long numDroppedPackets = this.numDroppedPackets.incrementAndGet();
+                if (numDroppedPackets % 100 == 1)
+                {
+                    logger.warn("Dropped " + numDroppedPackets
+                            + " packets because the queue is full.");
+                }
+            }
+        }
+    }
+
     /**
      * Initializes the active socket of this {@link MergingDatagramSocket}.
      * @param socketWrapper the {@link IceSocketWrapper} instance wrapping the
@@ -662,7 +835,7 @@ public class MergingDatagramSocket
         /**
          * A flag used to signal to {@link #thread} to finish.
          */
-        private boolean closed = false;
+        private volatile boolean closed = false;
 
         /**
          * The remote address of the last received packet.
@@ -680,9 +853,17 @@ public class MergingDatagramSocket
          * The thread which reads packets from this instance's socket and adds
          * them to {@link #queue}. If the queue is filled up, it will stop
          * receiving packets and will block waiting for the queue accept.
+         * In push mode, the thread adds the packets to {@link #merged}
+         * instead, and is {@code null} if the socket pushes its packets.
          */
         private Thread thread;
 
+        /**
+         * The socket which pushes its packets into {@link #merged} instead of
+         * being read by {@link #thread}, or {@code null}.
+         */
+        private Object pushingSocket;
+
         /**
          * Initializes a {@link SocketContainer} instance using a {@link
          * DatagramSocket} as its socket.
@@ -714,6 +895,11 @@ public class MergingDatagramSocket
          */
         private void init()
         {
+            if (merged != null && initPush())
+            {
+                return;
+            }
+
             thread = new Thread()
             {
                 @Override
@@ -733,6 +919,60 @@ public class MergingDatagramSocket
             thread.start();
         }
 
+        /**
+         * Makes the socket of this instance push its packets into
+         * {@link #merged}, if it can.
+         *
+         * @return {@code true} if the socket pushes its packets, or
+         * {@code false} if it has to be read by a thread.
+         */
+        private boolean initPush()
+        {
+            Object socket = getSocket();
+
+            if (socket instanceof MultiplexingDatagramSocket)
+            {
+                ((MultiplexingDatagramSocket) socket)
+                    .setPooledPacketConsumer(this::push);
+            }
+            else if (socket instanceof MultiplexingSocket)
+            {
+                ((MultiplexingSocket) socket)
+                    .setPooledPacketConsumer(this::push);
+            }
+            else
+            {
+                return false;
+            }
+
+            pushingSocket = socket;
+            logger.debug(() -> "The socket " + getLocalSocketAddress()
+                            + " pushes its packets.");
+            return true;
+        }
+
+        /**
+         * Adds a packet pushed by the socket of this instance to
+         * {@link #merged}. Called on the thread which read the packet from
+         * the network. The packet is not copied until it is received from
+         * this merging socket.
+         *
+         * @param p the packet, which is shared with the socket.
+         */
+        private void push(PooledPacket p)
+        {
+            if (closed)
+                return;
+
+            Buffer buffer = getFreeBuffer();
+
+            buffer.shared = p.retain();
+            buffer.receivedTime = System.currentTimeMillis();
+
+            maybeUpdateActive();
+            addMerged(buffer);
+        }
+
         /**
          * @return an unused {@link Buffer} instance.
          */
@@ -774,6 +1014,12 @@ public class MergingDatagramSocket
                 if (closed || Thread.currentThread().isInterrupted())
                     break;
 
+                if (merged != null)
+                {
+                    addMerged(buffer);
+                    continue;
+                }
+
                 try
                 {
                     queue.put(buffer);
@@ -872,19 +1118,50 @@ public class MergingDatagramSocket
                 throw new IllegalStateException("Queue empty.");
             }
 
+            receive(buffer, p);
+        }
+
+        /**
+         * Copies a packet received from the socket of this instance into
+         * {@code p}, and releases its buffer.
+         *
+         * @param buffer the buffer of the received packet.
+         * @param p the {@link DatagramPacket} to receive into.
+         */
+        private void receive(Buffer buffer, DatagramPacket p)
+        {
+            DatagramPacket pkt = buffer.getPacket();
             byte[] dest = p.getData();
             int destOffset = p.getOffset();
             int len
                 = Math.min(
                         dest.length - destOffset,
-                        buffer.pkt.getLength());
+                        pkt.getLength());
 
-            System.arraycopy(buffer.pkt.getData(), buffer.pkt.getOffset(),
+            System.arraycopy(pkt.getData(), pkt.getOffset(),
                              dest, destOffset,
                              len);
             p.setLength(len);
-            p.setSocketAddress(buffer.pkt.getSocketAddress());
+            p.setSocketAddress(pkt.getSocketAddress());
+
+            release(buffer);
+        }
+
+        /**
+         * Returns a {@link Buffer} of this instance to its pool, and releases
+         * the packet it shares with the socket, if any.
+         *
+         * @param buffer the buffer which is no longer used.
+         */
+        private void release(Buffer buffer)
+        {
+            PooledPacket shared = buffer.shared;
 
+            if (shared != null)
+            {
+                buffer.shared = null;
+                shared.release();
+            }
             pool.offer(buffer);
         }
 
@@ -1051,7 +1328,20 @@ public class MergingDatagramSocket
             }
             closed = true;
 
-            thread.interrupt();
+            if (thread != null)
+            {
+                thread.interrupt();
+            }
+            if (pushingSocket instanceof MultiplexingDatagramSocket)
+            {
+                ((MultiplexingDatagramSocket) pushingSocket)
+                    .setPooledPacketConsumer(null);
+            }
+            else if (pushingSocket instanceof MultiplexingSocket)
+            {
+                ((MultiplexingSocket) pushingSocket)
+                    .setPooledPacketConsumer(null);
+            }
             if (remove)
             {
                 MergingDatagramSocket.this.doRemove(getSocket());
@@ -1083,6 +1373,30 @@ public class MergingDatagramSocket
                 0,
                 MAX_PACKET_SIZE);
 
+            /**
+             * The packet pushed by the socket which this {@link Buffer}
+             * holds a reference to instead of a copy in {@link #pkt}, or
+             * {@code null}.
+             */
+            PooledPacket shared;
+
+            /**
+             * @return the received packet.
+             */
+            private DatagramPacket getPacket()
+            {
+                return shared != null ? shared.getPacket() : pkt;
+            }
+
+            /**
+             * @return the {@link SocketContainer} whose socket the packet of
+             * this buffer was received from.
+             */
+            private SocketContainer getSocketContainer()
+            {
+                return SocketContainer.this;
+            }
+
             /**
              * Prepares this {@link Buffer} for reuse.
              */
@@ -20,6 +20,7 @@ package org.ice4j.socket;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.function.*;
 import java.util.logging.*;
 
 /**
@@ -316,6 +317,43 @@ public class MultiplexingSocket
         return multiplexingXXXSocketSupport.getSocket(filter);
     }
 
+    /**
+     * Sets the consumer of the packets received by this socket and accepted
+     * by none of its <tt>MultiplexedSocket</tt>s. Such packets are then
+     * passed to the consumer, on the thread which receives from the network
+     * on behalf of a multiplexed socket, instead of being queued for
+     * {@link #receive(DatagramPacket)}. Thus the packets of this socket are
+     * delivered without a thread of their own, as long as one of its
+     * multiplexed sockets is being read from.
+     *
+     * @param packetConsumer the consumer, which has to copy the packets it is
+     * passed because they are reused once it returns, or <tt>null</tt> to
+     * queue the packets for {@link #receive(DatagramPacket)} again.
+     */
+    public void setPacketConsumer(Consumer<DatagramPacket> packetConsumer)
+    {
+        setPooledPacketConsumer(
+            (packetConsumer == null)
+                ? null
+                : p -> packetConsumer.accept(p.getPacket()));
+    }
+
+    /**
+     * Sets the consumer of the packets received by this socket and accepted
+     * by none of its <tt>MultiplexedSocket</tt>s, like
+     * {@link #setPacketConsumer(Consumer)}, but lends the pooled packets
+     * themselves so that the consumer may keep them without copying them.
+     *
+     * @param packetConsumer the consumer, which has to
+     * {@link PooledPacket#retain()} the packets it keeps after it returns and
+     * must not modify them, or <tt>null</tt> to queue the packets for
+     * {@link #receive(DatagramPacket)} again.
+     */
+    void setPooledPacketConsumer(Consumer<PooledPacket> packetConsumer)
+    {
+        multiplexingXXXSocketSupport.setPacketConsumer(packetConsumer);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -21,6 +21,8 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 import java.util.logging.*;
 
 /**
@@ -189,7 +191,96 @@ abstract class MultiplexingXXXSocketSupport
     }
 
     /**
-     * The max number of {@link DatagramPacket}'s stored in the receive pool.
+     * The index in {@link #routes} of the route of the packets which are
+     * empty, and therefore have no first byte.
+     */
+    private static final int NO_FIRST_BYTE = 256;
+
+    /**
+     * A multiplexed socket in {@link #routes}.
+     */
+    private static class Route
+    {
+        /**
+         * The filter of the socket.
+         */
+        final DatagramPacketFilter filter;
+
+        /**
+         * Whether {@link #filter} is a {@link FirstByteDatagramPacketFilter}
+         * and is therefore only routed the packets in its range.
+         */
+        final boolean firstByte;
+
+        /**
+         * The packets received by the socket.
+         */
+        final SocketReceiveBuffer received;
+
+        Route(DatagramPacketFilter filter, SocketReceiveBuffer received)
+        {
+            this.filter = filter;
+            this.firstByte = isRoutedByFirstByte(filter);
+            this.received = received;
+        }
+
+        /**
+         * Determines whether a specific filter is only routed the packets in
+         * its range of first bytes. The range is only trusted if it is
+         * declared by the class which declares the <tt>accept</tt> method of
+         * the filter, or by a subclass of it. A subclass which overrides
+         * <tt>accept</tt>, e.g. to accept TURN ChannelData messages with a
+         * <tt>StunDatagramPacketFilter</tt>, may accept packets outside of
+         * the range it inherits.
+         *
+         * @param filter the filter.
+         * @return <tt>true</tt> if <tt>filter</tt> is only routed the packets
+         * in its range.
+         */
+        private static boolean isRoutedByFirstByte(DatagramPacketFilter filter)
+        {
+            if (!(filter instanceof FirstByteDatagramPacketFilter))
+                return false;
+
+            Class<?> clazz = filter.getClass();
+
+            try
+            {
+                Class<?> acceptClass
+                    = clazz.getMethod("accept", DatagramPacket.class)
+                        .getDeclaringClass();
+
+                return
+                    acceptClass.isAssignableFrom(
+                            clazz.getMethod("getMinFirstByte")
+                                .getDeclaringClass())
+                        && acceptClass.isAssignableFrom(
+                                clazz.getMethod("getMaxFirstByte")
+                                    .getDeclaringClass());
+            }
+            catch (NoSuchMethodException nsme)
+            {
+                return false;
+            }
+        }
+
+        /**
+         * Determines whether the socket accepts a packet routed to it.
+         *
+         * @param p the packet.
+         * @return <tt>true</tt> if the socket accepts <tt>p</tt>.
+         */
+        boolean accept(DatagramPacket p)
+        {
+            return
+                firstByte
+                    ? ((FirstByteDatagramPacketFilter) filter).acceptInRange(p)
+                    : filter.accept(p);
+        }
+    }
+
+    /**
+     * The max number of {@link PooledPacket}'s stored in the receive pool.
      */
     private static final int RECEIVE_DATAGRAM_PACKETS_POOL_SIZE = 64;
 
@@ -200,10 +291,11 @@ abstract class MultiplexingXXXSocketSupport
     private static final int POOLED_DATAGRAM_PACKET_SIZE = 1500;
 
     /**
-     * A pool of {@link DatagramPacket}s used to receive data from unrelying
-     * socket.
+     * A pool of {@link PooledPacket}s used to receive data from unrelying
+     * socket. A packet returns to the pool when the last of the receive
+     * buffers which share it has been done with it.
      */
-    private final BlockingQueue<DatagramPacket> receiveDatagramPacketsPool
+    private final BlockingQueue<PooledPacket> receiveDatagramPacketsPool
         = new ArrayBlockingQueue<>(RECEIVE_DATAGRAM_PACKETS_POOL_SIZE);
 
     /**
@@ -213,7 +305,7 @@ abstract class MultiplexingXXXSocketSupport
      * subsequent requests to read from the network will be blocked until the
      * current read is finished.
      */
-    private boolean inReceive = false;
+    private final AtomicBoolean inReceive = new AtomicBoolean();
 
     /**
      * The value with which {@link DatagramSocket#setReceiveBufferSize(int)} is
@@ -222,7 +314,8 @@ abstract class MultiplexingXXXSocketSupport
     private int receiveBufferSize;
 
     /**
-     * The <tt>Object</tt> which synchronizes the access to {@link #inReceive}.
+     * The <tt>Object</tt> which synchronizes the invocations of
+     * {@link #doSetReceiveBufferSize(int)}.
      */
     private final Object receiveSyncRoot = new Object();
 
@@ -231,7 +324,7 @@ abstract class MultiplexingXXXSocketSupport
      * {@link DatagramSocket#setReceiveBufferSize(int)} is to be invoked with
      * the value of {@link #receiveBufferSize}.
      */
-    private boolean setReceiveBufferSize = false;
+    private volatile boolean setReceiveBufferSize = false;
 
     /**
      * The IP sockets filtering {@code DatagramPacket}s away from this IP
@@ -239,6 +332,32 @@ abstract class MultiplexingXXXSocketSupport
      */
     private final List<MultiplexedXXXSocketT> sockets = new ArrayList<>();
 
+    /**
+     * The multiplexed sockets which may accept a packet, indexed by the first
+     * byte of the packet, or by {@link #NO_FIRST_BYTE} for an empty packet,
+     * in the order in which they were created. A socket whose filter is a
+     * {@link FirstByteDatagramPacketFilter} is only listed for the first
+     * bytes in its range; any other socket is listed for every first byte.
+     * Rebuilt under the protection of {@link #sockets} whenever a socket is
+     * created or closed, and read without locking by the receiving thread.
+     */
+    private volatile Route[][] routes = createRoutes(Collections.emptyList());
+
+    /**
+     * The consumer of the packets received by this socket and accepted by none
+     * of its multiplexed sockets, or {@code null} if such packets are queued
+     * for receipt through this socket. Set under the protection of
+     * {@link #sockets}.
+     */
+    private volatile Consumer<PooledPacket> packetConsumer;
+
+    /**
+     * The receive buffers of the multiplexed sockets in {@link #sockets}, in
+     * which threads may wait for the thread reading from the network.
+     */
+    private volatile SocketReceiveBuffer[] socketsReceived
+        = new SocketReceiveBuffer[0];
+
     /**
      * Initializes a new {@code MultiplexingXXXSocketSupport} instance.
      */
@@ -253,43 +372,203 @@ abstract class MultiplexingXXXSocketSupport
      *
      * @param p the {@code DatagramPacket} to be accepted by either this
      * multiplexing socket or its multiplexed sockets whose
-     * {@code DatagramPacketFilter}s accept {@code p}
+     * {@code DatagramPacketFilter}s accept {@code p}. The caller keeps its
+     * reference to it.
      */
-    private void acceptBySocketsOrThis(DatagramPacket p)
+    private void acceptBySocketsOrThis(PooledPacket p)
     {
+        Route[][] routes = this.routes;
+
+        if (acceptBySockets(routes, p))
+            return;
+
+        Consumer<PooledPacket> packetConsumer;
+
         synchronized (sockets)
         {
-            boolean accepted = false;
-
-            for (MultiplexedXXXSocketT socket : sockets)
+            // A multiplexed socket created since the routes were read has
+            // already pulled the packets received by this socket, so it has
+            // to be given the chance to accept p before this socket queues
+            // it.
+            if (routes != this.routes && acceptBySockets(this.routes, p))
+                return;
+
+            packetConsumer = this.packetConsumer;
+            if (packetConsumer == null)
             {
-                if (getFilter(socket).accept(p))
-                {
-                    SocketReceiveBuffer socketReceived = getReceived(socket);
+                // Only added to under the protection of sockets, like in
+                // moveReceivedFromThisToSocket.
+                getReceived().add(p.retain());
+                return;
+            }
+        }
+        consume(packetConsumer, p);
+    }
 
-                    synchronized (socketReceived)
-                    {
-                        socketReceived.add(
-                                accepted ? clone(p, /* arraycopy */ true) : p);
-                        socketReceived.notifyAll();
-                    }
-                    accepted = true;
+    /**
+     * Passes a packet received by this socket to a specific consumer.
+     *
+     * @param packetConsumer the consumer.
+     * @param p the packet to pass to {@code packetConsumer}. The caller keeps
+     * its reference to it.
+     */
+    private static void consume(
+            Consumer<PooledPacket> packetConsumer,
+            PooledPacket p)
+    {
+        try
+        {
+            packetConsumer.accept(p);
+        }
+        catch (RuntimeException re)
+        {
+            // Do not let the consumer fail the receive of a multiplexed
+            // socket.
+            logger.log(Level.WARNING, "Failed to consume a packet", re);
+        }
+    }
 
-                    // Emil Ivov: Don't break because we want all
-                    // filtering sockets to get the received packet.
+    /**
+     * Sets the consumer of the packets received by this socket and accepted
+     * by none of its multiplexed sockets. Such packets are then passed to the
+     * consumer, on the thread which reads from the network on behalf of a
+     * multiplexed socket, instead of being queued for receipt through this
+     * socket. The packets which have been queued already are passed to the
+     * consumer right away.
+     *
+     * @param packetConsumer the consumer, which has to
+     * {@link PooledPacket#retain()} the packets it keeps after it returns and
+     * must not modify them, or {@code null} to queue the packets again.
+     */
+    void setPacketConsumer(Consumer<PooledPacket> packetConsumer)
+    {
+        synchronized (sockets)
+        {
+            this.packetConsumer = packetConsumer;
+            if (packetConsumer != null)
+            {
+                for (PooledPacket p : getReceived().scan(p -> true))
+                {
+                    consume(packetConsumer, p);
+                    p.release();
                 }
             }
-            if (!accepted)
+        }
+    }
+
+    /**
+     * Queues a {@code DatagramPacket} received by this socket for receipt
+     * through the multiplexed sockets which accept it. The sockets share
+     * {@code p}, each with a reference of its own, and copy it out when it is
+     * received through them.
+     *
+     * @param routes the multiplexed sockets indexed by the first byte of the
+     * packets they may accept.
+     * @param sp the {@code DatagramPacket} to be accepted. The caller keeps
+     * its reference to it.
+     * @return {@code true} if a multiplexed socket accepted {@code sp}.
+     */
+    private static boolean acceptBySockets(Route[][] routes, PooledPacket sp)
+    {
+        DatagramPacket p = sp.getPacket();
+        Route[] candidates
+            = routes[
+                    (p.getLength() > 0)
+                        ? (p.getData()[p.getOffset()] & 0xFF)
+                        : NO_FIRST_BYTE];
+        boolean accepted = false;
+
+        for (Route route : candidates)
+        {
+            if (route.accept(p))
             {
-                SocketReceiveBuffer thisReceived = getReceived();
+                route.received.add(sp.retain());
+                accepted = true;
+
+                // Emil Ivov: Don't break because we want all
+                // filtering sockets to get the received packet.
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Creates the table which routes received packets to multiplexed sockets
+     * by their first byte.
+     *
+     * @param routes the multiplexed sockets, in the order in which they were
+     * created.
+     * @return the multiplexed sockets which may accept a packet, indexed by
+     * the first byte of the packet or by {@link #NO_FIRST_BYTE}.
+     */
+    private static Route[][] createRoutes(List<Route> routes)
+    {
+        Route[][] table = new Route[NO_FIRST_BYTE + 1][];
+        List<Route> candidates = new ArrayList<>(routes.size());
 
-                synchronized (thisReceived)
+        for (int b = 0; b < NO_FIRST_BYTE; b++)
+        {
+            candidates.clear();
+            for (Route route : routes)
+            {
+                if (!route.firstByte)
+                {
+                    candidates.add(route);
+                }
+                else
                 {
-                    thisReceived.add(p);
-                    thisReceived.notifyAll();
+                    FirstByteDatagramPacketFilter filter
+                        = (FirstByteDatagramPacketFilter) route.filter;
+
+                    if (filter.getMinFirstByte() <= b
+                            && b <= filter.getMaxFirstByte())
+                    {
+                        candidates.add(route);
+                    }
                 }
             }
+
+            // Adjacent first bytes usually have the same candidates.
+            Route[] previous = (b == 0) ? null : table[b - 1];
+
+            table[b]
+                = (previous != null
+                        && Arrays.asList(previous).equals(candidates))
+                    ? previous
+                    : candidates.toArray(new Route[0]);
         }
+
+        // Empty packets are routed to the sockets which do not classify by
+        // the first byte.
+        candidates.clear();
+        for (Route route : routes)
+        {
+            if (!route.firstByte)
+                candidates.add(route);
+        }
+        table[NO_FIRST_BYTE] = candidates.toArray(new Route[0]);
+        return table;
+    }
+
+    /**
+     * Rebuilds {@link #routes} from {@link #sockets}. Called under the
+     * protection of {@link #sockets}.
+     */
+    private void updateRoutes()
+    {
+        List<Route> routes = new ArrayList<>(sockets.size());
+        SocketReceiveBuffer[] socketsReceived
+            = new SocketReceiveBuffer[sockets.size()];
+
+        for (MultiplexedXXXSocketT socket : sockets)
+        {
+            SocketReceiveBuffer received = getReceived(socket);
+
+            socketsReceived[routes.size()] = received;
+            routes.add(new Route(getFilter(socket), received));
+        }
+        this.routes = createRoutes(routes);
+        this.socketsReceived = socketsReceived;
     }
 
     /**
@@ -303,7 +582,8 @@ abstract class MultiplexingXXXSocketSupport
     {
         synchronized (sockets)
         {
-            sockets.remove(multiplexed);
+            if (sockets.remove(multiplexed))
+                updateRoutes();
 
             return !sockets.isEmpty();
         }
@@ -461,14 +741,13 @@ abstract class MultiplexingXXXSocketSupport
                 // multiplexing socket and into the newly-created multiplexed
                 // socket.
 
-                // XXX The fields received of both the multiplexed and the
-                // multiplexing sockets are used as synchronization roots (e.g.
-                // the method acceptBySocketsOrThis). In order to preserve the
-                // order of acquiring synchronization roots, perform the
-                // following procedure under the protection of the field
-                // socketsSyncRoot even though the field sockets will not be
-                // accessed.
+                // A SocketReceiveBuffer is only added to by one thread at a
+                // time. The received of this multiplexing socket is only
+                // added to under the protection of sockets, and the received
+                // of the new socket is not added to by the thread reading
+                // from the network before the socket is routed to.
                 moveReceivedFromThisToSocket(socket);
+                updateRoutes();
             }
 
             return socket;
@@ -490,12 +769,7 @@ abstract class MultiplexingXXXSocketSupport
         // the specified multiplexed socket out of the multiplexing socket.
         final SocketReceiveBuffer thisReceived = getReceived();
         final DatagramPacketFilter socketFilter = getFilter(socket);
-        final List<DatagramPacket> toMove;
-
-        synchronized (thisReceived)
-        {
-            toMove = thisReceived.scan(socketFilter);
-        }
+        final List<PooledPacket> toMove = thisReceived.scan(socketFilter);
 
         // Push the packets which have been accepted already and are accepted by
         // the specified multiplexed socket into the multiplexed socket in
@@ -504,16 +778,8 @@ abstract class MultiplexingXXXSocketSupport
         {
             final SocketReceiveBuffer socketReceived = getReceived(socket);
 
-            synchronized (socketReceived)
-            {
-                for (DatagramPacket datagramPacket : toMove) {
-                    socketReceived.add(datagramPacket);
-                }
-                // The notifyAll will practically likely be unnecessary because
-                // the specified socket will likely be a newly-created one to
-                // which noone else has a reference. Anyway, dp the invocation
-                // for the purposes of consistency, clarity, and such.
-                socketReceived.notifyAll();
+            for (PooledPacket datagramPacket : toMove) {
+                socketReceived.add(datagramPacket);
             }
         }
     }
@@ -541,134 +807,133 @@ abstract class MultiplexingXXXSocketSupport
         throws IOException
     {
         long startTime = System.currentTimeMillis();
-        DatagramPacket receivedPacket;
+        PooledPacket receivedPacket;
+        // Whether the caller is the one receiving from the network. It keeps
+        // doing so until it receives a packet for itself.
+        boolean reader = false;
 
-        do
+        try
         {
-            long now = System.currentTimeMillis();
-
-            // If there is a packet which has been received from the network and
-            // is to merely be received from the list of received
-            // DatagramPackets, then let it be received and do not throw a
-            // SocketTimeoutException.
-            synchronized (received)
+            do
             {
+                long now = System.currentTimeMillis();
+
+                // If there is a packet which has been received from the
+                // network and is to merely be received from the list of
+                // received DatagramPackets, then let it be received and do not
+                // throw a SocketTimeoutException.
                 receivedPacket = received.poll();
                 if (receivedPacket != null)
                     break;
-            }
-
-            // Throw a SocketTimeoutException if the timeout is over/up.
-            long remainingTimeout;
-
-            if (timeout > 0)
-            {
-                remainingTimeout = timeout - (now - startTime);
-                if (remainingTimeout <= 0L)
-                {
-                    throw new SocketTimeoutException(
-                            Long.toString(remainingTimeout));
-                }
-            }
-            else
-            {
-                remainingTimeout = 1000L;
-            }
 
-            // Determine whether the caller will receive from the network or
-            // will wait for a previous caller to receive from the network.
-            boolean wait;
+                // Throw a SocketTimeoutException if the timeout is over/up.
+                long remainingTimeout;
 
-            synchronized (receiveSyncRoot)
-            {
-                if (inReceive)
+                if (timeout > 0)
                 {
-                    wait = true;
+                    remainingTimeout = timeout - (now - startTime);
+                    if (remainingTimeout <= 0L)
+                    {
+                        throw new SocketTimeoutException(
+                                Long.toString(remainingTimeout));
+                    }
                 }
                 else
                 {
-                    wait = false;
-                    inReceive = true;
+                    remainingTimeout = 1000L;
                 }
-            }
-            try
-            {
-                if (wait)
+
+                // Determine whether the caller will receive from the network
+                // or will wait for a previous caller to receive from the
+                // network.
+                if (!reader && !inReceive.compareAndSet(false, true))
                 {
                     // The caller will wait for a previous caller to receive
-                    // from the network.
-                    synchronized (received)
-                    {
-                        if (received.isEmpty())
-                        {
-                            try
-                            {
-                                received.wait(remainingTimeout);
-                            }
-                            catch (InterruptedException ie)
-                            {
-                            }
-                        }
-                        else
-                        {
-                            received.notifyAll();
-                        }
-                    }
+                    // from the network, and is woken up when the previous
+                    // caller stops doing so.
+                    received.awaitPacket(remainingTimeout, inReceive::get);
                     continue;
                 }
+                reader = true;
 
                 // The pooled datagram packet instance will be used to receive
                 // from the network.
-                DatagramPacket receivePacket
-                    = receiveDatagramPacketsPool.poll();
+                PooledPacket receivePacket = receiveDatagramPacketsPool.poll();
                 if (receivePacket == null)
                 {
-                    receivePacket = new DatagramPacket(
-                        new byte[POOLED_DATAGRAM_PACKET_SIZE],
-                        POOLED_DATAGRAM_PACKET_SIZE);
+                    receivePacket = new PooledPacket(
+                        new DatagramPacket(
+                            new byte[POOLED_DATAGRAM_PACKET_SIZE],
+                            POOLED_DATAGRAM_PACKET_SIZE),
+                        receiveDatagramPacketsPool);
                 }
+                receivePacket.acquire();
+                receivePacket.getPacket().setLength(
+                    POOLED_DATAGRAM_PACKET_SIZE);
 
-                receivePacket.setLength(POOLED_DATAGRAM_PACKET_SIZE);
-
-                synchronized (receiveSyncRoot)
+                if (setReceiveBufferSize)
                 {
-                    if (setReceiveBufferSize)
+                    synchronized (receiveSyncRoot)
                     {
-                        setReceiveBufferSize = false;
-                        try
+                        if (setReceiveBufferSize)
                         {
-                            doSetReceiveBufferSize(receiveBufferSize);
-                        }
-                        catch (Throwable t)
-                        {
-                            if (t instanceof ThreadDeath)
-                                throw (ThreadDeath) t;
+                            setReceiveBufferSize = false;
+                            try
+                            {
+                                doSetReceiveBufferSize(receiveBufferSize);
+                            }
+                            catch (Throwable t)
+                            {
+                                if (t instanceof ThreadDeath)
+                                    throw (ThreadDeath) t;
+                            }
                         }
                     }
                 }
-                doReceive(receivePacket);
+                try
+                {
+                    doReceive(receivePacket.getPacket());
 
-                // The caller received from the network. Copy/add the packet to
-                // the receive list of the sockets which accept it.
-                acceptBySocketsOrThis(receivePacket);
-            }
-            finally
-            {
-                synchronized (receiveSyncRoot)
+                    // The caller received from the network. Add the packet to
+                    // the receive list of the sockets which accept it.
+                    acceptBySocketsOrThis(receivePacket);
+                }
+                finally
                 {
-                    if (!wait)
-                        inReceive = false;
+                    // The receive lists hold references of their own.
+                    receivePacket.release();
                 }
             }
+            while (true);
+        }
+        finally
+        {
+            if (reader)
+            {
+                inReceive.set(false);
+                // Let one of the callers waiting for packets take over the
+                // receiving from the network.
+                signalWaiters();
+            }
         }
-        while (true);
 
-        copy(receivedPacket, p);
+        // The only copy of the received data, at the boundary of the API. The
+        // packet returns to the pool once the other sockets which share it
+        // have copied it too.
+        copy(receivedPacket.getPacket(), p);
+        receivedPacket.release();
+    }
 
-        // receivePacket is a datagram packet retrieved from SocketReceiveBuffer
-        // SocketReceiveBuffers only store datagrams borrowed from pool,
-        // so return datagram back to pool.
-        receiveDatagramPacketsPool.offer(receivedPacket);
+    /**
+     * Wakes up the callers of {@link #receive(SocketReceiveBuffer,
+     * DatagramPacket, int)} which wait for another caller to receive from the
+     * network.
+     */
+    private void signalWaiters()
+    {
+        getReceived().signalWaiters();
+        for (SocketReceiveBuffer socketReceived : socketsReceived)
+            socketReceived.signalWaiters();
     }
 
     /**
@@ -689,7 +954,7 @@ abstract class MultiplexingXXXSocketSupport
         {
             this.receiveBufferSize = receiveBufferSize;
 
-            if (inReceive)
+            if (inReceive.get())
             {
                 setReceiveBufferSize = true;
             }
@@ -0,0 +1,141 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.socket;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A <tt>DatagramPacket</tt> received by a multiplexing socket into a pooled
+ * buffer. The packet is shared by the receive buffers of all the multiplexed
+ * sockets which accept it instead of being cloned for each of them, and is
+ * only copied once, into the <tt>DatagramPacket</tt> of the caller of
+ * <tt>receive</tt>.
+ * <p>
+ * Each holder of a reference releases it once it no longer reads the packet,
+ * i.e. once the packet has been copied out or dropped. The packet returns to
+ * its pool when the last reference is released. The holders only read the
+ * packet, so they may do so concurrently.
+ */
+final class PooledPacket
+{
+    /**
+     * The packet.
+     */
+    private final DatagramPacket packet;
+
+    /**
+     * The pool to which this instance returns when it is released, or
+     * <tt>null</tt>.
+     */
+    private final Queue<PooledPacket> pool;
+
+    /**
+     * The number of references to this instance.
+     */
+    private final AtomicInteger references = new AtomicInteger();
+
+    /**
+     * Initializes a new instance.
+     *
+     * @param packet the packet.
+     * @param pool the pool to which the new instance is to return when it is
+     * released, or <tt>null</tt> if it is not pooled.
+     */
+    PooledPacket(DatagramPacket packet, Queue<PooledPacket> pool)
+    {
+        this.packet = Objects.requireNonNull(packet, "packet");
+        this.pool = pool;
+    }
+
+    /**
+     * Gets the packet. It must not be modified while it is shared.
+     *
+     * @return the packet.
+     */
+    DatagramPacket getPacket()
+    {
+        return packet;
+    }
+
+    /**
+     * Takes the single reference to this instance, once it has been taken
+     * out of its pool or created.
+     *
+     * @return this instance.
+     */
+    PooledPacket acquire()
+    {
+        references.set(1);
+        return this;
+    }
+
+    /**
+     * Adds a reference to this instance.
+     *
+     * @return this instance.
+     * @throws IllegalStateException if this instance has been released.
+     */
+    PooledPacket retain()
+    {
+        int references;
+
+        do
+        {
+            references = this.references.get();
+            if (references <= 0)
+            {
+                throw new IllegalStateException("Released");
+            }
+        }
+        while (!this.references.compareAndSet(references, references + 1));
+        return this;
+    }
+
+    /**
+     * Releases a reference to this instance, and returns it to its pool if
+     * it was the last one.
+     *
+     * @throws IllegalStateException if this instance has been released.
+     */
+    void release()
+    {
+        int references = this.references.decrementAndGet();
+
+        if (references == 0)
+        {
+            if (pool != null)
+                pool.offer(this);
+        }
+        else if (references < 0)
+        {
+            throw new IllegalStateException("Released");
+        }
+    }
+
+    /**
+     * Gets the number of references to this instance.
+     *
+     * @return the number of references to this instance.
+     */
+    int getReferenceCount()
+    {
+        return references.get();
+    }
+}
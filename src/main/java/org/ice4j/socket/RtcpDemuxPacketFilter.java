@@ -28,7 +28,7 @@ import java.net.*;
  * @author Boris Grozev
  */
 public class RtcpDemuxPacketFilter
-    implements DatagramPacketFilter
+    implements FirstByteDatagramPacketFilter
 {
     /**
      * Determines whether a specific <tt>DatagramPacket</tt> is an RTCP.
@@ -91,4 +91,33 @@ public class RtcpDemuxPacketFilter
         return isRtcpPacket(p);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * RTP and RTCP packets start with the version 2.
+     */
+    @Override
+    public int getMinFirstByte()
+    {
+        return 128;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getMaxFirstByte()
+    {
+        return 191;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean acceptInRange(DatagramPacket p)
+    {
+        return isRtcpPacket(p);
+    }
+
 }
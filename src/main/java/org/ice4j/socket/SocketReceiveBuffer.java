@@ -20,12 +20,29 @@ package org.ice4j.socket;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
 
 /**
  * Implements a buffer of <tt>DatagramPacket</tt>s received by a
  * <tt>DatagramSocket</tt> or a <tt>Socket</tt>. The list enforces the
  * <tt>SO_RCVBUF</tt> option for the associated <tt>DatagramSocket</tt> or
- * <tt>Socket</tt>.
+ * <tt>Socket</tt> by dropping the oldest datagrams.
+ * <p>
+ * The buffer holds a reference to each of its datagrams, which may be shared
+ * with the buffers of other sockets. The reference is taken over from the
+ * caller of {@link #add(PooledPacket)}, handed over to the caller of
+ * {@link #poll()} or {@link #scan(DatagramPacketFilter)}, and released when
+ * the datagram is dropped.
+ * <p>
+ * The buffer is a ring with a single producer and multiple consumers. Only
+ * one thread at a time may call {@link #add(PooledPacket)} or
+ * {@link #scan(DatagramPacketFilter)}, and the callers are responsible for
+ * serializing them, whereas {@link #poll()} may be called by any number of
+ * threads concurrently. None of the methods lock, except that consumers
+ * which wait for a datagram park on a lock which the producer only takes
+ * when there are such consumers.
  *
  * @author Lyubomir Marinov
  * @author Yura Yaroshevich
@@ -39,21 +56,73 @@ class SocketReceiveBuffer
 
     /**
      * Maxumum number of datagrams buffer is capable to store regardless
-     * of total datagram size in bytes.
+     * of total datagram size in bytes. A power of 2 so that positions map to
+     * slots with a mask.
      */
-    private static final int DATAGRAMS_BUFFER_CAPACITY = 10000;
+    private static final int DATAGRAMS_BUFFER_CAPACITY = 1 << 14;
 
     /**
-     * Queue to store received datagrams.
+     * The mask which maps a position in the buffer to the index of its slot.
      */
-    private final BlockingQueue<DatagramPacket> buffer
-        = new ArrayBlockingQueue<>(DATAGRAMS_BUFFER_CAPACITY);
+    private static final int MASK = DATAGRAMS_BUFFER_CAPACITY - 1;
 
     /**
-     * An instance of datagram size tracker to compute total number of bytes
-     * stored in datagrams witin {@link #buffer}.
+     * The slots of the ring which store the received datagrams.
      */
-    private final DatagramSizeTracker tracker;
+    private final AtomicReferenceArray<PooledPacket> slots
+        = new AtomicReferenceArray<>(DATAGRAMS_BUFFER_CAPACITY);
+
+    /**
+     * The position of the oldest datagram in the buffer, advanced by the
+     * consumers which claim it.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * The position at which the next datagram will be added. Only written by
+     * the producer, after the datagram has been stored in its slot.
+     */
+    private volatile long tail;
+
+    /**
+     * The total size in bytes of the datagrams in the buffer.
+     */
+    private final AtomicLong byteSize = new AtomicLong();
+
+    /**
+     * The number of consumers which are waiting for a datagram to be added.
+     */
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    /**
+     * The lock on which waiting consumers park.
+     */
+    private final Lock waitLock = new ReentrantLock();
+
+    /**
+     * Signalled when a datagram is added or when the waiting consumers are
+     * woken up.
+     */
+    private final Condition notEmpty = waitLock.newCondition();
+
+    /**
+     * The value of the <tt>SO_RCVBUF</tt> option for the associated
+     * <tt>DatagramSocket</tt> or <tt>Socket</tt>. Cached for the sake of
+     * performance. Only accessed by the producer.
+     */
+    private int cachedReceiveBufferSize;
+
+    /**
+     * Counts total number of datagrams added to buffer. Only accessed by the
+     * producer.
+     */
+    private int totalDatagramsAdded;
+
+    /**
+     * A user provided getter of receive buffer size, might
+     * fail with {@link Exception} when called.
+     */
+    private final Callable<Integer> receiveBufferSizeSupplier;
 
     /**
      * Constructs {@link SocketReceiveBuffer} with user-provided
@@ -62,7 +131,7 @@ class SocketReceiveBuffer
      */
     public SocketReceiveBuffer(Callable<Integer> receiveBufferSizeSupplier)
     {
-        this.tracker = new DatagramSizeTracker(receiveBufferSizeSupplier);
+        this.receiveBufferSizeSupplier = receiveBufferSizeSupplier;
     }
 
     /**
@@ -71,77 +140,161 @@ class SocketReceiveBuffer
      */
     public boolean isEmpty()
     {
-        return buffer.isEmpty();
+        return head.get() >= tail;
+    }
+
+    /**
+     * Gets the number of datagrams in the buffer.
+     * @return the number of datagrams in the buffer.
+     */
+    int size()
+    {
+        long head = this.head.get();
+
+        return (int) Math.max(tail - head, 0);
     }
 
     /**
-     * Adds {@link DatagramPacket} at the end of the socket receive buffer.
-     * @param p datagram to add into receive buffer
+     * Gets the total size in bytes of the datagrams in the buffer.
+     * @return the total size in bytes of the datagrams in the buffer.
      */
-    public void add(DatagramPacket p)
+    long getByteSize()
     {
-        while (!buffer.offer(p))
+        return byteSize.get();
+    }
+
+    /**
+     * Adds a datagram at the end of the socket receive buffer and wakes up the
+     * consumers waiting for it. May only be called by the producer.
+     * @param p datagram to add into receive buffer. The buffer takes over the
+     * reference of the caller to it.
+     */
+    public void add(PooledPacket p)
+    {
+        long tail = this.tail;
+
+        while (tail - head.get() >= DATAGRAMS_BUFFER_CAPACITY)
         {
             // ensure buffer capacity restriction enforced
-            poll();
+            drop();
         }
 
-        tracker.trackDatagramAdded(p);
+        // Account for p before publishing it so that a consumer which claims
+        // it right away does not make the total negative.
+        int pSize = p.getPacket().getLength();
+
+        if (pSize > 0)
+            byteSize.addAndGet(pSize);
+        slots.set((int) tail & MASK, p);
+        this.tail = tail + 1;
 
-        while (tracker.isExceedReceiveBufferSize() && buffer.size() > 1)
+        ++totalDatagramsAdded;
+        // If the added packet is the only element of this list, do not
+        // drop it because of the enforcement of SO_RCVBUF.
+        if (pSize > 0 && size() > 1)
         {
-            // enforce SO_RCVBUF restriction
-            poll();
+            int receiveBufferSize = getReceiveBufferSize();
+
+            while (byteSize.get() > receiveBufferSize && size() > 1)
+            {
+                // enforce SO_RCVBUF restriction
+                drop();
+            }
         }
+
+        signalWaiters();
     }
 
     /**
-     * Polls socket receive buffer for already stored {@link DatagramPacket}
-     * @return the first datagram in the buffer, or {@code null} if buffer
-     * is empty.
+     * Drops the oldest datagram in the buffer, if any.
      */
-    public DatagramPacket poll()
+    private void drop()
     {
-        DatagramPacket p = buffer.poll();
+        PooledPacket p = poll();
 
-        // Keep track of the (total) size in bytes of this receive buffer in
-        // order to be able to enforce SO_RCVBUF restriction.
         if (p != null)
+            p.release();
+    }
+
+    /**
+     * Polls socket receive buffer for already stored datagram.
+     * @return the first datagram in the buffer, or {@code null} if buffer
+     * is empty. The caller has to release it.
+     */
+    public PooledPacket poll()
+    {
+        while (true)
         {
-            tracker.trackDatagramRemoved(p);
-        }
+            long head = this.head.get();
 
-        return p;
+            if (head >= tail)
+                return null;
+
+            int index = (int) head & MASK;
+            PooledPacket p = slots.get(index);
+
+            // The slot of head has been written before tail was advanced past
+            // it, and is not overwritten before head is advanced past it, so
+            // p is the datagram at head if the claim succeeds.
+            if (p != null && this.head.compareAndSet(head, head + 1))
+            {
+                // Do not retain p. The producer may only have reused the slot
+                // for another datagram.
+                slots.compareAndSet(index, p, null);
+
+                // Keep track of the (total) size in bytes of this receive
+                // buffer in order to be able to enforce SO_RCVBUF
+                // restriction.
+                int pSize = p.getPacket().getLength();
+
+                if (pSize > 0)
+                    byteSize.addAndGet(-pSize);
+                return p;
+            }
+        }
     }
 
     /**
      * Scans buffer of received {@link DatagramPacket}s and move
-     * datagrams which matches the {@code filter} into returned list.
+     * datagrams which matches the {@code filter} into returned list. May only
+     * be called by the producer.
      * @param filter a predicate to filter {@link DatagramPacket} stored
      * in receive buffer.
-     * @return list of datagrams matched to {@code filter}.
+     * @return list of datagrams matched to {@code filter}. The caller has to
+     * release them.
      */
-    public List<DatagramPacket> scan(DatagramPacketFilter filter)
+    public List<PooledPacket> scan(DatagramPacketFilter filter)
     {
-        List<DatagramPacket> matchedDatagrams = null;
-        final Iterator<DatagramPacket> it = buffer.iterator();
-
-        while (it.hasNext())
+        List<PooledPacket> matchedDatagrams = null;
+        List<PooledPacket> remainingDatagrams = null;
+        PooledPacket p;
+
+        // A ring cannot remove datagrams from its middle, so take all of them
+        // out and put back those which do not match in their order. The
+        // consumers may take some in the meantime, as they would have anyway.
+        while ((p = poll()) != null)
         {
-            final DatagramPacket p = it.next();
-
-            if (filter.accept(p))
+            if (filter.accept(p.getPacket()))
             {
                 if (matchedDatagrams == null)
                 {
                     matchedDatagrams = new ArrayList<>();
                 }
                 matchedDatagrams.add(p);
-
-                it.remove();
-
-                tracker.trackDatagramRemoved(p);
             }
+            else
+            {
+                if (remainingDatagrams == null)
+                {
+                    remainingDatagrams = new ArrayList<>();
+                }
+                remainingDatagrams.add(p);
+            }
+        }
+        if (remainingDatagrams != null)
+        {
+            for (PooledPacket remaining : remainingDatagrams)
+                add(remaining);
         }
 
         if (matchedDatagrams != null)
@@ -152,136 +305,100 @@ class SocketReceiveBuffer
     }
 
     /**
-     * A helper class to keep track of total size in bytes of all
-     * {@link DatagramPacket} instances stored in {@link #buffer} to
-     * be able to enforce SO_RCVBUF.
+     * Waits until a datagram is added to the buffer, {@link #signalWaiters()}
+     * is called, a specific condition no longer holds or a specific time
+     * elapses, whichever happens first.
+     * @param timeout the maximum time in milliseconds to wait.
+     * @param keepWaiting the condition which has to hold for the caller to
+     * keep waiting. It is checked after the caller has been registered as a
+     * waiter, so a thread which makes it false and then calls
+     * {@link #signalWaiters()} is guaranteed to wake up the caller.
      */
-    private final class DatagramSizeTracker
+    public void awaitPacket(long timeout, BooleanSupplier keepWaiting)
     {
-        /**
-         * The value of the <tt>SO_RCVBUF</tt> option for the associated
-         * <tt>DatagramSocket</tt> or <tt>Socket</tt>. Cached for the sake of
-         * performance.
-         */
-        private int cachedReceiveBufferSize;
-
-        /**
-         * The (total) size in bytes of this receive buffer.
-         */
-        private int totalBuffersByteSize;
-
-        /**
-         * Counts total number of datagrams added to buffer.
-         */
-        private int totalDatagramsAdded;
-
-        /**
-         * A user provided getter of receive buffer size, might
-         * fail with {@link Exception} when called.
-         */
-        private final Callable<Integer> receiveBufferSizeSupplier;
-
-        /**
-         * Create a tracker of datagram packet size stored in buffer.
-         * @param receiveBufferSizeSupplier a function to obtain receive buffer
-         * size from associated socket.
-         */
-        public DatagramSizeTracker(
-            Callable<Integer> receiveBufferSizeSupplier)
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        waiters.incrementAndGet();
+        waitLock.lock();
+        try
         {
-            this.receiveBufferSizeSupplier = receiveBufferSizeSupplier;
+            while (nanos > 0 && isEmpty() && keepWaiting.getAsBoolean())
+                nanos = notEmpty.awaitNanos(nanos);
         }
-
-        /**
-         * Check if total bytes stored in {@link #buffer} exceeds socket's
-         * receive buffer size.
-         * @return true if size exceeded, false - otherwise
-         */
-        boolean isExceedReceiveBufferSize()
+        catch (InterruptedException ie)
         {
-            return totalBuffersByteSize > cachedReceiveBufferSize;
         }
-
-        /**
-         * Updates computed value of total datagrams size in bytes
-         * stored in {@link #buffer} with datagram just added to buffer.
-         * @param p datagram packed added to {@link #buffer}
-         */
-        void trackDatagramAdded(DatagramPacket p)
+        finally
         {
-            ++totalDatagramsAdded;
+            waitLock.unlock();
+            waiters.decrementAndGet();
+        }
+    }
 
-            final int pSize = p.getLength();
-            if (pSize <= 0)
+    /**
+     * Wakes up the consumers which wait in
+     * {@link #awaitPacket(long, BooleanSupplier)}, if any.
+     */
+    public void signalWaiters()
+    {
+        if (waiters.get() > 0)
+        {
+            waitLock.lock();
+            try
             {
-                return;
+                notEmpty.signalAll();
             }
-
-            totalBuffersByteSize += pSize;
-
-            // If the added packet is the only element of this list, do not
-            // drop it because of the enforcement of SO_RCVBUF.
-            if (buffer.size() > 1)
+            finally
             {
-                // For the sake of performance, do not invoke the method
-                // getReceiveBufferSize() of DatagramSocket or Socket on
-                // every packet added to this buffer.
-                int receiveBufferSize = this.cachedReceiveBufferSize;
-
-                if ((receiveBufferSize <= 0)
-                    || (totalDatagramsAdded % 1000 == 0))
-                {
-                    try
-                    {
-                        receiveBufferSize
-                            = this.receiveBufferSizeSupplier.call();
-                    }
-                    catch (Exception e)
-                    {
-                        // nothing to do
-                    }
-
-                    if (receiveBufferSize <= 0)
-                    {
-                        receiveBufferSize = DEFAULT_RECEIVE_BUFFER_SIZE;
-                    }
-                    else if (receiveBufferSize
-                        < DEFAULT_RECEIVE_BUFFER_SIZE)
-                    {
-                        // Well, a manual page on SO_RCVBUF talks about
-                        // doubling. In order to stay on the safe side and
-                        // given that there was no limit on the size of the
-                        // buffer before, double the receive buffer size.
-                        receiveBufferSize *= 2;
-                        if (receiveBufferSize <= 0)
-                        {
-                            receiveBufferSize
-                                = DEFAULT_RECEIVE_BUFFER_SIZE;
-                        }
-                    }
-                    this.cachedReceiveBufferSize = receiveBufferSize;
-                }
+                waitLock.unlock();
             }
         }
+    }
+
+    /**
+     * Gets the maximum total size in bytes of the datagrams in the buffer.
+     * @return the maximum total size in bytes of the datagrams in the buffer.
+     */
+    private int getReceiveBufferSize()
+    {
+        // For the sake of performance, do not invoke the method
+        // getReceiveBufferSize() of DatagramSocket or Socket on
+        // every packet added to this buffer.
+        int receiveBufferSize = this.cachedReceiveBufferSize;
 
-        /**
-         * Updates computed value of total datagrams size in bytes
-         * stored in {@link #buffer} with datagram just removed from buffer.
-         * @param p datagram packed removed from {@link #buffer}
-         */
-        void trackDatagramRemoved(DatagramPacket p)
+        if ((receiveBufferSize <= 0)
+            || (totalDatagramsAdded % 1000 == 0))
         {
-            final int pSize = p.getLength();
-            if (pSize <= 0)
+            try
             {
-                return;
+                receiveBufferSize
+                    = this.receiveBufferSizeSupplier.call();
+            }
+            catch (Exception e)
+            {
+                // nothing to do
             }
 
-            totalBuffersByteSize -= pSize;
-            if (totalBuffersByteSize < 0)
+            if (receiveBufferSize <= 0)
+            {
+                receiveBufferSize = DEFAULT_RECEIVE_BUFFER_SIZE;
+            }
+            else if (receiveBufferSize
+                < DEFAULT_RECEIVE_BUFFER_SIZE)
             {
-                totalBuffersByteSize = 0;
+                // Well, a manual page on SO_RCVBUF talks about
+                // doubling. In order to stay on the safe side and
+                // given that there was no limit on the size of the
+                // buffer before, double the receive buffer size.
+                receiveBufferSize *= 2;
+                if (receiveBufferSize <= 0)
+                {
+                    receiveBufferSize
+                        = DEFAULT_RECEIVE_BUFFER_SIZE;
+                }
             }
+            this.cachedReceiveBufferSize = receiveBufferSize;
         }
+        return receiveBufferSize;
     }
 }
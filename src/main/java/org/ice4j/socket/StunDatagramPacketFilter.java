@@ -31,7 +31,7 @@ import org.ice4j.message.*;
  * @author Lyubomir Marinov
  */
 public class StunDatagramPacketFilter
-    implements DatagramPacketFilter
+    implements FirstByteDatagramPacketFilter
 {
 
     /**
@@ -103,6 +103,38 @@ public class StunDatagramPacketFilter
         return false;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The most significant 2 bits of every STUN message are zeroes.
+     */
+    @Override
+    public int getMinFirstByte()
+    {
+        return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getMaxFirstByte()
+    {
+        return 63;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Runs the whole {@link #accept(DatagramPacket)}, because the packets of
+     * a specific STUN server and with specific methods are accepted.
+     */
+    @Override
+    public boolean acceptInRange(DatagramPacket p)
+    {
+        return accept(p);
+    }
+
     /**
      * Determines whether this <tt>DatagramPacketFilter</tt> accepts a
      * <tt>DatagramPacket</tt> which represents a STUN message with a specific
@@ -0,0 +1,472 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import org.ice4j.message.*;
+
+/**
+ * Decides which received datagrams a {@link NetAccessManager} hands over for
+ * decoding, so that a flood of garbage or replayed requests at a public port
+ * costs little more than reading it off the socket. A datagram is admitted
+ * only if:
+ * <ol>
+ * <li>its header could be that of a STUN message: it is at least 20 bytes
+ * long, its first two bits are zero and its length is a multiple of 4 which
+ * fits in the datagram;</li>
+ * <li>its source IP address has a token left in its bucket, so that a single
+ * host can not crowd out the others;</li>
+ * <li>the stack-wide bucket has a token left, which bounds the CPU spent on
+ * decoding whatever the number of sources.</li>
+ * </ol>
+ * Responses to the live client transactions of the stack skip both buckets,
+ * so that a flood does not make our own connectivity checks time out. Their
+ * transaction IDs are random, so they can not be forged by an off-path
+ * attacker.
+ * <p>
+ * Datagrams which are not admitted are counted in the
+ * {@link StunStackMetrics} of the stack. Admission does not lock: the
+ * buckets are updated with compare-and-set.
+ * <p>
+ * The number of sources which are tracked is bounded. Buckets which have
+ * been idle long enough to be full again carry no state and are evicted when
+ * the table is full; if it is still full, datagrams from new sources are only
+ * subject to the stack-wide limit.
+ */
+class AdmissionController
+{
+    /**
+     * The minimum interval between two sweeps of idle buckets.
+     */
+    private static final long SWEEP_INTERVAL_NANOS
+        = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The reasons why a datagram is not admitted.
+     */
+    enum Reason
+    {
+        /**
+         * The datagram does not have a STUN header.
+         */
+        MALFORMED,
+
+        /**
+         * The source of the datagram has exceeded its rate.
+         */
+        SOURCE_RATE,
+
+        /**
+         * The stack as a whole has exceeded its rate.
+         */
+        GLOBAL_RATE
+    }
+
+    /**
+     * Determines whether a transaction ID held in a buffer is that of a live
+     * client transaction.
+     */
+    interface ClientTransactionLookup
+    {
+        /**
+         * Determines whether a transaction ID held in a buffer is that of a
+         * live client transaction, without allocating.
+         *
+         * @param buffer the buffer which holds the transaction ID.
+         * @param offset the offset of the transaction ID in <tt>buffer</tt>.
+         * @param length the length of the transaction ID, 12 or 16.
+         * @return <tt>true</tt> if there is a client transaction with the ID.
+         */
+        boolean contains(byte[] buffer, int offset, int length);
+    }
+
+    /**
+     * A token bucket which is refilled at a constant rate up to its burst.
+     * <p>
+     * Tokens and refill time are folded into a single value, the time at
+     * which the bucket will be full again (the theoretical arrival time of
+     * the generic cell rate algorithm). Taking a token pushes that time one
+     * token interval further and is refused if it would then be more than
+     * the burst ahead of now. This lets threads update the bucket with a
+     * single compare-and-set instead of a lock.
+     */
+    static class TokenBucket
+    {
+        /**
+         * The time it takes to add one token, in nanoseconds.
+         */
+        private final long tokenNanos;
+
+        /**
+         * The time it takes to fill the empty bucket, in nanoseconds.
+         */
+        private final long burstNanos;
+
+        /**
+         * The time at which the bucket is full again.
+         */
+        private final AtomicLong fullAtNanos;
+
+        /**
+         * Creates a full bucket.
+         *
+         * @param rate the number of tokens added per second.
+         * @param burst the maximum number of tokens.
+         * @param nowNanos the current time.
+         */
+        TokenBucket(int rate, int burst, long nowNanos)
+        {
+            tokenNanos = Math.max(TimeUnit.SECONDS.toNanos(1) / rate, 1);
+            burstNanos = tokenNanos * Math.max(burst, 1);
+            fullAtNanos = new AtomicLong(nowNanos);
+        }
+
+        /**
+         * Takes a token from this bucket if one is available.
+         *
+         * @param nowNanos the current time.
+         * @return <tt>true</tt> if a token was taken.
+         */
+        boolean tryAcquire(long nowNanos)
+        {
+            while (true)
+            {
+                long fullAt = fullAtNanos.get();
+                long newFullAt
+                    = (fullAt - nowNanos > 0 ? fullAt : nowNanos) + tokenNanos;
+
+                if (newFullAt - nowNanos > burstNanos)
+                    return false;
+                if (fullAtNanos.compareAndSet(fullAt, newFullAt))
+                    return true;
+            }
+        }
+
+        /**
+         * Determines whether this bucket would be full at a specific time, in
+         * which case it can be discarded and re-created without any effect.
+         *
+         * @param nowNanos the current time.
+         * @return <tt>true</tt> if this bucket is full at <tt>nowNanos</tt>.
+         */
+        boolean isFull(long nowNanos)
+        {
+            return fullAtNanos.get() - nowNanos <= 0;
+        }
+    }
+
+    /**
+     * The number of messages per second admitted from a single source IP
+     * address, or 0 for no per-source limit.
+     */
+    private final int sourceRate;
+
+    /**
+     * The number of messages from a single source IP address which may be
+     * admitted at once.
+     */
+    private final int sourceBurst;
+
+    /**
+     * The maximum number of source IP addresses tracked.
+     */
+    private final int maxSources;
+
+    /**
+     * The stack-wide bucket, or <tt>null</tt> for no stack-wide limit.
+     */
+    private final TokenBucket globalBucket;
+
+    /**
+     * The buckets of the source IP addresses.
+     */
+    private final ConcurrentHashMap<InetAddress, TokenBucket> sourceBuckets
+        = new ConcurrentHashMap<>();
+
+    /**
+     * The client transactions whose responses are always admitted, or
+     * <tt>null</tt>.
+     */
+    private final ClientTransactionLookup clientTransactions;
+
+    /**
+     * The counters to update when a datagram is not admitted.
+     */
+    private final StunStackMetrics metrics;
+
+    /**
+     * The source of the current time, in nanoseconds.
+     */
+    private final LongSupplier nanoClock;
+
+    /**
+     * The time of the last sweep of idle buckets.
+     */
+    private volatile long lastSweepNanos;
+
+    /**
+     * Creates an <tt>AdmissionController</tt> configured by
+     * {@link StackConfig}.
+     *
+     * @param metrics the counters to update when a datagram is dropped.
+     * @param clientTransactions the client transactions whose responses are
+     * always admitted, or <tt>null</tt>.
+     */
+    AdmissionController(
+            StunStackMetrics metrics,
+            ClientTransactionLookup clientTransactions)
+    {
+        this(
+            StackConfig.config.admissionSourceRate(),
+            StackConfig.config.admissionSourceBurst(),
+            StackConfig.config.admissionMaxSources(),
+            StackConfig.config.admissionGlobalRate(),
+            StackConfig.config.admissionGlobalBurst(),
+            metrics,
+            clientTransactions,
+            System::nanoTime);
+    }
+
+    /**
+     * Creates an <tt>AdmissionController</tt>.
+     *
+     * @param sourceRate the number of messages per second admitted from a
+     * single source IP address, or 0 for no per-source limit.
+     * @param sourceBurst the number of messages from a single source IP
+     * address which may be admitted at once.
+     * @param maxSources the maximum number of source IP addresses tracked.
+     * @param globalRate the number of messages per second admitted in total,
+     * or 0 for no stack-wide limit.
+     * @param globalBurst the number of messages which may be admitted at
+     * once in total.
+     * @param metrics the counters to update when a datagram is dropped.
+     * @param nanoClock the source of the current time, in nanoseconds.
+     */
+    AdmissionController(
+            int sourceRate,
+            int sourceBurst,
+            int maxSources,
+            int globalRate,
+            int globalBurst,
+            StunStackMetrics metrics,
+            LongSupplier nanoClock)
+    {
+        this(
+            sourceRate, sourceBurst, maxSources, globalRate, globalBurst,
+            metrics, null, nanoClock);
+    }
+
+    /**
+     * Creates an <tt>AdmissionController</tt>.
+     *
+     * @param sourceRate the number of messages per second admitted from a
+     * single source IP address, or 0 for no per-source limit.
+     * @param sourceBurst the number of messages from a single source IP
+     * address which may be admitted at once.
+     * @param maxSources the maximum number of source IP addresses tracked.
+     * @param globalRate the number of messages per second admitted in total,
+     * or 0 for no stack-wide limit.
+     * @param globalBurst the number of messages which may be admitted at
+     * once in total.
+     * @param metrics the counters to update when a datagram is dropped.
+     * @param clientTransactions the client transactions whose responses are
+     * always admitted, or <tt>null</tt>.
+     * @param nanoClock the source of the current time, in nanoseconds.
+     */
+    AdmissionController(
+            int sourceRate,
+            int sourceBurst,
+            int maxSources,
+            int globalRate,
+            int globalBurst,
+            StunStackMetrics metrics,
+            ClientTransactionLookup clientTransactions,
+            LongSupplier nanoClock)
+    {
+        if (sourceRate < 0 || globalRate < 0 || maxSources < 1)
+        {
+            throw new IllegalArgumentException(
+                    "sourceRate=" + sourceRate + ", globalRate=" + globalRate
+                        + ", maxSources=" + maxSources);
+        }
+
+        this.sourceRate = sourceRate;
+        this.sourceBurst = sourceBurst;
+        this.maxSources = maxSources;
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
+        this.clientTransactions = clientTransactions;
+        this.nanoClock = nanoClock;
+
+        long now = nanoClock.getAsLong();
+
+        this.globalBucket
+            = globalRate == 0 ? null
+                : new TokenBucket(globalRate, globalBurst, now);
+        this.lastSweepNanos = now;
+    }
+
+    /**
+     * Determines whether a received datagram is to be decoded and processed.
+     *
+     * @param message the datagram.
+     * @return <tt>true</tt> if <tt>message</tt> is admitted, or
+     * <tt>false</tt> if it is to be dropped.
+     */
+    boolean admit(RawMessage message)
+    {
+        byte[] bytes = message.getBuffer();
+
+        if (!hasStunHeader(bytes, message.getMessageLength()))
+        {
+            metrics.messageDropped(Reason.MALFORMED);
+            return false;
+        }
+        if (isResponseToClientTransaction(bytes))
+            return true;
+
+        long now = nanoClock.getAsLong();
+
+        if (sourceRate != 0)
+        {
+            TokenBucket bucket
+                = getSourceBucket(message.getRemoteAddress().getAddress(), now);
+
+            if (bucket != null && !bucket.tryAcquire(now))
+            {
+                metrics.messageDropped(Reason.SOURCE_RATE);
+                return false;
+            }
+        }
+        if (globalBucket != null && !globalBucket.tryAcquire(now))
+        {
+            metrics.messageDropped(Reason.GLOBAL_RATE);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Determines whether a datagram starts with something which could be the
+     * header of a STUN message carrying the rest of the datagram.
+     *
+     * @param bytes the datagram.
+     * @param length the length of the datagram.
+     * @return <tt>true</tt> if <tt>bytes</tt> could be a STUN message.
+     */
+    static boolean hasStunHeader(byte[] bytes, int length)
+    {
+        if (length < Message.HEADER_LENGTH || (bytes[0] & 0xC0) != 0)
+            return false;
+
+        int messageLength = ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+
+        return (messageLength & 0x03) == 0
+            && Message.HEADER_LENGTH + messageLength <= length;
+    }
+
+    /**
+     * Determines whether a datagram with a STUN header is a response to a
+     * live client transaction.
+     *
+     * @param bytes the datagram.
+     * @return <tt>true</tt> if <tt>bytes</tt> is a success or error response
+     * whose transaction ID is that of a client transaction.
+     */
+    private boolean isResponseToClientTransaction(byte[] bytes)
+    {
+        // The class of a response has its most significant bit set.
+        if (clientTransactions == null || (bytes[0] & 0x01) == 0)
+            return false;
+
+        boolean rfc5389
+            = bytes[4] == Message.MAGIC_COOKIE[0]
+                && bytes[5] == Message.MAGIC_COOKIE[1]
+                && bytes[6] == Message.MAGIC_COOKIE[2]
+                && bytes[7] == Message.MAGIC_COOKIE[3];
+
+        return
+            rfc5389
+                ? clientTransactions.contains(
+                    bytes, 8, TransactionID.RFC5389_TRANSACTION_ID_LENGTH)
+                : clientTransactions.contains(
+                    bytes, 4, TransactionID.RFC3489_TRANSACTION_ID_LENGTH);
+    }
+
+    /**
+     * Returns the bucket of a specific source, creating it if necessary.
+     *
+     * @param source the source IP address.
+     * @param now the current time.
+     * @return the bucket of <tt>source</tt>, or <tt>null</tt> if the table of
+     * sources is full.
+     */
+    private TokenBucket getSourceBucket(InetAddress source, long now)
+    {
+        TokenBucket bucket = sourceBuckets.get(source);
+
+        if (bucket != null)
+            return bucket;
+
+        if (sourceBuckets.size() >= maxSources)
+        {
+            sweep(now);
+            if (sourceBuckets.size() >= maxSources)
+                return null;
+        }
+        return sourceBuckets.computeIfAbsent(
+                source,
+                key -> new TokenBucket(sourceRate, sourceBurst, now));
+    }
+
+    /**
+     * Evicts the buckets which are full again, at most once per
+     * {@link #SWEEP_INTERVAL_NANOS}.
+     *
+     * @param now the current time.
+     */
+    private void sweep(long now)
+    {
+        long lastSweepNanos = this.lastSweepNanos;
+
+        if (now - lastSweepNanos < SWEEP_INTERVAL_NANOS)
+            return;
+
+        synchronized (this)
+        {
+            if (this.lastSweepNanos != lastSweepNanos)
+                return;
+            this.lastSweepNanos = now;
+        }
+        sourceBuckets.values().removeIf(bucket -> bucket.isFull(now));
+    }
+
+    /**
+     * Returns the number of source IP addresses currently tracked.
+     *
+     * @return the number of tracked sources.
+     */
+    int getSourceCount()
+    {
+        return sourceBuckets.size();
+    }
+}
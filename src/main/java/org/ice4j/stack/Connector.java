@@ -47,6 +47,25 @@ class Connector
     private static final Logger logger
         = Logger.getLogger(Connector.class.getName());
 
+    /**
+     * The size of the buffers into which datagrams are received.
+     */
+    static final int RECEIVE_BUFFER_SIZE = 1500;
+
+    /**
+     * The maximum number of unused <tt>RawMessage</tt>s kept by
+     * {@link #messagePool}.
+     */
+    private static final int MESSAGE_POOL_SIZE = 1024;
+
+    /**
+     * The pool of <tt>RawMessage</tt>s which datagrams are received into,
+     * shared by all <tt>Connector</tt>s. Messages are returned to the pool
+     * once they have been processed by the stack.
+     */
+    static final RawMessagePool messagePool
+        = new RawMessagePool(RECEIVE_BUFFER_SIZE, MESSAGE_POOL_SIZE);
+
     /**
      * The consumer of incoming <tt>RawMessage</tt>s
      */
@@ -67,13 +86,13 @@ class Connector
     /**
      * A flag that is set to false to exit the message processor.
      */
-    private boolean running;
+    volatile boolean running;
 
     /**
      * The instance to be notified if errors occur in the network listening
      * thread.
      */
-    private final ErrorHandler errorHandler;
+    final ErrorHandler errorHandler;
 
     /**
      * The address that we are listening to.
@@ -86,6 +105,19 @@ class Connector
      */
     private final TransportAddress remoteAddress;
 
+    /**
+     * The message leased from {@link #messagePool} which the next datagram is
+     * to be received into. Only accessed by the thread of this
+     * <tt>Connector</tt>.
+     */
+    private RawMessage rawMessage;
+
+    /**
+     * The queue of the messages to be sent through {@link #sock}, or
+     * <tt>null</tt> if messages are sent on the threads which send them.
+     */
+    private final SendQueue sendQueue;
+
     /**
      * Creates a network access point.
      * @param socket the socket that this access point is supposed to use for
@@ -112,6 +144,17 @@ class Connector
             = new TransportAddress(socket.getLocalAddress(),
                                    socket.getLocalPort(),
                                    transport);
+
+        StackConfig config = StackConfig.config;
+
+        sendQueue
+            = config.useSendQueue()
+                ? new SendQueue(
+                        this,
+                        config.sendQueueCapacity(),
+                        SendQueue.OverflowPolicy.parse(
+                                config.sendQueueOverflowPolicy()))
+                : null;
     }
 
     /**
@@ -143,6 +186,26 @@ class Connector
      */
     @Override
     public void run()
+    {
+        try
+        {
+            receiveLoop();
+        }
+        finally
+        {
+            if (rawMessage != null)
+            {
+                rawMessage.release();
+                rawMessage = null;
+            }
+        }
+    }
+
+    /**
+     * Receives datagrams from {@link #sock} until this access point is
+     * stopped.
+     */
+    private void receiveLoop()
     {
         DatagramPacket packet = null;
 
@@ -161,51 +224,23 @@ class Connector
                 }
 
                 /*
-                 * Make sure localSock's receiveBufferSize is taken into
-                 * account including after it gets changed.
+                 * Receive directly into the buffer of a pooled RawMessage so
+                 * that the datagram is not copied on its way to the stack. A
+                 * message which was leased but did not receive anything is
+                 * reused for the next attempt.
                  */
-                int receiveBufferSize = 1500;
-                /*
-                if(localSock.getTCPSocket() != null)
-                {
-                    receiveBufferSize = localSock.getTCPSocket().
-                        getReceiveBufferSize();
-                }
-                else if(localSock.getUDPSocket() != null)
-                {
-                    receiveBufferSize = localSock.getUDPSocket().
-                        getReceiveBufferSize();
-                }
-                */
+                if (rawMessage == null)
+                    rawMessage = messagePool.lease();
+
+                byte[] buffer = rawMessage.getBuffer();
 
                 if (packet == null)
                 {
-                    packet
-                        = new DatagramPacket(
-                                new byte[receiveBufferSize],
-                                receiveBufferSize);
+                    packet = new DatagramPacket(buffer, buffer.length);
                 }
                 else
                 {
-                    byte[] packetData = packet.getData();
-
-                    if ((packetData == null)
-                            || (packetData.length < receiveBufferSize))
-                    {
-                        packet.setData(
-                                new byte[receiveBufferSize],
-                                0,
-                                receiveBufferSize);
-                    }
-                    else
-                    {
-                        /*
-                         * XXX Tell the packet it is large enough because the
-                         * socket will not look at the length of the data array
-                         * property and will just respect the length property.
-                         */
-                        packet.setLength(receiveBufferSize);
-                    }
+                    packet.setData(buffer, 0, buffer.length);
                 }
 
                 localSock.receive(packet);
@@ -226,17 +261,27 @@ class Connector
                     packet.setPort(0);
                 }
 
-                RawMessage rawMessage
-                    = new RawMessage(
+                if (packet.getData() == buffer && packet.getOffset() == 0)
+                {
+                    RawMessage received = rawMessage;
+
+                    rawMessage = null;
+                    onReceived(
+                            received,
+                            packet.getLength(),
+                            packet.getAddress(),
+                            packet.getPort());
+                }
+                else
+                {
+                    // The socket replaced the buffer of the packet.
+                    onReceived(
                             packet.getData(),
+                            packet.getOffset(),
                             packet.getLength(),
-                            new TransportAddress(
-                                    packet.getAddress(),
-                                    packet.getPort(),
-                                    listenAddress.getTransport()),
-                            listenAddress);
-
-                messageConsumer.accept(rawMessage);
+                            packet.getAddress(),
+                            packet.getPort());
+                }
             }
             catch (SocketException ex)
             {
@@ -300,11 +345,71 @@ class Connector
         }
     }
 
+    /**
+     * Wraps bytes received on this access point's socket in a
+     * <tt>RawMessage</tt> and hands it to {@link #messageConsumer}.
+     *
+     * @param data the array holding the received bytes.
+     * @param offset the offset in <tt>data</tt> at which the message starts.
+     * @param length the number of bytes in the message.
+     * @param address the address that the message was received from.
+     * @param port the port that the message was received from.
+     */
+    void onReceived(
+            byte[] data,
+            int offset,
+            int length,
+            InetAddress address,
+            int port)
+    {
+        RawMessage rawMessage
+            = new RawMessage(
+                    data,
+                    offset,
+                    length,
+                    new TransportAddress(
+                            address,
+                            port,
+                            listenAddress.getTransport()),
+                    listenAddress);
+
+        messageConsumer.accept(rawMessage);
+    }
+
+    /**
+     * Hands a pooled <tt>RawMessage</tt> which a datagram has been received
+     * into to {@link #messageConsumer}, which takes over the reference to it.
+     *
+     * @param rawMessage the message which the datagram was received into.
+     * @param length the number of bytes received.
+     * @param address the address that the message was received from.
+     * @param port the port that the message was received from.
+     */
+    void onReceived(
+            RawMessage rawMessage,
+            int length,
+            InetAddress address,
+            int port)
+    {
+        rawMessage.init(
+                length,
+                new TransportAddress(
+                        address,
+                        port,
+                        listenAddress.getTransport()),
+                listenAddress);
+
+        messageConsumer.accept(rawMessage);
+    }
+
     /**
      * Makes the access point stop listening on its socket.
      */
     protected void stop()
     {
+        if (sendQueue != null)
+            sendQueue.close();
+
         synchronized(sockLock)
         {
             this.running = false;
@@ -326,6 +431,54 @@ class Connector
      */
     void sendMessage(byte[] message, TransportAddress address)
         throws IOException
+    {
+        sendMessage(message, address, null);
+    }
+
+    /**
+     * Sends message through this access point's socket. If the stack is
+     * configured to use send queues, the message is only enqueued and the
+     * outcome of the send is reported to <tt>callback</tt>; otherwise it is
+     * sent on the calling thread.
+     *
+     * @param message the bytes to send.
+     * @param address message destination.
+     * @param callback the instance to notify once the message has been sent
+     * or could not be sent, or <tt>null</tt>. It is not notified if this
+     * method throws.
+     *
+     * @throws IOException if an exception occurs while sending the message,
+     * or a {@link SendQueue.SendQueueFullException} if the send queue is full
+     * and configured to reject messages.
+     */
+    void sendMessage(
+            byte[] message,
+            TransportAddress address,
+            SendQueue.Callback callback)
+        throws IOException
+    {
+        if (sendQueue != null)
+        {
+            sendQueue.add(message, address, callback);
+        }
+        else
+        {
+            send(message, address);
+            if (callback != null)
+                callback.sendCompleted(address, null);
+        }
+    }
+
+    /**
+     * Sends message through this access point's socket on the calling thread.
+     *
+     * @param message the bytes to send.
+     * @param address message destination.
+     *
+     * @throws IOException if an exception occurs while sending the message.
+     */
+    void send(byte[] message, TransportAddress address)
+        throws IOException
     {
         DatagramPacket datagramPacket
             = new DatagramPacket(message, 0, message.length, address);
@@ -341,6 +494,17 @@ class Connector
         }
     }
 
+    /**
+     * Returns the queue of the messages to be sent through this access point.
+     *
+     * @return the send queue, or <tt>null</tt> if messages are sent on the
+     * threads which send them.
+     */
+    SendQueue getSendQueue()
+    {
+        return sendQueue;
+    }
+
     /**
      * Returns a String representation of the object.
      * @return a String representation of the object.
@@ -18,6 +18,7 @@
 package org.ice4j.stack;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.ice4j.*;
 import org.ice4j.message.*;
@@ -27,6 +28,11 @@ import org.ice4j.message.*;
  * this class mainly (and probably solely) for its ability to handle listener
  * proxies (i.e. listeners interested in requests received on a particular
  * NetAccessPoint only).
+ * <p>
+ * Binding requests may also be routed by the local ufrag in their USERNAME
+ * (see {@link #addRequestListener(String, RequestListener)}), so that a
+ * stack shared by many ICE agents hands each connectivity check to the agent
+ * which owns it without offering it to all the others.
  *
  * @author Emil Ivov
  * @author Lubomir Marinov
@@ -39,7 +45,7 @@ public class EventDispatcher
      * <tt>EventDispatcher</tt>.
      */
     private final List<MessageTypeEventHandler<?>> messageListeners
-        = new Vector<>();
+        = new CopyOnWriteArrayList<>();
 
     /**
      * The <tt>Map</tt> of <tt>EventDispatcher</tt>s which keep the
@@ -48,7 +54,16 @@ public class EventDispatcher
      * <tt>TransportAddress</tt>es.
      */
     private final Map<TransportAddress, EventDispatcher> children
-        = new Hashtable<>();
+        = new ConcurrentHashMap<>();
+
+    /**
+     * The <tt>RequestListener</tt>s registered for Binding requests by the
+     * local ufrag in their USERNAME. The map is never modified: registrations
+     * replace it with a modified copy, so that {@link #fireMessageEvent}
+     * reads it without locking.
+     */
+    private volatile Map<String, RequestListener> ufragRequestListeners
+        = Collections.emptyMap();
 
     /**
      * Initializes a new <tt>EventDispatcher</tt> instance.
@@ -170,6 +185,34 @@ public class EventDispatcher
                 new RequestListenerMessageEventHandler(listener));
     }
 
+    /**
+     * Add a RequestListener for the Binding requests whose USERNAME starts
+     * with a specific local ufrag (i.e. is "localUfrag:remoteUfrag" or just
+     * "localUfrag"). Such requests are handed to the listener directly, so
+     * it does not need to be registered for all requests and filter out
+     * those of other ICE agents. Registering another listener for the same
+     * ufrag replaces the previous one.
+     *
+     * @param localUfrag the local ufrag of the requests that
+     * <tt>listener</tt> is interested in.
+     * @param listener the RequestListener to be added
+     */
+    public void addRequestListener(String localUfrag, RequestListener listener)
+    {
+        Objects.requireNonNull(localUfrag, "localUfrag");
+        Objects.requireNonNull(listener, "listener");
+
+        synchronized(this)
+        {
+            Map<String, RequestListener> newUfragRequestListeners
+                = new HashMap<>(ufragRequestListeners);
+
+            newUfragRequestListeners.put(localUfrag, listener);
+            ufragRequestListeners
+                = Collections.unmodifiableMap(newUfragRequestListeners);
+        }
+    }
+
     /**
      * Unregisters a specific <tt>MessageTypeEventHandler</tt> from
      * notifications about received STUN messages.
@@ -242,6 +285,38 @@ public class EventDispatcher
     }
 
 
+    /**
+     * Remove a RequestListener registered for the Binding requests with a
+     * specific local ufrag. Does nothing if another listener has been
+     * registered for the ufrag since.
+     *
+     * @param localUfrag the local ufrag that <tt>listener</tt> was
+     * registered with.
+     * @param listener the RequestListener to be removed
+     */
+    public void removeRequestListener(String localUfrag,
+                                      RequestListener listener)
+    {
+        synchronized(this)
+        {
+            if (localUfrag == null
+                    || listener == null
+                    || !listener.equals(ufragRequestListeners.get(localUfrag)))
+            {
+                return;
+            }
+
+            Map<String, RequestListener> newUfragRequestListeners
+                = new HashMap<>(ufragRequestListeners);
+
+            newUfragRequestListeners.remove(localUfrag);
+            ufragRequestListeners
+                = newUfragRequestListeners.isEmpty()
+                    ? Collections.emptyMap()
+                    : Collections.unmodifiableMap(newUfragRequestListeners);
+        }
+    }
+
     /**
      * Dispatch a StunMessageEvent to any registered listeners.
      *
@@ -249,34 +324,55 @@ public class EventDispatcher
      */
     public void fireMessageEvent(StunMessageEvent evt)
     {
-        TransportAddress localAddr = evt.getLocalAddress();
-        MessageTypeEventHandler<?>[] messageListenersCopy;
+        Message message = evt.getMessage();
 
-        synchronized(messageListeners)
+        if (message.getMessageType() == Message.BINDING_REQUEST)
         {
-            messageListenersCopy
-                = messageListeners.toArray(
-                        new MessageTypeEventHandler<?>[
-                                messageListeners.size()]);
+            RequestListener ufragListener = getUfragRequestListener(message);
+
+            if (ufragListener != null)
+                ufragListener.processRequest(evt);
         }
 
-        char messageType = (char) (evt.getMessage().getMessageType() & 0x0110);
+        char messageType = (char) (message.getMessageType() & 0x0110);
 
-        for (MessageTypeEventHandler<?> messageListener : messageListenersCopy)
+        for (MessageTypeEventHandler<?> messageListener : messageListeners)
         {
             if (messageType == messageListener.messageType)
                 messageListener.handleMessageEvent(evt);
         }
 
-        synchronized(children)
+        if (!children.isEmpty())
         {
-            EventDispatcher child = children.get(localAddr);
+            EventDispatcher child = children.get(evt.getLocalAddress());
 
             if (child != null)
                 child.fireMessageEvent(evt);
         }
     }
 
+    /**
+     * Returns the listener registered for the local ufrag in the USERNAME of
+     * a specific Binding request.
+     *
+     * @param request the Binding request.
+     * @return the <tt>RequestListener</tt> registered for the local ufrag of
+     * <tt>request</tt>, or <tt>null</tt> if there is none or
+     * <tt>request</tt> has no USERNAME.
+     */
+    private RequestListener getUfragRequestListener(Message request)
+    {
+        Map<String, RequestListener> ufragRequestListeners
+            = this.ufragRequestListeners;
+
+        if (ufragRequestListeners.isEmpty())
+            return null;
+
+        String localUfrag = StunStack.getLocalUfrag(request);
+
+        return localUfrag == null ? null : ufragRequestListeners.get(localUfrag);
+    }
+
     /**
      * Check if there are any listeners for a specific address.
      * (Generic listeners count as well)
@@ -287,24 +383,20 @@ public class EventDispatcher
      */
     public boolean hasRequestListeners(TransportAddress localAddr)
     {
-        synchronized(messageListeners)
+        if (!messageListeners.isEmpty() || !ufragRequestListeners.isEmpty())
         {
-            if (!messageListeners.isEmpty())
-            {
-                // there is a generic listener
-                return true;
-            }
+            // there is a generic listener
+            return true;
         }
 
-        synchronized(children)
+        // Read without locking, like fireMessageEvent: children is concurrent
+        // and the listeners are copy-on-write.
+        if (!children.isEmpty())
         {
-            if (!children.isEmpty())
-            {
-                EventDispatcher child = children.get(localAddr);
+            EventDispatcher child = children.get(localAddr);
 
-                if (child != null)
-                    return !child.messageListeners.isEmpty();
-            }
+            if (child != null)
+                return !child.messageListeners.isEmpty();
         }
 
         return false;
@@ -313,10 +405,11 @@ public class EventDispatcher
     /**
      * Removes (absolutely all listeners for this event dispatcher).
      */
-    public void removeAllListeners()
+    public synchronized void removeAllListeners()
     {
         messageListeners.clear();
         children.clear();
+        ufragRequestListeners = Collections.emptyMap();
     }
 
     /**
@@ -83,6 +83,12 @@ class MessageProcessingTask
      */
     private Consumer<MessageProcessingTask> rawMessageProcessedHandler;
 
+    /**
+     * The value of <tt>System.nanoTime()</tt> when {@link #rawMessage} was
+     * handed to this task, used to measure how long it waited for a thread.
+     */
+    private long enqueuedNanos;
+
     /**
      * Creates a Message processor.
      *
@@ -136,6 +142,7 @@ class MessageProcessingTask
         }
         rawMessage = message;
         rawMessageProcessedHandler = onProcessed;
+        enqueuedNanos = System.nanoTime();
     }
 
     /**
@@ -167,6 +174,8 @@ class MessageProcessingTask
         final Consumer<MessageProcessingTask> onProcessed
             = rawMessageProcessedHandler;
         final RawMessage message = rawMessage;
+        final long startNanos = System.nanoTime();
+        StunStackMetrics metrics = null;
         //add an extra try/catch block that handles uncatched errors
         try
         {
@@ -186,22 +195,27 @@ class MessageProcessingTask
             // 网络访问器 获取StunStack ... 进行真正的处理 ...
             StunStack stunStack = netAccessManager.getStunStack();
 
+            metrics = stunStack.getMetrics();
+
             Message stunMessage;
             try
             {
                 stunMessage
-                    = Message.decode(message.getBytes(),
+                    = Message.decode(message.getBuffer(),
                                      0,
                                      message.getMessageLength());
             }
             catch (StunException ex)
             {
+                metrics.decodeFailed(
+                        ex.getID() == StunException.FINGERPRINT_MISMATCH);
                 errorHandler.handleError(
                     "Failed to decode a stun message!",
                     ex);
                     return;
             }
 
+            metrics.messageReceived(stunMessage.getMessageType());
             logger.finest("Dispatching a StunMessageEvent.");
 
             StunMessageEvent stunMessageEvent
@@ -217,6 +231,12 @@ class MessageProcessingTask
         }
         finally
         {
+            if (metrics != null)
+            {
+                metrics.messageProcessed(
+                        startNanos - enqueuedNanos,
+                        System.nanoTime() - startNanos);
+            }
             // On processed callback must be invoked in all cases, even when
             // cancellation or early exist happen, otherwise
             // NetAccessManager internal tracking of pooled and active
@@ -225,6 +245,12 @@ class MessageProcessingTask
             {
                 onProcessed.accept(this);
             }
+            // Events are dispatched synchronously, so nobody refers to the
+            // message any more and its buffer can be reused.
+            if (message != null)
+            {
+                message.release();
+            }
         }
     }
 }
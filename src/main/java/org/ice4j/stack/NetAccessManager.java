@@ -20,7 +20,7 @@ package org.ice4j.stack;
 import org.ice4j.*;
 import org.ice4j.message.*;
 import org.ice4j.socket.*;
-import org.jitsi.utils.concurrent.*;
+import org.ice4j.util.*;
 
 import java.io.*;
 import java.net.*;
@@ -60,7 +60,19 @@ public class NetAccessManager
      * {@link NetAccessManager}s.
      */
     private static ExecutorService messageProcessingExecutor
-        = ExecutorFactory.createCachedThreadPool("ice4j.NetAccessManager-");
+        = Ice4jExecutors.newExecutor("ice4j.NetAccessManager-");
+
+    /**
+     * The lanes which process the messages from each remote address in order
+     * on the threads of {@link #messageProcessingExecutor}, or <tt>null</tt>
+     * if messages are processed in no particular order.
+     */
+    private static final PartitionedExecutor messageProcessingLanes
+        = StackConfig.config.messageProcessingLanes() > 0
+            ? new PartitionedExecutor(
+                    StackConfig.config.messageProcessingLanes(),
+                    messageProcessingExecutor)
+            : null;
 
     /**
      * Maximum number of {@link MessageProcessingTask} to keep in object pool.
@@ -70,7 +82,8 @@ public class NetAccessManager
      * 保存 MessageProcessingTask到 对象池的最大数量 ..
      * 每一个NeetAccessManager 都有自己的池 ... 最小池足够节约分配 ..
      */
-    private static final int TASK_POOL_SIZE = 8;
+    private static final int TASK_POOL_SIZE
+        = StackConfig.config.messageProcessingTaskPoolSize();
 
     /**
      * Pool of <tt>MessageProcessingTask</tt> objects to avoid extra-allocations
@@ -160,6 +173,12 @@ public class NetAccessManager
      */
     private final StunStack stunStack;
 
+    /**
+     * Decides which received datagrams are decoded, or <tt>null</tt> if all
+     * of them are.
+     */
+    private volatile AdmissionController admissionController;
+
     /**
      * Indicates if this <tt>NetAccessManager</tt> is stopped
      * 这是一个指示器,NetAccessManager 已经停止了 ...
@@ -223,6 +242,25 @@ public class NetAccessManager
         this.messageEventHandler = stunStack;
         this.peerUdpMessageEventHandler = peerUdpMessageEventHandler;
         this.channelDataEventHandler = channelDataEventHandler;
+
+        if (StackConfig.config.useAdmissionControl())
+        {
+            admissionController
+                = new AdmissionController(
+                        stunStack.getMetrics(),
+                        stunStack::hasClientTransaction);
+        }
+    }
+
+    /**
+     * Sets the instance which decides which received datagrams are decoded.
+     *
+     * @param admissionController the <tt>AdmissionController</tt> to use, or
+     * <tt>null</tt> to decode all received datagrams.
+     */
+    void setAdmissionController(AdmissionController admissionController)
+    {
+        this.admissionController = admissionController;
     }
 
     /**
@@ -377,7 +415,9 @@ public class NetAccessManager
     /**
      * Creates and starts a new access point based on the specified socket.
      * If the specified access point has already been installed the method
-     * has no effect.
+     * has no effect. If selector connectors are enabled and the socket is
+     * backed by a NIO channel, the access point is driven by a shared
+     * {@link SelectorLoop} instead of a dedicated thread.
      *
      * @param  socket   the socket that the access point should use.
      * @param remoteAddress the remote address of the socket of the
@@ -416,12 +456,26 @@ public class NetAccessManager
             if (!connectorsForLocalAddress.containsKey(remoteAddress))
             {
                 // 开始创建连接器 ... 进行处理 ..
-                Connector connector
-                    = new Connector(
-                        socket,
-                        remoteAddress,
-                        this::onIncomingRawMessage,
-                        this);
+                Connector connector = null;
+
+                if (StackConfig.config.useSelectorConnectors())
+                {
+                    connector
+                        = SelectorConnector.create(
+                            socket,
+                            remoteAddress,
+                            this::onIncomingRawMessage,
+                            this);
+                }
+                if (connector == null)
+                {
+                    connector
+                        = new Connector(
+                            socket,
+                            remoteAddress,
+                            this::onIncomingRawMessage,
+                            this);
+                }
 
                 connectorsForLocalAddress.put(remoteAddress, connector);
                 connector.start();
@@ -568,6 +622,15 @@ public class NetAccessManager
         if (isStopped.get())
         {
             logger.fine("Got RawMessage when stopped, ignore it.");
+            message.release();
+            return;
+        }
+
+        AdmissionController admissionController = this.admissionController;
+
+        if (admissionController != null && !admissionController.admit(message))
+        {
+            message.release();
             return;
         }
 
@@ -598,7 +661,28 @@ public class NetAccessManager
         // Use overload which does not return Future object to avoid
         // unnecessary allocation
         // 然后交给消息处理执行器执行( 这里不需要返回Future 对象 避免不必要的分配)
-        messageProcessingExecutor.execute(messageProcessingTask);
+        if (messageProcessingLanes != null)
+        {
+            messageProcessingLanes.execute(
+                    message.getRemoteAddress(),
+                    messageProcessingTask);
+        }
+        else
+        {
+            messageProcessingExecutor.execute(messageProcessingTask);
+        }
+    }
+
+    /**
+     * Returns the number of received messages which are waiting to be or are
+     * being processed.
+     *
+     * @return the number of received messages which have not been processed
+     * yet.
+     */
+    int getPendingMessageCount()
+    {
+        return activeTasks.size();
     }
 
     //--------------- SENDING MESSAGES -----------------------------------------
@@ -622,6 +706,7 @@ public class NetAccessManager
                IOException
     {
         sendMessage(stunMessage.encode(stunStack), srcAddr, remoteAddr);
+        stunStack.getMetrics().messageSent(stunMessage.getMessageType());
     }
     
     /**
@@ -667,6 +752,36 @@ public class NetAccessManager
             TransportAddress remoteAddr)
         throws IllegalArgumentException,
                IOException
+    {
+        sendMessage(bytes, srcAddr, remoteAddr, null);
+    }
+
+    /**
+     * Sends the specified bytes through the specified access point. If the
+     * stack is configured to use send queues, the bytes are only enqueued for
+     * sending by the access point and the outcome is reported to
+     * <tt>callback</tt>.
+     *
+     * @param bytes the bytes to send.
+     * @param srcAddr the access point to use to send the bytes.
+     * @param remoteAddr the destination of the message.
+     * @param callback the instance to notify once the bytes have been sent or
+     * could not be sent, or <tt>null</tt>. It is not notified if this method
+     * throws.
+     *
+     * @throws IllegalArgumentException if the apDescriptor references an
+     * access point that had not been installed,
+     * @throws IOException  if an error occurs while sending message bytes
+     * through the network socket, or if the send queue of the access point is
+     * full and configured to reject messages.
+     */
+    void sendMessage(
+            byte[] bytes,
+            TransportAddress srcAddr,
+            TransportAddress remoteAddr,
+            SendQueue.Callback callback)
+        throws IllegalArgumentException,
+               IOException
     {
         Connector ap = getConnector(srcAddr, remoteAddr);
         if (ap == null)
@@ -674,7 +789,7 @@ public class NetAccessManager
             throw new SocketNotFoundException("No socket found for " + srcAddr + "->" + remoteAddr);
         }
 
-        ap.sendMessage(bytes, remoteAddr);
+        ap.sendMessage(bytes, remoteAddr, callback);
     }
 
     public class SocketNotFoundException extends IllegalArgumentException
@@ -17,6 +17,8 @@
  */
 package org.ice4j.stack;
 
+import java.util.*;
+
 /**
  * The interface which interested implementers will use in order
  * to track and log packets send and received by this stack.
@@ -43,6 +45,44 @@ public interface PacketLogger
             byte[] packetContent,
             boolean sender);
 
+    /**
+     * Logs a incoming or outgoing packet which occupies a range of a buffer.
+     * Called by the stack on the sending and receiving threads, so
+     * implementations should return quickly. The default implementation
+     * copies the range and calls
+     * {@link #logPacket(byte[], int, byte[], int, byte[], boolean)}.
+     *
+     * @param sourceAddress the source address of the packet.
+     * @param sourcePort the source port.
+     * @param destinationAddress the destination address of the packet.
+     * @param destinationPort the destination port.
+     * @param buffer the buffer which holds the content of the packet.
+     * @param offset the offset of the packet in <tt>buffer</tt>.
+     * @param length the length of the packet.
+     * @param sender whether we are sending or not the packet.
+     */
+    default void logPacket(
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            byte[] buffer,
+            int offset,
+            int length,
+            boolean sender)
+    {
+        byte[] packetContent
+            = (offset == 0 && length == buffer.length)
+                ? buffer
+                : Arrays.copyOfRange(buffer, offset, offset + length);
+
+        logPacket(
+                sourceAddress, sourcePort,
+                destinationAddress, destinationPort,
+                packetContent,
+                sender);
+    }
+
     /**
      * Checks whether the logger is enabled. 
      * @return <tt>true</tt> if the logger is enabled, <tt>false</tt>
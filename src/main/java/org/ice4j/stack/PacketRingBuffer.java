@@ -0,0 +1,274 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A bounded multi-producer, single-consumer ring of packet copies, used by
+ * {@link PcapPacketLogger} to hand packets from the sending and receiving
+ * threads to its writer thread without locks or allocations.
+ * <p>
+ * Each slot is preallocated with room for <tt>snapLength</tt> bytes of
+ * payload and carries a sequence number (after D. Vyukov's bounded MPMC
+ * queue): a producer claims a slot by advancing {@link #tail} with a CAS,
+ * fills it and publishes it by setting its sequence. The consumer reads the
+ * published slot at {@link #head} in place and gives it back with
+ * {@link #release()}. A producer which finds the ring full fails instead of
+ * waiting.
+ */
+class PacketRingBuffer
+{
+    /**
+     * A preallocated copy of a packet and of its addressing.
+     */
+    static class Slot
+    {
+        /**
+         * The captured bytes of the packet.
+         */
+        final byte[] data;
+
+        /**
+         * The number of bytes of {@link #data} which were captured.
+         */
+        int capturedLength;
+
+        /**
+         * The length of the packet before it was truncated to the snap
+         * length.
+         */
+        int originalLength;
+
+        /**
+         * The time at which the packet was offered, in milliseconds since
+         * the epoch.
+         */
+        long timestamp;
+
+        /**
+         * The source address, 4 or 16 bytes long.
+         */
+        final byte[] sourceAddress = new byte[16];
+
+        int sourceAddressLength;
+
+        int sourcePort;
+
+        /**
+         * The destination address, 4 or 16 bytes long.
+         */
+        final byte[] destinationAddress = new byte[16];
+
+        int destinationAddressLength;
+
+        int destinationPort;
+
+        Slot(int snapLength)
+        {
+            data = new byte[snapLength];
+        }
+    }
+
+    /**
+     * The slots of the ring.
+     */
+    private final Slot[] slots;
+
+    /**
+     * The sequence number of each slot. Slot <tt>i</tt> may be filled by the
+     * producer which claimed position <tt>p</tt> when its sequence is
+     * <tt>p</tt>, and read by the consumer when it is <tt>p + 1</tt>.
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * <tt>slots.length - 1</tt>, the length being a power of two.
+     */
+    private final int mask;
+
+    /**
+     * The position of the next slot to be claimed by a producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The position of the next slot to be read. Only the consumer writes it.
+     */
+    private volatile long head;
+
+    /**
+     * Creates a ring.
+     *
+     * @param capacity the minimum number of packets the ring holds. Rounded
+     * up to a power of two.
+     * @param snapLength the maximum number of bytes copied from each packet.
+     */
+    PacketRingBuffer(int capacity, int snapLength)
+    {
+        if (capacity < 1 || capacity > (1 << 30))
+            throw new IllegalArgumentException("capacity=" + capacity);
+        if (snapLength < 0)
+            throw new IllegalArgumentException("snapLength=" + snapLength);
+
+        int size = Integer.highestOneBit(capacity);
+
+        if (size < capacity)
+            size <<= 1;
+
+        slots = new Slot[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+        {
+            slots[i] = new Slot(snapLength);
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Returns the number of packets this ring holds.
+     *
+     * @return the number of packets this ring holds.
+     */
+    int capacity()
+    {
+        return slots.length;
+    }
+
+    /**
+     * Returns the number of packets waiting to be read.
+     *
+     * @return the number of packets waiting to be read.
+     */
+    int size()
+    {
+        long size = tail.get() - head;
+
+        return (int) Math.max(0, Math.min(size, slots.length));
+    }
+
+    /**
+     * Copies a packet into the ring. May be called by any thread.
+     *
+     * @param sourceAddress the source address, 4 or 16 bytes long.
+     * @param sourcePort the source port.
+     * @param destinationAddress the destination address, 4 or 16 bytes long.
+     * @param destinationPort the destination port.
+     * @param buffer the buffer which holds the packet.
+     * @param offset the offset of the packet in <tt>buffer</tt>.
+     * @param length the length of the packet.
+     * @param timestamp the time of the packet in milliseconds since the
+     * epoch.
+     * @return <tt>true</tt> if the packet was copied, or <tt>false</tt> if
+     * the ring is full.
+     */
+    boolean offer(
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            byte[] buffer,
+            int offset,
+            int length,
+            long timestamp)
+    {
+        long position;
+        int index;
+
+        while (true)
+        {
+            position = tail.get();
+            index = (int) position & mask;
+
+            long diff = sequences.get(index) - position;
+
+            if (diff == 0)
+            {
+                if (tail.compareAndSet(position, position + 1))
+                    break;
+            }
+            else if (diff < 0)
+            {
+                return false;
+            }
+        }
+
+        Slot slot = slots[index];
+        int captured = Math.min(length, slot.data.length);
+
+        System.arraycopy(buffer, offset, slot.data, 0, captured);
+        slot.capturedLength = captured;
+        slot.originalLength = length;
+        slot.timestamp = timestamp;
+        slot.sourceAddressLength = copyAddress(sourceAddress, slot.sourceAddress);
+        slot.sourcePort = sourcePort;
+        slot.destinationAddressLength
+            = copyAddress(destinationAddress, slot.destinationAddress);
+        slot.destinationPort = destinationPort;
+
+        sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Returns the oldest packet in the ring without removing it. Must only be
+     * called by the consumer thread.
+     *
+     * @return the oldest packet, or <tt>null</tt> if there is none. The slot
+     * stays valid until {@link #release()} is called.
+     */
+    Slot peek()
+    {
+        long position = head;
+        int index = (int) position & mask;
+
+        return (sequences.get(index) == position + 1) ? slots[index] : null;
+    }
+
+    /**
+     * Gives the slot returned by {@link #peek()} back to the producers. Must
+     * only be called by the consumer thread.
+     */
+    void release()
+    {
+        long position = head;
+
+        sequences.lazySet((int) position & mask, position + slots.length);
+        head = position + 1;
+    }
+
+    /**
+     * Copies an address into a slot.
+     *
+     * @param address the address to copy.
+     * @param slotAddress the array of the slot to copy into.
+     * @return the length of the address, or <tt>0</tt> if it is neither an
+     * IPv4 nor an IPv6 address.
+     */
+    private static int copyAddress(byte[] address, byte[] slotAddress)
+    {
+        if (address == null
+                || (address.length != 4 && address.length != 16))
+        {
+            return 0;
+        }
+        System.arraycopy(address, 0, slotAddress, 0, address.length);
+        return address.length;
+    }
+}
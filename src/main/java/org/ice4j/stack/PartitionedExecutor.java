@@ -0,0 +1,229 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/**
+ * Executes tasks on a fixed number of lanes chosen by a key, e.g. the remote
+ * address of a received message. The tasks of a lane run one at a time and in
+ * the order in which they were submitted, so tasks with the same key never
+ * run concurrently or out of order, while tasks of different lanes run in
+ * parallel.
+ * <p>
+ * A lane has no thread of its own: while it has tasks, it is drained by a
+ * thread of a shared executor, which it gives back after
+ * {@link #MAX_BATCH} tasks so that busy lanes do not starve the others.
+ */
+class PartitionedExecutor
+{
+    /**
+     * Our class logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(PartitionedExecutor.class.getName());
+
+    /**
+     * The maximum number of tasks a lane runs before it yields its thread.
+     */
+    private static final int MAX_BATCH = 64;
+
+    /**
+     * The executor whose threads drain the lanes.
+     */
+    private final Executor executor;
+
+    /**
+     * The lanes.
+     */
+    private final Lane[] lanes;
+
+    /**
+     * Creates a <tt>PartitionedExecutor</tt>.
+     *
+     * @param laneCount the number of lanes, i.e. the maximum number of tasks
+     * which run in parallel.
+     * @param executor the executor whose threads are to drain the lanes.
+     */
+    PartitionedExecutor(int laneCount, Executor executor)
+    {
+        if (laneCount < 1)
+            throw new IllegalArgumentException("laneCount=" + laneCount);
+
+        this.executor = Objects.requireNonNull(executor, "executor");
+        lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++)
+            lanes[i] = new Lane();
+    }
+
+    /**
+     * Executes a task after the tasks previously submitted with keys which
+     * map to the same lane as <tt>key</tt>.
+     *
+     * @param key the key which selects the lane, or <tt>null</tt>.
+     * @param task the task to execute.
+     */
+    void execute(Object key, Runnable task)
+    {
+        lanes[laneIndex(key)].add(task);
+    }
+
+    /**
+     * Returns the index of the lane of a specific key.
+     *
+     * @param key the key.
+     * @return the index of the lane which runs the tasks of <tt>key</tt>.
+     */
+    int laneIndex(Object key)
+    {
+        if (key == null)
+            return 0;
+
+        int h = key.hashCode();
+
+        return Math.floorMod(h ^ (h >>> 16), lanes.length);
+    }
+
+    /**
+     * Returns the number of lanes.
+     *
+     * @return the number of lanes.
+     */
+    int getLaneCount()
+    {
+        return lanes.length;
+    }
+
+    /**
+     * The tasks which run one after the other.
+     */
+    private class Lane
+        implements Runnable
+    {
+        /**
+         * The tasks waiting to run.
+         */
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Whether this lane has been handed to {@link #executor} and not yet
+         * found empty.
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        /**
+         * Adds a task to this lane and schedules the draining of the lane if
+         * it is not scheduled already.
+         *
+         * @param task the task.
+         * @throws RejectedExecutionException if {@link #executor} rejects the
+         * lane, in which case the task and the other waiting tasks are
+         * dropped.
+         */
+        void add(Runnable task)
+        {
+            tasks.add(task);
+            if (scheduled.compareAndSet(false, true))
+            {
+                try
+                {
+                    executor.execute(this);
+                }
+                catch (RejectedExecutionException ree)
+                {
+                    // The caller learns about its own task from the exception.
+                    tasks.remove(task);
+                    dropTasks(ree);
+                    throw ree;
+                }
+            }
+        }
+
+        /**
+         * Drops the waiting tasks and marks this lane as not scheduled after
+         * {@link #executor} rejected it, so that later tasks schedule it
+         * again instead of waiting forever for a drain which never comes.
+         *
+         * @param ree the rejection.
+         */
+        private void dropTasks(RejectedExecutionException ree)
+        {
+            int dropped = 0;
+
+            do
+            {
+                while (tasks.poll() != null)
+                    dropped++;
+                scheduled.set(false);
+            }
+            // A task added before the reset found the lane scheduled.
+            while (!tasks.isEmpty() && scheduled.compareAndSet(false, true));
+
+            if (dropped > 0)
+            {
+                logger.log(
+                    Level.WARNING,
+                    "Dropped " + dropped + " tasks because their lane was"
+                        + " rejected",
+                    ree);
+            }
+        }
+
+        /**
+         * Runs the waiting tasks, up to {@link #MAX_BATCH} of them.
+         */
+        @Override
+        public void run()
+        {
+            for (int i = 0; i < MAX_BATCH; i++)
+            {
+                Runnable task = tasks.poll();
+
+                if (task == null)
+                {
+                    scheduled.set(false);
+                    // A task added after the poll and before the reset found
+                    // the lane scheduled, so it is up to us to run it.
+                    if (tasks.isEmpty() || !scheduled.compareAndSet(false, true))
+                        return;
+                    continue;
+                }
+
+                try
+                {
+                    task.run();
+                }
+                catch (Throwable t)
+                {
+                    logger.log(Level.WARNING, "Task failed", t);
+                }
+            }
+            try
+            {
+                executor.execute(this);
+            }
+            catch (RejectedExecutionException ree)
+            {
+                dropTasks(ree);
+            }
+        }
+    }
+}
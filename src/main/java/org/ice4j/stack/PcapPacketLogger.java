@@ -0,0 +1,691 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.logging.*;
+
+import org.ice4j.util.*;
+
+/**
+ * A {@link PacketLogger} which writes the packets into rotating libpcap
+ * files. The threads which send and receive packets only copy them into a
+ * preallocated {@link PacketRingBuffer}; a background thread encodes them and
+ * writes them through a <tt>FileChannel</tt>. When the ring is full, e.g.
+ * because the disk can not keep up, packets are dropped and counted rather
+ * than delaying the stack.
+ * <p>
+ * The files use the raw IP link type. Each packet is preceded by a
+ * synthesized IPv4 or IPv6 header and by a UDP header without checksum, so
+ * that Wireshark dissects the STUN, DTLS and RTP content. Packets sent or
+ * received over TCP are framed as UDP as well.
+ * <p>
+ * Install an instance with {@link StunStack#setPacketLogger(PacketLogger)}
+ * and {@link #close()} it once it is no longer needed.
+ */
+public class PcapPacketLogger
+    implements PacketLogger, Closeable
+{
+    /**
+     * Our class logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(PcapPacketLogger.class.getName());
+
+    /**
+     * The magic number of a libpcap file with microsecond timestamps.
+     */
+    private static final int PCAP_MAGIC = 0xa1b2c3d4;
+
+    /**
+     * The libpcap link type of raw IPv4 and IPv6 packets.
+     */
+    static final int LINKTYPE_RAW = 101;
+
+    /**
+     * The length of the global header of a libpcap file.
+     */
+    static final int GLOBAL_HEADER_LENGTH = 24;
+
+    /**
+     * The length of the header of a record in a libpcap file.
+     */
+    static final int RECORD_HEADER_LENGTH = 16;
+
+    private static final int IPV4_HEADER_LENGTH = 20;
+
+    private static final int IPV6_HEADER_LENGTH = 40;
+
+    private static final int UDP_HEADER_LENGTH = 8;
+
+    /**
+     * The IP protocol number of UDP.
+     */
+    private static final int PROTOCOL_UDP = 17;
+
+    /**
+     * The executor whose threads write the packets, one per open logger.
+     */
+    private static final ExecutorService writerExecutor
+        = Ice4jExecutors.newExecutor("ice4j.PcapPacketLogger-");
+
+    /**
+     * The minimum size of {@link #buffer}, in which records are batched
+     * before they are written.
+     */
+    private static final int MIN_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The packets waiting to be written.
+     */
+    private final PacketRingBuffer ring;
+
+    /**
+     * The maximum number of bytes of payload written for each packet.
+     */
+    private final int snapLength;
+
+    /**
+     * The directory which the files are written into.
+     */
+    private final Path directory;
+
+    /**
+     * The prefix of the names of the files.
+     */
+    private final String fileNamePrefix;
+
+    /**
+     * The size after which the current file is closed and a new one is
+     * started.
+     */
+    private final long maxFileSize;
+
+    /**
+     * The maximum number of files kept in {@link #directory}. The oldest
+     * file is deleted when a new file is started.
+     */
+    private final int maxFiles;
+
+    /**
+     * The files written so far, oldest first. Only accessed by the writer.
+     */
+    private final Deque<Path> files = new ArrayDeque<>();
+
+    /**
+     * The records being batched. Only accessed by the writer.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * The IP header of a packet being encoded. Only accessed by the writer.
+     */
+    private final byte[] ipHeader = new byte[IPV6_HEADER_LENGTH];
+
+    /**
+     * The current file. Only accessed by the writer.
+     */
+    private FileChannel channel;
+
+    /**
+     * The number of bytes written or batched for the current file. Only
+     * accessed by the writer.
+     */
+    private long fileSize;
+
+    /**
+     * The sequence number of the next file.
+     */
+    private int nextFileIndex;
+
+    /**
+     * The number of packets which were dropped because {@link #ring} was
+     * full or could not be written.
+     */
+    private final LongAdder droppedCount = new LongAdder();
+
+    /**
+     * The number of packets written. Only modified by the writer.
+     */
+    private volatile long writtenCount;
+
+    /**
+     * Whether {@link #close()} has been called.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Whether writing has failed, after which packets are no longer
+     * accepted.
+     */
+    private volatile boolean failed;
+
+    /**
+     * The thread which writes the packets, or <tt>null</tt> until it has
+     * started.
+     */
+    private volatile Thread writer;
+
+    /**
+     * Whether {@link #writer} is parked, or about to park, because the ring
+     * is empty. Producers only unpark it then, rather than on every packet.
+     */
+    private volatile boolean parked;
+
+    /**
+     * The completion of {@link #runWriter()}.
+     */
+    private final Future<?> writerFuture;
+
+    /**
+     * Creates a logger and opens its first file.
+     *
+     * @param directory the directory to write the files into.
+     * @param fileNamePrefix the prefix of the names of the files, which are
+     * followed by a sequence number and ".pcap".
+     * @param capacity the number of packets which may wait to be written
+     * before packets are dropped.
+     * @param snapLength the maximum number of bytes of payload written for
+     * each packet.
+     * @param maxFileSize the size in bytes after which a new file is started.
+     * @param maxFiles the maximum number of files kept.
+     * @throws IOException if the first file can not be created.
+     */
+    public PcapPacketLogger(
+            Path directory,
+            String fileNamePrefix,
+            int capacity,
+            int snapLength,
+            long maxFileSize,
+            int maxFiles)
+        throws IOException
+    {
+        if (snapLength < 0
+                || snapLength > 0xFFFF - IPV6_HEADER_LENGTH - UDP_HEADER_LENGTH)
+        {
+            throw new IllegalArgumentException("snapLength=" + snapLength);
+        }
+        if (maxFiles < 1)
+            throw new IllegalArgumentException("maxFiles=" + maxFiles);
+
+        this.directory = Objects.requireNonNull(directory);
+        this.fileNamePrefix = Objects.requireNonNull(fileNamePrefix);
+        this.snapLength = snapLength;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+
+        ring = new PacketRingBuffer(capacity, snapLength);
+        buffer
+            = ByteBuffer.allocate(
+                Math.max(
+                    MIN_BUFFER_SIZE,
+                    RECORD_HEADER_LENGTH + IPV6_HEADER_LENGTH
+                        + UDP_HEADER_LENGTH + snapLength));
+
+        Files.createDirectories(directory);
+        openNextFile();
+
+        writerFuture = writerExecutor.submit(this::runWriter);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void logPacket(
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            byte[] packetContent,
+            boolean sender)
+    {
+        logPacket(
+                sourceAddress, sourcePort,
+                destinationAddress, destinationPort,
+                packetContent, 0, packetContent.length,
+                sender);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Copies the packet into the ring without blocking, or drops it if the
+     * ring is full.
+     */
+    @Override
+    public void logPacket(
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            byte[] buffer,
+            int offset,
+            int length,
+            boolean sender)
+    {
+        if (!isEnabled())
+            return;
+
+        if (!ring.offer(
+                sourceAddress, sourcePort,
+                destinationAddress, destinationPort,
+                buffer, offset, length,
+                System.currentTimeMillis()))
+        {
+            droppedCount.increment();
+        }
+        else if (parked)
+        {
+            // The writer has found the ring empty.
+            parked = false;
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Returns <tt>false</tt> once this logger has been closed or has failed
+     * to write.
+     */
+    @Override
+    public boolean isEnabled()
+    {
+        return !closed && !failed;
+    }
+
+    /**
+     * Returns the number of packets which were dropped because too many were
+     * waiting to be written or because they could not be written.
+     *
+     * @return the number of dropped packets.
+     */
+    public long getDroppedCount()
+    {
+        return droppedCount.sum();
+    }
+
+    /**
+     * Returns the number of packets written.
+     *
+     * @return the number of packets written.
+     */
+    public long getWrittenCount()
+    {
+        return writtenCount;
+    }
+
+    /**
+     * Stops accepting packets, writes those which are waiting and closes the
+     * current file.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+
+        Thread writer = this.writer;
+
+        if (writer != null)
+            LockSupport.unpark(writer);
+
+        boolean interrupted = false;
+
+        while (true)
+        {
+            try
+            {
+                writerFuture.get();
+                break;
+            }
+            catch (InterruptedException ie)
+            {
+                interrupted = true;
+            }
+            catch (ExecutionException ee)
+            {
+                logger.log(Level.WARNING, "The pcap writer failed", ee);
+                break;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Writes the packets of {@link #ring} until this logger is closed. Runs
+     * on {@link #writer}.
+     */
+    private void runWriter()
+    {
+        writer = Thread.currentThread();
+        try
+        {
+            while (true)
+            {
+                PacketRingBuffer.Slot slot = ring.peek();
+
+                if (slot != null)
+                {
+                    write(slot);
+                    ring.release();
+                    continue;
+                }
+
+                flush();
+                if (closed)
+                {
+                    // A packet which is offered while close() runs may be
+                    // missed, which is fine for a capture.
+                    if (ring.peek() == null)
+                        break;
+                }
+                else
+                {
+                    // Producers read parked after publishing a packet, so
+                    // either they see it set or the check below sees their
+                    // packet.
+                    parked = true;
+                    if (ring.peek() == null && !closed)
+                        LockSupport.park(this);
+                    parked = false;
+                }
+            }
+        }
+        finally
+        {
+            closeChannel();
+        }
+    }
+
+    /**
+     * Encodes a packet into {@link #buffer}, writing the buffer and starting
+     * a new file as necessary.
+     *
+     * @param slot the packet.
+     */
+    private void write(PacketRingBuffer.Slot slot)
+    {
+        if (failed)
+        {
+            droppedCount.increment();
+            return;
+        }
+
+        int ipHeaderLength = encodeIpHeader(slot);
+        int headersLength = ipHeaderLength + UDP_HEADER_LENGTH;
+        int recordLength
+            = RECORD_HEADER_LENGTH + headersLength + slot.capturedLength;
+
+        try
+        {
+            if (fileSize + recordLength > maxFileSize
+                    && fileSize > GLOBAL_HEADER_LENGTH)
+            {
+                flush();
+                closeChannel();
+                openNextFile();
+            }
+            if (buffer.remaining() < recordLength)
+                flush();
+        }
+        catch (IOException ioe)
+        {
+            fail(ioe);
+            droppedCount.increment();
+            return;
+        }
+
+        long timestamp = slot.timestamp;
+        int udpLength
+            = Math.min(0xFFFF, UDP_HEADER_LENGTH + slot.originalLength);
+
+        buffer.putInt(Integer.reverseBytes((int) (timestamp / 1000)));
+        buffer.putInt(Integer.reverseBytes((int) (timestamp % 1000) * 1000));
+        buffer.putInt(
+                Integer.reverseBytes(headersLength + slot.capturedLength));
+        buffer.putInt(
+                Integer.reverseBytes(headersLength + slot.originalLength));
+        buffer.put(ipHeader, 0, ipHeaderLength);
+        buffer.putShort((short) slot.sourcePort);
+        buffer.putShort((short) slot.destinationPort);
+        buffer.putShort((short) udpLength);
+        buffer.putShort((short) 0);
+        buffer.put(slot.data, 0, slot.capturedLength);
+
+        fileSize += recordLength;
+        writtenCount++;
+    }
+
+    /**
+     * Encodes the IP header of a packet into {@link #ipHeader}. An IPv4
+     * header is used if both addresses are IPv4 addresses; otherwise IPv4
+     * addresses are mapped to IPv6.
+     *
+     * @param slot the packet.
+     * @return the length of the header.
+     */
+    private int encodeIpHeader(PacketRingBuffer.Slot slot)
+    {
+        byte[] h = ipHeader;
+        int srcLength = slot.sourceAddressLength;
+        int dstLength = slot.destinationAddressLength;
+
+        if (srcLength != 16 && dstLength != 16)
+        {
+            int totalLength
+                = Math.min(
+                    0xFFFF,
+                    IPV4_HEADER_LENGTH + UDP_HEADER_LENGTH
+                        + slot.originalLength);
+
+            Arrays.fill(h, 0, IPV4_HEADER_LENGTH, (byte) 0);
+            h[0] = 0x45;
+            h[2] = (byte) (totalLength >> 8);
+            h[3] = (byte) totalLength;
+            h[6] = 0x40; // Don't fragment.
+            h[8] = 64;
+            h[9] = PROTOCOL_UDP;
+            System.arraycopy(slot.sourceAddress, 0, h, 12, srcLength);
+            System.arraycopy(slot.destinationAddress, 0, h, 16, dstLength);
+
+            int checksum = ipv4Checksum(h);
+
+            h[10] = (byte) (checksum >> 8);
+            h[11] = (byte) checksum;
+            return IPV4_HEADER_LENGTH;
+        }
+        else
+        {
+            int payloadLength
+                = Math.min(0xFFFF, UDP_HEADER_LENGTH + slot.originalLength);
+
+            Arrays.fill(h, 0, IPV6_HEADER_LENGTH, (byte) 0);
+            h[0] = 0x60;
+            h[4] = (byte) (payloadLength >> 8);
+            h[5] = (byte) payloadLength;
+            h[6] = PROTOCOL_UDP;
+            h[7] = 64;
+            putIpv6Address(slot.sourceAddress, srcLength, h, 8);
+            putIpv6Address(slot.destinationAddress, dstLength, h, 24);
+            return IPV6_HEADER_LENGTH;
+        }
+    }
+
+    /**
+     * Computes the checksum of an IPv4 header whose checksum field is zero.
+     *
+     * @param header the header.
+     * @return the checksum.
+     */
+    static int ipv4Checksum(byte[] header)
+    {
+        int sum = 0;
+
+        for (int i = 0; i < IPV4_HEADER_LENGTH; i += 2)
+            sum += ((header[i] & 0xFF) << 8) | (header[i + 1] & 0xFF);
+        while ((sum >>> 16) != 0)
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        return ~sum & 0xFFFF;
+    }
+
+    /**
+     * Writes an address into an IPv6 header, mapping an IPv4 address to
+     * IPv6.
+     *
+     * @param address the address.
+     * @param length the length of the address: 16, 4 or 0 if unknown.
+     * @param header the header.
+     * @param offset the offset of the address in <tt>header</tt>.
+     */
+    private static void putIpv6Address(
+            byte[] address, int length, byte[] header, int offset)
+    {
+        if (length == 16)
+        {
+            System.arraycopy(address, 0, header, offset, 16);
+        }
+        else if (length == 4)
+        {
+            header[offset + 10] = (byte) 0xFF;
+            header[offset + 11] = (byte) 0xFF;
+            System.arraycopy(address, 0, header, offset + 12, 4);
+        }
+    }
+
+    /**
+     * Writes the records batched in {@link #buffer} to the current file.
+     */
+    private void flush()
+    {
+        if (buffer.position() == 0 || failed)
+            return;
+
+        buffer.flip();
+        try
+        {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+        catch (IOException ioe)
+        {
+            fail(ioe);
+        }
+        finally
+        {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Starts a new file, deleting the oldest one if there are too many.
+     *
+     * @throws IOException if the file can not be created.
+     */
+    private void openNextFile()
+        throws IOException
+    {
+        Path path
+            = directory.resolve(
+                fileNamePrefix + "-" + (nextFileIndex++) + ".pcap");
+        ByteBuffer header
+            = ByteBuffer.allocate(GLOBAL_HEADER_LENGTH)
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        channel
+            = FileChannel.open(
+                path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        header.putInt(PCAP_MAGIC);
+        header.putShort((short) 2);
+        header.putShort((short) 4);
+        header.putInt(0); // GMT offset
+        header.putInt(0); // Timestamp accuracy
+        header.putInt(IPV6_HEADER_LENGTH + UDP_HEADER_LENGTH + snapLength);
+        header.putInt(LINKTYPE_RAW);
+        header.flip();
+        while (header.hasRemaining())
+            channel.write(header);
+        fileSize = GLOBAL_HEADER_LENGTH;
+
+        files.add(path);
+        while (files.size() > maxFiles)
+        {
+            Path oldest = files.poll();
+
+            try
+            {
+                Files.deleteIfExists(oldest);
+            }
+            catch (IOException ioe)
+            {
+                logger.log(Level.INFO, "Failed to delete " + oldest, ioe);
+            }
+        }
+    }
+
+    /**
+     * Closes the current file, if any.
+     */
+    private void closeChannel()
+    {
+        if (channel == null)
+            return;
+
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ioe)
+        {
+            logger.log(Level.INFO, "Failed to close a pcap file", ioe);
+        }
+        channel = null;
+    }
+
+    /**
+     * Stops writing after an I/O error. The packets which are still waiting
+     * are dropped.
+     *
+     * @param ioe the error.
+     */
+    private void fail(IOException ioe)
+    {
+        if (!failed)
+        {
+            failed = true;
+            logger.log(
+                    Level.WARNING,
+                    "Failed to write packets into " + directory
+                        + ", no more packets will be logged.",
+                    ioe);
+        }
+        closeChannel();
+    }
+}
@@ -17,6 +17,8 @@
  */
 package org.ice4j.stack;
 
+import java.util.concurrent.atomic.*;
+
 import org.ice4j.*;
 
 /**
@@ -24,29 +26,56 @@ import org.ice4j.*;
  * of the host that sent it and the address and port where it was received
  * (locally).
  *
+ * Messages received by a <tt>Connector</tt> are leased from a
+ * {@link RawMessagePool} and are reference counted: the stack holds one
+ * reference until the message has been decoded and dispatched to all
+ * listeners, after which the message's buffer is reused for another
+ * datagram. A listener which needs to access a <tt>RawMessage</tt> after it
+ * has returned must call {@link #retain()} and, once done with it,
+ * {@link #release()}.
+ *
  * @author Emil Ivov
  */
 public class RawMessage
 {
     /**
-     * The message itself.
+     * Updates {@link #refCount} without allocating an <tt>AtomicInteger</tt>
+     * per message.
+     */
+    private static final AtomicIntegerFieldUpdater<RawMessage> refCountUpdater
+        = AtomicIntegerFieldUpdater.newUpdater(RawMessage.class, "refCount");
+
+    /**
+     * The message itself. The array may be longer than the message if this
+     * instance is pooled.
      */
     private final byte[] messageBytes;
 
     /**
      * The length of the message.
      */
-    private final int messageLength;
+    private int messageLength;
 
     /**
      * The address and port where the message was sent from.
      */
-    private final TransportAddress remoteAddress;
+    private TransportAddress remoteAddress;
 
     /**
      * The address that this message was received on.
      */
-    private final TransportAddress localAddress;
+    private TransportAddress localAddress;
+
+    /**
+     * The pool that this instance is returned to once it is no longer
+     * referenced, or <tt>null</tt> if this instance is not pooled.
+     */
+    private final RawMessagePool pool;
+
+    /**
+     * The number of references to this instance.
+     */
+    private volatile int refCount;
 
     /**
      * Constructs a raw message with the specified field values. All parameters
@@ -65,6 +94,30 @@ public class RawMessage
                int              messageLength,
                TransportAddress remoteAddress,
                TransportAddress localAddress)
+    {
+        this(messageBytes, 0, messageLength, remoteAddress, localAddress);
+    }
+
+    /**
+     * Constructs a raw message with the specified field values. The message
+     * bytes are copied out of <tt>messageBytes</tt> starting at
+     * <tt>offset</tt>.
+     *
+     * @param messageBytes the array holding the message.
+     * @param offset the offset in <tt>messageBytes</tt> at which the message
+     * starts.
+     * @param messageLength the number of bytes in the message.
+     * @param remoteAddress the address where the message came from.
+     * @param localAddress the <tt>TransportAddress</tt> that the message was
+     * received on.
+     *
+     * @throws NullPointerException if one or more of the parameters were null.
+     */
+    RawMessage(byte[]           messageBytes,
+               int              offset,
+               int              messageLength,
+               TransportAddress remoteAddress,
+               TransportAddress localAddress)
     {
         /*
          * Let NullPointerException go out.
@@ -74,22 +127,157 @@ public class RawMessage
          * messageBytes.
          */
         this.messageBytes  = new byte[messageLength];
-        System.arraycopy(messageBytes, 0, this.messageBytes, 0, messageLength);
+        System.arraycopy(
+                messageBytes, offset, this.messageBytes, 0, messageLength);
         this.messageLength = messageLength;
         this.localAddress  = localAddress;
         this.remoteAddress = remoteAddress;
+        this.pool = null;
+        this.refCount = 1;
+    }
+
+    /**
+     * Constructs an empty, pooled raw message.
+     *
+     * @param pool the pool that the new instance belongs to.
+     * @param capacity the size of the buffer of the new instance.
+     */
+    RawMessage(RawMessagePool pool, int capacity)
+    {
+        this.messageBytes = new byte[capacity];
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the length and the addresses of a pooled message after bytes have
+     * been received in its buffer.
+     *
+     * @param messageLength the number of bytes received.
+     * @param remoteAddress the address where the message came from.
+     * @param localAddress the <tt>TransportAddress</tt> that the message was
+     * received on.
+     */
+    void init(int              messageLength,
+              TransportAddress remoteAddress,
+              TransportAddress localAddress)
+    {
+        this.messageLength = messageLength;
+        this.remoteAddress = remoteAddress;
+        this.localAddress = localAddress;
     }
 
     /**
-     * Returns the message itself.
+     * Marks this pooled instance as leased, with a single reference held by
+     * the caller of {@link RawMessagePool#lease()}.
+     */
+    void onLeased()
+    {
+        refCount = 1;
+    }
+
+    /**
+     * Returns the message itself. If this instance is pooled, the returned
+     * array is a copy, because the buffer of the message may be longer than
+     * the message and is reused once this instance is released. Use
+     * {@link #getBuffer()} to access the bytes without copying them.
      *
      * @return a binary array containing the message data.
      */
     public byte[] getBytes()
+    {
+        if (pool == null)
+            return messageBytes;
+
+        byte[] bytes = new byte[messageLength];
+
+        System.arraycopy(messageBytes, 0, bytes, 0, messageLength);
+        return bytes;
+    }
+
+    /**
+     * Returns the buffer which holds the message, starting at offset 0. The
+     * buffer may be longer than {@link #getMessageLength()} and its contents
+     * are only valid as long as a reference to this instance is held.
+     *
+     * @return the buffer which holds the message.
+     */
+    public byte[] getBuffer()
     {
         return messageBytes;
     }
 
+    /**
+     * Returns the size of the buffer of this message.
+     *
+     * @return the size of the buffer of this message.
+     */
+    int getCapacity()
+    {
+        return messageBytes.length;
+    }
+
+    /**
+     * Acquires an additional reference to this message so that its buffer is
+     * not reused before a matching call to {@link #release()}.
+     *
+     * @return this <tt>RawMessage</tt>
+     * @throws IllegalStateException if this message was already released.
+     */
+    public RawMessage retain()
+    {
+        int count;
+
+        do
+        {
+            count = refCount;
+            if (count <= 0)
+            {
+                throw new IllegalStateException(
+                        "RawMessage has already been released");
+            }
+        }
+        while (!refCountUpdater.compareAndSet(this, count, count + 1));
+        return this;
+    }
+
+    /**
+     * Releases a reference to this message. When the last reference is
+     * released, the buffer of a pooled message is returned to its pool and
+     * must not be accessed anymore.
+     *
+     * @throws IllegalStateException if this message was already released.
+     */
+    public void release()
+    {
+        int count = refCountUpdater.decrementAndGet(this);
+
+        if (count == 0)
+        {
+            if (pool != null)
+            {
+                remoteAddress = null;
+                localAddress = null;
+                pool.recycle(this);
+            }
+        }
+        else if (count < 0)
+        {
+            refCountUpdater.incrementAndGet(this);
+            throw new IllegalStateException(
+                    "RawMessage has already been released");
+        }
+    }
+
+    /**
+     * Returns the number of references currently held to this message.
+     *
+     * @return the number of references currently held to this message.
+     */
+    public int refCount()
+    {
+        return refCount;
+    }
+
     /**
      * Returns the message length.
      *
@@ -0,0 +1,109 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A bounded pool of {@link RawMessage}s with fixed-size buffers. Connectors
+ * lease a message, receive a datagram directly into its buffer and hand it
+ * to the stack, which releases it once the message has been processed. When
+ * the pool is empty a new message is allocated; when it is full a released
+ * message is left to the garbage collector.
+ */
+class RawMessagePool
+{
+    /**
+     * The size of the buffers of the pooled messages.
+     */
+    private final int bufferSize;
+
+    /**
+     * The messages which are currently not leased.
+     */
+    private final ArrayBlockingQueue<RawMessage> messages;
+
+    /**
+     * The number of messages allocated by this pool, for diagnostics.
+     */
+    private final AtomicLong allocated = new AtomicLong();
+
+    /**
+     * Creates a pool.
+     *
+     * @param bufferSize the size of the buffers of the pooled messages.
+     * @param maxSize the maximum number of messages kept in the pool.
+     */
+    RawMessagePool(int bufferSize, int maxSize)
+    {
+        this.bufferSize = bufferSize;
+        this.messages = new ArrayBlockingQueue<>(maxSize);
+    }
+
+    /**
+     * Leases a message from this pool. The caller holds the only reference to
+     * the returned message and must eventually call
+     * {@link RawMessage#release()}.
+     *
+     * @return an empty <tt>RawMessage</tt> whose buffer is
+     * {@link #getBufferSize()} bytes long.
+     */
+    RawMessage lease()
+    {
+        RawMessage message = messages.poll();
+
+        if (message == null)
+        {
+            message = new RawMessage(this, bufferSize);
+            allocated.incrementAndGet();
+        }
+        message.onLeased();
+        return message;
+    }
+
+    /**
+     * Returns a message which is no longer referenced to this pool.
+     *
+     * @param message the message to return.
+     */
+    void recycle(RawMessage message)
+    {
+        messages.offer(message);
+    }
+
+    /**
+     * Returns the size of the buffers of the pooled messages.
+     *
+     * @return the size of the buffers of the pooled messages.
+     */
+    int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * Returns the number of messages which this pool has allocated so far.
+     *
+     * @return the number of messages which this pool has allocated so far.
+     */
+    long getAllocatedCount()
+    {
+        return allocated.get();
+    }
+}
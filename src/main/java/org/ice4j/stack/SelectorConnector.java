@@ -0,0 +1,521 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+import org.ice4j.*;
+import org.ice4j.socket.*;
+
+/**
+ * A <tt>Connector</tt> which does not own a thread. Its socket's channel is
+ * put in non-blocking mode and read by a shared {@link SelectorLoop}. Only
+ * sockets which are the direct socket of a <tt>DatagramChannel</tt> or a
+ * <tt>SocketChannel</tt> can be handled this way; all other sockets use the
+ * blocking {@link Connector}.
+ * <p>
+ * Because the channel is non-blocking, the access point owns its socket.
+ * Nothing else may receive from it and blocking operations on the socket or
+ * its streams fail with an <tt>IllegalBlockingModeException</tt>. Sending
+ * through an {@link IceUdpSocketWrapper} keeps working because it switches to
+ * the channel.
+ *
+ * TCP messages are framed as described in RFC 4571, i.e. each message is
+ * preceded by its length as a 16-bit integer.
+ */
+class SelectorConnector
+    extends Connector
+{
+    /**
+     * Our class logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(SelectorConnector.class.getName());
+
+    /**
+     * The maximum number of datagrams read from a channel each time it is
+     * selected, so that a single busy socket does not starve the others.
+     */
+    private static final int MAX_DATAGRAMS_PER_SELECT = 16;
+
+    /**
+     * The maximum number of bytes of TCP frames waiting for the channel to
+     * become writable, beyond which sending fails.
+     */
+    static final int MAX_PENDING_WRITE_BYTES = 256 * 1024;
+
+    /**
+     * The channel of the socket of this access point.
+     */
+    private final SelectableChannel channel;
+
+    /**
+     * The loop which reads from {@link #channel}.
+     */
+    private final SelectorLoop loop;
+
+    /**
+     * The key of {@link #channel} in the selector of {@link #loop}. Only
+     * accessed by the thread of {@link #loop}.
+     */
+    private SelectionKey key;
+
+    /**
+     * The buffer in which partially received TCP frames are accumulated, or
+     * <tt>null</tt> for UDP.
+     */
+    private ByteBuffer tcpReceiveBuffer;
+
+    /**
+     * TCP frames which could not be written immediately because the send
+     * buffer of the socket was full.
+     */
+    private final Deque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+
+    /**
+     * The number of bytes remaining in {@link #pendingWrites}. Guarded by
+     * <tt>pendingWrites</tt>.
+     */
+    private int pendingWriteBytes;
+
+    /**
+     * Creates a network access point which is driven by a
+     * <tt>SelectorLoop</tt>.
+     *
+     * @param socket the socket that this access point is supposed to use for
+     * communication.
+     * @param channel the channel of <tt>socket</tt>.
+     * @param remoteAddress the remote address of the socket of this
+     * {@link Connector} if it is a TCP socket, or null if it is UDP.
+     * @param messageConsumer the incoming messages consumer
+     * @param errorHandler the instance to notify when errors occur.
+     * @param loop the loop which is to read from <tt>channel</tt>.
+     */
+    private SelectorConnector(IceSocketWrapper socket,
+                              SelectableChannel channel,
+                              TransportAddress remoteAddress,
+                              Consumer<RawMessage> messageConsumer,
+                              ErrorHandler errorHandler,
+                              SelectorLoop loop)
+    {
+        super(socket, remoteAddress, messageConsumer, errorHandler);
+
+        this.channel = channel;
+        this.loop = loop;
+        if (channel instanceof SocketChannel)
+        {
+            tcpReceiveBuffer
+                = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE + 2);
+        }
+    }
+
+    /**
+     * Creates a <tt>SelectorConnector</tt> for a specific socket if the
+     * socket is backed by a channel which can be selected.
+     *
+     * @param socket the socket that the access point is supposed to use for
+     * communication.
+     * @param remoteAddress the remote address of the socket if it is a TCP
+     * socket, or null if it is UDP.
+     * @param messageConsumer the incoming messages consumer
+     * @param errorHandler the instance to notify when errors occur.
+     * @return a new <tt>SelectorConnector</tt>, or <tt>null</tt> if
+     * <tt>socket</tt> has to be read by a blocking <tt>Connector</tt>.
+     */
+    static SelectorConnector create(
+            IceSocketWrapper socket,
+            TransportAddress remoteAddress,
+            Consumer<RawMessage> messageConsumer,
+            ErrorHandler errorHandler)
+    {
+        SelectableChannel channel = getChannel(socket);
+
+        if (channel == null)
+            return null;
+
+        try
+        {
+            SelectorLoop loop = SelectorLoop.next();
+
+            channel.configureBlocking(false);
+            return
+                new SelectorConnector(
+                        socket,
+                        channel,
+                        remoteAddress,
+                        messageConsumer,
+                        errorHandler,
+                        loop);
+        }
+        catch (IOException ioe)
+        {
+            logger.log(
+                    Level.WARNING,
+                    "Failed to use a selector for " + socket
+                        + ", falling back to a blocking Connector.",
+                    ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the channel of a specific socket if the socket is the channel's
+     * own socket. Sockets which merely delegate to a channel's socket (e.g.
+     * multiplexing sockets) filter what they receive and must therefore not
+     * be bypassed.
+     *
+     * @param socket the socket to get the channel of.
+     * @return the channel of <tt>socket</tt> or <tt>null</tt>.
+     */
+    private static SelectableChannel getChannel(IceSocketWrapper socket)
+    {
+        DatagramSocket udpSocket = socket.getUDPSocket();
+
+        if (udpSocket != null)
+        {
+            DatagramChannel channel = udpSocket.getChannel();
+
+            return
+                (channel != null && channel.socket() == udpSocket)
+                    ? channel
+                    : null;
+        }
+
+        Socket tcpSocket = socket.getTCPSocket();
+
+        if (tcpSocket != null)
+        {
+            SocketChannel channel = tcpSocket.getChannel();
+
+            return
+                (channel != null && channel.socket() == tcpSocket)
+                    ? channel
+                    : null;
+        }
+        return null;
+    }
+
+    /**
+     * Registers this access point with its <tt>SelectorLoop</tt> instead of
+     * starting a thread.
+     */
+    @Override
+    void start()
+    {
+        running = true;
+        loop.register(this);
+    }
+
+    /**
+     * Registers {@link #channel} with the selector of {@link #loop}. Called on
+     * the thread of the loop.
+     *
+     * @param selector the selector to register with.
+     */
+    void register(Selector selector)
+    {
+        if (!running)
+            return;
+
+        try
+        {
+            int ops = SelectionKey.OP_READ;
+
+            synchronized (pendingWrites)
+            {
+                if (!pendingWrites.isEmpty())
+                    ops |= SelectionKey.OP_WRITE;
+            }
+            key = channel.register(selector, ops, this);
+        }
+        catch (ClosedChannelException cce)
+        {
+            stop();
+            errorHandler.handleFatalError(this, "The socket was closed:", null);
+        }
+    }
+
+    /**
+     * Reads from or writes to {@link #channel} after the <tt>SelectorLoop</tt>
+     * found it ready. Called on the thread of the loop.
+     *
+     * @param key the key of {@link #channel}.
+     */
+    void processSelectedKey(SelectionKey key)
+    {
+        try
+        {
+            if (key.isWritable())
+                flushPendingWrites();
+            if (key.isValid() && key.isReadable())
+            {
+                if (channel instanceof DatagramChannel)
+                    readDatagrams((DatagramChannel) channel);
+                else
+                    readFrames((SocketChannel) channel);
+            }
+        }
+        catch (ClosedChannelException cce)
+        {
+            // The socket was closed, possibly by the remote peer.
+            // If we were already stopped, just ignore it.
+            if (running)
+            {
+                stop();
+                errorHandler.handleFatalError(
+                    this,
+                    "The socket was closed:",
+                    null);
+            }
+        }
+        catch (IOException ex)
+        {
+            logger.log(Level.WARNING,
+                       "A net access point has gone useless:", ex);
+
+            errorHandler.handleError(ex.getMessage(), ex);
+        }
+        catch (Throwable ex)
+        {
+            logger.log(Level.WARNING,
+                       "A net access point has gone useless:", ex);
+
+            stop();
+            errorHandler.handleFatalError(
+                    this,
+                    "Unknown error occurred while listening for messages!",
+                    ex);
+        }
+    }
+
+    /**
+     * Reads the datagrams which are available on a specific channel directly
+     * into pooled <tt>RawMessage</tt>s.
+     *
+     * @param channel the channel to read from.
+     * @throws IOException if reading fails.
+     */
+    private void readDatagrams(DatagramChannel channel)
+        throws IOException
+    {
+        for (int i = 0; i < MAX_DATAGRAMS_PER_SELECT && running; i++)
+        {
+            RawMessage rawMessage = messagePool.lease();
+            ByteBuffer buffer = ByteBuffer.wrap(rawMessage.getBuffer());
+            InetSocketAddress from;
+
+            try
+            {
+                from = (InetSocketAddress) channel.receive(buffer);
+            }
+            catch (IOException | RuntimeException ex)
+            {
+                rawMessage.release();
+                throw ex;
+            }
+
+            if (from == null)
+            {
+                rawMessage.release();
+                break;
+            }
+
+            if (logger.isLoggable(Level.FINEST))
+            {
+                logger.finest("received datagram packet - addr: "
+                        + from.getAddress() + " port: " + from.getPort());
+            }
+            onReceived(
+                    rawMessage,
+                    buffer.position(),
+                    from.getAddress(),
+                    from.getPort());
+        }
+    }
+
+    /**
+     * Reads the RFC 4571 frames which are available on a specific channel.
+     *
+     * @param channel the channel to read from.
+     * @throws IOException if reading fails.
+     */
+    private void readFrames(SocketChannel channel)
+        throws IOException
+    {
+        if (channel.read(tcpReceiveBuffer) < 0)
+            throw new ClosedChannelException();
+
+        InetSocketAddress from = getRemoteAddress();
+
+        if (from == null)
+            from = (InetSocketAddress) channel.getRemoteAddress();
+
+        tcpReceiveBuffer.flip();
+        while (running && tcpReceiveBuffer.remaining() >= 2)
+        {
+            int position = tcpReceiveBuffer.position();
+            int frameLength = tcpReceiveBuffer.getChar(position);
+
+            if (tcpReceiveBuffer.remaining() < frameLength + 2)
+            {
+                if (tcpReceiveBuffer.capacity() < frameLength + 2)
+                {
+                    ByteBuffer newBuffer = ByteBuffer.allocate(frameLength + 2);
+
+                    newBuffer.put(tcpReceiveBuffer);
+                    newBuffer.flip();
+                    tcpReceiveBuffer = newBuffer;
+                }
+                break;
+            }
+
+            onReceived(
+                    tcpReceiveBuffer.array(),
+                    position + 2,
+                    frameLength,
+                    from.getAddress(),
+                    from.getPort());
+            tcpReceiveBuffer.position(position + 2 + frameLength);
+        }
+        tcpReceiveBuffer.compact();
+    }
+
+    /**
+     * Writes the frames which could not be written earlier. Called on the
+     * thread of {@link #loop}.
+     *
+     * @throws IOException if writing fails.
+     */
+    private void flushPendingWrites()
+        throws IOException
+    {
+        synchronized (pendingWrites)
+        {
+            ByteBuffer frame;
+
+            while ((frame = pendingWrites.peek()) != null)
+            {
+                pendingWriteBytes -= ((SocketChannel) channel).write(frame);
+                if (frame.hasRemaining())
+                    return;
+                pendingWrites.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Sends message through this access point's channel without blocking.
+     * Datagrams which do not fit in the send buffer of the socket are
+     * dropped, just like they would be by the network. TCP frames are queued
+     * and written once the channel becomes writable, up to
+     * {@link #MAX_PENDING_WRITE_BYTES}, so that a stalled peer does not grow
+     * the queue without bound.
+     *
+     * @param message the bytes to send.
+     * @param address message destination.
+     *
+     * @throws IOException if an exception occurs while sending the message or
+     * if too many TCP frames are waiting to be written.
+     */
+    @Override
+    void send(byte[] message, TransportAddress address)
+        throws IOException
+    {
+        if (!running)
+        {
+            logger.warning("Can not send message, Connector stopped.");
+            return;
+        }
+
+        if (channel instanceof DatagramChannel)
+        {
+            int sent
+                = ((DatagramChannel) channel).send(
+                        ByteBuffer.wrap(message),
+                        address);
+
+            if (sent == 0 && logger.isLoggable(Level.FINE))
+            {
+                logger.fine("Dropped a message to " + address
+                        + " because the send buffer is full.");
+            }
+            return;
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(message.length + 2);
+
+        frame.putChar((char) message.length).put(message).flip();
+        synchronized (pendingWrites)
+        {
+            if (pendingWrites.isEmpty())
+            {
+                ((SocketChannel) channel).write(frame);
+                if (!frame.hasRemaining())
+                    return;
+            }
+            if (pendingWriteBytes + frame.remaining() > MAX_PENDING_WRITE_BYTES)
+            {
+                throw new IOException(
+                        "Too many bytes waiting to be sent to " + address
+                            + ": " + pendingWriteBytes);
+            }
+            pendingWrites.add(frame);
+            pendingWriteBytes += frame.remaining();
+            if (pendingWrites.size() == 1)
+            {
+                loop.execute(() -> {
+                    if (key != null && key.isValid())
+                    {
+                        key.interestOps(
+                                SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Makes the access point stop reading from its channel. Closing the
+     * socket cancels the registration of the channel with the selector.
+     */
+    @Override
+    protected void stop()
+    {
+        super.stop();
+        loop.wakeup();
+    }
+
+    /**
+     * Returns a String representation of the object.
+     * @return a String representation of the object.
+     */
+    @Override
+    public String toString()
+    {
+        return
+            "ice4j.SelectorConnector@" + getListenAddress()
+                + " status: " + (running ? "" : "not ") + "running";
+    }
+}
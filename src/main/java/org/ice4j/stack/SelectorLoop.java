@@ -0,0 +1,190 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/**
+ * A thread which owns a <tt>Selector</tt> and reads from the channels of all
+ * {@link SelectorConnector}s registered with it. A small, fixed number of
+ * loops is shared by all <tt>NetAccessManager</tt>s, so that the number of
+ * threads needed to receive STUN traffic does not depend on the number of
+ * sockets.
+ */
+class SelectorLoop
+    implements Runnable
+{
+    /**
+     * Our class logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(SelectorLoop.class.getName());
+
+    /**
+     * The loops shared by all <tt>NetAccessManager</tt>s, created on first use.
+     */
+    private static SelectorLoop[] loops;
+
+    /**
+     * The index of the loop to hand out next.
+     */
+    private static final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * The <tt>Selector</tt> that this loop waits on.
+     */
+    private final Selector selector;
+
+    /**
+     * Tasks which have to be executed on this loop's thread, e.g. channel
+     * registrations and changes of interest ops.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates a loop and starts its thread.
+     *
+     * @param name the name of the thread of the new loop.
+     * @throws IOException if the <tt>Selector</tt> could not be opened.
+     */
+    private SelectorLoop(String name)
+        throws IOException
+    {
+        selector = Selector.open();
+
+        Thread thread = new Thread(this, name);
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the next of the shared loops in a round-robin fashion, creating
+     * the loops if necessary.
+     *
+     * @return a <tt>SelectorLoop</tt> to register a channel with.
+     * @throws IOException if the loops could not be created.
+     */
+    static SelectorLoop next()
+        throws IOException
+    {
+        SelectorLoop[] loops;
+
+        synchronized (SelectorLoop.class)
+        {
+            if (SelectorLoop.loops == null)
+            {
+                int count
+                    = Math.max(
+                            1,
+                            StackConfig.config.selectorConnectorThreads());
+                SelectorLoop[] newLoops = new SelectorLoop[count];
+
+                for (int i = 0; i < count; i++)
+                {
+                    newLoops[i] = new SelectorLoop("ice4j.SelectorLoop-" + i);
+                }
+                SelectorLoop.loops = newLoops;
+            }
+            loops = SelectorLoop.loops;
+        }
+
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    /**
+     * Schedules a task to be executed on this loop's thread and wakes the
+     * loop up.
+     *
+     * @param task the task to execute.
+     */
+    void execute(Runnable task)
+    {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Registers the channel of a specific <tt>SelectorConnector</tt> with this
+     * loop.
+     *
+     * @param connector the connector whose channel is to be read by this loop.
+     */
+    void register(SelectorConnector connector)
+    {
+        execute(() -> connector.register(selector));
+    }
+
+    /**
+     * Wakes this loop up so that it notices channels that were closed.
+     */
+    void wakeup()
+    {
+        selector.wakeup();
+    }
+
+    /**
+     * Waits for channels to become ready and dispatches them to their
+     * connectors.
+     */
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            try
+            {
+                selector.select(this::processSelectedKey);
+
+                Runnable task;
+
+                while ((task = tasks.poll()) != null)
+                {
+                    task.run();
+                }
+            }
+            catch (Throwable t)
+            {
+                logger.log(
+                        Level.WARNING,
+                        "Unexpected error in " + Thread.currentThread().getName(),
+                        t);
+            }
+        }
+    }
+
+    /**
+     * Hands a selected key to its <tt>SelectorConnector</tt>.
+     *
+     * @param key the key which was selected.
+     */
+    private void processSelectedKey(SelectionKey key)
+    {
+        SelectorConnector connector = (SelectorConnector) key.attachment();
+
+        if (key.isValid())
+        {
+            connector.processSelectedKey(key);
+        }
+    }
+}
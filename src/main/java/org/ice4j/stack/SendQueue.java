@@ -0,0 +1,392 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+import org.ice4j.*;
+import org.ice4j.util.*;
+
+/**
+ * A bounded queue of the messages to be sent through the socket of a
+ * {@link Connector}. Threads which send messages (retransmitters, pacers and
+ * request listeners running on the message processing pool) only enqueue
+ * them, and the queue is drained by a thread of a shared pool. A socket whose
+ * send blocks, e.g. because its TCP peer stalls, therefore holds up only the
+ * thread draining its own queue and not the processing of other sessions.
+ * <p>
+ * At most one thread drains a queue at a time, so messages are sent in the
+ * order in which they were enqueued.
+ */
+class SendQueue
+    implements Runnable
+{
+    /**
+     * Our class logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(SendQueue.class.getName());
+
+    /**
+     * The pool of threads which drain the <tt>SendQueue</tt>s of all
+     * <tt>Connector</tt>s. The pool grows so that a queue blocked on its
+     * socket does not delay the draining of the others.
+     */
+    private static final ExecutorService sendExecutor
+        = Ice4jExecutors.newExecutor("ice4j.SendQueue-");
+
+    /**
+     * What a <tt>SendQueue</tt> does with a message which is enqueued while
+     * the queue is full.
+     */
+    enum OverflowPolicy
+    {
+        /**
+         * The message which is being enqueued is dropped.
+         */
+        DROP_NEWEST,
+
+        /**
+         * The message which has been waiting for the longest time is dropped
+         * to make room for the message which is being enqueued.
+         */
+        DROP_OLDEST,
+
+        /**
+         * The message is not enqueued and the sender gets a
+         * {@link SendQueueFullException}, so that it can slow down.
+         */
+        REJECT;
+
+        /**
+         * Parses the configured name of a policy, e.g. "drop-oldest".
+         *
+         * @param name the name of the policy.
+         * @return the policy with the specified name.
+         * @throws IllegalArgumentException if there is no such policy.
+         */
+        static OverflowPolicy parse(String name)
+        {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    /**
+     * Notified when a message which was handed to a <tt>Connector</tt> has
+     * been sent or could not be sent.
+     */
+    @FunctionalInterface
+    interface Callback
+    {
+        /**
+         * Notifies that the sending of a message has completed.
+         *
+         * @param remoteAddress the destination of the message.
+         * @param error <tt>null</tt> if the message was sent, or the reason
+         * why it was not, e.g. a {@link SendQueueFullException} if it was
+         * dropped.
+         */
+        void sendCompleted(TransportAddress remoteAddress, Exception error);
+    }
+
+    /**
+     * Thrown when a message could not be enqueued, or notified to the
+     * {@link Callback} of a message which was dropped, because the queue was
+     * full.
+     */
+    static class SendQueueFullException
+        extends IOException
+    {
+        private static final long serialVersionUID = 0L;
+
+        /**
+         * Creates an exception.
+         *
+         * @param message the detail message.
+         */
+        SendQueueFullException(String message)
+        {
+            super(message);
+        }
+    }
+
+    /**
+     * A message waiting in a queue.
+     */
+    private static class Entry
+    {
+        final byte[] bytes;
+
+        final TransportAddress remoteAddress;
+
+        final Callback callback;
+
+        Entry(byte[] bytes, TransportAddress remoteAddress, Callback callback)
+        {
+            this.bytes = bytes;
+            this.remoteAddress = remoteAddress;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * The access point whose socket the messages are sent through.
+     */
+    private final Connector connector;
+
+    /**
+     * The maximum number of messages waiting in this queue.
+     */
+    private final int capacity;
+
+    /**
+     * What to do with a message which is enqueued while this queue is full.
+     */
+    private final OverflowPolicy overflowPolicy;
+
+    /**
+     * The messages waiting to be sent. Guarded by <tt>this</tt>.
+     */
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+
+    /**
+     * Whether a thread of {@link #sendExecutor} is draining this queue.
+     * Guarded by <tt>this</tt>.
+     */
+    private boolean draining;
+
+    /**
+     * Whether this queue has been closed. Guarded by <tt>this</tt>.
+     */
+    private boolean closed;
+
+    /**
+     * The number of messages which were dropped or rejected because this
+     * queue was full.
+     */
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * Creates a queue for the messages sent through a specific access point.
+     *
+     * @param connector the access point to send the messages through.
+     * @param capacity the maximum number of waiting messages.
+     * @param overflowPolicy what to do with messages enqueued while the queue
+     * is full.
+     */
+    SendQueue(Connector connector, int capacity, OverflowPolicy overflowPolicy)
+    {
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException("capacity=" + capacity);
+        }
+
+        this.connector = connector;
+        this.capacity = capacity;
+        this.overflowPolicy = Objects.requireNonNull(overflowPolicy);
+    }
+
+    /**
+     * Enqueues a message to be sent.
+     *
+     * @param bytes the message.
+     * @param remoteAddress the destination of the message.
+     * @param callback the instance to notify once the message has been sent
+     * or dropped, or <tt>null</tt>.
+     *
+     * @throws SendQueueFullException if the queue is full and its policy is
+     * {@link OverflowPolicy#REJECT}. <tt>callback</tt> is not notified in
+     * this case.
+     * @throws IOException if the queue has been closed.
+     */
+    void add(byte[] bytes, TransportAddress remoteAddress, Callback callback)
+        throws IOException
+    {
+        Entry entry = new Entry(bytes, remoteAddress, callback);
+        Entry dropped = null;
+        boolean drain = false;
+
+        synchronized (this)
+        {
+            if (closed)
+            {
+                throw new IOException(
+                        "Can not send message, " + connector + " stopped.");
+            }
+
+            if (entries.size() < capacity)
+            {
+                entries.add(entry);
+            }
+            else
+            {
+                droppedCount.incrementAndGet();
+                switch (overflowPolicy)
+                {
+                case REJECT:
+                    throw new SendQueueFullException(
+                            "The send queue of " + connector + " is full.");
+                case DROP_OLDEST:
+                    dropped = entries.poll();
+                    entries.add(entry);
+                    break;
+                default:
+                    dropped = entry;
+                    break;
+                }
+            }
+
+            if (!draining && !entries.isEmpty())
+            {
+                draining = true;
+                drain = true;
+            }
+        }
+
+        if (dropped != null)
+        {
+            if (logger.isLoggable(Level.FINE))
+            {
+                logger.fine("Dropped a message to " + dropped.remoteAddress
+                        + " because the send queue of " + connector
+                        + " is full.");
+            }
+            complete(
+                    dropped,
+                    new SendQueueFullException(
+                            "The send queue of " + connector + " is full."));
+        }
+        if (drain)
+            sendExecutor.execute(this);
+    }
+
+    /**
+     * Sends the waiting messages until this queue is empty. Runs on a thread
+     * of {@link #sendExecutor}.
+     */
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            Entry entry;
+
+            synchronized (this)
+            {
+                entry = entries.poll();
+                if (entry == null)
+                {
+                    draining = false;
+                    return;
+                }
+            }
+
+            Exception error = null;
+
+            try
+            {
+                connector.send(entry.bytes, entry.remoteAddress);
+            }
+            catch (IOException | RuntimeException ex)
+            {
+                error = ex;
+            }
+            complete(entry, error);
+        }
+    }
+
+    /**
+     * Closes this queue. The messages which are still waiting are not sent
+     * and their callbacks are notified with an <tt>IOException</tt>.
+     */
+    void close()
+    {
+        List<Entry> discarded;
+
+        synchronized (this)
+        {
+            if (closed)
+                return;
+            closed = true;
+            discarded = new ArrayList<>(entries);
+            entries.clear();
+        }
+
+        for (Entry entry : discarded)
+        {
+            complete(
+                    entry,
+                    new IOException(
+                        "Can not send message, " + connector + " stopped."));
+        }
+    }
+
+    /**
+     * Returns the number of messages waiting in this queue.
+     *
+     * @return the number of messages waiting in this queue.
+     */
+    synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of messages which were dropped or rejected because
+     * this queue was full.
+     *
+     * @return the number of messages which were dropped or rejected.
+     */
+    long getDroppedCount()
+    {
+        return droppedCount.get();
+    }
+
+    /**
+     * Notifies the callback of a message, or logs the failure to send it if
+     * it has no callback.
+     *
+     * @param entry the message.
+     * @param error the reason why the message was not sent, or <tt>null</tt>.
+     */
+    private static void complete(Entry entry, Exception error)
+    {
+        if (entry.callback != null)
+        {
+            try
+            {
+                entry.callback.sendCompleted(entry.remoteAddress, error);
+            }
+            catch (Throwable t)
+            {
+                logger.log(Level.WARNING, "Send callback failed", t);
+            }
+        }
+        else if (error != null && !(error instanceof SendQueueFullException))
+        {
+            logger.log(
+                    Level.INFO,
+                    "Failed to send a message to " + entry.remoteAddress,
+                    error);
+        }
+    }
+}
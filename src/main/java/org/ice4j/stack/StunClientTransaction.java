@@ -19,8 +19,7 @@ package org.ice4j.stack;
 
 import org.ice4j.*;
 import org.ice4j.message.*;
-import org.ice4j.util.PeriodicRunnable;
-import org.jitsi.utils.concurrent.*;
+import org.ice4j.util.*;
 
 import java.io.*;
 import java.time.*;
@@ -80,15 +79,15 @@ public class StunClientTransaction
      * <tt>StunClientTransaction</tt>s.
      */
     private static final ScheduledExecutorService retransmissionTimer
-        = ExecutorFactory.createSingleThreadScheduledExecutor(
-            "ice4j.StunClientTransaction-timer-", 60, TimeUnit.SECONDS);
+        = Ice4jExecutors.newScheduledExecutor(
+            "ice4j.StunClientTransaction-timer-");
 
     /**
      * The pool of <tt>Thread</tt>s which retransmits
      * <tt>StunClientTransaction</tt>s.
      */
     private static final ExecutorService retransmissionExecutor
-        = ExecutorFactory.createCachedThreadPool(
+        = Ice4jExecutors.newExecutor(
             "ice4j.StunClientTransaction-executor-");
 
 
@@ -121,6 +120,14 @@ public class StunClientTransaction
      */
     private final Request request;
 
+    /**
+     * The binary representation of {@link #request}, which is encoded once
+     * and sent as is by every retransmission. Either supplied by the creator
+     * of this transaction, e.g. from a pre-encoded template, or set when the
+     * request is first sent.
+     */
+    byte[] encodedRequest;
+
     /**
      * The destination of the request.
      */
@@ -242,7 +249,9 @@ public class StunClientTransaction
         logger.fine(
                 "sending STUN " + " tid " + transactionID + " from "
                     + localAddress + " to " + requestDestination);
-        sendRequest0();
+        if (encodedRequest == null)
+            encodedRequest = request.encode(stackCallback);
+        sendRequest0(this::requestSent);
 
         this.retransmitter.schedule();
     }
@@ -250,12 +259,14 @@ public class StunClientTransaction
     /**
      * Simply calls the sendMessage method of the accessmanager.
      *
+     * @param callback the instance to notify when a queued request has been
+     * sent or could not be sent, or <tt>null</tt>.
      * @throws IOException  if an error occurs while sending message bytes
      * through the network socket.
      * @throws IllegalArgumentException if the apDescriptor references an
      * access point that had not been installed,
      */
-    private void sendRequest0()
+    private void sendRequest0(SendQueue.Callback callback)
         throws IllegalArgumentException, IOException
     {
         if (cancelled.get())
@@ -265,10 +276,46 @@ public class StunClientTransaction
         else
         {
             stackCallback.getNetAccessManager().sendMessage(
-                    this.request,
+                    encodedRequest,
                     localAddress,
-                    requestDestination);
+                    requestDestination,
+                    callback);
+            stackCallback.getMetrics().messageSent(request.getMessageType());
+        }
+    }
+
+    /**
+     * Notified when the original request has been sent. If the send queue of
+     * the access point failed to send it, the transaction fails right away
+     * and its <tt>ResponseCollector</tt> is notified, like the caller of
+     * {@link #sendRequest()} is when the request is sent on its thread.
+     * Requests which were dropped because the queue was full are
+     * retransmitted as usual.
+     *
+     * @param remoteAddress the destination of the request.
+     * @param error the reason why the request was not sent, or <tt>null</tt>.
+     */
+    private void requestSent(TransportAddress remoteAddress, Exception error)
+    {
+        if (error == null
+                || error instanceof SendQueue.SendQueueFullException
+                || cancelled.get())
+        {
+            return;
         }
+
+        logger.log(
+                Level.FINE,
+                "Failed to send STUN tid " + transactionID + " from "
+                    + localAddress + " to " + remoteAddress,
+                error);
+        cancel();
+        stackCallback.removeClientTransaction(this);
+        responseCollector.processUnreachable(
+            new StunFailureEvent(
+                    stackCallback,
+                    request, localAddress, transactionID,
+                    error));
     }
 
     /**
@@ -420,6 +467,17 @@ public class StunClientTransaction
         return requestDestination;
     }
 
+    /**
+     * Returns the instance which is notified of the outcome of this
+     * transaction.
+     *
+     * @return the <tt>ResponseCollector</tt> of this transaction.
+     */
+    ResponseCollector getResponseCollector()
+    {
+        return responseCollector;
+    }
+
     /**
      * Implements the retransmissions algorithm. Retransmits the request
      * starting with an interval of 100ms, doubling every retransmit until the
@@ -454,6 +512,14 @@ public class StunClientTransaction
         @Override
         protected void run()
         {
+            // The original request may have failed to be sent after this
+            // retransmitter was scheduled.
+            if (cancelled.get())
+            {
+                nextRetransmissionDelay = -1;
+                return;
+            }
+
             retransmissionCounter++;
 
             int curWaitInterval = nextRetransmissionDelay;
@@ -470,7 +536,8 @@ public class StunClientTransaction
                             + " waited " + curWaitInterval + " ms retrans "
                             + retransmissionCounter + " of "
                             + maxRetransmissions);
-                    sendRequest0();
+                    sendRequest0(null);
+                    stackCallback.getMetrics().requestRetransmitted();
                 }
                 catch (Exception ex)
                 {
@@ -486,6 +553,7 @@ public class StunClientTransaction
             {
                 stackCallback.removeClientTransaction(
                     StunClientTransaction.this);
+                stackCallback.getMetrics().clientTransactionTimedOut();
 
                 responseCollector.processTimeout(
                     new StunTimeoutEvent(
@@ -102,6 +102,12 @@ public class StunServerTransaction
      */
     private boolean isRetransmitting = false;
 
+    /**
+     * The local ufrag in the USERNAME of the request which caused this
+     * transaction, or <tt>null</tt> if it had none.
+     */
+    private String localUfrag;
+
     /**
      * Creates a server transaction
      * @param stackCallback the stack that created us.
@@ -203,6 +209,7 @@ public class StunServerTransaction
                 response,
                 localSendingAddress,
                 responseDestination);
+        stackCallback.getMetrics().responseRetransmitted();
     }
 
     /**
@@ -318,6 +325,29 @@ public class StunServerTransaction
         return requestSource;
     }
 
+    /**
+     * Returns the local ufrag in the USERNAME of the request which caused
+     * this transaction.
+     *
+     * @return the local ufrag of the request, or <tt>null</tt> if it had no
+     * USERNAME.
+     */
+    String getLocalUfrag()
+    {
+        return localUfrag;
+    }
+
+    /**
+     * Sets the local ufrag in the USERNAME of the request which caused this
+     * transaction.
+     *
+     * @param localUfrag the local ufrag of the request, or <tt>null</tt>.
+     */
+    void setLocalUfrag(String localUfrag)
+    {
+        this.localUfrag = localUfrag;
+    }
+
     /**
      * Returns the <tt>Response</tt> that the <tt>StunStack</tt> has sent
      * through this transaction or <tt>null</tt> if no <tt>Response</tt> has
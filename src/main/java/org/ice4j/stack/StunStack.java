@@ -22,7 +22,7 @@ import org.ice4j.attribute.*;
 import org.ice4j.message.*;
 import org.ice4j.security.*;
 import org.ice4j.socket.*;
-import org.jitsi.utils.concurrent.*;
+import org.ice4j.util.*;
 
 import javax.crypto.*;
 import java.io.*;
@@ -30,6 +30,7 @@ import java.net.*;
 import java.security.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.logging.*;
 
 /**
@@ -72,8 +73,7 @@ public class StunStack
      *  in particular - expired server transactions collector.
      */
     private static final ScheduledExecutorService tasksScheduler
-        = ExecutorFactory.createSingleThreadScheduledExecutor(
-            "ice4j.StunStack-", 60, TimeUnit.SECONDS);
+        = Ice4jExecutors.newScheduledExecutor("ice4j.StunStack-");
 
     /**
      * Our network gateway.
@@ -90,25 +90,31 @@ public class StunStack
     /**
      * Stores active client transactions mapped against TransactionID-s.
      */
-    private final Hashtable<TransactionID, StunClientTransaction>
+    private final TransactionRegistry<StunClientTransaction>
         clientTransactions
-            = new Hashtable<>();
+            = new TransactionRegistry<>();
 
     /**
      * The <tt>ExpiredServerTransactionsCollector</tt> which expires
      * the <tt>StunServerTransaction</tt>s of this <tt>StunStack</tt> and
      * removes them from {@link #serverTransactions}.
      */
-    private ExpiredServerTransactionsCollector expiredTransactionsCollector
-        = new ExpiredServerTransactionsCollector();
+    private final ExpiredServerTransactionsCollector
+        expiredTransactionsCollector
+            = new ExpiredServerTransactionsCollector();
 
     /**
      * Currently open server transactions. The vector contains transaction ids
      * for transactions corresponding to all non-answered received requests.
      */
-    private final Hashtable<TransactionID, StunServerTransaction>
+    private final TransactionRegistry<StunServerTransaction>
         serverTransactions
-            = new Hashtable<>();
+            = new TransactionRegistry<>();
+
+    /**
+     * The counters of the messages and transactions of this stack.
+     */
+    private final StunStackMetrics metrics = new StunStackMetrics();
 
     /**
      * A dispatcher for incoming requests event;
@@ -126,6 +132,12 @@ public class StunStack
      *
      * 创建并开始一个网络访问点(连接器)  - 基于特定的socket ....
      *
+     * If selector connectors are enabled and <tt>sock</tt> is the socket of
+     * a NIO channel, the channel is put in non-blocking mode and the stack
+     * takes exclusive ownership of it: only sending through a UDP
+     * <tt>sock</tt> remains possible, any other use of the underlying socket
+     * fails with an <tt>IllegalBlockingModeException</tt>.
+     *
      * @param sock The socket that the new access point should represent.
      */
     public void addSocket(IceSocketWrapper sock)
@@ -135,7 +147,9 @@ public class StunStack
 
     /**
      * Creates and starts a Network Access Point (Connector) based on the
-     * specified socket and the specified remote address.
+     * specified socket and the specified remote address. See
+     * {@link #addSocket(IceSocketWrapper)} for the ownership of sockets which
+     * are backed by a NIO channel.
      *
      * @param sock The socket that the new access point should represent.
      * @param remoteAddress the remote address of the socket of the
@@ -187,18 +201,21 @@ public class StunStack
      */
     protected StunClientTransaction getClientTransaction(byte[] transactionID)
     {
-        synchronized (clientTransactions)
-        {
-            Collection<StunClientTransaction> cTrans
-                = clientTransactions.values();
+        return clientTransactions.get(transactionID);
+    }
 
-            for (StunClientTransaction tran : cTrans)
-            {
-                if (tran.getTransactionID().equals(transactionID))
-                    return tran;
-            }
-        }
-        return null;
+    /**
+     * Determines whether there is a client transaction with an ID held in a
+     * buffer, e.g. in a received message, without allocating.
+     *
+     * @param buffer the buffer which holds the ID of the transaction.
+     * @param offset the offset of the ID in <tt>buffer</tt>.
+     * @param length the length of the ID, 12 or 16.
+     * @return <tt>true</tt> if there is a client transaction with the ID.
+     */
+    boolean hasClientTransaction(byte[] buffer, int offset, int length)
+    {
+        return clientTransactions.get(buffer, offset, length) != null;
     }
 
     /**
@@ -211,24 +228,17 @@ public class StunStack
      */
     protected StunServerTransaction getServerTransaction(byte[] transactionID)
     {
-        synchronized (serverTransactions)
-        {
-            long now = System.currentTimeMillis();
-
-            for (Iterator<StunServerTransaction> i
-                        = serverTransactions.values().iterator();
-                    i.hasNext();)
-            {
-                StunServerTransaction serverTransaction = i.next();
+        StunServerTransaction serverTransaction
+            = serverTransactions.get(transactionID);
 
-                if (serverTransaction.isExpired(now))
-                    i.remove();
-                else if (serverTransaction.getTransactionID().equals(
-                        transactionID))
-                    return serverTransaction;
-            }
+        if (serverTransaction != null && serverTransaction.isExpired())
+        {
+            serverTransactions.remove(
+                    serverTransaction.getTransactionID(),
+                    serverTransaction);
+            serverTransaction = null;
         }
-        return null;
+        return serverTransaction;
     }
 
     /**
@@ -242,12 +252,9 @@ public class StunStack
     protected StunServerTransaction getServerTransaction(
             TransactionID transactionID)
     {
-        StunServerTransaction serverTransaction;
+        StunServerTransaction serverTransaction
+            = serverTransactions.get(transactionID);
 
-        synchronized (serverTransactions)
-        {
-            serverTransaction = serverTransactions.get(transactionID);
-        }
         /*
          * If a StunServerTransaction is expired, do not return it. It will be
          * removed from serverTransactions soon.
@@ -288,86 +295,102 @@ public class StunStack
      * into account (that is, all transactions with for <tt>localAddr</tt> will
      * be cancelled).
      */
-    private void cancelTransactionsForAddress(TransportAddress localAddr,
-                                              TransportAddress remoteAddr)
+    /**
+     * Cancels the client transactions whose outcome is reported to a specific
+     * <tt>ResponseCollector</tt>, e.g. the connectivity checks of one of the
+     * ICE agents sharing this stack.
+     *
+     * @param collector the <tt>ResponseCollector</tt> of the transactions to
+     * cancel.
+     */
+    public void cancelClientTransactions(ResponseCollector collector)
     {
-        List<StunClientTransaction> clientTransactionsToCancel = null;
+        for (StunClientTransaction tran
+                : clientTransactions.removeIf(
+                        tran -> tran.getResponseCollector() == collector))
+        {
+            tran.cancel();
+        }
+    }
 
-        synchronized (clientTransactions)
+    /**
+     * Expires the server transactions of the requests whose USERNAME starts
+     * with a specific local ufrag, i.e. the transactions of one of the ICE
+     * agents sharing this stack. Retransmissions of these requests will be
+     * handled as new requests.
+     *
+     * @param localUfrag the local ufrag of the transactions to expire.
+     */
+    public void expireServerTransactions(String localUfrag)
+    {
+        for (StunServerTransaction tran
+                : serverTransactions.removeIf(
+                        tran -> localUfrag.equals(tran.getLocalUfrag())))
         {
-            Iterator<StunClientTransaction> clientTransactionsIter
-                = clientTransactions.values().iterator();
+            tran.expire();
+        }
+    }
 
-            while (clientTransactionsIter.hasNext())
-            {
-                StunClientTransaction tran = clientTransactionsIter.next();
+    /**
+     * Returns the local ufrag in the USERNAME of a message, i.e. the part of
+     * the USERNAME which precedes the colon, or the whole USERNAME if it has
+     * no colon.
+     *
+     * @param message the message.
+     * @return the local ufrag in the USERNAME of <tt>message</tt>, or
+     * <tt>null</tt> if it has no USERNAME.
+     */
+    static String getLocalUfrag(Message message)
+    {
+        UsernameAttribute uname
+            = (UsernameAttribute) message.getAttribute(Attribute.USERNAME);
 
-                if (tran.getLocalAddress().equals(localAddr)
-                        && (remoteAddr == null
-                                || remoteAddr.equals(tran.getRemoteAddress())))
-                {
-                    clientTransactionsIter.remove();
-
-                    /*
-                     * Invoke StunClientTransaction.cancel() outside the
-                     * clientTransactions-synchronized block in order to avoid a
-                     * deadlock. Reported by Carl Hasselskog.
-                     */
-                    if (clientTransactionsToCancel == null)
-                    {
-                        clientTransactionsToCancel = new LinkedList<>();
-                    }
-                    clientTransactionsToCancel.add(tran);
-                }
-            }
-        }
+        if (uname == null)
+            return null;
+
+        byte[] username = uname.getUsername();
+        int colon = 0;
+
+        while (colon < username.length && username[colon] != ':')
+            colon++;
+
+        return new String(username, 0, colon);
+    }
+
+    private void cancelTransactionsForAddress(TransportAddress localAddr,
+                                              TransportAddress remoteAddr)
+    {
         /*
-         * Invoke StunClientTransaction.cancel() outside the
-         * clientTransactions-synchronized block in order to avoid a deadlock.
-         * Reported by Carl Hasselskog.
+         * Only the transactions which this call managed to remove are
+         * cancelled, so a transaction which is concurrently removed by a
+         * response or by another sweep is not cancelled twice.
          */
-        if (clientTransactionsToCancel != null)
-        {
-            for (StunClientTransaction tran : clientTransactionsToCancel)
-                tran.cancel();
-        }
-
-        List<StunServerTransaction> serverTransactionsToExpire = null;
+        List<StunClientTransaction> clientTransactionsToCancel
+            = clientTransactions.removeIf(
+                    tran -> tran.getLocalAddress().equals(localAddr)
+                        && (remoteAddr == null
+                                || remoteAddr.equals(tran.getRemoteAddress())));
 
-        synchronized (serverTransactions)
-        {
-            Iterator<StunServerTransaction> serverTransactionsIter
-                = serverTransactions.values().iterator();
+        for (StunClientTransaction tran : clientTransactionsToCancel)
+            tran.cancel();
 
-            while (serverTransactionsIter.hasNext())
+        List<StunServerTransaction> serverTransactionsToExpire
+            = serverTransactions.removeIf(tran ->
             {
-                StunServerTransaction tran = serverTransactionsIter.next();
                 TransportAddress listenAddr = tran.getLocalListeningAddress();
                 TransportAddress sendingAddr = tran.getSendingAddress();
 
-                if (listenAddr.equals(localAddr)
-                        || (sendingAddr != null
-                                && sendingAddr.equals(localAddr)))
-                {
-                    if (remoteAddr == null
-                          || remoteAddr.equals(tran.getRequestSourceAddress()))
-                    {
-                        serverTransactionsIter.remove();
+                return
+                    (listenAddr.equals(localAddr)
+                            || (sendingAddr != null
+                                    && sendingAddr.equals(localAddr)))
+                        && (remoteAddr == null
+                            || remoteAddr.equals(
+                                    tran.getRequestSourceAddress()));
+            });
 
-                        if (serverTransactionsToExpire == null)
-                        {
-                            serverTransactionsToExpire = new LinkedList<>();
-                        }
-                        serverTransactionsToExpire.add(tran);
-                    }
-                }
-            }
-        }
-        if (serverTransactionsToExpire != null)
-        {
-            for (StunServerTransaction tran : serverTransactionsToExpire)
-                tran.expire();
-        }
+        for (StunServerTransaction tran : serverTransactionsToExpire)
+            tran.expire();
     }
 
     /**
@@ -673,6 +696,55 @@ public class StunStack
                                      int               maxRetransmissions)
         throws IllegalArgumentException,
                IOException
+    {
+        return
+            sendRequest(
+                    request, null, sendTo, sendThrough, collector,
+                    transactionID,
+                    originalWaitInterval, maxWaitInterval, maxRetransmissions);
+    }
+
+    /**
+     * Sends the specified request, already encoded by the caller, through the
+     * specified access point, and registers the specified ResponseCollector
+     * for later notification. The bytes are sent as they are, by the original
+     * transmission and by every retransmission.
+     *
+     * @param  request     the request to send
+     * @param  encodedRequest the binary representation of <tt>request</tt>
+     * with the ID of <tt>transactionID</tt>, or <tt>null</tt> to have
+     * <tt>request</tt> encoded by the stack
+     * @param  sendTo      the destination address of the request.
+     * @param  sendThrough the local address to use when sending the request
+     * @param  collector   the instance to notify when a response arrives or the
+     * the transaction timeouts
+     * @param transactionID the ID that we'd like the new transaction to use.
+     * @param originalWaitInterval The number of milliseconds to wait before
+     * the first retransmission of the request.
+     * @param maxWaitInterval The maximum wait interval. Once this interval is
+     * reached we should stop doubling its value.
+     * @param maxRetransmissions Maximum number of retransmissions. Once this
+     * number is reached and if no response is received after maxWaitInterval
+     * milliseconds the request is considered unanswered.
+     * @return the <tt>TransactionID</tt> of the <tt>StunClientTransaction</tt>
+     * that we used in order to send the request.
+     *
+     * @throws IllegalArgumentException if the apDescriptor references an
+     * access point that had not been installed,
+     * @throws IOException  if an error occurs while sending message bytes
+     * through the network socket.
+     */
+    public TransactionID sendRequest(Request           request,
+                                     byte[]            encodedRequest,
+                                     TransportAddress  sendTo,
+                                     TransportAddress  sendThrough,
+                                     ResponseCollector collector,
+                                     TransactionID     transactionID,
+                                     int               originalWaitInterval,
+                                     int               maxWaitInterval,
+                                     int               maxRetransmissions)
+        throws IllegalArgumentException,
+               IOException
     {
         StunClientTransaction clientTransaction
             = new StunClientTransaction(
@@ -689,6 +761,7 @@ public class StunStack
             clientTransaction.maxWaitInterval = maxWaitInterval;
         if (maxRetransmissions >= 0)
             clientTransaction.maxRetransmissions = maxRetransmissions;
+        clientTransaction.encodedRequest = encodedRequest;
 
         clientTransactions.put(
                 clientTransaction.getTransactionID(),
@@ -869,6 +942,36 @@ public class StunStack
             eventDispatcher.addRequestListener(localAddress, listener);
     }
 
+    /**
+     * Add a RequestListener for the Binding requests whose USERNAME starts
+     * with a specific local ufrag. The stack looks the listener up by the
+     * ufrag of each such request instead of offering the request to all
+     * listeners, so the cost of dispatching does not grow with the number of
+     * ICE agents sharing this stack.
+     *
+     * @param localUfrag the local ufrag of the requests that
+     * <tt>listener</tt> is interested in.
+     * @param listener the RequestListener to be added
+     */
+    public void addRequestListener(String localUfrag, RequestListener listener)
+    {
+        eventDispatcher.addRequestListener(localUfrag, listener);
+    }
+
+    /**
+     * Removes a listener registered with
+     * {@link #addRequestListener(String, RequestListener)}.
+     *
+     * @param localUfrag the local ufrag that <tt>listener</tt> was
+     * registered with.
+     * @param listener the RequestListener to be removed
+     */
+    public void removeRequestListener(String localUfrag,
+                                      RequestListener listener)
+    {
+        eventDispatcher.removeRequestListener(localUfrag, listener);
+    }
+
     /**
      * Removes a client transaction from this providers client transactions
      * list. The method is used by <tt>StunClientTransaction</tt>s themselves
@@ -878,10 +981,7 @@ public class StunStack
      */
     void removeClientTransaction(StunClientTransaction tran)
     {
-        synchronized (clientTransactions)
-        {
-            clientTransactions.remove(tran.getTransactionID());
-        }
+        clientTransactions.remove(tran.getTransactionID(), tran);
     }
 
     /**
@@ -892,10 +992,7 @@ public class StunStack
      */
     void removeServerTransaction(StunServerTransaction tran)
     {
-        synchronized (serverTransactions)
-        {
-            serverTransactions.remove(tran.getTransactionID());
-        }
+        serverTransactions.remove(tran.getTransactionID(), tran);
     }
 
     /**
@@ -957,6 +1054,7 @@ public class StunStack
                             serverTid,
                             ev.getLocalAddress(),
                             ev.getRemoteAddress());
+                sTran.setLocalUfrag(getLocalUfrag(ev.getMessage()));
 
                 // if there is an OOM error here, stop here right now
                 try
@@ -968,11 +1066,8 @@ public class StunStack
                     logger.info("STUN transaction thread start failed:" + t);
                     return;
                 }
-                synchronized (serverTransactions)
-                {
-                    serverTransactions.put(serverTid, sTran);
-                    expiredTransactionsCollector.schedule();
-                }
+                serverTransactions.put(serverTid, sTran);
+                expiredTransactionsCollector.add(sTran);
             }
 
             //validate attributes that need validation.
@@ -1062,7 +1157,7 @@ public class StunStack
                 logger.fine(
                         "Dropped response - no matching client tran found for"
                             + " tid " + tid + "\n" + "all tids in stock were "
-                            + clientTransactions.keySet());
+                            + clientTransactions);
             }
         }
         // indication
@@ -1084,6 +1179,79 @@ public class StunStack
         return credentialsManager;
     }
 
+    /**
+     * Sweeps the expired server transactions of this stack as if it was a
+     * specific time. Allows tests to expire transactions without waiting for
+     * their lifetime.
+     *
+     * @param now the time in milliseconds to sweep at.
+     */
+    void sweepExpiredServerTransactions(long now)
+    {
+        expiredTransactionsCollector.sweep(now);
+    }
+
+    /**
+     * Returns the number of sweeps for expired server transactions performed
+     * by this stack.
+     *
+     * @return the number of sweeps for expired server transactions.
+     */
+    public long getServerTransactionSweepCount()
+    {
+        return expiredTransactionsCollector.sweepCount.get();
+    }
+
+    /**
+     * Returns the number of expired server transactions reclaimed by the
+     * sweeps of this stack.
+     *
+     * @return the number of reclaimed server transactions.
+     */
+    public long getReclaimedServerTransactionCount()
+    {
+        return expiredTransactionsCollector.reclaimedCount.get();
+    }
+
+    /**
+     * Returns the duration of the last sweep for expired server transactions.
+     *
+     * @return the duration of the last sweep in nanoseconds, or 0 if there
+     * has been none.
+     */
+    public long getLastServerTransactionSweepNanos()
+    {
+        return expiredTransactionsCollector.lastSweepDurationNanos;
+    }
+
+    /**
+     * Returns the counters of this stack, for the components of the stack to
+     * update.
+     *
+     * @return the counters of this stack.
+     */
+    StunStackMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Returns an immutable snapshot of the counters of this stack: messages
+     * sent and received by class and method, retransmissions, timeouts,
+     * validation failures, live transactions and the depth and latency of the
+     * processing of received messages.
+     *
+     * @return a snapshot of the counters of this stack.
+     */
+    public StunStackMetrics.Snapshot getMetricsSnapshot()
+    {
+        return
+            metrics.snapshot(
+                    clientTransactions.size(),
+                    serverTransactions.size(),
+                    netAccessManager.getPendingMessageCount());
+    }
+
     /**
      * Cancels all running transactions and prepares for garbage collection
      */
@@ -1092,34 +1260,13 @@ public class StunStack
         eventDispatcher.removeAllListeners();
 
         // clientTransactions
-        Collection<StunClientTransaction> clientTransactionsToCancel;
-
-        synchronized (clientTransactions)
-        {
-            clientTransactionsToCancel
-                = new ArrayList<>(clientTransactions.values());
-            clientTransactions.clear();
-        }
-        /*
-         * Invoke StunClientTransaction.cancel() outside the
-         * clientTransactions-synchronized block in order to avoid a deadlock.
-         * Reported by Carl Hasselskog.
-         */
-        for (StunClientTransaction tran : clientTransactionsToCancel)
+        for (StunClientTransaction tran : clientTransactions.removeAll())
             tran.cancel();
 
         // serverTransactions
-        Collection<StunServerTransaction> serverTransactionsToExpire;
+        expiredTransactionsCollector.shutDown();
 
-        expiredTransactionsCollector.cancel();
-
-        synchronized (serverTransactions)
-        {
-            serverTransactionsToExpire
-                = new ArrayList<>(serverTransactions.values());
-            serverTransactions.clear();
-        }
-        for (StunServerTransaction tran : serverTransactionsToExpire)
+        for (StunServerTransaction tran : serverTransactions.removeAll())
             tran.expire();
 
         netAccessManager.stop();
@@ -1286,6 +1433,7 @@ public class StunStack
                 logger.log(Level.FINE, "Received a message with an improperly "
                         +"formatted username");
             }
+            metrics.integrityCheckFailed();
             return false;
         }
 
@@ -1295,7 +1443,10 @@ public class StunStack
         byte[] key = getCredentialsManager().getLocalKey(username);
 
         if (key == null)
+        {
+            metrics.integrityCheckFailed();
             return false;
+        }
 
         /*
          * Now check whether the SHA1 matches. Using
@@ -1304,41 +1455,27 @@ public class StunStack
          * MessageIntegrityAttribute because the value of the
          * MessageIntegrityAttribute is calculated on a STUN "Message Length"
          * upto and including the MESSAGE-INTEGRITY and excluding any Attributes
-         * after it.
+         * after it. verifyHmacSha1 supplies that length itself and reads the
+         * rest of the RawMessage in place.
          */
-        byte[] binMsg = new byte[msgInt.getLocationInMessage()];
-
-        System.arraycopy(message.getBytes(), 0, binMsg, 0, binMsg.length);
-
-        char messageLength
-            = (char)
-                (binMsg.length
-                    + Attribute.HEADER_LENGTH
-                    + msgInt.getDataLength()
-                    - Message.HEADER_LENGTH);
-
-        binMsg[2] = (byte) (messageLength >> 8);
-        binMsg[3] = (byte) (messageLength & 0xFF);
-
-        byte[] expectedMsgIntHmacSha1Content;
+        byte[] msgIntHmacSha1Content = msgInt.getHmacSha1Content();
+        boolean valid;
 
         try
         {
-            expectedMsgIntHmacSha1Content
-                = MessageIntegrityAttribute.calculateHmacSha1(
-                        binMsg, 0, binMsg.length,
-                        key);
+            valid
+                = MessageIntegrityAttribute.verifyHmacSha1(
+                        message.getBuffer(), 0,
+                        msgInt.getLocationInMessage(),
+                        key,
+                        msgIntHmacSha1Content);
         }
         catch (IllegalArgumentException iaex)
         {
-            expectedMsgIntHmacSha1Content = null;
+            valid = false;
         }
 
-        byte[] msgIntHmacSha1Content = msgInt.getHmacSha1Content();
-
-        if (!Arrays.equals(
-                expectedMsgIntHmacSha1Content,
-                msgIntHmacSha1Content))
+        if (!valid)
         {
             if (logger.isLoggable(Level.FINE))
             {
@@ -1346,11 +1483,9 @@ public class StunStack
                         Level.FINE,
                         "Received a message with a wrong "
                             +"MESSAGE-INTEGRITY HMAC-SHA1 signature: "
-                            + "expected: "
-                            + toHexString(expectedMsgIntHmacSha1Content)
-                            + ", received: "
                             + toHexString(msgIntHmacSha1Content));
             }
+            metrics.integrityCheckFailed();
             return false;
         }
 
@@ -1413,6 +1548,7 @@ public class StunStack
                 logger.log(Level.FINE, "Received a message with an improperly "
                         +"formatted username");
             }
+            metrics.integrityCheckFailed();
             return false;
         }
 
@@ -1513,27 +1649,65 @@ public class StunStack
                     addr[toIndex].getAddress(),
                     port[toIndex],
                     p.getData(),
+                    p.getOffset(),
+                    p.getLength(),
                     isSent);
         }
     }
 
     /**
      * Class which performs periodic collection of expired transactions.
-     * It's execution is controlled outside by {@link #schedule()}
-     * and {@link #cancel()} methods. Whenever expired transactions collector
+     * It's execution is controlled outside by {@link #add} and
+     * {@link #cancel()} methods. Whenever expired transactions collector
      * is scheduled it does self reschedule with fixed delay
-     * of StunServerTransaction.LIFETIME_MILLIS,
-     * until {@link #serverTransactions} is empty, in that case it self-cancel
-     * further execution and need to be scheduled again when new item added
-     * to {@link #serverTransactions} container.
+     * of {@link #SWEEP_INTERVAL}, until all added transactions have been
+     * swept, in that case it self-cancel further execution and is scheduled
+     * again when a new transaction is added.
+     * <p>
+     * All server transactions have the same lifetime, counted from when they
+     * are started, so the order in which they are added is (up to the
+     * concurrency of their starts) the order in which they expire. A sweep
+     * therefore only looks at the head of {@link #expiryQueue} and stops at
+     * the first transaction which has not expired, instead of scanning all
+     * of {@link #serverTransactions}.
      */
     private final class ExpiredServerTransactionsCollector
     {
         /**
-         * Runnable which walks {@link #serverTransactions}, check if
-         * transaction is expired and if so - remove it
-         * from {@link #serverTransactions}.
-         * Self-cancels when {@link #serverTransactions} is empty
+         * The interval between sweeps in milliseconds. Sweeps only touch
+         * expired transactions, so they can run much more often than once
+         * per {@link StunServerTransaction#LIFETIME}.
+         */
+        private static final long SWEEP_INTERVAL = 1000;
+
+        /**
+         * The server transactions in the order in which they were started.
+         * Transactions which are removed from {@link #serverTransactions}
+         * before they expire stay here until they reach the head.
+         */
+        private final Queue<StunServerTransaction> expiryQueue
+            = new ConcurrentLinkedQueue<>();
+
+        /**
+         * The number of sweeps performed.
+         */
+        private final AtomicLong sweepCount = new AtomicLong();
+
+        /**
+         * The number of transactions removed from {@link #serverTransactions}
+         * by sweeps.
+         */
+        private final AtomicLong reclaimedCount = new AtomicLong();
+
+        /**
+         * The duration of the last sweep in nanoseconds.
+         */
+        private volatile long lastSweepDurationNanos;
+
+        /**
+         * Runnable which removes the expired transactions at the head of
+         * {@link #expiryQueue} from {@link #serverTransactions}.
+         * Self-cancels when {@link #expiryQueue} is empty.
          */
         private final Runnable collector = new Runnable()
         {
@@ -1542,41 +1716,21 @@ public class StunStack
             {
                 try
                 {
-                    synchronized (serverTransactions)
-                    {
-                        final int transactionsBeforeCollection
-                            = serverTransactions.size();
-
-                        long now = System.currentTimeMillis();
+                    sweep(System.currentTimeMillis());
 
-                        for (Iterator<StunServerTransaction> i
-                                    = serverTransactions.values().iterator();
-                                i.hasNext();)
-                        {
-                            StunServerTransaction serverTransaction = i.next();
-
-                            if (serverTransaction == null)
-                            {
-                                i.remove();
-                            }
-                            else if (serverTransaction.isExpired(now))
-                            {
-                                i.remove();
-                                serverTransaction.expire();
-                            }
-                        }
-
-                        logger.fine("Non-expired server transactions "
-                            + "count " + serverTransactions.size()
-                            + ", transactions before collection "
-                            + transactionsBeforeCollection);
-
-                        if (serverTransactions.isEmpty())
-                        {
-                            cancel();
-                            logger.finest("Cancel expired collector "
-                                + "due to no more server transactions");
-                        }
+                    if (expiryQueue.isEmpty())
+                    {
+                        cancel();
+                        logger.finest("Cancel expired collector "
+                            + "due to no more server transactions");
+
+                        /*
+                         * A transaction may have been added after the check
+                         * above but before the cancellation, in which case its
+                         * add() call found this collector still running.
+                         */
+                        if (!expiryQueue.isEmpty())
+                            schedule();
                     }
                 }
                 catch (Throwable t)
@@ -1587,19 +1741,78 @@ public class StunStack
             }
         };
 
+        /**
+         * Removes the transactions at the head of {@link #expiryQueue} which
+         * are expired at a specific time from {@link #serverTransactions}.
+         *
+         * Sweeps are serialized, so only one thread at a time consumes
+         * {@link #expiryQueue}.
+         *
+         * @param now the time in milliseconds to sweep at.
+         */
+        synchronized void sweep(long now)
+        {
+            long startNanos = System.nanoTime();
+            int reclaimed = 0;
+            StunServerTransaction tran;
+
+            while ((tran = expiryQueue.peek()) != null && tran.isExpired(now))
+            {
+                expiryQueue.poll();
+                if (serverTransactions.remove(tran.getTransactionID(), tran))
+                {
+                    tran.expire();
+                    reclaimed++;
+                }
+            }
+
+            lastSweepDurationNanos = System.nanoTime() - startNanos;
+            sweepCount.incrementAndGet();
+            reclaimedCount.addAndGet(reclaimed);
+
+            if (logger.isLoggable(Level.FINE))
+            {
+                logger.fine("Reclaimed " + reclaimed
+                    + " expired server transactions in "
+                    + lastSweepDurationNanos + " ns, "
+                    + serverTransactions.size() + " remaining");
+            }
+        }
+
         /**
          * Scheduled execution of {@link #collector} runnable.
-         * Access synchronized via {@link #serverTransactions}.
+         * Written while synchronized on this collector and read without
+         * synchronization by {@link #schedule()} so that adding a server
+         * transaction does not contend on a lock while the collector is
+         * already scheduled.
+         */
+        private volatile ScheduledFuture<?> scheduledCollectorFuture;
+
+        /**
+         * Adds a server transaction which has just been started to the
+         * transactions to be expired, and schedules the collector if
+         * necessary.
+         *
+         * @param tran the started transaction.
          */
-        private ScheduledFuture<?> scheduledCollectorFuture;
+        void add(StunServerTransaction tran)
+        {
+            expiryQueue.add(tran);
+            schedule();
+        }
 
         /**
          * Schedules repeated collector execution in background
          * task executor. If collector is already scheduled - do nothing
          */
-        void schedule()
+        private void schedule()
         {
-            synchronized (serverTransactions)
+            ScheduledFuture<?> future = scheduledCollectorFuture;
+
+            if (future != null && !future.isDone())
+                return;
+
+            synchronized (this)
             {
                 if (scheduledCollectorFuture == null ||
                     scheduledCollectorFuture.isDone())
@@ -1607,8 +1820,8 @@ public class StunStack
                     scheduledCollectorFuture
                         = tasksScheduler.scheduleWithFixedDelay(
                             collector,
-                            StunServerTransaction.LIFETIME,
-                            StunServerTransaction.LIFETIME,
+                            SWEEP_INTERVAL,
+                            SWEEP_INTERVAL,
                             TimeUnit.MILLISECONDS);
                 }
             }
@@ -1620,7 +1833,7 @@ public class StunStack
          */
         void cancel()
         {
-            synchronized (serverTransactions)
+            synchronized (this)
             {
                 if (scheduledCollectorFuture != null)
                 {
@@ -1629,5 +1842,14 @@ public class StunStack
                 }
             }
         }
+
+        /**
+         * Cancels the collector and forgets all transactions added to it.
+         */
+        void shutDown()
+        {
+            cancel();
+            expiryQueue.clear();
+        }
     }
 }
@@ -0,0 +1,739 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.ice4j.message.*;
+
+/**
+ * The counters of a {@link StunStack}: the messages it sent and received,
+ * retransmissions, timeouts, validation failures, datagrams dropped by
+ * admission control and the latency of the
+ * processing of received messages. The counters are <tt>LongAdder</tt>s so
+ * that updating them from many threads is cheap; they are read through an
+ * immutable {@link Snapshot} obtained from
+ * {@link StunStack#getMetricsSnapshot()}.
+ */
+public class StunStackMetrics
+{
+    /**
+     * The classes of STUN messages which are counted separately.
+     */
+    public enum MessageClass
+    {
+        REQUEST,
+        SUCCESS_RESPONSE,
+        ERROR_RESPONSE,
+        INDICATION;
+
+        /**
+         * Returns the class of a message of a specific type.
+         *
+         * @param messageType the type of the message.
+         * @return the class of a message of type <tt>messageType</tt>.
+         */
+        static MessageClass of(char messageType)
+        {
+            if (Message.isRequestType(messageType))
+                return REQUEST;
+            if (Message.isSuccessResponseType(messageType))
+                return SUCCESS_RESPONSE;
+            if (Message.isErrorResponseType(messageType))
+                return ERROR_RESPONSE;
+            return INDICATION;
+        }
+    }
+
+    /**
+     * The number of methods which are counted separately. Methods are counted
+     * by their value up to this number, and all higher methods together.
+     */
+    private static final int COUNTED_METHODS = 16;
+
+    /**
+     * The mask of the bits of a message type which encode its class.
+     */
+    private static final char MESSAGE_CLASS_MASK = 0x0110;
+
+    /**
+     * The names of the methods which are known to ice4j, by value.
+     */
+    private static final String[] METHOD_NAMES = new String[COUNTED_METHODS];
+
+    static
+    {
+        METHOD_NAMES[Message.STUN_METHOD_BINDING] = "binding";
+        METHOD_NAMES[0x0002] = "shared_secret";
+        METHOD_NAMES[Message.TURN_METHOD_ALLOCATE] = "allocate";
+        METHOD_NAMES[Message.TURN_METHOD_REFRESH] = "refresh";
+        METHOD_NAMES[Message.TURN_METHOD_SEND] = "send";
+        METHOD_NAMES[Message.TURN_METHOD_DATA] = "data";
+        METHOD_NAMES[Message.TURN_METHOD_CREATEPERMISSION]
+            = "create_permission";
+        METHOD_NAMES[Message.TURN_METHOD_CHANNELBIND] = "channel_bind";
+        METHOD_NAMES[Message.TURN_METHOD_CONNECT] = "connect";
+        METHOD_NAMES[Message.TURN_METHOD_CONNECTION_BIND] = "connection_bind";
+        METHOD_NAMES[Message.TURN_METHOD_CONNECTION_ATTEMPT]
+            = "connection_attempt";
+    }
+
+    /**
+     * The messages sent, by class and method.
+     */
+    private final LongAdder[][] sent = newCounters();
+
+    /**
+     * The messages received and successfully decoded, by class and method.
+     */
+    private final LongAdder[][] received = newCounters();
+
+    /**
+     * The requests which were retransmitted by client transactions.
+     */
+    private final LongAdder requestRetransmissions = new LongAdder();
+
+    /**
+     * The responses which were retransmitted by server transactions because
+     * their request was received again.
+     */
+    private final LongAdder responseRetransmissions = new LongAdder();
+
+    /**
+     * The client transactions which timed out without a response.
+     */
+    private final LongAdder clientTransactionTimeouts = new LongAdder();
+
+    /**
+     * The received messages which could not be decoded, excluding
+     * {@link #fingerprintFailures}.
+     */
+    private final LongAdder decodeFailures = new LongAdder();
+
+    /**
+     * The received messages whose FINGERPRINT was wrong.
+     */
+    private final LongAdder fingerprintFailures = new LongAdder();
+
+    /**
+     * The received messages whose MESSAGE-INTEGRITY could not be verified.
+     */
+    private final LongAdder integrityFailures = new LongAdder();
+
+    /**
+     * The received datagrams dropped by admission control, by
+     * {@link AdmissionController.Reason}.
+     */
+    private final LongAdder[] admissionDrops
+        = newCounters(AdmissionController.Reason.values().length);
+
+    /**
+     * The received messages which have been processed.
+     */
+    private final LongAdder processedMessages = new LongAdder();
+
+    /**
+     * The total time received messages waited for a processing thread.
+     */
+    private final LongAdder processingDelayNanos = new LongAdder();
+
+    /**
+     * The total time spent processing received messages.
+     */
+    private final LongAdder processingTimeNanos = new LongAdder();
+
+    /**
+     * Creates the counters of messages by class and method.
+     *
+     * @return the new counters.
+     */
+    private static LongAdder[][] newCounters()
+    {
+        LongAdder[][] counters
+            = new LongAdder[MessageClass.values().length][COUNTED_METHODS + 1];
+
+        for (LongAdder[] byMethod : counters)
+        {
+            for (int i = 0; i < byMethod.length; i++)
+                byMethod[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    /**
+     * Creates a row of counters.
+     *
+     * @param count the number of counters.
+     * @return the new counters.
+     */
+    private static LongAdder[] newCounters(int count)
+    {
+        LongAdder[] counters = new LongAdder[count];
+
+        for (int i = 0; i < count; i++)
+            counters[i] = new LongAdder();
+        return counters;
+    }
+
+    /**
+     * Returns the index of the counter of a specific method.
+     *
+     * @param method the method, or the type of a message.
+     * @return the index of the counter of <tt>method</tt>.
+     */
+    private static int methodIndex(char method)
+    {
+        int value = method & ~MESSAGE_CLASS_MASK;
+
+        return value < COUNTED_METHODS ? value : COUNTED_METHODS;
+    }
+
+    /**
+     * Returns the name used for a method in {@link Snapshot#toMap()}.
+     *
+     * @param index the index of the counter of the method.
+     * @return the name of the method.
+     */
+    private static String methodName(int index)
+    {
+        if (index == COUNTED_METHODS)
+            return "other";
+
+        String name = METHOD_NAMES[index];
+
+        return name != null ? name : String.format("method_0x%03x", index);
+    }
+
+    /**
+     * Counts a message which was sent.
+     *
+     * @param messageType the type of the message.
+     */
+    void messageSent(char messageType)
+    {
+        sent[MessageClass.of(messageType).ordinal()][methodIndex(messageType)]
+            .increment();
+    }
+
+    /**
+     * Counts a message which was received and decoded.
+     *
+     * @param messageType the type of the message.
+     */
+    void messageReceived(char messageType)
+    {
+        received[MessageClass.of(messageType).ordinal()]
+                [methodIndex(messageType)]
+            .increment();
+    }
+
+    /**
+     * Counts a request retransmitted by a client transaction.
+     */
+    void requestRetransmitted()
+    {
+        requestRetransmissions.increment();
+    }
+
+    /**
+     * Counts a response retransmitted by a server transaction.
+     */
+    void responseRetransmitted()
+    {
+        responseRetransmissions.increment();
+    }
+
+    /**
+     * Counts a client transaction which timed out.
+     */
+    void clientTransactionTimedOut()
+    {
+        clientTransactionTimeouts.increment();
+    }
+
+    /**
+     * Counts a received message which could not be decoded.
+     *
+     * @param fingerprintMismatch <tt>true</tt> if the message was discarded
+     * because its FINGERPRINT was wrong.
+     */
+    void decodeFailed(boolean fingerprintMismatch)
+    {
+        if (fingerprintMismatch)
+            fingerprintFailures.increment();
+        else
+            decodeFailures.increment();
+    }
+
+    /**
+     * Counts a received message whose MESSAGE-INTEGRITY could not be verified.
+     */
+    void integrityCheckFailed()
+    {
+        integrityFailures.increment();
+    }
+
+    /**
+     * Counts a received datagram which was dropped by admission control.
+     *
+     * @param reason the reason why the datagram was dropped.
+     */
+    void messageDropped(AdmissionController.Reason reason)
+    {
+        admissionDrops[reason.ordinal()].increment();
+    }
+
+    /**
+     * Records the processing of a received message.
+     *
+     * @param delayNanos the time the message waited for a processing thread.
+     * @param timeNanos the time it took to process the message.
+     */
+    void messageProcessed(long delayNanos, long timeNanos)
+    {
+        processedMessages.increment();
+        processingDelayNanos.add(delayNanos);
+        processingTimeNanos.add(timeNanos);
+    }
+
+    /**
+     * Reads the counters into an immutable snapshot.
+     *
+     * @param clientTransactions the current number of client transactions.
+     * @param serverTransactions the current number of server transactions.
+     * @param pendingMessages the current number of received messages which
+     * are waiting to be or are being processed.
+     * @return the snapshot.
+     */
+    Snapshot snapshot(
+            int clientTransactions,
+            int serverTransactions,
+            int pendingMessages)
+    {
+        return new Snapshot(
+                this, clientTransactions, serverTransactions, pendingMessages);
+    }
+
+    /**
+     * An immutable copy of the counters of a <tt>StunStack</tt> at a point in
+     * time. The counters are read one by one while other threads may update
+     * them, so a snapshot is not atomic across counters.
+     */
+    public static final class Snapshot
+    {
+        private final long[][] sent;
+
+        private final long[][] received;
+
+        private final long requestRetransmissions;
+
+        private final long responseRetransmissions;
+
+        private final long clientTransactionTimeouts;
+
+        private final long decodeFailures;
+
+        private final long fingerprintFailures;
+
+        private final long integrityFailures;
+
+        private final long[] admissionDrops;
+
+        private final long processedMessages;
+
+        private final long processingDelayNanos;
+
+        private final long processingTimeNanos;
+
+        private final int clientTransactions;
+
+        private final int serverTransactions;
+
+        private final int pendingMessages;
+
+        private Snapshot(
+                StunStackMetrics metrics,
+                int clientTransactions,
+                int serverTransactions,
+                int pendingMessages)
+        {
+            sent = sum(metrics.sent);
+            received = sum(metrics.received);
+            requestRetransmissions = metrics.requestRetransmissions.sum();
+            responseRetransmissions = metrics.responseRetransmissions.sum();
+            clientTransactionTimeouts = metrics.clientTransactionTimeouts.sum();
+            decodeFailures = metrics.decodeFailures.sum();
+            fingerprintFailures = metrics.fingerprintFailures.sum();
+            integrityFailures = metrics.integrityFailures.sum();
+            admissionDrops = sum(metrics.admissionDrops);
+            processedMessages = metrics.processedMessages.sum();
+            processingDelayNanos = metrics.processingDelayNanos.sum();
+            processingTimeNanos = metrics.processingTimeNanos.sum();
+            this.clientTransactions = clientTransactions;
+            this.serverTransactions = serverTransactions;
+            this.pendingMessages = pendingMessages;
+        }
+
+        private static long[][] sum(LongAdder[][] counters)
+        {
+            long[][] sums = new long[counters.length][];
+
+            for (int i = 0; i < counters.length; i++)
+                sums[i] = sum(counters[i]);
+            return sums;
+        }
+
+        private static long[] sum(LongAdder[] counters)
+        {
+            long[] sums = new long[counters.length];
+
+            for (int i = 0; i < counters.length; i++)
+                sums[i] = counters[i].sum();
+            return sums;
+        }
+
+        private static long total(long[] byMethod)
+        {
+            long total = 0;
+
+            for (long count : byMethod)
+                total += count;
+            return total;
+        }
+
+        /**
+         * Returns the number of messages of a specific class that were sent,
+         * including retransmissions.
+         *
+         * @param messageClass the class of the messages.
+         * @return the number of messages of <tt>messageClass</tt> sent.
+         */
+        public long getMessagesSent(MessageClass messageClass)
+        {
+            return total(sent[messageClass.ordinal()]);
+        }
+
+        /**
+         * Returns the number of messages of a specific class and method that
+         * were sent, including retransmissions.
+         *
+         * @param messageClass the class of the messages.
+         * @param method the method of the messages, e.g.
+         * {@link Message#STUN_METHOD_BINDING}. Methods greater than 15 are
+         * counted together.
+         * @return the number of messages of <tt>messageClass</tt> and
+         * <tt>method</tt> sent.
+         */
+        public long getMessagesSent(MessageClass messageClass, char method)
+        {
+            return sent[messageClass.ordinal()][methodIndex(method)];
+        }
+
+        /**
+         * Returns the number of messages of a specific class that were
+         * received and decoded, including retransmissions.
+         *
+         * @param messageClass the class of the messages.
+         * @return the number of messages of <tt>messageClass</tt> received.
+         */
+        public long getMessagesReceived(MessageClass messageClass)
+        {
+            return total(received[messageClass.ordinal()]);
+        }
+
+        /**
+         * Returns the number of messages of a specific class and method that
+         * were received and decoded, including retransmissions.
+         *
+         * @param messageClass the class of the messages.
+         * @param method the method of the messages. Methods greater than 15
+         * are counted together.
+         * @return the number of messages of <tt>messageClass</tt> and
+         * <tt>method</tt> received.
+         */
+        public long getMessagesReceived(MessageClass messageClass, char method)
+        {
+            return received[messageClass.ordinal()][methodIndex(method)];
+        }
+
+        /**
+         * Returns the number of requests sent, including retransmissions.
+         *
+         * @return the number of requests sent.
+         */
+        public long getRequestsSent()
+        {
+            return getMessagesSent(MessageClass.REQUEST);
+        }
+
+        /**
+         * Returns the number of requests received.
+         *
+         * @return the number of requests received.
+         */
+        public long getRequestsReceived()
+        {
+            return getMessagesReceived(MessageClass.REQUEST);
+        }
+
+        /**
+         * Returns the number of success and error responses sent.
+         *
+         * @return the number of responses sent.
+         */
+        public long getResponsesSent()
+        {
+            return getMessagesSent(MessageClass.SUCCESS_RESPONSE)
+                + getMessagesSent(MessageClass.ERROR_RESPONSE);
+        }
+
+        /**
+         * Returns the number of success and error responses received.
+         *
+         * @return the number of responses received.
+         */
+        public long getResponsesReceived()
+        {
+            return getMessagesReceived(MessageClass.SUCCESS_RESPONSE)
+                + getMessagesReceived(MessageClass.ERROR_RESPONSE);
+        }
+
+        /**
+         * Returns the number of requests retransmitted by client
+         * transactions.
+         *
+         * @return the number of request retransmissions.
+         */
+        public long getRequestRetransmissions()
+        {
+            return requestRetransmissions;
+        }
+
+        /**
+         * Returns the number of responses retransmitted by server transactions
+         * because their request was received again.
+         *
+         * @return the number of response retransmissions.
+         */
+        public long getResponseRetransmissions()
+        {
+            return responseRetransmissions;
+        }
+
+        /**
+         * Returns the number of client transactions which timed out.
+         *
+         * @return the number of client transaction timeouts.
+         */
+        public long getClientTransactionTimeouts()
+        {
+            return clientTransactionTimeouts;
+        }
+
+        /**
+         * Returns the number of received messages which could not be decoded
+         * for reasons other than a wrong FINGERPRINT.
+         *
+         * @return the number of decode failures.
+         */
+        public long getDecodeFailures()
+        {
+            return decodeFailures;
+        }
+
+        /**
+         * Returns the number of received messages which were discarded
+         * because their FINGERPRINT was wrong.
+         *
+         * @return the number of FINGERPRINT failures.
+         */
+        public long getFingerprintFailures()
+        {
+            return fingerprintFailures;
+        }
+
+        /**
+         * Returns the number of received messages whose MESSAGE-INTEGRITY
+         * could not be verified.
+         *
+         * @return the number of MESSAGE-INTEGRITY failures.
+         */
+        public long getIntegrityFailures()
+        {
+            return integrityFailures;
+        }
+
+        /**
+         * Returns the number of received datagrams which were dropped before
+         * decoding because they did not have a STUN header.
+         *
+         * @return the number of malformed datagrams dropped.
+         */
+        public long getMalformedDrops()
+        {
+            return admissionDrops[AdmissionController.Reason.MALFORMED.ordinal()];
+        }
+
+        /**
+         * Returns the number of received datagrams which were dropped before
+         * decoding because their source exceeded its rate.
+         *
+         * @return the number of datagrams dropped by per-source rate limits.
+         */
+        public long getSourceRateDrops()
+        {
+            return
+                admissionDrops[AdmissionController.Reason.SOURCE_RATE.ordinal()];
+        }
+
+        /**
+         * Returns the number of received datagrams which were dropped before
+         * decoding because the stack exceeded its total rate.
+         *
+         * @return the number of datagrams dropped by the stack-wide rate
+         * limit.
+         */
+        public long getGlobalRateDrops()
+        {
+            return
+                admissionDrops[AdmissionController.Reason.GLOBAL_RATE.ordinal()];
+        }
+
+        /**
+         * Returns the number of received messages which have been processed.
+         *
+         * @return the number of processed messages.
+         */
+        public long getProcessedMessages()
+        {
+            return processedMessages;
+        }
+
+        /**
+         * Returns the total time received messages waited for a processing
+         * thread.
+         *
+         * @return the total processing delay in nanoseconds.
+         */
+        public long getProcessingDelayNanos()
+        {
+            return processingDelayNanos;
+        }
+
+        /**
+         * Returns the total time spent processing received messages.
+         *
+         * @return the total processing time in nanoseconds.
+         */
+        public long getProcessingTimeNanos()
+        {
+            return processingTimeNanos;
+        }
+
+        /**
+         * Returns the number of client transactions when the snapshot was
+         * taken.
+         *
+         * @return the number of live client transactions.
+         */
+        public int getClientTransactions()
+        {
+            return clientTransactions;
+        }
+
+        /**
+         * Returns the number of server transactions when the snapshot was
+         * taken.
+         *
+         * @return the number of live server transactions.
+         */
+        public int getServerTransactions()
+        {
+            return serverTransactions;
+        }
+
+        /**
+         * Returns the number of received messages which were waiting to be or
+         * being processed when the snapshot was taken.
+         *
+         * @return the depth of the processing queue.
+         */
+        public int getPendingMessages()
+        {
+            return pendingMessages;
+        }
+
+        /**
+         * Returns the values of this snapshot by name, e.g.
+         * "sent.request.binding", for export to monitoring systems. Message
+         * counters which are zero are omitted.
+         *
+         * @return the values of this snapshot by name.
+         */
+        public Map<String, Long> toMap()
+        {
+            Map<String, Long> map = new LinkedHashMap<>();
+
+            putMessages(map, "sent", sent);
+            putMessages(map, "received", received);
+            map.put("request_retransmissions", requestRetransmissions);
+            map.put("response_retransmissions", responseRetransmissions);
+            map.put("client_transaction_timeouts", clientTransactionTimeouts);
+            map.put("decode_failures", decodeFailures);
+            map.put("fingerprint_failures", fingerprintFailures);
+            map.put("integrity_failures", integrityFailures);
+            map.put("dropped_malformed", getMalformedDrops());
+            map.put("dropped_source_rate", getSourceRateDrops());
+            map.put("dropped_global_rate", getGlobalRateDrops());
+            map.put("processed_messages", processedMessages);
+            map.put("processing_delay_nanos", processingDelayNanos);
+            map.put("processing_time_nanos", processingTimeNanos);
+            map.put("client_transactions", (long) clientTransactions);
+            map.put("server_transactions", (long) serverTransactions);
+            map.put("pending_messages", (long) pendingMessages);
+            return Collections.unmodifiableMap(map);
+        }
+
+        private static void putMessages(
+                Map<String, Long> map,
+                String direction,
+                long[][] counts)
+        {
+            for (MessageClass messageClass : MessageClass.values())
+            {
+                long[] byMethod = counts[messageClass.ordinal()];
+                String prefix
+                    = direction + "."
+                        + messageClass.name().toLowerCase(Locale.ROOT) + ".";
+
+                for (int i = 0; i < byMethod.length; i++)
+                {
+                    if (byMethod[i] != 0)
+                        map.put(prefix + methodName(i), byMethod[i]);
+                }
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return "StunStackMetrics" + toMap();
+        }
+    }
+}
@@ -17,8 +17,6 @@
  */
 package org.ice4j.stack;
 
-import java.util.*;
-
 /**
  * This class encapsulates a STUN transaction ID. It is useful for storing
  * transaction IDs in collection objects as it implements the equals method.
@@ -57,48 +55,30 @@ public class TransactionID
     public static final int RFC3489_TRANSACTION_ID_LENGTH = 16;
 
     /**
-     * The id itself
-     */
-    private final byte[] transactionID;
-
-    /**
-     * Any object that the application would like to correlate to a transaction.
-     * 和这个事务关联一个应用的对象 ...
-     */
-    private Object applicationData = null;
-
-    /**
-     * The object to use to generate the rightmost 8 bytes of the id.
-     * 这个对象被用来生成 最右边 8位 ..
+     * The id itself, packed into a compact key which transactions with this
+     * ID are registered under.
      */
-    private static final Random random
-        = new Random(System.currentTimeMillis());
+    private final TransactionKey key;
 
     /**
-     * A hashcode for hashtable storage.
+     * The bytes of the id, created when they are first asked for.
      */
-    private int hashCode = 0;
+    private volatile byte[] transactionID;
 
     /**
-     * Limits access to <tt>TransactionID</tt> instantiation.
+     * Any object that the application would like to correlate to a transaction.
+     * 和这个事务关联一个应用的对象 ...
      */
-    private TransactionID()
-    {
-        this(false);
-    }
+    private Object applicationData = null;
 
     /**
      * Limits access to <tt>TransactionID</tt> instantiation.
      *
-     * @param rfc3489Compatibility true to create a RFC3489 transaction ID
+     * @param key the id.
      */
-    private TransactionID(boolean rfc3489Compatibility)
+    private TransactionID(TransactionKey key)
     {
-        transactionID
-            = new byte[
-                    rfc3489Compatibility
-                        ? RFC3489_TRANSACTION_ID_LENGTH
-                        : RFC5389_TRANSACTION_ID_LENGTH];
+        this.key = key;
     }
 
     /**
@@ -107,16 +87,14 @@ public class TransactionID
      *
      * The first 6 bytes of the id are given the value of
      * <tt>System.currentTimeMillis()</tt>. Putting the right most bits first
-     * so that we get a more optimized equals() method.
+     * so that we get a more optimized equals() method. The last 6 bytes are
+     * random, drawn from the generator of the current thread.
      *
      * @return A <tt>TransactionID</tt> object with a unique transaction id.
      */
     public static TransactionID createNewTransactionID()
     {
-        TransactionID tid = new TransactionID();
-
-        generateTransactionID(tid, 12);
-        return tid;
+        return new TransactionID(TransactionKey.random(false));
     }
 
     /**
@@ -125,48 +103,14 @@ public class TransactionID
      *
      * The first 8 bytes of the id are given the value of
      * <tt>System.currentTimeMillis()</tt>. Putting the right most bits first
-     * so that we get a more optimized equals() method.
+     * so that we get a more optimized equals() method. The last 8 bytes are
+     * random, drawn from the generator of the current thread.
      *
      * @return A <tt>TransactionID</tt> object with a unique transaction id.
      */
     public static TransactionID createNewRFC3489TransactionID()
     {
-        TransactionID tid = new TransactionID(true);
-
-        generateTransactionID(tid, 16);
-        return tid;
-    }
-
-    /**
-     * Generates a random transaction ID
-     *
-     * 生成一个随机的事务ID ....
-     *
-     * @param tid transaction ID
-     * @param nb number of bytes to generate
-     */
-    private static void generateTransactionID(TransactionID tid, int nb)
-    {
-        // 前6位 ..
-        long left  = System.currentTimeMillis(); //the first nb/2 bytes of the id
-        // 后6位..
-        long right = random.nextLong(); //the last nb/2 bytes of the id
-        int b = nb / 2;
-
-        for (int i = 0; i < b; i++)
-        {
-            // 一个long 想要存在 6个字节中 ...
-            // long 是8字节 ...
-            tid.transactionID[i]   = (byte)((left  >> (i * 8)) & 0xFFL);
-            tid.transactionID[i + b] = (byte)((right >> (i * 8)) & 0xFFL);
-        }
-
-        //calculate hashcode for Hashtable storage.
-        // 计算它的hash 值 用于Hashtable存储 ...
-        tid.hashCode =   (tid.transactionID[3] << 24 & 0xFF000000)
-                       | (tid.transactionID[2] << 16 & 0x00FF0000)
-                       | (tid.transactionID[1] << 8  & 0x0000FF00)
-                       | (tid.transactionID[0]       & 0x000000FF);
+        return new TransactionID(TransactionKey.random(true));
     }
 
     /**
@@ -203,19 +147,7 @@ public class TransactionID
             return serTran.getTransactionID();
 
         //seems that the caller really wants a new ID
-        TransactionID tid = null;
-        tid = new TransactionID((transactionID.length == 16));
-
-        System.arraycopy(transactionID, 0, tid.transactionID, 0,
-                tid.transactionID.length);
-
-        //calculate hashcode for Hashtable storage.
-        tid.hashCode =   (tid.transactionID[3] << 24 & 0xFF000000)
-                       | (tid.transactionID[2] << 16 & 0x00FF0000)
-                       | (tid.transactionID[1] << 8  & 0x0000FF00)
-                       | (tid.transactionID[0]       & 0x000000FF);
-
-        return tid;
+        return new TransactionID(TransactionKey.of(transactionID));
     }
 
     /**
@@ -226,9 +158,24 @@ public class TransactionID
      */
     public byte[] getBytes()
     {
+        byte[] transactionID = this.transactionID;
+
+        if (transactionID == null)
+            this.transactionID = transactionID = key.toBytes();
         return transactionID;
     }
 
+    /**
+     * Returns the compact key which transactions with this ID are registered
+     * under.
+     *
+     * @return the key of this transaction ID.
+     */
+    TransactionKey getKey()
+    {
+        return key;
+    }
+
     /**
      * If the transaction is compatible with RFC3489 (16 bytes).
      *
@@ -236,7 +183,7 @@ public class TransactionID
      */
     public boolean isRFC3489Compatible()
     {
-        return (transactionID.length == 16);
+        return key.isRFC3489();
     }
 
     /**
@@ -251,9 +198,7 @@ public class TransactionID
         if (!(obj instanceof TransactionID))
             return false;
 
-        byte targetBytes[] = ((TransactionID)obj).transactionID;
-
-        return Arrays.equals(transactionID, targetBytes);
+        return key.equals(((TransactionID) obj).key);
     }
 
     /**
@@ -263,18 +208,19 @@ public class TransactionID
      */
     public boolean equals(byte[] targetID)
     {
-        return Arrays.equals(transactionID, targetID);
+        return targetID != null
+            && key.matches(targetID, 0, targetID.length);
     }
 
     /**
-     * Returns the first four bytes of the transactionID to ensure proper
-     * retrieval from hashtables.
+     * Returns a hashcode for hashtable storage, derived from all the bytes
+     * of the id.
      * @return the hashcode of this object - as advised by the Java Platform
      * Specification
      */
     public int hashCode()
     {
-        return hashCode;
+        return key.hashCode();
     }
 
     /**
@@ -284,7 +230,7 @@ public class TransactionID
      */
     public String toString()
     {
-        return TransactionID.toString(transactionID);
+        return key.toString();
     }
 
     /**
@@ -0,0 +1,280 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import java.util.concurrent.*;
+
+/**
+ * A compact key for a STUN transaction ID. The 96 bits of an RFC 5389
+ * transaction ID (or the 128 bits of an RFC 3489 one) are packed into two
+ * <tt>long</tt>s so that keys can be hashed and compared without touching a
+ * byte array.
+ * <p>
+ * Keys are immutable, except for the per-thread probes returned by
+ * {@link #probe(byte[], int, int)}, which look transactions up straight from
+ * a received buffer without allocating and are never stored.
+ */
+final class TransactionKey
+{
+    /**
+     * The probe of each thread.
+     */
+    private static final ThreadLocal<TransactionKey> probes
+        = ThreadLocal.withInitial(() -> new TransactionKey(0, 0, false));
+
+    /**
+     * The first 8 bytes of the transaction ID, big endian.
+     */
+    private long high;
+
+    /**
+     * The remaining 4 (RFC 5389) or 8 (RFC 3489) bytes of the transaction ID,
+     * big endian.
+     */
+    private long low;
+
+    /**
+     * Whether the transaction ID is a 16 byte RFC 3489 one. Keeps an RFC 3489
+     * ID from colliding with an RFC 5389 ID which shares its first 12 bytes.
+     */
+    private boolean rfc3489;
+
+    /**
+     * Creates a key.
+     *
+     * @param high the first 8 bytes of the transaction ID.
+     * @param low the remaining bytes of the transaction ID.
+     * @param rfc3489 whether the transaction ID is 16 bytes long.
+     */
+    private TransactionKey(long high, long low, boolean rfc3489)
+    {
+        this.high = high;
+        this.low = low;
+        this.rfc3489 = rfc3489;
+    }
+
+    /**
+     * Creates the key of a specific transaction ID.
+     *
+     * @param transactionID the bytes of an RFC 5389 or RFC 3489 transaction
+     * ID.
+     * @return the key of <tt>transactionID</tt>.
+     * @throws IllegalArgumentException if <tt>transactionID</tt> is neither
+     * 12 nor 16 bytes long.
+     */
+    static TransactionKey of(byte[] transactionID)
+    {
+        return of(transactionID, 0, transactionID.length);
+    }
+
+    /**
+     * Creates the key of a transaction ID held in a buffer.
+     *
+     * @param buffer the buffer which holds the transaction ID.
+     * @param offset the offset of the transaction ID in <tt>buffer</tt>.
+     * @param length the length of the transaction ID, 12 or 16.
+     * @return the key of the transaction ID.
+     * @throws IllegalArgumentException if <tt>length</tt> is neither 12 nor
+     * 16.
+     */
+    static TransactionKey of(byte[] buffer, int offset, int length)
+    {
+        return new TransactionKey(0, 0, false).set(buffer, offset, length);
+    }
+
+    /**
+     * Creates a new random RFC 5389 or RFC 3489 key. The first 6 (RFC 5389)
+     * or 8 (RFC 3489) bytes hold the current time in milliseconds, least
+     * significant byte first, and the others are drawn from the random
+     * generator of the current thread, so that threads do not contend on a
+     * shared generator.
+     *
+     * @param rfc3489 whether to create a 16 byte RFC 3489 transaction ID.
+     * @return a new key.
+     */
+    static TransactionKey random(boolean rfc3489)
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long time = Long.reverseBytes(System.currentTimeMillis());
+
+        if (rfc3489)
+            return new TransactionKey(time, random.nextLong(), true);
+
+        long bits = random.nextLong();
+
+        return
+            new TransactionKey(
+                    (time & 0xFFFFFFFFFFFF0000L) | (bits >>> 48),
+                    bits & 0xFFFFFFFFL,
+                    false);
+    }
+
+    /**
+     * Returns the probe of the current thread, set to a transaction ID held
+     * in a buffer. The probe is only valid until the next call on the same
+     * thread and must not be stored, e.g. as the key of a map.
+     *
+     * @param buffer the buffer which holds the transaction ID.
+     * @param offset the offset of the transaction ID in <tt>buffer</tt>.
+     * @param length the length of the transaction ID, 12 or 16.
+     * @return the probe of the current thread.
+     * @throws IllegalArgumentException if <tt>length</tt> is neither 12 nor
+     * 16.
+     */
+    static TransactionKey probe(byte[] buffer, int offset, int length)
+    {
+        return probes.get().set(buffer, offset, length);
+    }
+
+    /**
+     * Sets this key to a transaction ID held in a buffer.
+     *
+     * @param buffer the buffer which holds the transaction ID.
+     * @param offset the offset of the transaction ID in <tt>buffer</tt>.
+     * @param length the length of the transaction ID, 12 or 16.
+     * @return this key.
+     */
+    private TransactionKey set(byte[] buffer, int offset, int length)
+    {
+        if (length != TransactionID.RFC5389_TRANSACTION_ID_LENGTH
+                && length != TransactionID.RFC3489_TRANSACTION_ID_LENGTH)
+        {
+            throw new IllegalArgumentException(
+                    "Invalid transaction ID length: " + length);
+        }
+
+        high = readLong(buffer, offset, 8);
+        low = readLong(buffer, offset + 8, length - 8);
+        rfc3489 = (length == TransactionID.RFC3489_TRANSACTION_ID_LENGTH);
+        return this;
+    }
+
+    /**
+     * Reads a big endian number from a byte array.
+     *
+     * @param bytes the array to read from.
+     * @param offset the offset of the first byte to read.
+     * @param count the number of bytes to read, at most 8.
+     * @return the number read.
+     */
+    private static long readLong(byte[] bytes, int offset, int count)
+    {
+        long value = 0;
+
+        for (int i = 0; i < count; i++)
+            value = (value << 8) | (bytes[offset + i] & 0xFFL);
+        return value;
+    }
+
+    /**
+     * Returns the length of the transaction ID of this key.
+     *
+     * @return 16 for an RFC 3489 transaction ID and 12 otherwise.
+     */
+    int length()
+    {
+        return
+            rfc3489
+                ? TransactionID.RFC3489_TRANSACTION_ID_LENGTH
+                : TransactionID.RFC5389_TRANSACTION_ID_LENGTH;
+    }
+
+    /**
+     * Determines whether the transaction ID of this key is a 16 byte RFC 3489
+     * one.
+     *
+     * @return <tt>true</tt> for an RFC 3489 transaction ID.
+     */
+    boolean isRFC3489()
+    {
+        return rfc3489;
+    }
+
+    /**
+     * Returns the bytes of the transaction ID of this key.
+     *
+     * @return a new array with the transaction ID of this key.
+     */
+    byte[] toBytes()
+    {
+        byte[] bytes = new byte[length()];
+        int lowBytes = bytes.length - 8;
+
+        for (int i = 0; i < 8; i++)
+            bytes[i] = (byte) (high >>> (56 - i * 8));
+        for (int i = 0; i < lowBytes; i++)
+            bytes[8 + i] = (byte) (low >>> ((lowBytes - 1 - i) * 8));
+        return bytes;
+    }
+
+    /**
+     * Determines whether a transaction ID held in a buffer is the transaction
+     * ID of this key.
+     *
+     * @param buffer the buffer which holds the transaction ID.
+     * @param offset the offset of the transaction ID in <tt>buffer</tt>.
+     * @param length the length of the transaction ID.
+     * @return <tt>true</tt> if the transaction ID is that of this key.
+     */
+    boolean matches(byte[] buffer, int offset, int length)
+    {
+        return length == length()
+            && readLong(buffer, offset, 8) == high
+            && readLong(buffer, offset + 8, length - 8) == low;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof TransactionKey))
+            return false;
+
+        TransactionKey other = (TransactionKey) obj;
+
+        return
+            high == other.high && low == other.low && rfc3489 == other.rfc3489;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode()
+    {
+        long h = high * 31 + low;
+
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Returns the transaction ID of this key in the hexadecimal format of
+     * {@link TransactionID#toString()}.
+     *
+     * @return the transaction ID of this key as a hexadecimal string.
+     */
+    @Override
+    public String toString()
+    {
+        return TransactionID.toString(toBytes());
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * The transactions of a <tt>StunStack</tt> mapped against their
+ * {@link TransactionKey}s. Lookups do not lock and updates only contend on
+ * the bin of the affected key, so message processing threads handling
+ * different transactions do not serialize on a table-wide monitor.
+ * <p>
+ * Bulk removals never lock the whole table either: a transaction is only
+ * handed to the caller of {@link #removeIf(Predicate)} if that caller
+ * succeeded in removing it, so each removed transaction is cancelled or
+ * expired exactly once even when several threads sweep concurrently.
+ *
+ * @param <T> the type of the transactions.
+ */
+class TransactionRegistry<T>
+{
+    /**
+     * The transactions mapped against their keys.
+     */
+    private final ConcurrentHashMap<TransactionKey, T> transactions
+        = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the transaction with a specific ID.
+     *
+     * @param transactionID the ID of the transaction.
+     * @return the transaction with ID <tt>transactionID</tt> or
+     * <tt>null</tt>.
+     */
+    T get(TransactionID transactionID)
+    {
+        return transactions.get(transactionID.getKey());
+    }
+
+    /**
+     * Returns the transaction with a specific ID.
+     *
+     * @param transactionID the bytes of the ID of the transaction.
+     * @return the transaction with ID <tt>transactionID</tt> or
+     * <tt>null</tt>.
+     */
+    T get(byte[] transactionID)
+    {
+        return get(transactionID, 0, transactionID.length);
+    }
+
+    /**
+     * Returns the transaction with an ID held in a buffer, e.g. in a received
+     * message, without allocating.
+     *
+     * @param buffer the buffer which holds the ID of the transaction.
+     * @param offset the offset of the ID in <tt>buffer</tt>.
+     * @param length the length of the ID, 12 or 16.
+     * @return the transaction with the ID or <tt>null</tt>.
+     */
+    T get(byte[] buffer, int offset, int length)
+    {
+        return transactions.get(TransactionKey.probe(buffer, offset, length));
+    }
+
+    /**
+     * Adds a transaction, replacing any transaction with the same ID.
+     *
+     * @param transactionID the ID of the transaction.
+     * @param transaction the transaction.
+     */
+    void put(TransactionID transactionID, T transaction)
+    {
+        transactions.put(transactionID.getKey(), transaction);
+    }
+
+    /**
+     * Removes the transaction with a specific ID.
+     *
+     * @param transactionID the ID of the transaction to remove.
+     * @return the removed transaction or <tt>null</tt>.
+     */
+    T remove(TransactionID transactionID)
+    {
+        return transactions.remove(transactionID.getKey());
+    }
+
+    /**
+     * Removes a transaction if it is still mapped against a specific ID.
+     *
+     * @param transactionID the ID of the transaction to remove.
+     * @param transaction the transaction to remove.
+     * @return <tt>true</tt> if <tt>transaction</tt> was removed.
+     */
+    boolean remove(TransactionID transactionID, T transaction)
+    {
+        return transactions.remove(transactionID.getKey(), transaction);
+    }
+
+    /**
+     * Removes the transactions which satisfy a specific predicate.
+     *
+     * @param filter the predicate which selects the transactions to remove.
+     * @return the transactions removed by this call, possibly empty.
+     */
+    List<T> removeIf(Predicate<? super T> filter)
+    {
+        List<T> removed = null;
+
+        for (Map.Entry<TransactionKey, T> e : transactions.entrySet())
+        {
+            T transaction = e.getValue();
+
+            if (filter.test(transaction)
+                    && transactions.remove(e.getKey(), transaction))
+            {
+                if (removed == null)
+                    removed = new ArrayList<>();
+                removed.add(transaction);
+            }
+        }
+        return (removed == null) ? Collections.emptyList() : removed;
+    }
+
+    /**
+     * Removes all transactions.
+     *
+     * @return the transactions removed by this call.
+     */
+    List<T> removeAll()
+    {
+        return removeIf(transaction -> true);
+    }
+
+    /**
+     * Returns the number of transactions. The value is an estimate while
+     * transactions are being added or removed concurrently.
+     *
+     * @return the number of transactions.
+     */
+    int size()
+    {
+        return transactions.size();
+    }
+
+    /**
+     * Returns whether there are no transactions.
+     *
+     * @return <tt>true</tt> if there are no transactions.
+     */
+    boolean isEmpty()
+    {
+        return transactions.isEmpty();
+    }
+
+    /**
+     * Returns the IDs of the transactions, for logging.
+     *
+     * @return the IDs of the transactions.
+     */
+    @Override
+    public String toString()
+    {
+        return transactions.keySet().toString();
+    }
+}
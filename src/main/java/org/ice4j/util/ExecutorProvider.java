@@ -0,0 +1,51 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.util;
+
+import java.util.concurrent.*;
+
+/**
+ * Creates the executors which ice4j uses internally, e.g. to process received
+ * STUN messages, retransmit requests, run agent tasks and gather candidates.
+ * An application which embeds ice4j can provide its own implementation, for
+ * example to bound the total number of threads, either through the
+ * <tt>ice4j.executors.provider</tt> configuration property or with
+ * {@link Ice4jExecutors#setProvider(ExecutorProvider)}.
+ * <p>
+ * Executors are created once, when the components which use them are
+ * initialized, and are never shut down by ice4j.
+ */
+public interface ExecutorProvider
+{
+    /**
+     * Creates an executor for tasks which may block, e.g. on network I/O.
+     *
+     * @param name the prefix of the names of the threads of the executor.
+     * @return a new executor.
+     */
+    ExecutorService newExecutor(String name);
+
+    /**
+     * Creates an executor which runs short tasks after a delay or
+     * periodically.
+     *
+     * @param name the prefix of the names of the threads of the executor.
+     * @return a new scheduled executor.
+     */
+    ScheduledExecutorService newScheduledExecutor(String name);
+}
@@ -0,0 +1,529 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/**
+ * A hashed timing wheel. Timeouts are hashed into a fixed number of buckets
+ * by their deadline, which makes scheduling and cancelling them O(1)
+ * regardless of how many are outstanding, at the price of a precision of
+ * one tick. Expired timeouts are run on the single thread of the wheel, so
+ * their tasks should be short or hand off to an executor.
+ * <p>
+ * Scheduling and cancelling from other threads only enqueues the timeout;
+ * the buckets themselves are only accessed by the thread of the wheel.
+ */
+public class HashedWheelTimer
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>HashedWheelTimer</tt> class and
+     * its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HashedWheelTimer.class.getName());
+
+    /**
+     * The maximum number of newly scheduled timeouts moved into the buckets
+     * per tick, so that a burst of scheduling cannot stall expiration.
+     */
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+    /**
+     * The duration of a tick in nanoseconds.
+     */
+    private final long tickNanos;
+
+    /**
+     * The buckets of the wheel.
+     */
+    private final Bucket[] wheel;
+
+    /**
+     * The mask to map a tick to the index of its bucket.
+     */
+    private final int mask;
+
+    /**
+     * Timeouts which have been scheduled but not yet moved into a bucket.
+     */
+    private final Queue<Timeout> pendingTimeouts
+        = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Timeouts which have been cancelled and have to be removed from their
+     * bucket.
+     */
+    private final Queue<Timeout> cancelledTimeouts
+        = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of timeouts which are scheduled and have neither expired nor
+     * been cancelled.
+     */
+    private final AtomicLong pendingCount = new AtomicLong();
+
+    /**
+     * The value of {@link System#nanoTime()} when the wheel was started.
+     * Deadlines are relative to it.
+     */
+    private final long startTime;
+
+    /**
+     * The thread which advances the wheel.
+     */
+    private final Thread worker;
+
+    /**
+     * Whether {@link #stop()} has been called.
+     */
+    private volatile boolean stopped;
+
+    /**
+     * The number of ticks elapsed. Only accessed by {@link #worker}.
+     */
+    private long tick;
+
+    /**
+     * Creates a wheel and starts its thread.
+     *
+     * @param name the name of the thread of the wheel.
+     * @param tickDuration the duration of a tick.
+     * @param unit the unit of <tt>tickDuration</tt>.
+     * @param wheelSize the number of buckets, rounded up to a power of two.
+     */
+    public HashedWheelTimer(
+        String name,
+        long tickDuration,
+        TimeUnit unit,
+        int wheelSize)
+    {
+        if (tickDuration <= 0)
+        {
+            throw new IllegalArgumentException(
+                "tickDuration must be positive: " + tickDuration);
+        }
+        if (wheelSize <= 0 || wheelSize > (1 << 30))
+        {
+            throw new IllegalArgumentException(
+                "wheelSize out of range: " + wheelSize);
+        }
+
+        int size = Integer.highestOneBit(wheelSize);
+
+        if (size < wheelSize)
+        {
+            size <<= 1;
+        }
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++)
+        {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+        tickNanos = unit.toNanos(tickDuration);
+        startTime = System.nanoTime();
+
+        worker = new Thread(this::runWorker, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedules a task to be run once on the thread of this wheel after a
+     * specific delay.
+     *
+     * @param task the task to run.
+     * @param delay the delay, rounded up to the next tick.
+     * @param unit the unit of <tt>delay</tt>.
+     * @return a handle which allows to cancel the task.
+     * @throws RejectedExecutionException if this wheel has been stopped.
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit)
+    {
+        if (task == null)
+        {
+            throw new IllegalArgumentException("task is null");
+        }
+        if (stopped)
+        {
+            throw new RejectedExecutionException("Timer stopped");
+        }
+
+        long deadline
+            = System.nanoTime() + Math.max(0, unit.toNanos(delay)) - startTime;
+        Timeout timeout = new Timeout(this, task, deadline);
+
+        pendingCount.incrementAndGet();
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Returns the number of timeouts which are scheduled and have neither
+     * expired nor been cancelled.
+     *
+     * @return the number of outstanding timeouts.
+     */
+    public long getPendingTimeouts()
+    {
+        return pendingCount.get();
+    }
+
+    /**
+     * Stops the thread of this wheel. Outstanding timeouts are not run.
+     */
+    public void stop()
+    {
+        stopped = true;
+        worker.interrupt();
+    }
+
+    /**
+     * Advances the wheel tick by tick until {@link #stop()} is called.
+     */
+    private void runWorker()
+    {
+        while (!stopped)
+        {
+            long now = waitForNextTick();
+
+            if (now < 0)
+            {
+                break;
+            }
+
+            removeCancelledTimeouts();
+            transferPendingTimeouts();
+            wheel[(int) (tick & mask)].expireTimeouts(now);
+            tick++;
+        }
+    }
+
+    /**
+     * Sleeps until the end of the current tick.
+     *
+     * @return the time relative to {@link #startTime} at the end of the
+     * tick, or <tt>-1</tt> if the wheel was stopped while sleeping.
+     */
+    private long waitForNextTick()
+    {
+        long deadline = tickNanos * (tick + 1);
+
+        while (true)
+        {
+            long now = System.nanoTime() - startTime;
+            long sleepNanos = deadline - now;
+
+            if (sleepNanos <= 0)
+            {
+                return now;
+            }
+            try
+            {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            }
+            catch (InterruptedException ie)
+            {
+                if (stopped)
+                {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves newly scheduled timeouts into the buckets of their deadlines.
+     */
+    private void transferPendingTimeouts()
+    {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++)
+        {
+            Timeout timeout = pendingTimeouts.poll();
+
+            if (timeout == null)
+            {
+                break;
+            }
+            if (timeout.isCancelled())
+            {
+                continue;
+            }
+
+            long expirationTick = timeout.deadline / tickNanos;
+
+            timeout.remainingRounds = (expirationTick - tick) / wheel.length;
+
+            // Timeouts which are already due go to the current bucket.
+            long bucketTick = Math.max(expirationTick, tick);
+
+            wheel[(int) (bucketTick & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * Removes cancelled timeouts from their buckets.
+     */
+    private void removeCancelledTimeouts()
+    {
+        Timeout timeout;
+
+        while ((timeout = cancelledTimeouts.poll()) != null)
+        {
+            if (timeout.bucket != null)
+            {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    /**
+     * A task scheduled on a {@link HashedWheelTimer}.
+     */
+    public static final class Timeout
+    {
+        /**
+         * The state of a timeout which has neither expired nor been
+         * cancelled.
+         */
+        private static final int ST_INIT = 0;
+
+        /**
+         * The state of a cancelled timeout.
+         */
+        private static final int ST_CANCELLED = 1;
+
+        /**
+         * The state of an expired timeout.
+         */
+        private static final int ST_EXPIRED = 2;
+
+        /**
+         * Updates {@link #state}.
+         */
+        private static final AtomicIntegerFieldUpdater<Timeout> stateUpdater
+            = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        /**
+         * The wheel that this timeout is scheduled on.
+         */
+        private final HashedWheelTimer timer;
+
+        /**
+         * The task to run when this timeout expires.
+         */
+        private final Runnable task;
+
+        /**
+         * The deadline of this timeout relative to the start of
+         * {@link #timer}, in nanoseconds.
+         */
+        private final long deadline;
+
+        /**
+         * The state of this timeout.
+         */
+        private volatile int state = ST_INIT;
+
+        /**
+         * The number of revolutions of the wheel left before this timeout
+         * expires. Only accessed by the thread of {@link #timer}.
+         */
+        private long remainingRounds;
+
+        /**
+         * The bucket that this timeout is in, and its neighbours there. Only
+         * accessed by the thread of {@link #timer}.
+         */
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout prev;
+
+        /**
+         * Creates a timeout.
+         *
+         * @param timer the wheel that the timeout is scheduled on.
+         * @param task the task to run when the timeout expires.
+         * @param deadline the deadline of the timeout.
+         */
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadline)
+        {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels this timeout so that its task is not run.
+         *
+         * @return <tt>true</tt> if this call cancelled the timeout,
+         * <tt>false</tt> if it had already expired or been cancelled.
+         */
+        public boolean cancel()
+        {
+            if (!stateUpdater.compareAndSet(this, ST_INIT, ST_CANCELLED))
+            {
+                return false;
+            }
+            timer.pendingCount.decrementAndGet();
+            timer.cancelledTimeouts.add(this);
+            return true;
+        }
+
+        /**
+         * Returns whether this timeout has been cancelled.
+         *
+         * @return <tt>true</tt> if this timeout has been cancelled.
+         */
+        public boolean isCancelled()
+        {
+            return state == ST_CANCELLED;
+        }
+
+        /**
+         * Returns whether this timeout has expired, i.e. its task has been
+         * run or is running.
+         *
+         * @return <tt>true</tt> if this timeout has expired.
+         */
+        public boolean isExpired()
+        {
+            return state == ST_EXPIRED;
+        }
+
+        /**
+         * Runs the task of this timeout unless it has been cancelled.
+         */
+        private void expire()
+        {
+            if (!stateUpdater.compareAndSet(this, ST_INIT, ST_EXPIRED))
+            {
+                return;
+            }
+            timer.pendingCount.decrementAndGet();
+            try
+            {
+                task.run();
+            }
+            catch (Throwable t)
+            {
+                logger.log(Level.WARNING, "Timeout task threw", t);
+            }
+        }
+    }
+
+    /**
+     * A doubly linked list of the timeouts which hash to the same slot of
+     * the wheel. Only accessed by the thread of the wheel.
+     */
+    private static final class Bucket
+    {
+        private Timeout head;
+        private Timeout tail;
+
+        /**
+         * Appends a timeout to this bucket.
+         *
+         * @param timeout the timeout to append.
+         */
+        void add(Timeout timeout)
+        {
+            timeout.bucket = this;
+            if (head == null)
+            {
+                head = tail = timeout;
+            }
+            else
+            {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        /**
+         * Unlinks a timeout from this bucket.
+         *
+         * @param timeout the timeout to remove.
+         * @return the timeout which followed <tt>timeout</tt>.
+         */
+        Timeout remove(Timeout timeout)
+        {
+            Timeout next = timeout.next;
+
+            if (timeout.prev != null)
+            {
+                timeout.prev.next = next;
+            }
+            if (next != null)
+            {
+                next.prev = timeout.prev;
+            }
+            if (timeout == head)
+            {
+                head = next;
+            }
+            if (timeout == tail)
+            {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+
+        /**
+         * Runs the timeouts of this bucket which are due in the current
+         * revolution of the wheel.
+         *
+         * @param now the time relative to the start of the wheel.
+         */
+        void expireTimeouts(long now)
+        {
+            Timeout timeout = head;
+
+            while (timeout != null)
+            {
+                if (timeout.remainingRounds <= 0 && timeout.deadline <= now)
+                {
+                    Timeout next = remove(timeout);
+
+                    timeout.expire();
+                    timeout = next;
+                }
+                else if (timeout.isCancelled())
+                {
+                    timeout = remove(timeout);
+                }
+                else
+                {
+                    if (timeout.remainingRounds > 0)
+                    {
+                        timeout.remainingRounds--;
+                    }
+                    timeout = timeout.next;
+                }
+            }
+        }
+    }
+}
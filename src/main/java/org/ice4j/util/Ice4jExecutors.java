@@ -0,0 +1,166 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.util;
+
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * Gives the components of ice4j their executors from a single
+ * {@link ExecutorProvider}. The provider is configured with the
+ * <tt>ice4j.executors.provider</tt> property, which is either "platform",
+ * "virtual" or the name of a class implementing <tt>ExecutorProvider</tt>
+ * with a public no-argument constructor. An application may instead set a
+ * provider with {@link #setProvider(ExecutorProvider)}, before any ice4j
+ * component creates its executors.
+ */
+public final class Ice4jExecutors
+{
+    /**
+     * Our class logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(Ice4jExecutors.class.getName());
+
+    /**
+     * The provider of the executors, or <tt>null</tt> until it is set or
+     * first needed.
+     */
+    private static ExecutorProvider provider;
+
+    /**
+     * Whether {@link #provider} has created executors already.
+     */
+    private static boolean used;
+
+    /**
+     * Prevents the initialization of <tt>Ice4jExecutors</tt> instances.
+     */
+    private Ice4jExecutors()
+    {
+    }
+
+    /**
+     * Sets the provider of the executors of ice4j.
+     *
+     * @param provider the provider.
+     * @throws IllegalStateException if executors have already been created by
+     * another provider, because the components which own them would keep
+     * using them.
+     */
+    public static synchronized void setProvider(ExecutorProvider provider)
+    {
+        if (provider == null)
+            throw new NullPointerException("provider");
+        if (used && provider != Ice4jExecutors.provider)
+        {
+            throw new IllegalStateException(
+                    "ice4j executors have already been created by "
+                        + Ice4jExecutors.provider);
+        }
+        Ice4jExecutors.provider = provider;
+    }
+
+    /**
+     * Returns the provider of the executors of ice4j, creating the configured
+     * one if none has been set.
+     *
+     * @return the provider of the executors of ice4j.
+     */
+    public static synchronized ExecutorProvider getProvider()
+    {
+        if (provider == null)
+            provider = createProvider(ExecutorsConfig.config.provider());
+        return provider;
+    }
+
+    /**
+     * Creates an executor for tasks which may block.
+     *
+     * @param name the prefix of the names of the threads of the executor.
+     * @return a new executor.
+     * @see ExecutorProvider#newExecutor(String)
+     */
+    public static ExecutorService newExecutor(String name)
+    {
+        return use().newExecutor(name);
+    }
+
+    /**
+     * Creates an executor which runs short tasks after a delay or
+     * periodically.
+     *
+     * @param name the prefix of the names of the threads of the executor.
+     * @return a new scheduled executor.
+     * @see ExecutorProvider#newScheduledExecutor(String)
+     */
+    public static ScheduledExecutorService newScheduledExecutor(String name)
+    {
+        return use().newScheduledExecutor(name);
+    }
+
+    /**
+     * Returns the provider and records that it has created executors.
+     *
+     * @return the provider.
+     */
+    private static synchronized ExecutorProvider use()
+    {
+        ExecutorProvider provider = getProvider();
+
+        used = true;
+        return provider;
+    }
+
+    /**
+     * Creates a provider as configured.
+     *
+     * @param name "platform", "virtual" or the name of a class implementing
+     * <tt>ExecutorProvider</tt>.
+     * @return the provider.
+     * @throws IllegalArgumentException if a provider class cannot be
+     * instantiated.
+     */
+    static ExecutorProvider createProvider(String name)
+    {
+        switch (name)
+        {
+        case "platform":
+            return new PlatformExecutorProvider();
+        case "virtual":
+            if (VirtualThreadExecutorProvider.isSupported())
+                return new VirtualThreadExecutorProvider();
+            logger.warning("Virtual threads are not supported by this JVM,"
+                    + " using platform threads.");
+            return new PlatformExecutorProvider();
+        default:
+            try
+            {
+                return
+                    (ExecutorProvider)
+                        Class.forName(name).getDeclaredConstructor()
+                            .newInstance();
+            }
+            catch (ReflectiveOperationException | ClassCastException e)
+            {
+                throw new IllegalArgumentException(
+                        "Invalid executor provider: " + name, e);
+            }
+        }
+    }
+}
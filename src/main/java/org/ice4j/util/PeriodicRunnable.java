@@ -6,19 +6,41 @@ import java.util.concurrent.*;
 /**
  * A base class for runnables which should be periodically executed on
  * specified executor service.
+ * <p>
+ * Runs are either timed by a <tt>ScheduledExecutorService</tt> or by a
+ * {@link HashedWheelTimer}. Instances created with a timer and an executor
+ * use the shared timing wheel instead when the
+ * <tt>ice4j.periodic-runnable.scheduler</tt> property is set to
+ * <tt>timing-wheel</tt>, optionally running on the thread of the wheel
+ * instead of the executor.
  *
  * @author Yura Yaroshevich
  */
 public abstract class PeriodicRunnable
 {
+    /**
+     * The value of {@link #submittedExecute} while {@link #run()} executes
+     * inline on the thread of {@link #wheel}.
+     */
+    private static final Future<?> INLINE_EXECUTION
+        = CompletableFuture.completedFuture(null);
+
     /**
      * A timer to perform periodic scheduling of {@link #run()} execution
-     * on {@link #executor}'s thread.
+     * on {@link #executor}'s thread, or <tt>null</tt> if {@link #wheel} is
+     * used instead.
      */
     private final ScheduledExecutorService timer;
 
     /**
-     * An executor service to perform actual execution of {@link #run()}.
+     * A timing wheel to perform periodic scheduling of {@link #run()}, or
+     * <tt>null</tt> if {@link #timer} is used instead.
+     */
+    private final HashedWheelTimer wheel;
+
+    /**
+     * An executor service to perform actual execution of {@link #run()}, or
+     * <tt>null</tt> to execute it on the thread of {@link #wheel}.
      */
     private final ExecutorService executor;
 
@@ -39,6 +61,11 @@ public abstract class PeriodicRunnable
      */
     private ScheduledFuture<?> scheduledSubmit;
 
+    /**
+     * Store a reference to last runnable submitted to {@link #wheel}
+     */
+    private HashedWheelTimer.Timeout scheduledTimeout;
+
     /**
      * Store a reference to last runnable submitted to {@link #executor}
      */
@@ -64,7 +91,39 @@ public abstract class PeriodicRunnable
         {
             throw new IllegalArgumentException("executor is null");
         }
-        this.timer = timer;
+        if (SharedTimingWheel.ENABLED)
+        {
+            this.timer = null;
+            this.wheel = SharedTimingWheel.WHEEL;
+            this.executor = SharedTimingWheel.RUN_INLINE ? null : executor;
+        }
+        else
+        {
+            this.timer = timer;
+            this.wheel = null;
+            this.executor = executor;
+        }
+    }
+
+    /**
+     * Create instance of {@link PeriodicRunnable} scheduled by a timing wheel.
+     * @param wheel a {@link HashedWheelTimer} which is used to periodic
+     *              triggering of {@link #run()} execution.
+     * @param executor an {@link ExecutorService} to perform actual execution
+     *                 of {@link #run()}, or <tt>null</tt> to execute it on
+     *                 the thread of <tt>wheel</tt>, which is only suitable
+     *                 for short, non-blocking runs.
+     */
+    protected PeriodicRunnable(
+        HashedWheelTimer wheel,
+        ExecutorService executor)
+    {
+        if (wheel == null)
+        {
+            throw new IllegalArgumentException("wheel is null");
+        }
+        this.timer = null;
+        this.wheel = wheel;
         this.executor = executor;
     }
 
@@ -121,6 +180,12 @@ public abstract class PeriodicRunnable
                     scheduledSubmit = null;
                 }
 
+                if (scheduledTimeout != null)
+                {
+                    scheduledTimeout.cancel();
+                    scheduledTimeout = null;
+                }
+
                 if (submittedExecute != null)
                 {
                     submittedExecute.cancel(true);
@@ -150,16 +215,26 @@ public abstract class PeriodicRunnable
             {
                 running = false;
                 scheduledSubmit = null;
+                scheduledTimeout = null;
                 submittedExecute = null;
                 return;
             }
 
             running = true;
 
-            if (delay.isZero())
+            if (delay.isZero() && executor != null)
             {
                 submitExecuteRun();
             }
+            else if (wheel != null)
+            {
+                // Inline runs always go through the wheel, so that they do
+                // not execute on the thread which called schedule().
+                scheduledTimeout = wheel.newTimeout(
+                    this::submitExecuteRun,
+                    delay.toNanos(),
+                    TimeUnit.NANOSECONDS);
+            }
             else
             {
                 scheduledSubmit = timer.schedule(
@@ -186,8 +261,19 @@ public abstract class PeriodicRunnable
             {
                 return;
             }
-            submittedExecute = this.executor.submit(this::executeRun);
+            if (executor == null)
+            {
+                submittedExecute = INLINE_EXECUTION;
+            }
+            else
+            {
+                submittedExecute = this.executor.submit(this::executeRun);
+                return;
+            }
         }
+        // Execute inline outside of syncRoot so that cancel() does not block
+        // on the run.
+        executeRun();
     }
 
     /**
@@ -249,4 +335,46 @@ public abstract class PeriodicRunnable
             }
         };
     }
+
+    /**
+     * The timing wheel shared by the instances created with a timer and an
+     * executor while the timing wheel scheduler is configured. The
+     * configuration is read once, when an instance is first created.
+     */
+    private static final class SharedTimingWheel
+    {
+        /**
+         * Whether the timing wheel scheduler is configured.
+         */
+        static final boolean ENABLED
+            = PeriodicRunnableConfig.config.useTimingWheel();
+
+        /**
+         * Whether runs should execute on the thread of the wheel.
+         */
+        static final boolean RUN_INLINE
+            = ENABLED && PeriodicRunnableConfig.config.timingWheelRunInline();
+
+        /**
+         * The shared wheel, or <tt>null</tt> if the timing wheel scheduler is
+         * not configured.
+         */
+        static final HashedWheelTimer WHEEL = ENABLED ? createWheel() : null;
+
+        /**
+         * Creates the shared wheel as configured.
+         *
+         * @return the shared wheel.
+         */
+        private static HashedWheelTimer createWheel()
+        {
+            PeriodicRunnableConfig config = PeriodicRunnableConfig.config;
+
+            return new HashedWheelTimer(
+                "ice4j.PeriodicRunnable-wheel",
+                config.timingWheelTick().toNanos(),
+                TimeUnit.NANOSECONDS,
+                config.timingWheelSize());
+        }
+    }
 }
@@ -0,0 +1,48 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.util;
+
+import java.util.concurrent.*;
+
+import org.jitsi.utils.concurrent.*;
+
+/**
+ * The default {@link ExecutorProvider}: cached pools of daemon platform
+ * threads and single-threaded schedulers whose thread exits when idle.
+ */
+public class PlatformExecutorProvider
+    implements ExecutorProvider
+{
+    /**
+     * The time after which an idle scheduler thread exits.
+     */
+    private static final int SCHEDULER_KEEP_ALIVE_SECONDS = 60;
+
+    @Override
+    public ExecutorService newExecutor(String name)
+    {
+        return ExecutorFactory.createCachedThreadPool(name);
+    }
+
+    @Override
+    public ScheduledExecutorService newScheduledExecutor(String name)
+    {
+        return ExecutorFactory.createSingleThreadScheduledExecutor(
+                name, SCHEDULER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+    }
+}
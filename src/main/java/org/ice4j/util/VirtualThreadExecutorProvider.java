@@ -0,0 +1,165 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.util;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+
+/**
+ * An {@link ExecutorProvider} which runs tasks on virtual threads, so that
+ * blocking tasks do not need a platform thread each. Virtual threads require
+ * Java 21 or later; ice4j itself targets Java 11, so they are created through
+ * reflection and {@link #isSupported()} tells whether the running JVM
+ * provides them.
+ * <p>
+ * An idle virtual thread is reused for the next task rather than starting a
+ * new one per task. The stack keeps per-thread caches on its message path,
+ * e.g. keyed HMAC-SHA1 engines, CRC32 instances and encoding buffers, which
+ * would otherwise be rebuilt for every message.
+ * <p>
+ * Schedulers keep one virtual thread which waits for the next due task.
+ */
+public class VirtualThreadExecutorProvider
+    implements ExecutorProvider
+{
+    /**
+     * The time after which an idle virtual thread exits.
+     */
+    private static final int KEEP_ALIVE_SECONDS = 60;
+
+    /**
+     * <tt>Thread.ofVirtual()</tt>, or <tt>null</tt> if the running JVM does
+     * not support virtual threads.
+     */
+    private static final Method OF_VIRTUAL;
+
+    /**
+     * <tt>Thread.Builder.name(String, long)</tt>.
+     */
+    private static final Method NAME;
+
+    /**
+     * <tt>Thread.Builder.factory()</tt>.
+     */
+    private static final Method FACTORY;
+
+    static
+    {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+
+        try
+        {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+
+            // Virtual threads are a preview feature before Java 21, in which
+            // case this throws.
+            ofVirtual.invoke(null);
+        }
+        catch (ReflectiveOperationException | RuntimeException e)
+        {
+            ofVirtual = null;
+        }
+
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+    }
+
+    /**
+     * Determines whether the running JVM supports virtual threads.
+     *
+     * @return <tt>true</tt> if virtual threads are supported.
+     */
+    public static boolean isSupported()
+    {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Creates a provider of virtual thread executors.
+     *
+     * @throws UnsupportedOperationException if the running JVM does not
+     * support virtual threads.
+     */
+    public VirtualThreadExecutorProvider()
+    {
+        if (!isSupported())
+        {
+            throw new UnsupportedOperationException(
+                    "Virtual threads require Java 21 or later.");
+        }
+    }
+
+    /**
+     * Creates a factory of virtual threads.
+     *
+     * @param name the prefix of the names of the threads.
+     * @return the new factory.
+     */
+    static ThreadFactory newThreadFactory(String name)
+    {
+        try
+        {
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name, 0L);
+
+            return (ThreadFactory) FACTORY.invoke(builder);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates an unbounded executor which reuses its idle threads.
+     *
+     * @param threadFactory the factory of the threads.
+     * @return the new executor.
+     */
+    static ExecutorService newReusingExecutor(ThreadFactory threadFactory)
+    {
+        return
+            new ThreadPoolExecutor(
+                    0, Integer.MAX_VALUE,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(),
+                    threadFactory);
+    }
+
+    @Override
+    public ExecutorService newExecutor(String name)
+    {
+        return newReusingExecutor(newThreadFactory(name));
+    }
+
+    @Override
+    public ScheduledExecutorService newScheduledExecutor(String name)
+    {
+        ScheduledThreadPoolExecutor executor
+            = new ScheduledThreadPoolExecutor(1, newThreadFactory(name));
+
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+}
@@ -72,6 +72,22 @@ class AgentConfig {
         "ice4j.use-component-socket".from(configSource)
     }
 
+    /**
+     * Whether the sockets merged by the per-component socket should push their packets into a single queue, on the
+     * threads which already read them for the STUN stack, instead of being read by a thread each.
+     */
+    val pushComponentSocket: Boolean by config {
+        "ice4j.push-component-socket".from(configSource)
+    }
+
+    /**
+     * Whether [Agent]s which are not given a [org.ice4j.stack.StunStack] should all use one shared stack instead of
+     * creating one each. The agents sharing a stack are told apart by their local ufrags.
+     */
+    val useSharedStunStack: Boolean by config {
+        "ice4j.ice.shared-stun-stack".from(configSource)
+    }
+
     companion object {
         @JvmField
         val config = AgentConfig()
@@ -0,0 +1,138 @@
+/*
+ * Copyright @ 2020 - Present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ice4j.stack
+
+import org.jitsi.metaconfig.config
+import org.jitsi.config.JitsiConfig.Companion.newConfig as configSource
+
+class StackConfig {
+    /**
+     * Whether sockets which are backed by a [java.nio.channels.SelectableChannel] should be read by a shared set of
+     * selector threads instead of a dedicated [Connector] thread per socket. The channel is put in non-blocking mode,
+     * so the stack has to own such a socket: only the stack may receive from it and, apart from sending through its
+     * UDP [org.ice4j.socket.IceSocketWrapper], blocking operations on it fail with
+     * [java.nio.channels.IllegalBlockingModeException].
+     */
+    val useSelectorConnectors: Boolean by config {
+        "ice4j.stack.selector-connectors.enabled".from(configSource)
+    }
+    fun useSelectorConnectors() = useSelectorConnectors
+
+    /**
+     * The number of selector threads shared by all [NetAccessManager]s when [useSelectorConnectors] is enabled.
+     */
+    val selectorConnectorThreads: Int by config {
+        "ice4j.stack.selector-connectors.threads".from(configSource)
+    }
+    fun selectorConnectorThreads() = selectorConnectorThreads
+
+    /**
+     * Whether messages should be put in a bounded per-socket [SendQueue] and sent by a shared pool of threads instead
+     * of being sent on the thread which sends them.
+     */
+    val useSendQueue: Boolean by config {
+        "ice4j.stack.send-queue.enabled".from(configSource)
+    }
+    fun useSendQueue() = useSendQueue
+
+    /**
+     * The maximum number of messages waiting in the [SendQueue] of a socket.
+     */
+    val sendQueueCapacity: Int by config {
+        "ice4j.stack.send-queue.capacity".from(configSource)
+    }
+    fun sendQueueCapacity() = sendQueueCapacity
+
+    /**
+     * What a [SendQueue] does with messages sent while it is full: "drop-newest", "drop-oldest" or "reject".
+     */
+    val sendQueueOverflowPolicy: String by config {
+        "ice4j.stack.send-queue.overflow-policy".from(configSource)
+    }
+    fun sendQueueOverflowPolicy() = sendQueueOverflowPolicy
+
+    /**
+     * Whether received datagrams should pass an [AdmissionController] (a STUN header check and per-source and
+     * stack-wide rate limits) before they are decoded.
+     */
+    val useAdmissionControl: Boolean by config {
+        "ice4j.stack.admission.enabled".from(configSource)
+    }
+    fun useAdmissionControl() = useAdmissionControl
+
+    /**
+     * The number of messages per second admitted from a single source IP address, or 0 for no limit.
+     */
+    val admissionSourceRate: Int by config {
+        "ice4j.stack.admission.per-source.rate".from(configSource)
+    }
+    fun admissionSourceRate() = admissionSourceRate
+
+    /**
+     * The number of messages from a single source IP address which may be admitted at once.
+     */
+    val admissionSourceBurst: Int by config {
+        "ice4j.stack.admission.per-source.burst".from(configSource)
+    }
+    fun admissionSourceBurst() = admissionSourceBurst
+
+    /**
+     * The maximum number of source IP addresses whose rate is tracked by each stack.
+     */
+    val admissionMaxSources: Int by config {
+        "ice4j.stack.admission.per-source.max-sources".from(configSource)
+    }
+    fun admissionMaxSources() = admissionMaxSources
+
+    /**
+     * The number of messages per second admitted by a stack in total, or 0 for no limit.
+     */
+    val admissionGlobalRate: Int by config {
+        "ice4j.stack.admission.global.rate".from(configSource)
+    }
+    fun admissionGlobalRate() = admissionGlobalRate
+
+    /**
+     * The number of messages which a stack may admit at once in total.
+     */
+    val admissionGlobalBurst: Int by config {
+        "ice4j.stack.admission.global.burst".from(configSource)
+    }
+    fun admissionGlobalBurst() = admissionGlobalBurst
+
+    /**
+     * The number of lanes on which received messages are processed, hashed by remote address so that the messages of
+     * a peer are processed in order, one at a time. 0 processes messages in no particular order.
+     */
+    val messageProcessingLanes: Int by config {
+        "ice4j.stack.message-processing.lanes".from(configSource)
+    }
+    fun messageProcessingLanes() = messageProcessingLanes
+
+    /**
+     * The maximum number of idle [MessageProcessingTask]s which each [NetAccessManager] keeps for reuse.
+     */
+    val messageProcessingTaskPoolSize: Int by config {
+        "ice4j.stack.message-processing.task-pool-size".from(configSource)
+    }
+    fun messageProcessingTaskPoolSize() = messageProcessingTaskPoolSize
+
+    companion object {
+        @JvmField
+        val config = StackConfig()
+    }
+}
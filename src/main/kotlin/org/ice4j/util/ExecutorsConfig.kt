@@ -0,0 +1,35 @@
+/*
+ * Copyright @ 2020 - Present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ice4j.util
+
+import org.jitsi.metaconfig.config
+import org.jitsi.config.JitsiConfig.Companion.newConfig as configSource
+
+class ExecutorsConfig {
+    /**
+     * The [ExecutorProvider] which creates the executors of ice4j: "platform", "virtual" or the name of a class.
+     */
+    val provider: String by config {
+        "ice4j.executors.provider".from(configSource)
+    }
+    fun provider() = provider
+
+    companion object {
+        @JvmField
+        val config = ExecutorsConfig()
+    }
+}
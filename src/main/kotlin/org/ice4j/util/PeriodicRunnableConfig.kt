@@ -0,0 +1,68 @@
+/*
+ * Copyright @ 2020 - Present, 8x8 Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ice4j.util
+
+import org.jitsi.metaconfig.config
+import java.time.Duration
+import org.jitsi.config.JitsiConfig.Companion.newConfig as configSource
+
+class PeriodicRunnableConfig {
+    /**
+     * Whether [PeriodicRunnable]s created with a timer and an executor should instead be scheduled on a shared
+     * [HashedWheelTimer].
+     */
+    val useTimingWheel: Boolean by config {
+        "ice4j.periodic-runnable.scheduler".from(configSource).convertFrom<String> {
+            when (it.lowercase()) {
+                "executor" -> false
+                "timing-wheel" -> true
+                else -> throw IllegalArgumentException("Unknown periodic-runnable scheduler: $it")
+            }
+        }
+    }
+    fun useTimingWheel() = useTimingWheel
+
+    /**
+     * The duration of a tick of the shared [HashedWheelTimer].
+     */
+    val timingWheelTick: Duration by config {
+        "ice4j.periodic-runnable.timing-wheel.tick".from(configSource)
+    }
+    fun timingWheelTick() = timingWheelTick
+
+    /**
+     * The number of buckets of the shared [HashedWheelTimer].
+     */
+    val timingWheelSize: Int by config {
+        "ice4j.periodic-runnable.timing-wheel.size".from(configSource)
+    }
+    fun timingWheelSize() = timingWheelSize
+
+    /**
+     * Whether [PeriodicRunnable]s scheduled on the shared [HashedWheelTimer] should run on the thread of the wheel
+     * instead of being handed to their executor.
+     */
+    val timingWheelRunInline: Boolean by config {
+        "ice4j.periodic-runnable.timing-wheel.run-inline".from(configSource)
+    }
+    fun timingWheelRunInline() = timingWheelRunInline
+
+    companion object {
+        @JvmField
+        val config = PeriodicRunnableConfig()
+    }
+}
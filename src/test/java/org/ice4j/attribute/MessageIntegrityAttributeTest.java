@@ -0,0 +1,191 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.attribute;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.*;
+import java.util.*;
+
+import org.ice4j.*;
+import org.ice4j.message.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests the verification of the MESSAGE-INTEGRITY and FINGERPRINT attributes
+ * of received messages in place.
+ */
+public class MessageIntegrityAttributeTest
+{
+    private static final byte[] KEY
+        = "secret-password".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * The index of the MESSAGE-INTEGRITY attribute in {@link #message}.
+     */
+    private static final int MI_LOCATION = 36;
+
+    /**
+     * The index of the FINGERPRINT attribute in {@link #message}.
+     */
+    private static final int FP_LOCATION = 60;
+
+    /**
+     * A Binding request carrying USERNAME, MESSAGE-INTEGRITY and FINGERPRINT,
+     * encoded by hand.
+     */
+    private byte[] message;
+
+    @BeforeEach
+    public void setUp()
+    {
+        message = new byte[FP_LOCATION + 8];
+
+        // Header: Binding request, length, magic cookie, transaction ID.
+        message[1] = 0x01;
+        message[3] = (byte) (message.length - Message.HEADER_LENGTH);
+        System.arraycopy(Message.MAGIC_COOKIE, 0, message, 4, 4);
+        for (int i = 8; i < Message.HEADER_LENGTH; i++)
+            message[i] = (byte) i;
+
+        // USERNAME "alice:bob", padded to 12 bytes.
+        message[20] = (byte) (Attribute.USERNAME >> 8);
+        message[21] = (byte) Attribute.USERNAME;
+        message[23] = 9;
+        System.arraycopy(
+            "alice:bob".getBytes(StandardCharsets.UTF_8), 0, message, 24, 9);
+
+        // MESSAGE-INTEGRITY, computed with the message length ending after it.
+        message[MI_LOCATION] = (byte) (Attribute.MESSAGE_INTEGRITY >> 8);
+        message[MI_LOCATION + 1] = (byte) Attribute.MESSAGE_INTEGRITY;
+        message[MI_LOCATION + 3] = MessageIntegrityAttribute.DATA_LENGTH;
+
+        byte[] signed = Arrays.copyOf(message, MI_LOCATION);
+
+        signed[3] = (byte) (MI_LOCATION + 24 - Message.HEADER_LENGTH);
+        System.arraycopy(
+            MessageIntegrityAttribute.calculateHmacSha1(
+                signed, 0, signed.length, KEY),
+            0,
+            message, MI_LOCATION + 4,
+            MessageIntegrityAttribute.DATA_LENGTH);
+
+        // FINGERPRINT over the whole message preceding it.
+        message[FP_LOCATION] = (byte) (Attribute.FINGERPRINT >> 8);
+        message[FP_LOCATION + 1] = (byte) Attribute.FINGERPRINT;
+        message[FP_LOCATION + 3] = 4;
+        System.arraycopy(
+            FingerprintAttribute.calculateXorCRC32(message, 0, FP_LOCATION),
+            0,
+            message, FP_LOCATION + 4,
+            4);
+    }
+
+    private byte[] receivedHmac()
+    {
+        return Arrays.copyOfRange(
+            message,
+            MI_LOCATION + 4,
+            MI_LOCATION + 4 + MessageIntegrityAttribute.DATA_LENGTH);
+    }
+
+    @Test
+    public void testVerifyHmacSha1InPlace()
+    {
+        byte[] original = message.clone();
+
+        assertTrue(
+            MessageIntegrityAttribute.verifyHmacSha1(
+                message, 0, MI_LOCATION, KEY, receivedHmac()));
+        // The length in the header must not have been patched.
+        assertArrayEquals(original, message);
+    }
+
+    @Test
+    public void testVerifyHmacSha1AtOffset()
+    {
+        byte[] buffer = new byte[message.length + 10];
+
+        System.arraycopy(message, 0, buffer, 10, message.length);
+        assertTrue(
+            MessageIntegrityAttribute.verifyHmacSha1(
+                buffer, 10, 10 + MI_LOCATION, KEY, receivedHmac()));
+    }
+
+    @Test
+    public void testVerifyHmacSha1RejectsTampering()
+    {
+        byte[] hmac = receivedHmac();
+
+        assertFalse(
+            MessageIntegrityAttribute.verifyHmacSha1(
+                message, 0, MI_LOCATION,
+                "wrong-password".getBytes(StandardCharsets.UTF_8),
+                hmac));
+
+        message[25]++;
+        assertFalse(
+            MessageIntegrityAttribute.verifyHmacSha1(
+                message, 0, MI_LOCATION, KEY, hmac));
+        message[25]--;
+
+        hmac[0]++;
+        assertFalse(
+            MessageIntegrityAttribute.verifyHmacSha1(
+                message, 0, MI_LOCATION, KEY, hmac));
+        assertFalse(
+            MessageIntegrityAttribute.verifyHmacSha1(
+                message, 0, MI_LOCATION, KEY, null));
+    }
+
+    @Test
+    public void testXorCRC32Value()
+    {
+        byte[] crc
+            = FingerprintAttribute.calculateXorCRC32(message, 0, FP_LOCATION);
+        int value
+            = FingerprintAttribute.calculateXorCRC32Value(
+                message, 0, FP_LOCATION);
+
+        assertEquals(
+            ((crc[0] & 0xFF) << 24) | ((crc[1] & 0xFF) << 16)
+                | ((crc[2] & 0xFF) << 8) | (crc[3] & 0xFF),
+            value);
+    }
+
+    @Test
+    public void testDecodeVerifiesFingerprint()
+        throws Exception
+    {
+        Message decoded = Message.decode(message, 0, message.length);
+        MessageIntegrityAttribute msgInt
+            = (MessageIntegrityAttribute)
+                decoded.getAttribute(Attribute.MESSAGE_INTEGRITY);
+
+        assertEquals(MI_LOCATION, msgInt.getLocationInMessage());
+        assertTrue(
+            MessageIntegrityAttribute.verifyHmacSha1(
+                message, 0, msgInt.getLocationInMessage(), KEY,
+                msgInt.getHmacSha1Content()));
+
+        message[message.length - 1]++;
+        assertThrows(
+            StunException.class,
+            () -> Message.decode(message, 0, message.length));
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+import org.ice4j.*;
+import org.ice4j.message.*;
+import org.ice4j.socket.*;
+import org.ice4j.stack.*;
+import org.jitsi.config.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests that connectivity checks whose send fails after they have been
+ * queued by the send queue of their socket fail right away.
+ */
+public class ConnectivityCheckSendFailureTest
+{
+    private StunStack stunStack;
+
+    private IceSocketWrapper failingSocket;
+
+    private TransportAddress failingAddress;
+
+    private final TransportAddress remoteAddress
+        = new TransportAddress("127.0.0.1", 9, Transport.UDP);
+
+    @BeforeAll
+    public static void setupConfig()
+    {
+        System.setProperty("ice4j.stack.send-queue.enabled", "true");
+        JitsiConfig.Companion.reloadNewConfig();
+    }
+
+    @AfterAll
+    public static void resetConfig()
+    {
+        System.clearProperty("ice4j.stack.send-queue.enabled");
+        JitsiConfig.Companion.reloadNewConfig();
+    }
+
+    @BeforeEach
+    public void setUp()
+        throws Exception
+    {
+        stunStack = new StunStack();
+        failingSocket
+            = new IceUdpSocketWrapper(
+                new DatagramSocket(new InetSocketAddress("127.0.0.1", 0)))
+            {
+                @Override
+                public void send(DatagramPacket p)
+                    throws IOException
+                {
+                    throw new NoRouteToHostException("No route to host");
+                }
+            };
+        failingAddress
+            = new TransportAddress(
+                "127.0.0.1", failingSocket.getLocalPort(), Transport.UDP);
+        stunStack.addSocket(failingSocket);
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        stunStack.removeSocket(failingAddress);
+        stunStack.shutDown();
+        failingSocket.close();
+    }
+
+    private TransactionID sendRequest(
+            ResponseCollector collector,
+            Object applicationData)
+        throws Exception
+    {
+        TransactionID tran = TransactionID.createNewTransactionID();
+
+        tran.setApplicationData(applicationData);
+        // The send is only queued, so it does not throw. Retransmissions
+        // would take seconds to time the transaction out.
+        return
+            stunStack.sendRequest(
+                MessageFactory.createBindingRequest(),
+                remoteAddress,
+                failingAddress,
+                collector,
+                tran,
+                -1, 1600, 7);
+    }
+
+    @Test
+    public void testQueuedSendFailureFailsThePair()
+        throws Exception
+    {
+        Agent agent = new Agent(null, null, stunStack);
+        ScheduledExecutorService executor
+            = Executors.newSingleThreadScheduledExecutor();
+
+        try
+        {
+            Component component
+                = agent.createComponent(
+                    agent.createMediaStream("media-stream"),
+                    0x400, 0x400, 0xFFFF,
+                    KeepAliveStrategy.SELECTED_ONLY,
+                    false);
+            CandidatePair pair
+                = new CandidatePair(
+                    component.getLocalCandidates().get(0),
+                    new RemoteCandidate(
+                        remoteAddress,
+                        component,
+                        CandidateType.HOST_CANDIDATE,
+                        "1",
+                        1,
+                        null));
+            ConnectivityCheckClient client
+                = new ConnectivityCheckClient(agent, executor, executor);
+
+            pair.setStateInProgress(TransactionID.createNewTransactionID());
+
+            sendRequest(client, pair);
+            long deadline = System.currentTimeMillis() + 1000;
+
+            while (pair.getState() != CandidatePairState.FAILED
+                    && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(10);
+            }
+            // Long before the first retransmission.
+            assertEquals(CandidatePairState.FAILED, pair.getState());
+        }
+        finally
+        {
+            executor.shutdownNow();
+            agent.free();
+        }
+    }
+
+    @Test
+    public void testQueuedSendFailureIsReportedAsTimeoutByDefault()
+        throws Exception
+    {
+        BlockingQueue<StunTimeoutEvent> timeouts = new LinkedBlockingQueue<>();
+        Object applicationData = new Object();
+
+        sendRequest(
+            new ResponseCollector()
+            {
+                @Override
+                public void processResponse(StunResponseEvent event)
+                {
+                }
+
+                @Override
+                public void processTimeout(StunTimeoutEvent event)
+                {
+                    timeouts.add(event);
+                }
+            },
+            applicationData);
+
+        StunTimeoutEvent timeout = timeouts.poll(1, TimeUnit.SECONDS);
+
+        assertNotNull(timeout);
+        assertSame(
+            applicationData, timeout.getTransactionID().getApplicationData());
+    }
+}
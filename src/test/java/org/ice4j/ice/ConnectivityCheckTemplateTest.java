@@ -0,0 +1,199 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.*;
+
+import org.ice4j.*;
+import org.ice4j.attribute.*;
+import org.ice4j.message.*;
+import org.ice4j.security.*;
+import org.ice4j.stack.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests {@link ConnectivityCheckTemplate}.
+ */
+public class ConnectivityCheckTemplateTest
+{
+    private static final String USER_NAME = "remote:local";
+
+    private static final byte[] KEY
+        = "remote-password".getBytes(StandardCharsets.UTF_8);
+
+    private StunStack stunStack;
+
+    @BeforeEach
+    public void setUp()
+    {
+        stunStack = new StunStack();
+        stunStack.getCredentialsManager().registerAuthority(
+            new CredentialsAuthority()
+            {
+                @Override
+                public byte[] getLocalKey(String username)
+                {
+                    return null;
+                }
+
+                @Override
+                public byte[] getRemoteKey(String username, String media)
+                {
+                    return USER_NAME.equals(username) && "audio".equals(media)
+                        ? KEY
+                        : null;
+                }
+
+                @Override
+                public boolean checkLocalUserName(String username)
+                {
+                    return false;
+                }
+            });
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        stunStack.shutDown();
+    }
+
+    private static Request createRequest(boolean useCandidate)
+    {
+        Request request = MessageFactory.createBindingRequest();
+
+        request.putAttribute(AttributeFactory.createPriorityAttribute(1234));
+        request.putAttribute(
+            AttributeFactory.createIceControllingAttribute(42));
+        if (useCandidate)
+            request.putAttribute(AttributeFactory.createUseCandidateAttribute());
+        request.putAttribute(AttributeFactory.createUsernameAttribute(USER_NAME));
+
+        MessageIntegrityAttribute msgIntegrity
+            = AttributeFactory.createMessageIntegrityAttribute(USER_NAME);
+
+        msgIntegrity.setMedia("audio");
+        request.putAttribute(msgIntegrity);
+        request.putAttribute(AttributeFactory.createFingerprintAttribute());
+        return request;
+    }
+
+    /**
+     * Encodes a check from a template and the same check from scratch, and
+     * asserts that they are the same bytes.
+     */
+    private void assertEncodesLikeRequest(
+            ConnectivityCheckTemplate template,
+            boolean controlling,
+            long tieBreaker)
+        throws Exception
+    {
+        TransactionID transactionID = TransactionID.createNewTransactionID();
+        byte[] bytes
+            = template.encode(stunStack, transactionID, controlling, tieBreaker);
+        Request request = template.createRequest(controlling, tieBreaker);
+
+        request.setTransactionID(transactionID.getBytes());
+        assertArrayEquals(request.encode(stunStack), bytes);
+
+        // Decoding verifies the FINGERPRINT.
+        Message decoded = Message.decode(bytes, 0, bytes.length);
+        MessageIntegrityAttribute msgIntegrity
+            = (MessageIntegrityAttribute)
+                decoded.getAttribute(Attribute.MESSAGE_INTEGRITY);
+
+        assertTrue(
+            MessageIntegrityAttribute.verifyHmacSha1(
+                bytes, 0, msgIntegrity.getLocationInMessage(), KEY,
+                msgIntegrity.getHmacSha1Content()));
+        assertArrayEquals(
+            transactionID.getBytes(), decoded.getTransactionID());
+        assertEquals(
+            controlling,
+            decoded.containsAttribute(Attribute.ICE_CONTROLLING));
+        assertEquals(
+            !controlling,
+            decoded.containsAttribute(Attribute.ICE_CONTROLLED));
+        assertEquals(
+            tieBreaker,
+            ((IceControlAttribute)
+                    decoded.getAttribute(
+                        controlling
+                            ? Attribute.ICE_CONTROLLING
+                            : Attribute.ICE_CONTROLLED))
+                .getTieBreaker());
+    }
+
+    @Test
+    public void testEncodesChecks()
+        throws Exception
+    {
+        ConnectivityCheckTemplate template
+            = new ConnectivityCheckTemplate(
+                stunStack, createRequest(false), USER_NAME, 1234, false);
+
+        assertEncodesLikeRequest(template, true, 42);
+        // Each check has its own transaction ID.
+        assertEncodesLikeRequest(template, true, 42);
+        // A role conflict changes the role and possibly the tie-breaker.
+        assertEncodesLikeRequest(template, false, 42);
+        assertEncodesLikeRequest(template, false, 0x7EDCBA9876543210L);
+    }
+
+    @Test
+    public void testUseCandidate()
+        throws Exception
+    {
+        ConnectivityCheckTemplate template
+            = new ConnectivityCheckTemplate(
+                stunStack, createRequest(true), USER_NAME, 1234, true);
+
+        assertEncodesLikeRequest(template, true, 42);
+        assertTrue(
+            template.createRequest(true, 42)
+                .containsAttribute(Attribute.USE_CANDIDATE));
+    }
+
+    @Test
+    public void testMatches()
+    {
+        ConnectivityCheckTemplate template
+            = new ConnectivityCheckTemplate(
+                stunStack, createRequest(false), USER_NAME, 1234, false);
+
+        assertTrue(template.matches(USER_NAME, 1234, false));
+        assertFalse(template.matches(USER_NAME, 1234, true));
+        assertFalse(template.matches(USER_NAME, 1235, false));
+        assertFalse(template.matches("other:local", 1234, false));
+    }
+
+    @Test
+    public void testRejectsRequestsWithoutIntegrity()
+    {
+        Request request = MessageFactory.createBindingRequest();
+
+        request.putAttribute(
+            AttributeFactory.createIceControlledAttribute(42));
+        assertThrows(
+            IllegalArgumentException.class,
+            () -> new ConnectivityCheckTemplate(
+                stunStack, request, USER_NAME, 1234, false));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.ice4j.stack.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests ICE agents which share a {@link StunStack}.
+ */
+public class SharedStunStackTest
+{
+    private StunStack stunStack;
+
+    @BeforeEach
+    public void setUp()
+    {
+        stunStack = new StunStack();
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        stunStack.shutDown();
+    }
+
+    private Agent createPeer(boolean controlling)
+        throws Exception
+    {
+        Agent agent = new Agent(null, null, stunStack);
+
+        agent.setControlling(controlling);
+        agent.createComponent(
+            agent.createMediaStream("media-stream"),
+            0x400, 0x400, 0xFFFF,
+            KeepAliveStrategy.SELECTED_ONLY,
+            false);
+        return agent;
+    }
+
+    private static void exchange(Agent local, Agent remote)
+    {
+        IceMediaStream localStream = local.getStream("media-stream");
+        Component localComponent = localStream.getComponent(1);
+
+        localStream.setRemoteUfrag(remote.getLocalUfrag());
+        localStream.setRemotePassword(remote.getLocalPassword());
+        for (LocalCandidate candidate
+                : remote.getStream("media-stream").getComponent(1)
+                    .getLocalCandidates())
+        {
+            localComponent.addRemoteCandidate(
+                new RemoteCandidate(
+                    candidate.getTransportAddress(),
+                    localComponent,
+                    candidate.getType(),
+                    candidate.getFoundation(),
+                    candidate.getPriority(),
+                    null));
+        }
+    }
+
+    @Test
+    public void testAgentsShareAStack()
+        throws Exception
+    {
+        Agent controlling = createPeer(true);
+        Agent controlled = createPeer(false);
+        CountDownLatch established = new CountDownLatch(2);
+
+        assertTrue(controlling.isStunStackShared());
+        assertSame(stunStack, controlling.getStunStack());
+        assertSame(stunStack, controlled.getStunStack());
+
+        for (Agent agent : Arrays.asList(controlling, controlled))
+        {
+            agent.addStateChangeListener(evt ->
+            {
+                if (IceProcessingState.COMPLETED.equals(evt.getNewValue()))
+                    established.countDown();
+            });
+        }
+
+        exchange(controlling, controlled);
+        exchange(controlled, controlling);
+        controlling.startConnectivityEstablishment();
+        controlled.startConnectivityEstablishment();
+
+        assertTrue(established.await(20, TimeUnit.SECONDS));
+        assertTrue(
+            stunStack.getCredentialsManager().checkLocalUserName(
+                controlling.getLocalUfrag()));
+
+        // Freeing one agent leaves the stack and the other agent alone.
+        controlling.free();
+
+        assertFalse(
+            stunStack.getCredentialsManager().checkLocalUserName(
+                controlling.getLocalUfrag()));
+        assertTrue(
+            stunStack.getCredentialsManager().checkLocalUserName(
+                controlled.getLocalUfrag()));
+
+        controlled.free();
+
+        assertFalse(
+            stunStack.getCredentialsManager().checkLocalUserName(
+                controlled.getLocalUfrag()));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.message;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+
+import org.ice4j.attribute.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests {@link AttributeList}.
+ */
+public class AttributeListTest
+{
+    private static Attribute priority(long value)
+    {
+        return AttributeFactory.createPriorityAttribute(value);
+    }
+
+    @Test
+    public void testPutGetAndOrder()
+    {
+        AttributeList list = new AttributeList();
+        Attribute priority = priority(1);
+        Attribute useCandidate = AttributeFactory.createUseCandidateAttribute();
+        Attribute username = AttributeFactory.createUsernameAttribute("a:b");
+
+        assertEquals(0, list.size());
+        assertNull(list.get(Attribute.PRIORITY));
+        assertEquals(-1, list.indexOf(Attribute.PRIORITY));
+
+        list.put(priority);
+        list.put(useCandidate);
+        list.put(username);
+        assertEquals(3, list.size());
+        assertSame(useCandidate, list.get(Attribute.USE_CANDIDATE));
+        assertEquals(2, list.indexOf(Attribute.USERNAME));
+        assertEquals(
+            Arrays.asList(priority, useCandidate, username), list.toList());
+
+        // A replaced attribute keeps its position.
+        Attribute replacement = priority(2);
+
+        list.put(replacement);
+        assertEquals(3, list.size());
+        assertSame(replacement, list.get(0));
+        assertThrows(IndexOutOfBoundsException.class, () -> list.get(3));
+    }
+
+    @Test
+    public void testRemoveAndGrow()
+    {
+        AttributeList list = new AttributeList();
+        char[] types
+            = {
+                Attribute.PRIORITY, Attribute.USE_CANDIDATE,
+                Attribute.ICE_CONTROLLING, Attribute.USERNAME,
+                Attribute.SOFTWARE, Attribute.MESSAGE_INTEGRITY,
+                Attribute.FINGERPRINT
+            };
+
+        list.put(priority(1));
+        list.put(AttributeFactory.createUseCandidateAttribute());
+        list.put(AttributeFactory.createIceControllingAttribute(1));
+        list.put(AttributeFactory.createUsernameAttribute("a:b"));
+        list.put(AttributeFactory.createSoftwareAttribute(new byte[] { 1 }));
+        list.put(AttributeFactory.createMessageIntegrityAttribute("a:b"));
+        list.put(AttributeFactory.createFingerprintAttribute());
+        assertEquals(types.length, list.size());
+        for (int i = 0; i < types.length; i++)
+            assertEquals(types[i], list.get(i).getAttributeType());
+
+        assertNull(list.remove(Attribute.ERROR_CODE));
+        assertEquals(
+            Attribute.USE_CANDIDATE,
+            list.remove(Attribute.USE_CANDIDATE).getAttributeType());
+        assertEquals(types.length - 1, list.size());
+        assertEquals(1, list.indexOf(Attribute.ICE_CONTROLLING));
+        assertEquals(
+            Attribute.FINGERPRINT,
+            list.get(types.length - 2).getAttributeType());
+
+        // A removed type is appended when it is put again.
+        list.put(AttributeFactory.createUseCandidateAttribute());
+        assertEquals(types.length - 1, list.indexOf(Attribute.USE_CANDIDATE));
+    }
+
+    @Test
+    public void testCopies()
+    {
+        AttributeList list = new AttributeList();
+
+        list.put(priority(1));
+
+        AttributeList synced = new AttributeList.Synchronized(list);
+
+        assertFalse(list.isSynchronized());
+        assertTrue(synced.isSynchronized());
+        assertEquals(list.toList(), synced.toList());
+
+        // The copy does not share the arrays of the original.
+        synced.put(AttributeFactory.createUseCandidateAttribute());
+        assertEquals(1, list.size());
+        assertEquals(2, synced.size());
+        assertEquals(2, new AttributeList(synced).size());
+    }
+}
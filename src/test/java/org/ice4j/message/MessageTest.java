@@ -19,8 +19,13 @@ package org.ice4j.message;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
 import org.ice4j.*;
 import org.ice4j.attribute.*;
+import org.ice4j.security.*;
 import org.ice4j.stack.*;
 import org.jitsi.config.*;
 import org.junit.jupiter.api.*;
@@ -279,4 +284,224 @@ public class MessageTest
         assertEquals(expectedReturn, actualReturn,
             "Attribute count did not change after removing an attribute");
     }
+
+    /**
+     * Creates a signed connectivity check response, whose MESSAGE-INTEGRITY
+     * uses the local key of "local" registered with {@link #stunStack}.
+     */
+    private Response createSignedResponse()
+        throws Exception
+    {
+        stunStack.getCredentialsManager().registerAuthority(
+            new CredentialsAuthority()
+            {
+                @Override
+                public byte[] getLocalKey(String username)
+                {
+                    return username.startsWith("local")
+                        ? "local-password".getBytes(StandardCharsets.UTF_8)
+                        : null;
+                }
+
+                @Override
+                public byte[] getRemoteKey(String username, String media)
+                {
+                    return null;
+                }
+
+                @Override
+                public boolean checkLocalUserName(String username)
+                {
+                    return username.startsWith("local");
+                }
+            });
+
+        Response response = new Response();
+
+        response.setMessageType(Message.BINDING_SUCCESS_RESPONSE);
+        response.setTransactionID(MsgFixture.TRANSACTION_ID);
+        response.putAttribute(
+            AttributeFactory.createXorMappedAddressAttribute(
+                new TransportAddress("2001:db8::7", 4321, Transport.UDP),
+                MsgFixture.TRANSACTION_ID));
+        response.putAttribute(
+            AttributeFactory.createUsernameAttribute("local:remote1"));
+        response.putAttribute(
+            AttributeFactory.createMessageIntegrityAttribute("local:remote1"));
+        response.putAttribute(AttributeFactory.createFingerprintAttribute());
+        return response;
+    }
+
+    /**
+     * Tests that a message encoded into a caller-supplied array, at an offset
+     * and over stale bytes, is the same as the one returned by
+     * {@link Message#encode(StunStack)} and carries a valid
+     * MESSAGE-INTEGRITY and FINGERPRINT.
+     */
+    @Test
+    public void testEncodeIntoArray()
+        throws Exception
+    {
+        Response response = createSignedResponse();
+        byte[] expected = response.encode(stunStack);
+        byte[] buffer = new byte[expected.length + 20];
+
+        Arrays.fill(buffer, (byte) 0x55);
+
+        int length = response.encode(stunStack, buffer, 7);
+
+        assertEquals(expected.length, length);
+        assertArrayEquals(
+            expected, Arrays.copyOfRange(buffer, 7, 7 + length));
+        assertEquals(0x55, buffer[6]);
+        assertEquals(0x55, buffer[7 + length]);
+
+        // Decoding checks the FINGERPRINT.
+        Message decoded = Message.decode(buffer, 7, 7 + length);
+        MessageIntegrityAttribute msgInt
+            = (MessageIntegrityAttribute)
+                decoded.getAttribute(Attribute.MESSAGE_INTEGRITY);
+
+        assertTrue(
+            MessageIntegrityAttribute.verifyHmacSha1(
+                buffer, 7, msgInt.getLocationInMessage(),
+                "local-password".getBytes(StandardCharsets.UTF_8),
+                msgInt.getHmacSha1Content()));
+        assertEquals(
+            new TransportAddress("2001:db8::7", 4321, Transport.UDP),
+            ((XorMappedAddressAttribute)
+                    decoded.getAttribute(Attribute.XOR_MAPPED_ADDRESS))
+                .getAddress(MsgFixture.TRANSACTION_ID));
+
+        assertThrows(
+            BufferOverflowException.class,
+            () -> response.encode(stunStack, new byte[length + 6], 7));
+    }
+
+    /**
+     * Tests the encoding of messages into heap and direct
+     * <tt>ByteBuffer</tt>s.
+     */
+    @Test
+    public void testEncodeIntoByteBuffer()
+        throws Exception
+    {
+        Response response = createSignedResponse();
+        byte[] expected = response.encode(stunStack);
+
+        for (ByteBuffer buffer
+                : new ByteBuffer[] {
+                    ByteBuffer.allocate(200),
+                    ByteBuffer.wrap(new byte[210], 10, 200).slice(),
+                    ByteBuffer.allocateDirect(200) })
+        {
+            buffer.position(3);
+            assertEquals(expected.length, response.encode(stunStack, buffer));
+            assertEquals(3 + expected.length, buffer.position());
+
+            byte[] actual = new byte[expected.length];
+
+            buffer.position(3);
+            buffer.get(actual);
+            assertArrayEquals(expected, actual);
+
+            buffer.limit(buffer.position() + expected.length - 1);
+            assertThrows(
+                BufferOverflowException.class,
+                () -> response.encode(stunStack, buffer));
+            assertEquals(3 + expected.length, buffer.position());
+        }
+    }
+
+    /**
+     * Tests that the attributes which write themselves into a buffer produce
+     * the same bytes as {@link Attribute#encode()}.
+     */
+    @Test
+    public void testAttributesEncodeIntoArray()
+        throws Exception
+    {
+        Attribute[] attributes
+            = {
+                AttributeFactory.createUsernameAttribute("abcde:fgh"),
+                AttributeFactory.createSoftwareAttribute(
+                    "ice4j".getBytes(StandardCharsets.UTF_8)),
+                AttributeFactory.createPriorityAttribute(0x7EDCBA98L),
+                AttributeFactory.createIceControllingAttribute(
+                    0xFEDCBA9876543210L),
+                AttributeFactory.createIceControlledAttribute(1L),
+                AttributeFactory.createUseCandidateAttribute(),
+                AttributeFactory.createXorMappedAddressAttribute(
+                    new TransportAddress("192.0.2.1", 1234, Transport.UDP),
+                    MsgFixture.TRANSACTION_ID),
+                AttributeFactory.createXorMappedAddressAttribute(
+                    new TransportAddress("2001:db8::1", 1234, Transport.UDP),
+                    MsgFixture.TRANSACTION_ID),
+                AttributeFactory.createChangeRequestAttribute(true, false)
+            };
+
+        for (Attribute attribute : attributes)
+        {
+            int length = Attribute.HEADER_LENGTH + attribute.getDataLength();
+            byte[] buffer = new byte[length + 2];
+
+            assertEquals(length, attribute.encode(buffer, 1));
+            assertArrayEquals(
+                Arrays.copyOf(attribute.encode(), length),
+                Arrays.copyOfRange(buffer, 1, 1 + length),
+                attribute.getName());
+        }
+    }
+
+    /**
+     * Tests that the attributes of a message keep the order in which they
+     * were first put, also when one is replaced or removed, and that a
+     * thread-safe message encodes and compares like a plain one.
+     */
+    @Test
+    public void testAttributeOrderAndThreadSafety()
+        throws Exception
+    {
+        Response response = createSignedResponse();
+        Attribute username = response.getAttribute(Attribute.USERNAME);
+        Attribute replacement
+            = AttributeFactory.createUsernameAttribute("local:remote2");
+        byte[] encoded = response.encode(stunStack);
+
+        // Encoding again leaves a prepared message as it is.
+        List<Attribute> attributes = response.getAttributes();
+
+        assertArrayEquals(encoded, response.encode(stunStack));
+        assertEquals(attributes, response.getAttributes());
+        assertEquals(
+            Attribute.FINGERPRINT,
+            attributes.get(attributes.size() - 1).getAttributeType());
+
+        response.putAttribute(replacement);
+        assertSame(replacement, response.getAttribute(Attribute.USERNAME));
+        assertEquals(
+            attributes.indexOf(username),
+            response.getAttributes().indexOf(replacement));
+        response.putAttribute(username);
+
+        assertFalse(response.isThreadSafe());
+        response.setThreadSafe(true);
+        assertTrue(response.isThreadSafe());
+        assertEquals(attributes, response.getAttributes());
+        assertArrayEquals(encoded, response.encode(stunStack));
+
+        Message decoded = Message.decode(encoded, 0, encoded.length);
+        Message synced = Message.decode(encoded, 0, encoded.length);
+
+        synced.setThreadSafe(true);
+        assertEquals(decoded, synced);
+        assertEquals(synced, decoded);
+
+        assertSame(username, response.removeAttribute(Attribute.USERNAME));
+        assertFalse(response.containsAttribute(Attribute.USERNAME));
+        assertEquals(attributes.size() - 1, response.getAttributeCount());
+        response.setThreadSafe(false);
+        assertFalse(response.isThreadSafe());
+        assertEquals(attributes.size() - 1, response.getAttributes().size());
+    }
 }
@@ -0,0 +1,230 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.message;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.*;
+import java.util.*;
+
+import org.ice4j.*;
+import org.ice4j.attribute.*;
+import org.ice4j.stack.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests {@link MessageView} against {@link Message#decode(byte[], int, int)}.
+ */
+public class MessageViewTest
+{
+    private StunStack stunStack;
+
+    private final MessageView view = new MessageView();
+
+    @BeforeEach
+    public void setUp()
+    {
+        stunStack = new StunStack();
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        stunStack.shutDown();
+    }
+
+    private byte[] encodeConnectivityCheck()
+        throws Exception
+    {
+        Request request = MessageFactory.createBindingRequest();
+
+        request.setTransactionID(
+            TransactionID.createNewTransactionID().getBytes());
+        request.putAttribute(
+            AttributeFactory.createUsernameAttribute("local:remote"));
+        request.putAttribute(
+            AttributeFactory.createPriorityAttribute(0x7EDCBA98L));
+        request.putAttribute(
+            AttributeFactory.createIceControllingAttribute(
+                0x0123456789ABCDEFL));
+        request.putAttribute(AttributeFactory.createUseCandidateAttribute());
+        request.putAttribute(AttributeFactory.createFingerprintAttribute());
+        return request.encode(stunStack);
+    }
+
+    private byte[] encodeBindingResponse(TransportAddress mappedAddress)
+        throws Exception
+    {
+        Request request = MessageFactory.createBindingRequest();
+
+        request.setTransactionID(
+            TransactionID.createNewTransactionID().getBytes());
+
+        Response response
+            = MessageFactory.createBindingResponse(request, mappedAddress);
+
+        response.setTransactionID(request.getTransactionID());
+        return response.encode(stunStack);
+    }
+
+    @Test
+    public void testReadsConnectivityCheck()
+        throws Exception
+    {
+        byte[] bytes = encodeConnectivityCheck();
+        byte[] buffer = new byte[bytes.length + 7];
+
+        System.arraycopy(bytes, 0, buffer, 5, bytes.length);
+        assertTrue(view.wrap(buffer, 5, bytes.length + 2));
+
+        Message message = Message.decode(bytes, 0, bytes.length);
+
+        assertTrue(view.isValid());
+        assertEquals(Message.BINDING_REQUEST, view.getMessageType());
+        assertEquals(bytes.length, view.getLength());
+        assertTrue(view.transactionIDEquals(message.getTransactionID()));
+        assertArrayEquals(message.getTransactionID(), view.getTransactionID());
+        assertEquals(message.getAttributeCount(), view.getAttributeCount());
+        assertEquals(Attribute.USERNAME, view.getAttributeType(0));
+        assertEquals(
+            Attribute.FINGERPRINT,
+            view.getAttributeType(view.getAttributeCount() - 1));
+
+        assertEquals("local", view.getLocalUfrag());
+        assertEquals(5, view.getLocalUfragLength());
+        assertEquals("local:remote".length(), view.getUsernameLength());
+        assertEquals(
+            "local:remote",
+            new String(
+                buffer, view.getUsernameOffset(), view.getUsernameLength()));
+        assertEquals(0x7EDCBA98L, view.getPriority());
+        assertTrue(view.isIceControlling());
+        assertFalse(view.isIceControlled());
+        assertEquals(0x0123456789ABCDEFL, view.getTieBreaker());
+        assertTrue(view.hasUseCandidate());
+        assertEquals(-1, view.getXorMappedPort());
+        assertEquals(0, view.getXorMappedAddress(new byte[16]));
+
+        // Other attributes are decoded on demand.
+        FingerprintAttribute fingerprint
+            = (FingerprintAttribute) view.getAttribute(Attribute.FINGERPRINT);
+
+        assertArrayEquals(
+            ((FingerprintAttribute)
+                    message.getAttribute(Attribute.FINGERPRINT))
+                .getChecksum(),
+            fingerprint.getChecksum());
+        assertNull(view.getAttribute(Attribute.REALM));
+    }
+
+    @Test
+    public void testReadsXorMappedAddress()
+        throws Exception
+    {
+        for (String host : new String[] { "192.0.2.17", "2001:db8::42" })
+        {
+            TransportAddress mapped
+                = new TransportAddress(host, 54321, Transport.UDP);
+            byte[] bytes = encodeBindingResponse(mapped);
+            byte[] address = new byte[16];
+
+            assertTrue(view.wrap(bytes, 0, bytes.length));
+            assertEquals(Message.BINDING_SUCCESS_RESPONSE, view.getMessageType());
+            assertEquals(54321, view.getXorMappedPort());
+
+            int length = view.getXorMappedAddress(address);
+
+            assertArrayEquals(
+                InetAddress.getByName(host).getAddress(),
+                Arrays.copyOf(address, length));
+            assertNull(view.getLocalUfrag());
+            assertEquals(-1, view.getPriority());
+            assertEquals(0, view.getTieBreaker());
+        }
+    }
+
+    @Test
+    public void testRejectsMalformedMessages()
+        throws Exception
+    {
+        byte[] bytes = encodeConnectivityCheck();
+
+        assertFalse(view.wrap(null, 0, 0));
+        assertFalse(view.wrap(bytes, 0, 19));
+        // Truncated.
+        assertFalse(view.wrap(bytes, 0, bytes.length - 4));
+        assertFalse(view.isValid());
+        assertThrows(IllegalStateException.class, view::getMessageType);
+
+        // Not a multiple of four.
+        byte[] copy = bytes.clone();
+
+        copy[3]++;
+        assertFalse(view.wrap(copy, 0, copy.length));
+
+        // Not STUN: RTP or DTLS.
+        copy = bytes.clone();
+        copy[0] = (byte) 0x80;
+        assertFalse(view.wrap(copy, 0, copy.length));
+
+        // No magic cookie.
+        copy = bytes.clone();
+        copy[4] = 0;
+        assertFalse(view.wrap(copy, 0, copy.length));
+
+        // An attribute which overruns the message.
+        copy = bytes.clone();
+        copy[Message.HEADER_LENGTH + 2] = 0x7F;
+        assertFalse(view.wrap(copy, 0, copy.length));
+
+        // The view can be reused.
+        assertTrue(view.wrap(bytes, 0, bytes.length));
+        assertThrows(
+            IndexOutOfBoundsException.class,
+            () -> view.getAttributeType(view.getAttributeCount()));
+    }
+
+    @Test
+    public void testIndexGrows()
+    {
+        int count = 40;
+        byte[] bytes = new byte[Message.HEADER_LENGTH + count * 8];
+
+        bytes[1] = 0x01;
+        bytes[2] = (byte) ((count * 8) >> 8);
+        bytes[3] = (byte) (count * 8);
+        System.arraycopy(Message.MAGIC_COOKIE, 0, bytes, 4, 4);
+        for (int i = 0; i < count; i++)
+        {
+            int attribute = Message.HEADER_LENGTH + i * 8;
+
+            bytes[attribute] = (byte) 0x80;
+            bytes[attribute + 1] = (byte) i;
+            bytes[attribute + 3] = 3;
+        }
+
+        assertTrue(view.wrap(bytes, 0, bytes.length));
+        assertEquals(count, view.getAttributeCount());
+        assertEquals(0x8000 + 39, view.getAttributeType(39));
+        assertEquals(3, view.getAttributeValueLength(39));
+        assertEquals(
+            Message.HEADER_LENGTH + 39 * 8 + 4,
+            view.getAttributeValueOffset(39));
+        assertEquals(39, view.indexOf((char) (0x8000 + 39)));
+    }
+}
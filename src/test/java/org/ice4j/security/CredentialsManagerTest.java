@@ -0,0 +1,259 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.security;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests the lookup of credentials by local ufrag in
+ * {@link CredentialsManager}.
+ */
+public class CredentialsManagerTest
+{
+    /**
+     * An authority for one local ufrag, which knows the remote ufrag of its
+     * peer.
+     */
+    private static class UfragAuthority
+        implements CredentialsAuthority
+    {
+        final String localUfrag;
+
+        final String remoteUfrag;
+
+        int queries;
+
+        UfragAuthority(String localUfrag, String remoteUfrag)
+        {
+            this.localUfrag = localUfrag;
+            this.remoteUfrag = remoteUfrag;
+        }
+
+        @Override
+        public byte[] getLocalKey(String username)
+        {
+            queries++;
+            return checkLocalUserName(username) ? key("local-" + localUfrag)
+                : null;
+        }
+
+        @Override
+        public byte[] getRemoteKey(String username, String media)
+        {
+            queries++;
+            return username.equals(remoteUfrag + ":" + localUfrag)
+                    || username.equals(remoteUfrag)
+                ? key("remote-" + localUfrag)
+                : null;
+        }
+
+        @Override
+        public boolean checkLocalUserName(String username)
+        {
+            int colon = username.indexOf(':');
+
+            return (colon < 0 ? username : username.substring(0, colon))
+                .equals(localUfrag);
+        }
+    }
+
+    /**
+     * An authority which tells its ufrag to the manager.
+     */
+    private static class IndexedAuthority
+        extends UfragAuthority
+        implements LocalUfragCredentialsAuthority
+    {
+        IndexedAuthority(String localUfrag, String remoteUfrag)
+        {
+            super(localUfrag, remoteUfrag);
+        }
+
+        @Override
+        public String getLocalUfrag()
+        {
+            return localUfrag;
+        }
+    }
+
+    private static byte[] key(String value)
+    {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testLookupByUfrag()
+    {
+        CredentialsManager manager = new CredentialsManager();
+        UfragAuthority alice = new UfragAuthority("alice", "carol");
+        UfragAuthority bob = new UfragAuthority("bob", "dave");
+
+        manager.registerAuthority("alice", alice);
+        manager.registerAuthority("bob", bob);
+
+        assertArrayEquals(key("local-alice"), manager.getLocalKey("alice"));
+        assertArrayEquals(
+            key("local-bob"), manager.getLocalKey("bob:dave"));
+        assertTrue(manager.checkLocalUserName("alice:carol"));
+        assertFalse(manager.checkLocalUserName("carol"));
+        assertNull(manager.getLocalKey("carol"));
+        assertArrayEquals(
+            key("remote-bob"), manager.getRemoteKey("dave:bob", "audio"));
+
+        // Lookups by ufrag only query the authority of the ufrag.
+        assertEquals(2, bob.queries);
+        assertEquals(1, alice.queries);
+
+        // A remote ufrag alone is still resolved.
+        assertArrayEquals(
+            key("remote-alice"), manager.getRemoteKey("carol", "audio"));
+    }
+
+    @Test
+    public void testAuthoritiesWithoutUfragAreStillQueried()
+    {
+        CredentialsManager manager = new CredentialsManager();
+        UfragAuthority generic = new UfragAuthority("server", "client");
+
+        manager.registerAuthority("alice", new UfragAuthority("alice", "bob"));
+        manager.registerAuthority(generic);
+
+        assertArrayEquals(
+            key("local-server"), manager.getLocalKey("server:client"));
+        assertArrayEquals(
+            key("remote-server"), manager.getRemoteKey("client:server", null));
+    }
+
+    @Test
+    public void testUnregisterByUfrag()
+    {
+        CredentialsManager manager = new CredentialsManager();
+        UfragAuthority first = new UfragAuthority("alice", "bob");
+        UfragAuthority second = new UfragAuthority("alice", "carol");
+
+        manager.registerAuthority("alice", first);
+        manager.registerAuthority("alice", second);
+
+        // Only the authority currently registered for the ufrag is removed.
+        manager.unregisterAuthority("alice", first);
+        assertArrayEquals(
+            key("remote-alice"), manager.getRemoteKey("carol:alice", null));
+
+        manager.unregisterAuthority("alice", second);
+        assertNull(manager.getLocalKey("alice"));
+        assertFalse(manager.checkLocalUserName("alice"));
+    }
+
+    @Test
+    public void testLocalUfragAuthoritiesAreIndexed()
+    {
+        CredentialsManager manager = new CredentialsManager();
+        List<IndexedAuthority> indexed = new ArrayList<>();
+        UfragAuthority generic = new UfragAuthority("server", "client");
+
+        for (int i = 0; i < 100; i++)
+        {
+            IndexedAuthority authority
+                = new IndexedAuthority("ufrag" + i, "remote" + i);
+
+            indexed.add(authority);
+            manager.registerAuthority(authority);
+        }
+        manager.registerAuthority(generic);
+
+        assertArrayEquals(
+            key("local-ufrag42"), manager.getLocalKey("ufrag42:remote42"));
+        assertArrayEquals(
+            key("remote-ufrag42"),
+            manager.getRemoteKey("remote42:ufrag42", null));
+        for (IndexedAuthority authority : indexed)
+        {
+            assertEquals(
+                authority.localUfrag.equals("ufrag42") ? 2 : 0,
+                authority.queries);
+        }
+        // The authority which is not indexed is not asked either.
+        assertEquals(0, generic.queries);
+        assertArrayEquals(
+            key("local-server"), manager.getLocalKey("server:client"));
+        assertEquals(1, generic.queries);
+
+        manager.unregisterAuthority(indexed.get(42));
+        assertNull(manager.getLocalKey("ufrag42:remote42"));
+        assertArrayEquals(
+            key("local-ufrag41"), manager.getLocalKey("ufrag41"));
+
+        manager.unregisterAuthority(generic);
+        assertNull(manager.getLocalKey("server"));
+    }
+
+    @Test
+    public void testLookupsDuringRegistrations()
+        throws Exception
+    {
+        CredentialsManager manager = new CredentialsManager();
+        UfragAuthority stable = new UfragAuthority("stable", "peer");
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicInteger misses = new AtomicInteger();
+        ExecutorService readers = Executors.newFixedThreadPool(4);
+        List<Future<?>> results = new ArrayList<>();
+
+        manager.registerAuthority(stable);
+        for (int r = 0; r < 4; r++)
+        {
+            results.add(readers.submit(() ->
+            {
+                while (!stop.get())
+                {
+                    if (manager.getLocalKey("stable:peer") == null)
+                        misses.incrementAndGet();
+                }
+            }));
+        }
+        try
+        {
+            for (int i = 0; i < 2000; i++)
+            {
+                UfragAuthority generic = new UfragAuthority("g" + i, "x");
+                IndexedAuthority indexed = new IndexedAuthority("i" + i, "x");
+
+                manager.registerAuthority(generic);
+                manager.registerAuthority(indexed);
+                manager.unregisterAuthority(generic);
+                manager.unregisterAuthority(indexed);
+            }
+        }
+        finally
+        {
+            stop.set(true);
+            readers.shutdown();
+        }
+        for (Future<?> result : results)
+            result.get(5, TimeUnit.SECONDS);
+        assertEquals(0, misses.get());
+        assertNull(manager.getLocalKey("g1"));
+        assertNull(manager.getLocalKey("i1"));
+    }
+}
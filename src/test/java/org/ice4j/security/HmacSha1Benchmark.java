@@ -0,0 +1,112 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.security;
+
+import java.nio.charset.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * Compares computing MESSAGE-INTEGRITY HMACs with {@link HmacSha1Cache}
+ * against creating and keying a new <tt>Mac</tt> for every message, which is
+ * what <tt>MessageIntegrityAttribute</tt> used to do.
+ * <p>
+ * Not run as part of the tests. Run with
+ * <tt>java -cp target/classes:target/test-classes
+ * org.ice4j.security.HmacSha1Benchmark [iterations]</tt>.
+ */
+public class HmacSha1Benchmark
+{
+    /**
+     * The size of a typical connectivity check up to its MESSAGE-INTEGRITY.
+     */
+    private static final int MESSAGE_LENGTH = 80;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the number of HMACs to compute per round, 1000000 by
+     * default.
+     * @throws Exception if computing a HMAC fails.
+     */
+    public static void main(String[] args)
+        throws Exception
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        byte[][] keys = new byte[4][];
+        byte[] message = new byte[MESSAGE_LENGTH + 20];
+
+        for (int i = 0; i < keys.length; i++)
+        {
+            keys[i] = ("remote-password-" + i).getBytes(StandardCharsets.UTF_8);
+        }
+
+        for (int round = 0; round < 3; round++)
+        {
+            long start = System.nanoTime();
+            int sink = 0;
+
+            for (int i = 0; i < iterations; i++)
+            {
+                sink += uncached(keys[i & 3], message)[0];
+            }
+
+            long uncachedNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                sink += HmacSha1Cache.calculate(
+                    keys[i & 3], message, 0, MESSAGE_LENGTH)[0];
+            }
+
+            long cachedNanos = System.nanoTime() - start;
+
+            System.out.printf(
+                "round %d: uncached %d ns/op, cached %d ns/op (%d)%n",
+                round,
+                uncachedNanos / iterations,
+                cachedNanos / iterations,
+                sink);
+        }
+    }
+
+    /**
+     * Computes a HMAC the way <tt>MessageIntegrityAttribute</tt> used to.
+     *
+     * @param key the key.
+     * @param message the message.
+     * @return the HMAC of the first {@link #MESSAGE_LENGTH} bytes of
+     * <tt>message</tt>.
+     * @throws Exception if computing the HMAC fails.
+     */
+    private static byte[] uncached(byte[] key, byte[] message)
+        throws Exception
+    {
+        SecretKeySpec signingKey = new SecretKeySpec(key, "HmacSHA1");
+        Mac mac = Mac.getInstance("HmacSHA1");
+
+        mac.init(signingKey);
+
+        byte[] macInput = new byte[MESSAGE_LENGTH];
+
+        System.arraycopy(message, 0, macInput, 0, MESSAGE_LENGTH);
+        return mac.doFinal(macInput);
+    }
+}
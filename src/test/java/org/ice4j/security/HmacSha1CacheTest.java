@@ -0,0 +1,201 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.security;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests {@link HmacSha1Cache}.
+ */
+public class HmacSha1CacheTest
+{
+    private static final byte[] KEY_A
+        = "password-a".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] KEY_B
+        = "password-b".getBytes(StandardCharsets.UTF_8);
+
+    private static byte[] uncachedHmac(byte[] key, byte[] data)
+        throws Exception
+    {
+        Mac mac = Mac.getInstance("HmacSHA1");
+
+        mac.init(new SecretKeySpec(key, "HmacSHA1"));
+        return mac.doFinal(data);
+    }
+
+    @Test
+    public void testMatchesUncachedMac()
+        throws Exception
+    {
+        byte[] data = new byte[100];
+
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+
+        byte[] expected
+            = uncachedHmac(KEY_A, Arrays.copyOfRange(data, 10, 60));
+
+        // Repeated and interleaved calls must not leak state between uses.
+        for (int i = 0; i < 3; i++)
+        {
+            assertArrayEquals(
+                expected, HmacSha1Cache.calculate(KEY_A, data, 10, 50));
+            assertArrayEquals(
+                uncachedHmac(KEY_B, data),
+                HmacSha1Cache.calculate(KEY_B, data, 0, data.length));
+        }
+    }
+
+    @Test
+    public void testReusesMacUntilInvalidated()
+        throws Exception
+    {
+        Mac mac = HmacSha1Cache.getMac(KEY_A);
+
+        // A copy of the key maps to the same engine.
+        assertSame(mac, HmacSha1Cache.getMac(KEY_A.clone()));
+        assertNotSame(mac, HmacSha1Cache.getMac(KEY_B));
+        assertSame(mac, HmacSha1Cache.getMac(KEY_A));
+
+        HmacSha1Cache.invalidate();
+        assertNotSame(mac, HmacSha1Cache.getMac(KEY_A));
+    }
+
+    @Test
+    public void testInvalidatesOnlySpecificKey()
+        throws Exception
+    {
+        Mac macA = HmacSha1Cache.getMac(KEY_A);
+        Mac macB = HmacSha1Cache.getMac(KEY_B);
+
+        HmacSha1Cache.invalidate(KEY_B.clone());
+        assertSame(macA, HmacSha1Cache.getMac(KEY_A));
+
+        Mac newMacB = HmacSha1Cache.getMac(KEY_B);
+
+        assertNotSame(macB, newMacB);
+        // The engine of the last used key is invalidated too.
+        HmacSha1Cache.invalidate(KEY_B);
+        assertNotSame(newMacB, HmacSha1Cache.getMac(KEY_B));
+        assertSame(macA, HmacSha1Cache.getMac(KEY_A));
+    }
+
+    @Test
+    public void testInvalidatesKeyOnOtherThreads()
+        throws Exception
+    {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try
+        {
+            Mac macA = executor.submit(() -> HmacSha1Cache.getMac(KEY_A)).get();
+            Mac macB = executor.submit(() -> HmacSha1Cache.getMac(KEY_B)).get();
+
+            HmacSha1Cache.invalidate(KEY_A);
+            assertNotSame(
+                macA, executor.submit(() -> HmacSha1Cache.getMac(KEY_A)).get());
+            assertSame(
+                macB, executor.submit(() -> HmacSha1Cache.getMac(KEY_B)).get());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testUnregisteringUfragAuthorityInvalidatesItsKey()
+        throws Exception
+    {
+        CredentialsManager credentialsManager = new CredentialsManager();
+        CredentialsAuthority authority = new CredentialsAuthority()
+        {
+            @Override
+            public byte[] getLocalKey(String username)
+            {
+                return "ufrag-a".equals(username) ? KEY_A.clone() : null;
+            }
+
+            @Override
+            public byte[] getRemoteKey(String username, String media)
+            {
+                return null;
+            }
+
+            @Override
+            public boolean checkLocalUserName(String username)
+            {
+                return "ufrag-a".equals(username);
+            }
+        };
+
+        credentialsManager.registerAuthority("ufrag-a", authority);
+
+        Mac macA = HmacSha1Cache.getMac(KEY_A);
+        // The key of another session.
+        Mac macB = HmacSha1Cache.getMac(KEY_B);
+
+        credentialsManager.unregisterAuthority("ufrag-a", authority);
+        assertNotSame(macA, HmacSha1Cache.getMac(KEY_A));
+        assertSame(macB, HmacSha1Cache.getMac(KEY_B));
+    }
+
+    @Test
+    public void testUnregisteringAuthorityInvalidates()
+        throws Exception
+    {
+        CredentialsManager credentialsManager = new CredentialsManager();
+        CredentialsAuthority authority = new CredentialsAuthority()
+        {
+            @Override
+            public byte[] getLocalKey(String username)
+            {
+                return KEY_A;
+            }
+
+            @Override
+            public byte[] getRemoteKey(String username, String media)
+            {
+                return KEY_A;
+            }
+
+            @Override
+            public boolean checkLocalUserName(String username)
+            {
+                return true;
+            }
+        };
+
+        credentialsManager.registerAuthority(authority);
+
+        Mac mac = HmacSha1Cache.getMac(KEY_A);
+
+        credentialsManager.unregisterAuthority(authority);
+        assertNotSame(mac, HmacSha1Cache.getMac(KEY_A));
+    }
+}
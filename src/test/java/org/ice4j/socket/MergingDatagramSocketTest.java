@@ -0,0 +1,219 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.socket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.utils.logging2.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests the push mode of {@link MergingDatagramSocket}.
+ */
+public class MergingDatagramSocketTest
+{
+    /**
+     * The header of a Binding request without attributes.
+     */
+    private static final byte[] STUN
+        = {
+            0x00, 0x01, 0x00, 0x00, 0x21, 0x12, (byte) 0xa4, 0x42,
+            1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12
+        };
+
+    private final List<DatagramSocket> sockets = new ArrayList<>();
+
+    private final BlockingQueue<byte[]> stunReceived
+        = new LinkedBlockingQueue<>();
+
+    private ExecutorService stunReaders;
+
+    private MergingDatagramSocket merging;
+
+    private DatagramSocket peer;
+
+    @BeforeEach
+    public void setUp()
+        throws Exception
+    {
+        stunReaders = Executors.newCachedThreadPool();
+        merging
+            = new MergingDatagramSocket(
+                new LoggerImpl(MergingDatagramSocketTest.class.getName()),
+                /* push */ true);
+        merging.setSoTimeout(5000);
+        peer = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        merging.close();
+        for (DatagramSocket socket : sockets)
+            socket.close();
+        stunReaders.shutdownNow();
+        peer.close();
+    }
+
+    /**
+     * Creates a multiplexing socket whose STUN socket is read by a thread of
+     * {@link #stunReaders}, as the STUN stack does.
+     */
+    private MultiplexingDatagramSocket createMultiplexingSocket()
+        throws Exception
+    {
+        MultiplexingDatagramSocket multiplexing
+            = new MultiplexingDatagramSocket(
+                new InetSocketAddress("127.0.0.1", 0));
+        DatagramSocket stun
+            = multiplexing.getSocket(new StunDatagramPacketFilter());
+
+        sockets.add(multiplexing);
+        stunReaders.execute(() ->
+        {
+            DatagramPacket p = new DatagramPacket(new byte[1500], 1500);
+
+            try
+            {
+                while (true)
+                {
+                    stun.receive(p);
+                    stunReceived.add(
+                        Arrays.copyOfRange(
+                            p.getData(),
+                            p.getOffset(),
+                            p.getOffset() + p.getLength()));
+                }
+            }
+            catch (Exception e)
+            {
+                // The socket was closed.
+            }
+        });
+        return multiplexing;
+    }
+
+    private void send(byte[] bytes, DatagramSocket to)
+        throws Exception
+    {
+        peer.send(
+            new DatagramPacket(bytes, bytes.length, to.getLocalSocketAddress()));
+    }
+
+    private byte[] receive()
+        throws Exception
+    {
+        DatagramPacket p = new DatagramPacket(new byte[1500], 1500);
+
+        merging.receive(p);
+        return Arrays.copyOfRange(
+            p.getData(), p.getOffset(), p.getOffset() + p.getLength());
+    }
+
+    private static int countReaderThreads()
+    {
+        int count = 0;
+
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if (thread.getName().startsWith("MergingDatagramSocket reader"))
+                count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void testMultiplexingSocketsPushInArrivalOrder()
+        throws Exception
+    {
+        int readerThreads = countReaderThreads();
+        MultiplexingDatagramSocket first = createMultiplexingSocket();
+        MultiplexingDatagramSocket second = createMultiplexingSocket();
+
+        assertTrue(merging.isPush());
+        merging.add(first);
+        merging.add(second);
+        assertEquals(readerThreads, countReaderThreads());
+
+        send(new byte[] { (byte) 0x80, 1 }, first);
+        Thread.sleep(100);
+        send(STUN, second);
+        send(new byte[] { (byte) 0x80, 2 }, second);
+        Thread.sleep(100);
+        send(new byte[] { (byte) 0x80, 3 }, first);
+
+        assertArrayEquals(new byte[] { (byte) 0x80, 1 }, receive());
+        assertArrayEquals(new byte[] { (byte) 0x80, 2 }, receive());
+        assertArrayEquals(new byte[] { (byte) 0x80, 3 }, receive());
+        // STUN is still demultiplexed away from the merging socket.
+        assertArrayEquals(STUN, stunReceived.poll(5, TimeUnit.SECONDS));
+        assertEquals(first.getLocalPort(), merging.getLocalPort());
+    }
+
+    @Test
+    public void testPacketsReceivedBeforeAddAreMerged()
+        throws Exception
+    {
+        MultiplexingDatagramSocket multiplexing = createMultiplexingSocket();
+
+        send(new byte[] { (byte) 0x80, 1 }, multiplexing);
+        send(STUN, multiplexing);
+        assertArrayEquals(STUN, stunReceived.poll(5, TimeUnit.SECONDS));
+
+        merging.add(multiplexing);
+        assertArrayEquals(new byte[] { (byte) 0x80, 1 }, receive());
+    }
+
+    @Test
+    public void testOtherSocketsAreReadByAThread()
+        throws Exception
+    {
+        DatagramSocket socket
+            = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+
+        sockets.add(socket);
+        merging.add(socket);
+        send(new byte[] { 1, 2, 3 }, socket);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, receive());
+    }
+
+    @Test
+    public void testRemovedSocketNoLongerPushes()
+        throws Exception
+    {
+        MultiplexingDatagramSocket multiplexing = createMultiplexingSocket();
+
+        merging.add(multiplexing);
+        merging.remove(multiplexing);
+        merging.setSoTimeout(200);
+        send(new byte[] { (byte) 0x80, 1 }, multiplexing);
+        assertThrows(SocketTimeoutException.class, this::receive);
+
+        // The packet is queued for the multiplexing socket itself again.
+        multiplexing.setSoTimeout(5000);
+
+        DatagramPacket p = new DatagramPacket(new byte[1500], 1500);
+
+        multiplexing.receive(p);
+        assertEquals(2, p.getLength());
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.socket;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Measures the throughput of the demultiplexing of the packets received by a
+ * {@link MultiplexingDatagramSocket}. The packets are generated in memory by
+ * the delegate socket instead of being read from the network, so that the
+ * measurement is dominated by the routing of the packets and by the
+ * {@link SocketReceiveBuffer}s and the hand-off between the receiving
+ * threads.
+ * <p>
+ * The delegate cycles through STUN, DTLS, RTCP and RTP packets. One thread
+ * receives from each of the STUN, DTLS and RTCP multiplexed sockets and from
+ * the multiplexing socket, which gets the RTP packets, or all the threads
+ * receive from the multiplexing socket.
+ * <p>
+ * Not run as part of the tests. Run with
+ * <tt>java -cp target/classes:target/test-classes
+ * org.ice4j.socket.MultiplexingDatagramSocketBenchmark [seconds per run]</tt>.
+ */
+public class MultiplexingDatagramSocketBenchmark
+{
+    /**
+     * The packets generated by {@link GeneratingDatagramSocket}.
+     */
+    private static final byte[][] PACKETS
+        = {
+            // STUN Binding request.
+            {
+                0x00, 0x01, 0x00, 0x00, 0x21, 0x12, (byte) 0xa4, 0x42,
+                1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12
+            },
+            // DTLS application data.
+            packet(23, 200),
+            // RTCP receiver report.
+            { (byte) 0x81, (byte) 201, 0, 7, 0, 0, 0, 1 },
+            // RTP.
+            packet(0x80, 1200)
+        };
+
+    /**
+     * Creates a packet of a specific length with a specific first byte.
+     *
+     * @param firstByte the first byte of the packet.
+     * @param length the length of the packet.
+     * @return the packet.
+     */
+    private static byte[] packet(int firstByte, int length)
+    {
+        byte[] packet = new byte[length];
+
+        packet[0] = (byte) firstByte;
+        packet[1] = 96;
+        return packet;
+    }
+
+    /**
+     * A socket whose receive generates packets in memory.
+     */
+    private static class GeneratingDatagramSocket
+        extends DatagramSocket
+    {
+        private final InetSocketAddress source
+            = new InetSocketAddress(InetAddress.getLoopbackAddress(), 5000);
+
+        /**
+         * The number of generated packets. Only accessed by the one thread at
+         * a time which reads from this socket.
+         */
+        private long generated;
+
+        GeneratingDatagramSocket()
+            throws SocketException
+        {
+            super(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        }
+
+        @Override
+        public void receive(DatagramPacket p)
+            throws IOException
+        {
+            if (isClosed())
+                throw new SocketException("Socket is closed");
+
+            byte[] packet
+                = PACKETS[(int) (generated++ % PACKETS.length)];
+
+            System.arraycopy(packet, 0, p.getData(), p.getOffset(), packet.length);
+            p.setLength(packet.length);
+            p.setSocketAddress(source);
+        }
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the number of seconds to measure each configuration for,
+     * 2 by default.
+     * @throws Exception if a benchmark thread fails.
+     */
+    public static void main(String[] args)
+        throws Exception
+    {
+        long millis = 1000L * (args.length > 0 ? Integer.parseInt(args[0]) : 2);
+
+        System.out.printf("%-24s %16s%n", "configuration", "received/s");
+        for (boolean multiplexed : new boolean[] { false, true })
+        {
+            // Warm up before measuring.
+            run(multiplexed, millis / 4, false);
+            run(multiplexed, millis, true);
+        }
+    }
+
+    /**
+     * Measures the throughput of a configuration.
+     *
+     * @param multiplexed whether the threads receive from the multiplexed
+     * sockets or all of them from the multiplexing socket.
+     * @param millis the duration of the measurement.
+     * @param print whether to print the result.
+     * @throws Exception if a benchmark thread fails.
+     */
+    private static void run(boolean multiplexed, long millis, boolean print)
+        throws Exception
+    {
+        GeneratingDatagramSocket delegate = new GeneratingDatagramSocket();
+        MultiplexingDatagramSocket multiplexing
+            = new MultiplexingDatagramSocket(delegate);
+        List<DatagramSocket> receivers = new ArrayList<>();
+
+        if (multiplexed)
+        {
+            receivers.add(
+                    multiplexing.getSocket(new StunDatagramPacketFilter()));
+            receivers.add(multiplexing.getSocket(new DTLSDatagramFilter()));
+            receivers.add(multiplexing.getSocket(new RtcpDemuxPacketFilter()));
+        }
+        while (receivers.size() < 4)
+            receivers.add(multiplexing);
+
+        ExecutorService executor
+            = Executors.newFixedThreadPool(receivers.size());
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder received = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (DatagramSocket receiver : receivers)
+        {
+            futures.add(executor.submit(() ->
+            {
+                DatagramPacket p = new DatagramPacket(new byte[1500], 1500);
+                long count = 0;
+
+                start.await();
+                while (running.get())
+                {
+                    receiver.receive(p);
+                    count++;
+                }
+                received.add(count);
+                return null;
+            }));
+        }
+
+        long startTime = System.nanoTime();
+
+        start.countDown();
+        Thread.sleep(millis);
+        running.set(false);
+
+        long elapsed = System.nanoTime() - startTime;
+
+        // The receivers are still receiving, since the delegate never blocks.
+        for (Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+        multiplexing.close();
+        delegate.close();
+
+        if (print)
+        {
+            System.out.printf(
+                    "%-24s %16d%n",
+                    multiplexed ? "4 threads, 4 sockets" : "4 threads, 1 socket",
+                    received.sum() * TimeUnit.SECONDS.toNanos(1) / elapsed);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.socket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.ice4j.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests the routing of received packets by {@link MultiplexingDatagramSocket}
+ * to its multiplexed sockets.
+ */
+public class MultiplexingDatagramSocketTest
+{
+    /**
+     * The header of a Binding request without attributes.
+     */
+    private static final byte[] STUN
+        = {
+            0x00, 0x01, 0x00, 0x00, 0x21, 0x12, (byte) 0xa4, 0x42,
+            1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12
+        };
+
+    private static final byte[] DTLS = { 22, (byte) 0xfe, (byte) 0xfd, 0 };
+
+    private static final byte[] RTCP = { (byte) 0x80, (byte) 200, 0, 1 };
+
+    private static final byte[] RTP = { (byte) 0x80, 96, 0, 1 };
+
+    private MultiplexingDatagramSocket multiplexing;
+
+    private DatagramSocket peer;
+
+    @BeforeEach
+    public void setUp()
+        throws Exception
+    {
+        multiplexing
+            = new MultiplexingDatagramSocket(
+                new InetSocketAddress("127.0.0.1", 0));
+        multiplexing.setSoTimeout(5000);
+        peer = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        multiplexing.close();
+        peer.close();
+    }
+
+    private void send(byte[] bytes)
+        throws Exception
+    {
+        peer.send(
+            new DatagramPacket(
+                bytes, bytes.length, multiplexing.getLocalSocketAddress()));
+    }
+
+    private static byte[] receive(DatagramSocket socket)
+        throws Exception
+    {
+        DatagramPacket p = new DatagramPacket(new byte[1500], 1500);
+
+        socket.receive(p);
+        return Arrays.copyOfRange(
+            p.getData(), p.getOffset(), p.getOffset() + p.getLength());
+    }
+
+    @Test
+    public void testRoutesByFirstByte()
+        throws Exception
+    {
+        DatagramSocket stun
+            = multiplexing.getSocket(new StunDatagramPacketFilter());
+        DatagramSocket dtls
+            = multiplexing.getSocket(new DTLSDatagramFilter());
+        DatagramSocket rtcp
+            = multiplexing.getSocket(new RtcpDemuxPacketFilter());
+
+        stun.setSoTimeout(5000);
+        dtls.setSoTimeout(5000);
+        rtcp.setSoTimeout(5000);
+
+        send(RTP);
+        send(RTCP);
+        send(DTLS);
+        send(STUN);
+
+        assertArrayEquals(STUN, receive(stun));
+        assertArrayEquals(DTLS, receive(dtls));
+        assertArrayEquals(RTCP, receive(rtcp));
+        // The packet accepted by none of the filters is received by the
+        // multiplexing socket itself.
+        assertArrayEquals(RTP, receive(multiplexing));
+    }
+
+    @Test
+    public void testUnclassifiedFiltersReceiveEveryMatch()
+        throws Exception
+    {
+        DatagramSocket stun
+            = multiplexing.getSocket(new StunDatagramPacketFilter());
+        DatagramSocket all = multiplexing.getSocket(p -> true);
+
+        stun.setSoTimeout(5000);
+        all.setSoTimeout(5000);
+
+        send(STUN);
+        send(RTP);
+
+        assertArrayEquals(STUN, receive(stun));
+        assertArrayEquals(STUN, receive(all));
+        assertArrayEquals(RTP, receive(all));
+    }
+
+    @Test
+    public void testChannelDataReachesOverriddenTurnFilter()
+        throws Exception
+    {
+        TransportAddress turnServer
+            = new TransportAddress(
+                (InetSocketAddress) peer.getLocalSocketAddress(),
+                Transport.UDP);
+        // Like the filter of the ChannelData socket of
+        // RelayedCandidateDatagramSocket, which inherits the range of STUN
+        // but also accepts ChannelData messages from the TURN server.
+        DatagramSocket channelData
+            = multiplexing.getSocket(
+                new TurnDatagramPacketFilter(turnServer)
+                {
+                    @Override
+                    public boolean accept(DatagramPacket p)
+                    {
+                        return
+                            turnServer.equals(p.getSocketAddress())
+                                && p.getLength() >= 4
+                                && ((p.getData()[p.getOffset()] & 0xC0) != 0
+                                    || super.accept(p));
+                    }
+                });
+        DatagramSocket stun
+            = multiplexing.getSocket(new StunDatagramPacketFilter());
+        byte[] channelDataMessage = { 0x40, 0x00, 0x00, 0x04, 1, 2, 3, 4 };
+
+        channelData.setSoTimeout(5000);
+        stun.setSoTimeout(5000);
+
+        send(channelDataMessage);
+        send(STUN);
+
+        assertArrayEquals(channelDataMessage, receive(channelData));
+        assertArrayEquals(STUN, receive(channelData));
+        assertArrayEquals(STUN, receive(stun));
+    }
+
+    @Test
+    public void testSharedPacketIsCopiedForEachReceiver()
+        throws Exception
+    {
+        DatagramSocket first = multiplexing.getSocket(p -> true);
+        DatagramSocket second = multiplexing.getSocket(p -> p.getLength() > 0);
+        DatagramPacket p = new DatagramPacket(new byte[1500], 1500);
+
+        first.setSoTimeout(5000);
+        second.setSoTimeout(5000);
+
+        send(STUN);
+        first.receive(p);
+        // The sockets share the received packet, so what a receiver does with
+        // its own copy must not show through the other socket.
+        Arrays.fill(p.getData(), (byte) 0);
+        assertArrayEquals(STUN, receive(second));
+    }
+
+    @Test
+    public void testLentPacketsAreKeptWithoutCopy()
+        throws Exception
+    {
+        DatagramSocket stun
+            = multiplexing.getSocket(new StunDatagramPacketFilter());
+        BlockingQueue<PooledPacket> lent = new LinkedBlockingQueue<>();
+
+        stun.setSoTimeout(5000);
+        multiplexing.setPooledPacketConsumer(p -> lent.add(p.retain()));
+        try
+        {
+            send(RTP);
+            send(STUN);
+            assertArrayEquals(STUN, receive(stun));
+
+            PooledPacket rtp = lent.poll(5, TimeUnit.SECONDS);
+
+            assertNotNull(rtp);
+            // The reader has released its reference, the consumer holds the
+            // only one.
+            assertEquals(1, rtp.getReferenceCount());
+
+            DatagramPacket p = rtp.getPacket();
+
+            assertArrayEquals(
+                RTP,
+                Arrays.copyOfRange(
+                    p.getData(), p.getOffset(), p.getOffset() + p.getLength()));
+            rtp.release();
+        }
+        finally
+        {
+            multiplexing.setPooledPacketConsumer(null);
+        }
+    }
+
+    @Test
+    public void testSocketCreatedAfterReceipt()
+        throws Exception
+    {
+        send(DTLS);
+        send(RTP);
+
+        // Both packets are queued by the multiplexing socket, and the DTLS
+        // one is then moved to the socket which accepts it.
+        assertArrayEquals(DTLS, receive(multiplexing));
+
+        DatagramSocket rtcp
+            = multiplexing.getSocket(new RtcpDemuxPacketFilter());
+
+        rtcp.setSoTimeout(200);
+        send(RTCP);
+        assertArrayEquals(RTCP, receive(rtcp));
+        assertArrayEquals(RTP, receive(multiplexing));
+
+        multiplexing.getSocket(new DTLSDatagramFilter()).close();
+        send(DTLS);
+        assertArrayEquals(DTLS, receive(multiplexing));
+    }
+
+    @Test
+    public void testWaitingReceiverTakesOverFromReader()
+        throws Exception
+    {
+        DatagramSocket stun
+            = multiplexing.getSocket(new StunDatagramPacketFilter());
+        DatagramSocket dtls
+            = multiplexing.getSocket(new DTLSDatagramFilter());
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        stun.setSoTimeout(5000);
+        dtls.setSoTimeout(5000);
+        try
+        {
+            Future<byte[]> stunReceived = executor.submit(() -> receive(stun));
+
+            // Let the STUN receiver read from the network before the DTLS
+            // receiver starts to wait for it.
+            Thread.sleep(100);
+
+            Future<byte[]> dtlsReceived = executor.submit(() -> receive(dtls));
+
+            Thread.sleep(100);
+            send(STUN);
+            assertArrayEquals(STUN, stunReceived.get(5, TimeUnit.SECONDS));
+
+            // The STUN receiver has stopped reading from the network, so the
+            // DTLS receiver has to take over.
+            send(DTLS);
+            assertArrayEquals(DTLS, dtlsReceived.get(500, TimeUnit.MILLISECONDS));
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+}
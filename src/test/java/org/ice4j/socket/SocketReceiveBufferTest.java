@@ -0,0 +1,283 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.socket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests {@link SocketReceiveBuffer}.
+ */
+public class SocketReceiveBufferTest
+{
+    private static PooledPacket packet(int id, int length)
+    {
+        return packet(id, length, null);
+    }
+
+    private static PooledPacket packet(
+        int id, int length, Queue<PooledPacket> pool)
+    {
+        byte[] data = new byte[Math.max(length, 4)];
+
+        data[0] = (byte) (id >> 24);
+        data[1] = (byte) (id >> 16);
+        data[2] = (byte) (id >> 8);
+        data[3] = (byte) id;
+        return new PooledPacket(new DatagramPacket(data, length), pool).acquire();
+    }
+
+    private static int id(PooledPacket p)
+    {
+        return id(p.getPacket());
+    }
+
+    private static int id(DatagramPacket p)
+    {
+        byte[] data = p.getData();
+
+        return ((data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16)
+            | ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+    }
+
+    @Test
+    public void testFifo()
+    {
+        SocketReceiveBuffer buffer = new SocketReceiveBuffer(() -> 0);
+
+        assertTrue(buffer.isEmpty());
+        assertNull(buffer.poll());
+        for (int i = 0; i < 100; i++)
+            buffer.add(packet(i, 100));
+        assertEquals(100, buffer.size());
+        assertEquals(100 * 100, buffer.getByteSize());
+        for (int i = 0; i < 100; i++)
+            assertEquals(i, id(buffer.poll()));
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.getByteSize());
+    }
+
+    @Test
+    public void testReceiveBufferSizeDropsOldest()
+    {
+        // The buffer holds twice SO_RCVBUF.
+        SocketReceiveBuffer buffer = new SocketReceiveBuffer(() -> 500);
+
+        for (int i = 0; i < 20; i++)
+            buffer.add(packet(i, 100));
+        assertEquals(10, buffer.size());
+        assertEquals(1000, buffer.getByteSize());
+        assertEquals(10, id(buffer.poll()));
+
+        // A single datagram is kept whatever its size.
+        SocketReceiveBuffer small = new SocketReceiveBuffer(() -> 10);
+
+        small.add(packet(0, 1000));
+        assertEquals(1, small.size());
+        small.add(packet(1, 1000));
+        assertEquals(1, small.size());
+        assertEquals(1, id(small.poll()));
+    }
+
+    @Test
+    public void testCapacityDropsOldest()
+    {
+        SocketReceiveBuffer buffer = new SocketReceiveBuffer(() -> 0);
+        int count = 20000;
+
+        for (int i = 0; i < count; i++)
+            buffer.add(packet(i, 0));
+
+        int size = buffer.size();
+
+        assertTrue(size < count);
+        assertEquals(count - size, id(buffer.poll()));
+    }
+
+    @Test
+    public void testScanKeepsOrder()
+    {
+        SocketReceiveBuffer buffer = new SocketReceiveBuffer(() -> 0);
+
+        for (int i = 0; i < 10; i++)
+            buffer.add(packet(i, 10));
+
+        List<PooledPacket> even = buffer.scan(p -> id(p) % 2 == 0);
+
+        assertEquals(5, even.size());
+        assertEquals(5 * 10, buffer.getByteSize());
+        for (int i = 0; i < 5; i++)
+        {
+            assertEquals(2 * i, id(even.get(i)));
+            assertEquals(2 * i + 1, id(buffer.poll()));
+        }
+        assertTrue(buffer.scan(p -> true).isEmpty());
+    }
+
+    @Test
+    public void testConcurrentConsumersTakeEachDatagramOnce()
+        throws Exception
+    {
+        SocketReceiveBuffer buffer = new SocketReceiveBuffer(() -> 0);
+        int count = 200000;
+        int consumers = 4;
+        AtomicBoolean producing = new AtomicBoolean(true);
+        Set<Integer> taken = ConcurrentHashMap.newKeySet();
+        AtomicInteger duplicates = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(consumers);
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int c = 0; c < consumers; c++)
+        {
+            futures.add(executor.submit(() ->
+            {
+                while (true)
+                {
+                    PooledPacket p = buffer.poll();
+
+                    if (p != null)
+                    {
+                        if (!taken.add(id(p)))
+                            duplicates.incrementAndGet();
+                    }
+                    else if (producing.get())
+                    {
+                        buffer.awaitPacket(10, () -> true);
+                    }
+                    else if (buffer.isEmpty())
+                    {
+                        return;
+                    }
+                }
+            }));
+        }
+        try
+        {
+            for (int i = 0; i < count; i++)
+            {
+                buffer.add(packet(i, 1));
+                // Keep the buffer from overflowing.
+                while (buffer.size() > 1000)
+                    Thread.yield();
+            }
+            producing.set(false);
+            for (Future<?> future : futures)
+                future.get(30, TimeUnit.SECONDS);
+        }
+        finally
+        {
+            producing.set(false);
+            executor.shutdownNow();
+        }
+        assertEquals(0, duplicates.get());
+        assertEquals(count, taken.size());
+        assertEquals(0, buffer.getByteSize());
+    }
+
+    @Test
+    public void testDroppedDatagramsAreReleased()
+    {
+        SocketReceiveBuffer buffer = new SocketReceiveBuffer(() -> 500);
+        Queue<PooledPacket> pool = new ArrayDeque<>();
+        PooledPacket first = packet(0, 100, pool);
+
+        buffer.add(first);
+        for (int i = 1; i < 20; i++)
+            buffer.add(packet(i, 100, pool));
+        assertEquals(10, buffer.size());
+        assertEquals(10, pool.size());
+        assertTrue(pool.contains(first));
+        assertEquals(0, first.getReferenceCount());
+    }
+
+    @Test
+    public void testSharedDatagramReturnsToPoolOnLastRelease()
+    {
+        SocketReceiveBuffer a = new SocketReceiveBuffer(() -> 0);
+        SocketReceiveBuffer b = new SocketReceiveBuffer(() -> 0);
+        Queue<PooledPacket> pool = new ArrayDeque<>();
+        PooledPacket p = packet(7, 10, pool);
+
+        // The buffers share the datagram instead of copies of it.
+        a.add(p.retain());
+        b.add(p.retain());
+        p.release();
+        assertEquals(2, p.getReferenceCount());
+
+        PooledPacket fromA = a.poll();
+
+        assertSame(p, fromA);
+        fromA.release();
+        assertTrue(pool.isEmpty());
+
+        PooledPacket fromB = b.poll();
+
+        assertSame(p.getPacket(), fromB.getPacket());
+        fromB.release();
+        assertSame(p, pool.poll());
+        assertThrows(IllegalStateException.class, p::retain);
+        assertThrows(IllegalStateException.class, p::release);
+    }
+
+    @Test
+    public void testAwaitPacket()
+        throws Exception
+    {
+        SocketReceiveBuffer buffer = new SocketReceiveBuffer(() -> 0);
+        AtomicBoolean keepWaiting = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try
+        {
+            // Woken up by a datagram.
+            Future<?> waiter
+                = executor.submit(
+                    () -> buffer.awaitPacket(10000, keepWaiting::get));
+
+            Thread.sleep(50);
+            buffer.add(packet(0, 1));
+            waiter.get(5, TimeUnit.SECONDS);
+            assertNotNull(buffer.poll());
+
+            // Woken up when the condition no longer holds.
+            waiter
+                = executor.submit(
+                    () -> buffer.awaitPacket(10000, keepWaiting::get));
+            Thread.sleep(50);
+            keepWaiting.set(false);
+            buffer.signalWaiters();
+            waiter.get(5, TimeUnit.SECONDS);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        // Times out.
+        long start = System.nanoTime();
+
+        buffer.awaitPacket(50, () -> true);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(45));
+    }
+}
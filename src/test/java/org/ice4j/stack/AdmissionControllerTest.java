@@ -0,0 +1,342 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.ice4j.*;
+import org.ice4j.message.*;
+import org.ice4j.socket.*;
+import org.ice4j.stack.StunStackMetrics.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests {@link AdmissionController}.
+ */
+public class AdmissionControllerTest
+{
+    private final TransportAddress local
+        = new TransportAddress("127.0.0.1", 5000, Transport.UDP);
+
+    private final AtomicLong now = new AtomicLong();
+
+    private final StunStackMetrics metrics = new StunStackMetrics();
+
+    private static byte[] bindingRequest()
+        throws Exception
+    {
+        Request request = MessageFactory.createBindingRequest();
+
+        request.setTransactionID(
+            TransactionID.createNewTransactionID().getBytes());
+        return request.encode(null);
+    }
+
+    private static RawMessage received(byte[] bytes, String source)
+    {
+        return RawMessage.build(
+            bytes, bytes.length,
+            new TransportAddress(source, 6000, Transport.UDP),
+            new TransportAddress("127.0.0.1", 5000, Transport.UDP));
+    }
+
+    private AdmissionController controller(
+            int sourceRate, int sourceBurst, int maxSources,
+            int globalRate, int globalBurst)
+    {
+        return new AdmissionController(
+            sourceRate, sourceBurst, maxSources, globalRate, globalBurst,
+            metrics, now::get);
+    }
+
+    @Test
+    public void testHeaderCheck()
+        throws Exception
+    {
+        byte[] request = bindingRequest();
+
+        assertTrue(AdmissionController.hasStunHeader(request, request.length));
+        // Too short.
+        assertFalse(AdmissionController.hasStunHeader(request, 19));
+        // RTP, DTLS and ChannelData do not start with two zero bits.
+        byte[] rtp = request.clone();
+
+        rtp[0] = (byte) 0x80;
+        assertFalse(AdmissionController.hasStunHeader(rtp, rtp.length));
+
+        // A length which is not a multiple of 4 or exceeds the datagram.
+        byte[] unaligned = request.clone();
+
+        unaligned[3] = 2;
+        assertFalse(
+            AdmissionController.hasStunHeader(unaligned, unaligned.length));
+
+        byte[] truncated = request.clone();
+
+        truncated[3] += 4;
+        assertFalse(
+            AdmissionController.hasStunHeader(truncated, truncated.length));
+    }
+
+    @Test
+    public void testPerSourceRate()
+        throws Exception
+    {
+        AdmissionController controller = controller(10, 5, 100, 0, 0);
+        byte[] request = bindingRequest();
+
+        for (int i = 0; i < 5; i++)
+            assertTrue(controller.admit(received(request, "10.0.0.1")));
+        assertFalse(controller.admit(received(request, "10.0.0.1")));
+        // Another source is not affected.
+        assertTrue(controller.admit(received(request, "10.0.0.2")));
+
+        // 10 messages per second: one token every 100 ms.
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(controller.admit(received(request, "10.0.0.1")));
+        assertFalse(controller.admit(received(request, "10.0.0.1")));
+
+        assertFalse(controller.admit(received(new byte[4], "10.0.0.3")));
+
+        Snapshot snapshot = metrics.snapshot(0, 0, 0);
+
+        assertEquals(2, snapshot.getSourceRateDrops());
+        assertEquals(1, snapshot.getMalformedDrops());
+        assertEquals(0, snapshot.getGlobalRateDrops());
+        assertEquals(2L, snapshot.toMap().get("dropped_source_rate"));
+    }
+
+    @Test
+    public void testGlobalRate()
+        throws Exception
+    {
+        AdmissionController controller = controller(0, 0, 100, 100, 3);
+        byte[] request = bindingRequest();
+
+        for (int i = 0; i < 3; i++)
+        {
+            assertTrue(
+                controller.admit(received(request, "10.0.0." + (i + 1))));
+        }
+        assertFalse(controller.admit(received(request, "10.0.0.9")));
+        assertEquals(1, metrics.snapshot(0, 0, 0).getGlobalRateDrops());
+        // Without a per-source limit, sources are not tracked.
+        assertEquals(0, controller.getSourceCount());
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(10));
+        assertTrue(controller.admit(received(request, "10.0.0.9")));
+    }
+
+    @Test
+    public void testSourceTableIsBounded()
+        throws Exception
+    {
+        AdmissionController controller = controller(10, 1, 2, 0, 0);
+        byte[] request = bindingRequest();
+
+        assertTrue(controller.admit(received(request, "10.0.0.1")));
+        assertTrue(controller.admit(received(request, "10.0.0.2")));
+        // The table is full: a new source is not tracked.
+        assertTrue(controller.admit(received(request, "10.0.0.3")));
+        assertTrue(controller.admit(received(request, "10.0.0.3")));
+        assertEquals(2, controller.getSourceCount());
+
+        // Once the buckets are full again, they are evicted.
+        now.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        assertTrue(controller.admit(received(request, "10.0.0.3")));
+        assertFalse(controller.admit(received(request, "10.0.0.3")));
+        assertEquals(1, controller.getSourceCount());
+    }
+
+    @Test
+    public void testResponsesToClientTransactionsSkipTheBuckets()
+        throws Exception
+    {
+        TransactionID liveID = TransactionID.createNewTransactionID();
+        AdmissionController controller
+            = new AdmissionController(
+                1, 1, 100, 100, 1, metrics,
+                (buffer, offset, length) ->
+                    Arrays.equals(
+                        liveID.getBytes(),
+                        Arrays.copyOfRange(buffer, offset, offset + length)),
+                now::get);
+        Request request = MessageFactory.createBindingRequest();
+
+        request.setTransactionID(liveID.getBytes());
+
+        Response response
+            = MessageFactory.createBindingResponse(
+                request,
+                new TransportAddress("10.0.0.1", 6000, Transport.UDP));
+
+        // Use up the tokens of the source and of the stack.
+        assertTrue(controller.admit(received(bindingRequest(), "10.0.0.1")));
+        assertFalse(controller.admit(received(bindingRequest(), "10.0.0.2")));
+
+        response.setTransactionID(liveID.getBytes());
+
+        byte[] live = response.encode(null);
+
+        for (int i = 0; i < 3; i++)
+            assertTrue(controller.admit(received(live, "10.0.0.1")));
+
+        response.setTransactionID(
+            TransactionID.createNewTransactionID().getBytes());
+        assertFalse(
+            controller.admit(received(response.encode(null), "10.0.0.3")));
+        assertEquals(2, metrics.snapshot(0, 0, 0).getGlobalRateDrops());
+    }
+
+    @Test
+    public void testBucketGrantsItsBurstToConcurrentThreads()
+        throws Exception
+    {
+        AdmissionController.TokenBucket bucket
+            = new AdmissionController.TokenBucket(1, 1000, 0);
+        AtomicInteger granted = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+
+        for (int t = 0; t < threads.length; t++)
+        {
+            threads[t] = new Thread(() ->
+            {
+                for (int i = 0; i < 1000; i++)
+                {
+                    if (bucket.tryAcquire(0))
+                        granted.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(1000, granted.get());
+        assertFalse(bucket.isFull(0));
+        assertTrue(bucket.isFull(TimeUnit.SECONDS.toNanos(1000)));
+    }
+
+    /**
+     * Blasts Binding requests at a stack from one socket while another peer
+     * sends a request at a time, and checks that the peer gets all its
+     * responses.
+     */
+    @Test
+    public void testLegitimatePeerIsServedDuringFlood()
+        throws Exception
+    {
+        StunStack stunStack = new StunStack();
+        IceSocketWrapper localSock
+            = new IceUdpSocketWrapper(
+                new SafeCloseDatagramSocket(
+                    new InetSocketAddress("127.0.0.1", 0)));
+        TransportAddress localAddress
+            = new TransportAddress(
+                "127.0.0.1", localSock.getLocalPort(), Transport.UDP);
+        AtomicBoolean flooding = new AtomicBoolean(true);
+        AtomicInteger blasted = new AtomicInteger();
+
+        try (DatagramSocket attacker = new DatagramSocket(
+                    new InetSocketAddress("127.0.0.1", 0));
+            DatagramSocket peer = new DatagramSocket(
+                    new InetSocketAddress("127.0.0.2", 0)))
+        {
+            stunStack.getNetAccessManager().setAdmissionController(
+                new AdmissionController(
+                    50, 50, 100, 0, 0,
+                    stunStack.getMetrics(), System::nanoTime));
+            stunStack.addSocket(localSock);
+            stunStack.addRequestListener(localAddress, evt ->
+            {
+                try
+                {
+                    stunStack.sendResponse(
+                        evt.getTransactionID().getBytes(),
+                        MessageFactory.createBindingResponse(
+                            (Request) evt.getMessage(),
+                            evt.getRemoteAddress()),
+                        evt.getLocalAddress(),
+                        evt.getRemoteAddress());
+                }
+                catch (Exception ex)
+                {
+                    throw new RuntimeException(ex);
+                }
+            });
+
+            Thread blaster = new Thread(() ->
+            {
+                try
+                {
+                    while (flooding.get())
+                    {
+                        byte[] bytes = bindingRequest();
+
+                        attacker.send(
+                            new DatagramPacket(
+                                bytes, bytes.length, localAddress));
+                        blasted.incrementAndGet();
+                    }
+                }
+                catch (Exception ex)
+                {
+                    // The socket was closed.
+                }
+            });
+            blaster.start();
+            while (blasted.get() < 500)
+                Thread.sleep(1);
+
+            peer.setSoTimeout(2000);
+            for (int i = 0; i < 10; i++)
+            {
+                byte[] bytes = bindingRequest();
+
+                peer.send(new DatagramPacket(bytes, bytes.length, localAddress));
+
+                DatagramPacket response
+                    = new DatagramPacket(new byte[1500], 1500);
+
+                peer.receive(response);
+                assertEquals(
+                    Message.BINDING_SUCCESS_RESPONSE,
+                    Message.decode(
+                            response.getData(), 0, response.getLength())
+                        .getMessageType());
+            }
+
+            flooding.set(false);
+            blaster.join(5000);
+            assertTrue(
+                stunStack.getMetricsSnapshot().getSourceRateDrops() > 0);
+        }
+        finally
+        {
+            flooding.set(false);
+            stunStack.removeSocket(localAddress);
+            stunStack.shutDown();
+            localSock.close();
+        }
+    }
+}
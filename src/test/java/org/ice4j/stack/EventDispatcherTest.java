@@ -0,0 +1,148 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+
+import org.ice4j.*;
+import org.ice4j.attribute.*;
+import org.ice4j.message.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests the dispatching of received messages by {@link EventDispatcher}.
+ */
+public class EventDispatcherTest
+{
+    private final TransportAddress localAddress
+        = new TransportAddress("127.0.0.1", 5000, Transport.UDP);
+
+    private final TransportAddress otherAddress
+        = new TransportAddress("127.0.0.1", 5001, Transport.UDP);
+
+    private final TransportAddress remoteAddress
+        = new TransportAddress("127.0.0.1", 6000, Transport.UDP);
+
+    private final EventDispatcher dispatcher = new EventDispatcher();
+
+    private StunStack stunStack;
+
+    @BeforeEach
+    public void setUp()
+    {
+        stunStack = new StunStack();
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        stunStack.shutDown();
+    }
+
+    private StunMessageEvent bindingRequest(
+            String username,
+            TransportAddress localAddress)
+    {
+        Request request = MessageFactory.createBindingRequest();
+
+        if (username != null)
+        {
+            request.putAttribute(
+                AttributeFactory.createUsernameAttribute(username));
+        }
+        return new StunMessageEvent(
+            stunStack,
+            RawMessage.build(new byte[0], 0, remoteAddress, localAddress),
+            request);
+    }
+
+    private static RequestListener recorder(List<StunMessageEvent> events)
+    {
+        return events::add;
+    }
+
+    @Test
+    public void testRoutesBindingRequestsByLocalUfrag()
+    {
+        List<StunMessageEvent> alice = new ArrayList<>();
+        List<StunMessageEvent> bob = new ArrayList<>();
+
+        dispatcher.addRequestListener("alice", recorder(alice));
+        dispatcher.addRequestListener("bob", recorder(bob));
+        assertTrue(dispatcher.hasRequestListeners(localAddress));
+
+        StunMessageEvent toAlice = bindingRequest("alice:carol", localAddress);
+        StunMessageEvent toBob = bindingRequest("bob", otherAddress);
+
+        dispatcher.fireMessageEvent(toAlice);
+        dispatcher.fireMessageEvent(toBob);
+        dispatcher.fireMessageEvent(bindingRequest("carol:alice", localAddress));
+        dispatcher.fireMessageEvent(bindingRequest(null, localAddress));
+
+        assertEquals(Collections.singletonList(toAlice), alice);
+        assertEquals(Collections.singletonList(toBob), bob);
+    }
+
+    @Test
+    public void testOtherListenersStillReceiveRoutedRequests()
+    {
+        List<StunMessageEvent> ufrag = new ArrayList<>();
+        List<StunMessageEvent> generic = new ArrayList<>();
+        List<StunMessageEvent> local = new ArrayList<>();
+        List<StunMessageEvent> other = new ArrayList<>();
+
+        dispatcher.addRequestListener("alice", recorder(ufrag));
+        dispatcher.addRequestListener(recorder(generic));
+        dispatcher.addRequestListener(localAddress, recorder(local));
+        dispatcher.addRequestListener(otherAddress, recorder(other));
+
+        StunMessageEvent evt = bindingRequest("alice:bob", localAddress);
+
+        dispatcher.fireMessageEvent(evt);
+
+        assertEquals(Collections.singletonList(evt), ufrag);
+        assertEquals(Collections.singletonList(evt), generic);
+        assertEquals(Collections.singletonList(evt), local);
+        assertTrue(other.isEmpty());
+    }
+
+    @Test
+    public void testRemoveUfragListener()
+    {
+        List<StunMessageEvent> first = new ArrayList<>();
+        List<StunMessageEvent> second = new ArrayList<>();
+        RequestListener firstListener = recorder(first);
+        RequestListener secondListener = recorder(second);
+
+        dispatcher.addRequestListener("alice", firstListener);
+        dispatcher.addRequestListener("alice", secondListener);
+
+        // Only the listener currently registered for the ufrag is removed.
+        dispatcher.removeRequestListener("alice", firstListener);
+        dispatcher.fireMessageEvent(bindingRequest("alice:bob", localAddress));
+        assertTrue(first.isEmpty());
+        assertEquals(1, second.size());
+
+        dispatcher.removeRequestListener("alice", secondListener);
+        dispatcher.fireMessageEvent(bindingRequest("alice:bob", localAddress));
+        assertEquals(1, second.size());
+        assertFalse(dispatcher.hasRequestListeners(localAddress));
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests {@link PartitionedExecutor}.
+ */
+public class PartitionedExecutorTest
+{
+    private ExecutorService executor;
+
+    @BeforeEach
+    public void setUp()
+    {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testTasksOfAKeyRunInOrderOneAtATime()
+        throws Exception
+    {
+        PartitionedExecutor lanes = new PartitionedExecutor(4, executor);
+        int keys = 16;
+        int tasksPerKey = 2000;
+        Map<Integer, List<Integer>> runs = new ConcurrentHashMap<>();
+        AtomicInteger[] running = new AtomicInteger[keys];
+        AtomicBoolean overlapped = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(keys * tasksPerKey);
+
+        for (int key = 0; key < keys; key++)
+        {
+            runs.put(key, Collections.synchronizedList(new ArrayList<>()));
+            running[key] = new AtomicInteger();
+        }
+
+        // Submit from several threads, each owning some keys.
+        List<Thread> submitters = new ArrayList<>();
+
+        for (int s = 0; s < 4; s++)
+        {
+            int first = s;
+
+            submitters.add(new Thread(() ->
+            {
+                for (int i = 0; i < tasksPerKey; i++)
+                {
+                    for (int key = first; key < keys; key += 4)
+                    {
+                        int k = key;
+                        int seq = i;
+
+                        lanes.execute(k, () ->
+                        {
+                            if (running[k].incrementAndGet() != 1)
+                                overlapped.set(true);
+                            runs.get(k).add(seq);
+                            running[k].decrementAndGet();
+                            done.countDown();
+                        });
+                    }
+                }
+            }));
+        }
+        submitters.forEach(Thread::start);
+        for (Thread submitter : submitters)
+            submitter.join();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertFalse(overlapped.get());
+        for (List<Integer> run : runs.values())
+        {
+            assertEquals(tasksPerKey, run.size());
+            for (int i = 0; i < tasksPerKey; i++)
+                assertEquals(i, run.get(i));
+        }
+    }
+
+    @Test
+    public void testLanesRunInParallel()
+        throws Exception
+    {
+        PartitionedExecutor lanes = new PartitionedExecutor(2, executor);
+        Object blockedKey = 0;
+        Object otherKey = 1;
+
+        assertNotEquals(
+            lanes.laneIndex(blockedKey), lanes.laneIndex(otherKey));
+
+        CountDownLatch unblock = new CountDownLatch(1);
+        CountDownLatch ran = new CountDownLatch(1);
+
+        lanes.execute(blockedKey, () ->
+        {
+            try
+            {
+                unblock.await();
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+        });
+        lanes.execute(otherKey, ran::countDown);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        unblock.countDown();
+    }
+
+    @Test
+    public void testRejectedLaneIsScheduledAgain()
+        throws Exception
+    {
+        AtomicBoolean reject = new AtomicBoolean(true);
+        PartitionedExecutor lanes = new PartitionedExecutor(1, task ->
+        {
+            if (reject.get())
+                throw new RejectedExecutionException("saturated");
+            executor.execute(task);
+        });
+        AtomicBoolean droppedRan = new AtomicBoolean();
+        CountDownLatch ran = new CountDownLatch(1);
+
+        assertThrows(
+            RejectedExecutionException.class,
+            () -> lanes.execute("key", () -> droppedRan.set(true)));
+
+        reject.set(false);
+        lanes.execute("key", ran::countDown);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertFalse(droppedRan.get());
+    }
+
+    @Test
+    public void testLaneRejectedOnResubmissionIsScheduledAgain()
+        throws Exception
+    {
+        AtomicInteger submissions = new AtomicInteger();
+        PartitionedExecutor lanes = new PartitionedExecutor(1, task ->
+        {
+            // Reject the lane when it yields its thread after a batch.
+            if (submissions.incrementAndGet() == 2)
+                throw new RejectedExecutionException("saturated");
+            executor.execute(task);
+        });
+        CountDownLatch unblock = new CountDownLatch(1);
+        CountDownLatch ran = new CountDownLatch(1);
+
+        lanes.execute("key", () ->
+        {
+            try
+            {
+                unblock.await();
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+        });
+        // More than a batch, so that the lane has to be resubmitted.
+        for (int i = 0; i < 100; i++)
+            lanes.execute("key", () -> { });
+        unblock.countDown();
+
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (submissions.get() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(2, submissions.get());
+
+        // The lane dropped the rest of its tasks and is usable again.
+        Thread.sleep(100);
+        lanes.execute("key", ran::countDown);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFailingTaskDoesNotStallItsLane()
+        throws Exception
+    {
+        PartitionedExecutor lanes = new PartitionedExecutor(1, executor);
+        CountDownLatch ran = new CountDownLatch(1);
+
+        lanes.execute("key", () ->
+        {
+            throw new IllegalStateException("expected");
+        });
+        lanes.execute("key", ran::countDown);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals(0, lanes.laneIndex(null));
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Measures the cost which a {@link PacketLogger} adds to the threads sending
+ * and receiving packets. {@link PcapPacketLogger} only copies each packet
+ * into its ring, and is compared with a logger which writes every packet to
+ * its file on the calling thread, as a synchronous pcap writer would.
+ * <p>
+ * Not run as part of the tests. Run with
+ * <tt>java -cp target/classes:target/test-classes
+ * org.ice4j.stack.PcapPacketLoggerBenchmark [seconds per run]</tt>.
+ */
+public class PcapPacketLoggerBenchmark
+{
+    /**
+     * The numbers of logging threads to measure.
+     */
+    private static final int[] THREADS = { 1, 2, 4, 8 };
+
+    /**
+     * The size of the logged packets, typical of RTP.
+     */
+    private static final int PACKET_SIZE = 1200;
+
+    private static final byte[] SOURCE = { 10, 0, 0, 1 };
+
+    private static final byte[] DESTINATION = { 10, 0, 0, 2 };
+
+    /**
+     * A logger which writes each packet to its file on the calling thread.
+     */
+    private static class SynchronousLogger
+        implements PacketLogger, Closeable
+    {
+        private final FileChannel channel;
+
+        private final ByteBuffer header = ByteBuffer.allocate(16 + 28);
+
+        SynchronousLogger(Path file)
+            throws IOException
+        {
+            channel
+                = FileChannel.open(
+                    file,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        @Override
+        public synchronized void logPacket(
+                byte[] sourceAddress,
+                int sourcePort,
+                byte[] destinationAddress,
+                int destinationPort,
+                byte[] packetContent,
+                boolean sender)
+        {
+            try
+            {
+                header.clear();
+                header.putLong(System.currentTimeMillis());
+                header.putInt(packetContent.length + 28);
+                header.putInt(packetContent.length + 28);
+                header.put(sourceAddress);
+                header.put(destinationAddress);
+                header.putShort((short) sourcePort);
+                header.putShort((short) destinationPort);
+                header.flip();
+                channel.write(
+                    new ByteBuffer[] { header, ByteBuffer.wrap(packetContent) });
+            }
+            catch (IOException ioe)
+            {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+
+        @Override
+        public boolean isEnabled()
+        {
+            return true;
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            channel.close();
+        }
+    }
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 3;
+        Path directory = Files.createTempDirectory("pcap-benchmark");
+
+        System.out.printf(
+            "%-12s %8s %14s %12s %12s%n",
+            "logger", "threads", "ns/packet", "written", "dropped");
+        for (int threads : THREADS)
+        {
+            run("none", null, threads, seconds);
+
+            try (SynchronousLogger sync
+                    = new SynchronousLogger(directory.resolve("sync.pcap")))
+            {
+                run("synchronous", sync, threads, seconds);
+            }
+
+            PcapPacketLogger pcap
+                = new PcapPacketLogger(
+                    directory, "ring", 8192, 1500, 64L << 20, 2);
+
+            run("ring", pcap, threads, seconds);
+            pcap.close();
+            System.out.printf(
+                "%-12s %8s %14s %12d %12d%n",
+                "", "", "", pcap.getWrittenCount(), pcap.getDroppedCount());
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory))
+        {
+            for (Path file : files)
+                Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * Logs packets from a number of threads for a number of seconds and
+     * prints the average time a thread spends per packet.
+     */
+    private static void run(
+            String name, PacketLogger packetLogger, int threads, int seconds)
+        throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        AtomicBoolean stop = new AtomicBoolean();
+        List<Future<long[]>> results = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++)
+        {
+            int port = 5000 + t;
+
+            results.add(executor.submit(() ->
+            {
+                byte[] buffer = new byte[PACKET_SIZE + 100];
+                long count = 0;
+                long start = System.nanoTime();
+
+                new Random(port).nextBytes(buffer);
+                while (!stop.get())
+                {
+                    if (packetLogger != null)
+                    {
+                        packetLogger.logPacket(
+                            SOURCE, port, DESTINATION, 9000,
+                            buffer, 50, PACKET_SIZE,
+                            true);
+                    }
+                    count++;
+                }
+                return new long[] { count, System.nanoTime() - start };
+            }));
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        stop.set(true);
+
+        long packets = 0;
+        long nanos = 0;
+
+        for (Future<long[]> result : results)
+        {
+            long[] r = result.get();
+
+            packets += r[0];
+            nanos += r[1];
+        }
+        executor.shutdown();
+        System.out.printf(
+            "%-12s %8d %14.1f%n", name, threads, (double) nanos / packets);
+    }
+}
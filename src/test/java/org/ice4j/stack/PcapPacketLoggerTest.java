@@ -0,0 +1,341 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.*;
+
+/**
+ * Tests {@link PcapPacketLogger} and {@link PacketRingBuffer}.
+ */
+public class PcapPacketLoggerTest
+{
+    private static final byte[] V4_SOURCE = { 10, 0, 0, 1 };
+
+    private static final byte[] V4_DESTINATION = { (byte) 192, (byte) 168, 1, 2 };
+
+    @TempDir
+    Path directory;
+
+    /**
+     * A record read back from a pcap file.
+     */
+    private static class Record
+    {
+        int includedLength;
+
+        int originalLength;
+
+        byte[] data;
+    }
+
+    /**
+     * Parses a pcap file written by a {@link PcapPacketLogger}.
+     */
+    private static List<Record> readPcap(Path file)
+        throws Exception
+    {
+        ByteBuffer in
+            = ByteBuffer.wrap(Files.readAllBytes(file))
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        assertEquals(0xa1b2c3d4, in.getInt());
+        assertEquals(2, in.getShort());
+        assertEquals(4, in.getShort());
+        in.getInt();
+        in.getInt();
+        assertTrue(in.getInt() > 0);
+        assertEquals(PcapPacketLogger.LINKTYPE_RAW, in.getInt());
+
+        List<Record> records = new ArrayList<>();
+
+        while (in.hasRemaining())
+        {
+            Record record = new Record();
+
+            in.getInt();
+            assertTrue(in.getInt() < 1_000_000);
+            record.includedLength = in.getInt();
+            record.originalLength = in.getInt();
+            record.data = new byte[record.includedLength];
+            in.get(record.data);
+            records.add(record);
+        }
+        return records;
+    }
+
+    private static List<Path> listFiles(Path directory)
+        throws Exception
+    {
+        try (Stream<Path> stream = Files.list(directory))
+        {
+            return stream.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static int getShort(byte[] bytes, int offset)
+    {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    @Test
+    public void testRingDropsWhenFull()
+    {
+        PacketRingBuffer ring = new PacketRingBuffer(3, 4);
+        byte[] packet = { 1, 2, 3, 4, 5, 6 };
+
+        assertEquals(4, ring.capacity());
+        for (int i = 0; i < 4; i++)
+        {
+            assertTrue(
+                ring.offer(
+                    V4_SOURCE, i, V4_DESTINATION, 2, packet, i, 2, 1000L));
+        }
+        assertFalse(
+            ring.offer(V4_SOURCE, 4, V4_DESTINATION, 2, packet, 0, 2, 1000L));
+        assertEquals(4, ring.size());
+
+        PacketRingBuffer.Slot slot = ring.peek();
+
+        assertEquals(0, slot.sourcePort);
+        assertEquals(2, slot.capturedLength);
+        assertEquals(1, slot.data[0]);
+        ring.release();
+
+        // The released slot is reused and the order is kept.
+        assertTrue(
+            ring.offer(V4_SOURCE, 5, V4_DESTINATION, 2, packet, 0, 6, 1000L));
+        for (int port : new int[] { 1, 2, 3, 5 })
+        {
+            slot = ring.peek();
+            assertEquals(port, slot.sourcePort);
+            ring.release();
+        }
+        // Truncated to the snap length.
+        assertEquals(4, slot.capturedLength);
+        assertEquals(6, slot.originalLength);
+        assertNull(ring.peek());
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void testWritesIpv4AndIpv6Records()
+        throws Exception
+    {
+        PcapPacketLogger pcap
+            = new PcapPacketLogger(directory, "test", 16, 1500, 1 << 20, 2);
+        byte[] buffer = { 9, 9, 'a', 'b', 'c', 9 };
+        byte[] v6Source = InetAddress.getByName("2001:db8::1").getAddress();
+        byte[] v6Destination
+            = InetAddress.getByName("2001:db8::2").getAddress();
+
+        pcap.logPacket(
+            V4_SOURCE, 5000, V4_DESTINATION, 6000, buffer, 2, 3, true);
+        pcap.logPacket(
+            v6Source, 7000, v6Destination, 8000, new byte[] { 'd' }, false);
+        pcap.close();
+
+        assertFalse(pcap.isEnabled());
+        assertEquals(2, pcap.getWrittenCount());
+        assertEquals(0, pcap.getDroppedCount());
+
+        List<Path> files = listFiles(directory);
+
+        assertEquals(1, files.size());
+        assertEquals("test-0.pcap", files.get(0).getFileName().toString());
+
+        List<Record> records = readPcap(files.get(0));
+
+        assertEquals(2, records.size());
+
+        byte[] v4 = records.get(0).data;
+
+        assertEquals(20 + 8 + 3, records.get(0).includedLength);
+        assertEquals(20 + 8 + 3, records.get(0).originalLength);
+        assertEquals(0x45, v4[0]);
+        assertEquals(31, getShort(v4, 2));
+        assertEquals(17, v4[9]);
+        assertArrayEquals(V4_SOURCE, Arrays.copyOfRange(v4, 12, 16));
+        assertArrayEquals(V4_DESTINATION, Arrays.copyOfRange(v4, 16, 20));
+        // A header with a valid checksum sums to 0xFFFF, i.e. verifies to 0.
+        assertEquals(0, PcapPacketLogger.ipv4Checksum(v4));
+        assertEquals(5000, getShort(v4, 20));
+        assertEquals(6000, getShort(v4, 22));
+        assertEquals(11, getShort(v4, 24));
+        assertArrayEquals(
+            new byte[] { 'a', 'b', 'c' }, Arrays.copyOfRange(v4, 28, 31));
+
+        byte[] v6 = records.get(1).data;
+
+        assertEquals(40 + 8 + 1, records.get(1).includedLength);
+        assertEquals(0x60, v6[0] & 0xF0);
+        assertEquals(9, getShort(v6, 4));
+        assertEquals(17, v6[6]);
+        assertArrayEquals(v6Source, Arrays.copyOfRange(v6, 8, 24));
+        assertArrayEquals(v6Destination, Arrays.copyOfRange(v6, 24, 40));
+        assertEquals(7000, getShort(v6, 40));
+        assertEquals(8000, getShort(v6, 42));
+        assertEquals('d', v6[48]);
+
+        // Closed loggers drop packets silently.
+        pcap.logPacket(
+            V4_SOURCE, 5000, V4_DESTINATION, 6000, buffer, false);
+        assertEquals(2, pcap.getWrittenCount());
+    }
+
+    @Test
+    public void testTruncatesToSnapLength()
+        throws Exception
+    {
+        PcapPacketLogger pcap
+            = new PcapPacketLogger(directory, "snap", 16, 10, 1 << 20, 1);
+
+        pcap.logPacket(
+            V4_SOURCE, 1, V4_DESTINATION, 2, new byte[100], false);
+        pcap.close();
+
+        Record record = readPcap(listFiles(directory).get(0)).get(0);
+
+        assertEquals(28 + 10, record.includedLength);
+        assertEquals(28 + 100, record.originalLength);
+        assertEquals(128, getShort(record.data, 2));
+    }
+
+    @Test
+    public void testRotatesFiles()
+        throws Exception
+    {
+        // Each record takes 16 + 28 + 100 bytes, so three fit in a file.
+        PcapPacketLogger pcap
+            = new PcapPacketLogger(directory, "rot", 64, 1500, 500, 2);
+
+        for (int i = 0; i < 10; i++)
+        {
+            byte[] packet = new byte[100];
+
+            packet[0] = (byte) i;
+            pcap.logPacket(V4_SOURCE, 1, V4_DESTINATION, 2, packet, true);
+        }
+        pcap.close();
+        assertEquals(10, pcap.getWrittenCount());
+
+        List<Path> files = listFiles(directory);
+
+        assertEquals(2, files.size());
+        assertEquals("rot-2.pcap", files.get(0).getFileName().toString());
+        assertEquals("rot-3.pcap", files.get(1).getFileName().toString());
+
+        List<Record> first = readPcap(files.get(0));
+        List<Record> last = readPcap(files.get(1));
+
+        assertEquals(3, first.size());
+        assertEquals(6, first.get(0).data[28]);
+        assertEquals(1, last.size());
+        assertEquals(9, last.get(0).data[28]);
+    }
+
+    /**
+     * Returns the thread which runs the writer of a {@link PcapPacketLogger},
+     * waiting for it to be idle.
+     */
+    private static Thread awaitIdleWriter()
+        throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (System.currentTimeMillis() < deadline)
+        {
+            for (Map.Entry<Thread, StackTraceElement[]> e
+                    : Thread.getAllStackTraces().entrySet())
+            {
+                boolean writer
+                    = Arrays.stream(e.getValue()).anyMatch(
+                        f -> f.getMethodName().equals("runWriter"));
+
+                if (writer && e.getKey().getState() == Thread.State.WAITING)
+                    return e.getKey();
+            }
+            Thread.sleep(10);
+        }
+        return null;
+    }
+
+    @Test
+    public void testIdleWriterParksUntilAPacketIsLogged()
+        throws Exception
+    {
+        PcapPacketLogger pcap
+            = new PcapPacketLogger(directory, "idle", 16, 1500, 1 << 20, 1);
+
+        try
+        {
+            // Parked without a timeout rather than polling the ring.
+            Thread writer = awaitIdleWriter();
+
+            assertNotNull(writer);
+            assertTrue(writer.getName().startsWith("ice4j.PcapPacketLogger-"));
+
+            pcap.logPacket(
+                V4_SOURCE, 1, V4_DESTINATION, 2, new byte[10], true);
+
+            long deadline = System.currentTimeMillis() + 5000;
+
+            while (pcap.getWrittenCount() == 0
+                    && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(10);
+            }
+            assertEquals(1, pcap.getWrittenCount());
+            assertNotNull(awaitIdleWriter());
+        }
+        finally
+        {
+            pcap.close();
+        }
+        assertEquals(1, readPcap(listFiles(directory).get(0)).size());
+    }
+
+    @Test
+    public void testCountsDroppedPackets()
+        throws Exception
+    {
+        PcapPacketLogger pcap
+            = new PcapPacketLogger(directory, "drop", 4, 1500, 1 << 30, 1);
+        byte[] packet = new byte[1000];
+        int count = 100_000;
+
+        for (int i = 0; i < count; i++)
+            pcap.logPacket(V4_SOURCE, 1, V4_DESTINATION, 2, packet, true);
+        pcap.close();
+
+        assertTrue(pcap.getDroppedCount() > 0);
+        assertEquals(
+            count, pcap.getWrittenCount() + pcap.getDroppedCount());
+        assertEquals(
+            pcap.getWrittenCount(),
+            readPcap(listFiles(directory).get(0)).size());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.ice4j.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests {@link RawMessagePool} and the reference counting of
+ * {@link RawMessage}.
+ */
+public class RawMessagePoolTest
+{
+    private final TransportAddress remote
+        = new TransportAddress("127.0.0.1", 1000, Transport.UDP);
+
+    private final TransportAddress local
+        = new TransportAddress("127.0.0.1", 2000, Transport.UDP);
+
+    @Test
+    public void testReleasedMessageIsReused()
+    {
+        RawMessagePool pool = new RawMessagePool(1500, 4);
+        RawMessage message = pool.lease();
+
+        assertEquals(1500, message.getCapacity());
+        assertEquals(1, message.refCount());
+
+        message.getBuffer()[0] = 42;
+        message.init(1, remote, local);
+        assertArrayEquals(new byte[] { 42 }, message.getBytes());
+        assertEquals(remote, message.getRemoteAddress());
+
+        message.release();
+        assertEquals(0, message.refCount());
+        assertNull(message.getRemoteAddress());
+
+        assertSame(message, pool.lease());
+        assertEquals(1, message.refCount());
+        assertEquals(1, pool.getAllocatedCount());
+    }
+
+    @Test
+    public void testFullBufferMessageIsCopied()
+    {
+        RawMessagePool pool = new RawMessagePool(1500, 4);
+        RawMessage message = pool.lease();
+
+        message.getBuffer()[1499] = 42;
+        message.init(1500, remote, local);
+
+        byte[] bytes = message.getBytes();
+
+        assertNotSame(message.getBuffer(), bytes);
+        assertEquals(1500, bytes.length);
+        assertEquals(42, bytes[1499]);
+
+        message.release();
+        pool.lease().getBuffer()[1499] = 0;
+        assertEquals(42, bytes[1499]);
+    }
+
+    @Test
+    public void testRetainedMessageIsNotReused()
+    {
+        RawMessagePool pool = new RawMessagePool(1500, 4);
+        RawMessage message = pool.lease();
+
+        message.init(0, remote, local);
+        assertSame(message, message.retain());
+        message.release();
+        assertEquals(1, message.refCount());
+
+        assertNotSame(message, pool.lease());
+
+        message.release();
+        assertSame(message, pool.lease());
+    }
+
+    @Test
+    public void testFullPoolDropsMessages()
+    {
+        RawMessagePool pool = new RawMessagePool(100, 1);
+        RawMessage first = pool.lease();
+        RawMessage second = pool.lease();
+
+        first.release();
+        second.release();
+
+        assertSame(first, pool.lease());
+        assertNotSame(second, pool.lease());
+        assertEquals(3, pool.getAllocatedCount());
+    }
+
+    @Test
+    public void testReleasingTwiceFails()
+    {
+        RawMessagePool pool = new RawMessagePool(100, 1);
+        RawMessage message = pool.lease();
+
+        message.release();
+        assertThrows(IllegalStateException.class, message::release);
+        assertThrows(IllegalStateException.class, message::retain);
+    }
+
+    @Test
+    public void testUnpooledMessageIsCopied()
+    {
+        byte[] data = { 1, 2, 3, 4 };
+        RawMessage message = new RawMessage(data, 1, 2, remote, local);
+
+        assertArrayEquals(new byte[] { 2, 3 }, message.getBytes());
+        assertSame(message.getBytes(), message.getBuffer());
+        message.release();
+        assertArrayEquals(new byte[] { 2, 3 }, message.getBytes());
+    }
+}
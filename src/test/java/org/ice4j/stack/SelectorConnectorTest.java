@@ -0,0 +1,282 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+import org.ice4j.*;
+import org.ice4j.socket.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests {@link SelectorConnector}.
+ */
+public class SelectorConnectorTest
+{
+    private final BlockingQueue<RawMessage> received
+        = new LinkedBlockingQueue<>();
+
+    private final ErrorHandler errorHandler = new ErrorHandler()
+    {
+        @Override
+        public void handleError(String message, Throwable error)
+        {
+        }
+
+        @Override
+        public void handleFatalError(
+            Runnable callingThread, String message, Throwable error)
+        {
+        }
+    };
+
+    @Test
+    public void testFallsBackForSocketsWithoutChannel()
+        throws Exception
+    {
+        DatagramSocket socket
+            = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+
+        try
+        {
+            assertNull(SelectorConnector.create(
+                new IceUdpSocketWrapper(socket),
+                null,
+                received::add,
+                errorHandler));
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testReceivesAndSendsDatagrams()
+        throws Exception
+    {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress("127.0.0.1", 0));
+        IceSocketWrapper wrapper = new IceUdpSocketWrapper(channel.socket());
+        SelectorConnector connector = SelectorConnector.create(
+            wrapper, null, received::add, errorHandler);
+
+        assertNotNull(connector);
+
+        DatagramSocket peer
+            = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+
+        try
+        {
+            connector.start();
+
+            byte[] data = { 1, 2, 3, 4 };
+            peer.send(new DatagramPacket(
+                data, data.length, channel.socket().getLocalSocketAddress()));
+
+            RawMessage message = received.poll(5, TimeUnit.SECONDS);
+
+            assertNotNull(message);
+            assertArrayEquals(data, message.getBytes());
+            assertEquals(peer.getLocalPort(), message.getRemoteAddress().getPort());
+
+            connector.sendMessage(
+                new byte[] { 5, 6 },
+                new TransportAddress(
+                    "127.0.0.1", peer.getLocalPort(), Transport.UDP));
+
+            DatagramPacket p = new DatagramPacket(new byte[10], 10);
+            peer.setSoTimeout(5000);
+            peer.receive(p);
+            assertEquals(2, p.getLength());
+            assertEquals(5, p.getData()[0]);
+        }
+        finally
+        {
+            connector.stop();
+            peer.close();
+        }
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void testWrapperSendsAfterConnectorStarts()
+        throws Exception
+    {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress("127.0.0.1", 0));
+        IceSocketWrapper wrapper = new IceUdpSocketWrapper(channel.socket());
+        SelectorConnector connector = SelectorConnector.create(
+            wrapper, null, received::add, errorHandler);
+
+        assertNotNull(connector);
+
+        DatagramSocket peer
+            = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+
+        try
+        {
+            connector.start();
+            assertFalse(channel.isBlocking());
+
+            byte[] data = { 0, 1, 2, 3 };
+            wrapper.send(new DatagramPacket(
+                data, 1, 2, peer.getLocalSocketAddress()));
+
+            DatagramPacket p = new DatagramPacket(new byte[10], 10);
+            peer.setSoTimeout(5000);
+            peer.receive(p);
+            assertEquals(2, p.getLength());
+            assertEquals(1, p.getData()[0]);
+            assertEquals(2, p.getData()[1]);
+
+            // The connector still receives what the peer sends.
+            peer.send(new DatagramPacket(
+                data, data.length, channel.socket().getLocalSocketAddress()));
+
+            RawMessage message = received.poll(5, TimeUnit.SECONDS);
+
+            assertNotNull(message);
+            assertArrayEquals(data, message.getBytes());
+        }
+        finally
+        {
+            connector.stop();
+            peer.close();
+        }
+    }
+
+    @Test
+    public void testReadsFramedTcpMessages()
+        throws Exception
+    {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        Socket peer = new Socket();
+        peer.connect(server.getLocalAddress());
+        SocketChannel channel = server.accept();
+        SelectorConnector connector = SelectorConnector.create(
+            new IceTcpSocketWrapper(channel.socket()),
+            null,
+            received::add,
+            errorHandler);
+
+        assertNotNull(connector);
+
+        try
+        {
+            connector.start();
+
+            // Two frames, the second one split across two writes.
+            OutputStream out = peer.getOutputStream();
+            out.write(new byte[] { 0, 2, 7, 8, 0, 3, 9 });
+            out.flush();
+            Thread.sleep(50);
+            out.write(new byte[] { 10, 11 });
+            out.flush();
+
+            RawMessage first = received.poll(5, TimeUnit.SECONDS);
+            RawMessage second = received.poll(5, TimeUnit.SECONDS);
+
+            assertNotNull(first);
+            assertNotNull(second);
+            assertArrayEquals(new byte[] { 7, 8 }, first.getBytes());
+            assertArrayEquals(new byte[] { 9, 10, 11 }, second.getBytes());
+
+            connector.sendMessage(
+                new byte[] { 42 },
+                new TransportAddress(
+                    (InetSocketAddress) peer.getLocalSocketAddress(),
+                    Transport.TCP));
+
+            DataInputStream in = new DataInputStream(peer.getInputStream());
+            assertEquals(1, in.readUnsignedShort());
+            assertEquals(42, in.readByte());
+        }
+        finally
+        {
+            connector.stop();
+            peer.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testStalledTcpPeerBoundsPendingWrites()
+        throws Exception
+    {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        Socket peer = new Socket();
+        peer.setReceiveBufferSize(4096);
+        peer.connect(server.getLocalAddress());
+        SocketChannel channel = server.accept();
+        channel.socket().setSendBufferSize(4096);
+        SelectorConnector connector = SelectorConnector.create(
+            new IceTcpSocketWrapper(channel.socket()),
+            null,
+            received::add,
+            errorHandler);
+
+        assertNotNull(connector);
+
+        TransportAddress to
+            = new TransportAddress(
+                (InetSocketAddress) peer.getLocalSocketAddress(),
+                Transport.TCP);
+
+        try
+        {
+            connector.start();
+
+            // The peer never reads, so the kernel buffers fill up first and
+            // then the frames waiting in the connector.
+            byte[] message = new byte[1000];
+            int sent = 0;
+            IOException failure = null;
+
+            while (failure == null && sent < 100_000)
+            {
+                try
+                {
+                    connector.sendMessage(message, to);
+                    sent++;
+                }
+                catch (IOException ioe)
+                {
+                    failure = ioe;
+                }
+            }
+            assertNotNull(failure);
+            assertTrue(
+                sent * (long) message.length
+                    > SelectorConnector.MAX_PENDING_WRITE_BYTES);
+        }
+        finally
+        {
+            connector.stop();
+            peer.close();
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.ice4j.*;
+import org.ice4j.socket.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests {@link SendQueue}.
+ */
+public class SendQueueTest
+{
+    private final TransportAddress remote
+        = new TransportAddress("127.0.0.1", 6000, Transport.UDP);
+
+    private final ErrorHandler errorHandler = new ErrorHandler()
+    {
+        @Override
+        public void handleError(String message, Throwable error)
+        {
+        }
+
+        @Override
+        public void handleFatalError(
+            Runnable callingThread, String message, Throwable error)
+        {
+        }
+    };
+
+    /**
+     * The first byte of each message sent by {@link #connector}.
+     */
+    private final BlockingQueue<Byte> sent = new LinkedBlockingQueue<>();
+
+    /**
+     * The outcome of each message, by the first byte of the message.
+     */
+    private final Map<Byte, Optional<Exception>> completed
+        = new ConcurrentHashMap<>();
+
+    /**
+     * Released to let {@link #connector} send, simulating a stalled peer.
+     */
+    private final CountDownLatch unblock = new CountDownLatch(1);
+
+    /**
+     * Counted down when {@link #connector} starts to send its first message.
+     */
+    private final CountDownLatch sending = new CountDownLatch(1);
+
+    private DatagramSocket socket;
+
+    private Connector connector;
+
+    @BeforeEach
+    public void setUp()
+        throws Exception
+    {
+        socket = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+        connector = new Connector(
+            new IceUdpSocketWrapper(socket), null, m -> {}, errorHandler)
+        {
+            @Override
+            void send(byte[] message, TransportAddress address)
+                throws IOException
+            {
+                sending.countDown();
+                try
+                {
+                    unblock.await();
+                }
+                catch (InterruptedException ie)
+                {
+                    throw new InterruptedIOException();
+                }
+                if (message[0] < 0)
+                    throw new IOException("Failed to send");
+                sent.add(message[0]);
+            }
+        };
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        unblock.countDown();
+        socket.close();
+    }
+
+    private void add(SendQueue queue, int id)
+        throws IOException
+    {
+        queue.add(
+            new byte[] { (byte) id },
+            remote,
+            (address, error) ->
+            {
+                assertEquals(remote, address);
+                completed.put((byte) id, Optional.ofNullable(error));
+            });
+    }
+
+    /**
+     * Enqueues a message and waits until the queue has started to send it,
+     * so that the following messages wait in the queue.
+     */
+    private void addBlocked(SendQueue queue)
+        throws Exception
+    {
+        add(queue, 0);
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+    }
+
+    private void awaitCompleted(int count)
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (completed.size() < count
+                && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5);
+        }
+        assertEquals(count, completed.size());
+    }
+
+    @Test
+    public void testSendsInOrderWithoutBlockingTheSender()
+        throws Exception
+    {
+        SendQueue queue
+            = new SendQueue(connector, 16, SendQueue.OverflowPolicy.REJECT);
+
+        for (int i = 0; i < 10; i++)
+            add(queue, i);
+        // The sends are blocked, yet all messages have been accepted.
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+        assertTrue(completed.isEmpty());
+
+        unblock.countDown();
+        awaitCompleted(10);
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals((byte) i, sent.poll());
+            assertFalse(completed.get((byte) i).isPresent());
+        }
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testDropNewest()
+        throws Exception
+    {
+        SendQueue queue
+            = new SendQueue(
+                connector, 2, SendQueue.OverflowPolicy.DROP_NEWEST);
+
+        addBlocked(queue);
+        add(queue, 1);
+        add(queue, 2);
+        add(queue, 3);
+        assertTrue(
+            completed.get((byte) 3).get()
+                instanceof SendQueue.SendQueueFullException);
+        assertEquals(1, queue.getDroppedCount());
+
+        unblock.countDown();
+        awaitCompleted(4);
+        assertEquals(Arrays.asList((byte) 0, (byte) 1, (byte) 2),
+            new ArrayList<>(sent));
+    }
+
+    @Test
+    public void testDropOldest()
+        throws Exception
+    {
+        SendQueue queue
+            = new SendQueue(
+                connector, 2, SendQueue.OverflowPolicy.DROP_OLDEST);
+
+        addBlocked(queue);
+        add(queue, 1);
+        add(queue, 2);
+        add(queue, 3);
+        assertTrue(
+            completed.get((byte) 1).get()
+                instanceof SendQueue.SendQueueFullException);
+
+        unblock.countDown();
+        awaitCompleted(4);
+        assertEquals(Arrays.asList((byte) 0, (byte) 2, (byte) 3),
+            new ArrayList<>(sent));
+    }
+
+    @Test
+    public void testReject()
+        throws Exception
+    {
+        SendQueue queue
+            = new SendQueue(connector, 1, SendQueue.OverflowPolicy.REJECT);
+
+        addBlocked(queue);
+        add(queue, 1);
+        assertThrows(
+            SendQueue.SendQueueFullException.class, () -> add(queue, 2));
+        assertEquals(1, queue.getDroppedCount());
+
+        unblock.countDown();
+        awaitCompleted(2);
+        assertNull(completed.get((byte) 2));
+    }
+
+    @Test
+    public void testReportsSendFailures()
+        throws Exception
+    {
+        SendQueue queue
+            = new SendQueue(connector, 4, SendQueue.OverflowPolicy.REJECT);
+
+        unblock.countDown();
+        add(queue, -1);
+        add(queue, 1);
+        awaitCompleted(2);
+        assertTrue(completed.get((byte) -1).isPresent());
+        assertFalse(completed.get((byte) 1).isPresent());
+    }
+
+    @Test
+    public void testCloseFailsWaitingMessages()
+        throws Exception
+    {
+        SendQueue queue
+            = new SendQueue(connector, 4, SendQueue.OverflowPolicy.REJECT);
+
+        addBlocked(queue);
+        add(queue, 1);
+        queue.close();
+        assertTrue(completed.get((byte) 1).isPresent());
+        assertThrows(IOException.class, () -> add(queue, 2));
+
+        unblock.countDown();
+        awaitCompleted(2);
+        assertFalse(sent.contains((byte) 1));
+    }
+
+    @Test
+    public void testOverflowPolicyNames()
+    {
+        assertEquals(
+            SendQueue.OverflowPolicy.DROP_OLDEST,
+            SendQueue.OverflowPolicy.parse("drop-oldest"));
+        assertEquals(
+            SendQueue.OverflowPolicy.REJECT,
+            SendQueue.OverflowPolicy.parse("reject"));
+        assertThrows(
+            IllegalArgumentException.class,
+            () -> SendQueue.OverflowPolicy.parse("block"));
+    }
+}
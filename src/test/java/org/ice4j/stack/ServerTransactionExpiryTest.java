@@ -0,0 +1,113 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.ice4j.*;
+import org.ice4j.message.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests the collection of expired server transactions by {@link StunStack}.
+ */
+public class ServerTransactionExpiryTest
+{
+    private final TransportAddress local
+        = new TransportAddress("127.0.0.1", 5000, Transport.UDP);
+
+    private final TransportAddress remote
+        = new TransportAddress("127.0.0.1", 6000, Transport.UDP);
+
+    private StunStack stunStack;
+
+    @BeforeEach
+    public void setUp()
+    {
+        stunStack = new StunStack();
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        stunStack.shutDown();
+    }
+
+    /**
+     * Makes {@link #stunStack} receive a Binding request, which starts a
+     * server transaction.
+     *
+     * @return the ID of the server transaction.
+     */
+    private TransactionID receiveRequest()
+        throws Exception
+    {
+        Request request = MessageFactory.createBindingRequest();
+        TransactionID tid = TransactionID.createNewTransactionID();
+
+        request.setTransactionID(tid.getBytes());
+
+        byte[] bytes = request.encode(stunStack);
+
+        stunStack.handleMessageEvent(
+            new StunMessageEvent(
+                stunStack,
+                new RawMessage(bytes, bytes.length, remote, local),
+                request));
+        return tid;
+    }
+
+    @Test
+    public void testSweepReclaimsOnlyExpiredTransactions()
+        throws Exception
+    {
+        TransactionID first = receiveRequest();
+        TransactionID second = receiveRequest();
+        long now = System.currentTimeMillis();
+
+        assertNotNull(stunStack.getServerTransaction(first));
+        assertNotNull(stunStack.getServerTransaction(second));
+
+        stunStack.sweepExpiredServerTransactions(now);
+        assertEquals(1, stunStack.getServerTransactionSweepCount());
+        assertEquals(0, stunStack.getReclaimedServerTransactionCount());
+        assertNotNull(stunStack.getServerTransaction(first));
+
+        stunStack.sweepExpiredServerTransactions(
+            now + StunServerTransaction.LIFETIME + 1000);
+        assertEquals(2, stunStack.getServerTransactionSweepCount());
+        assertEquals(2, stunStack.getReclaimedServerTransactionCount());
+        assertNull(stunStack.getServerTransaction(first.getBytes()));
+        assertNull(stunStack.getServerTransaction(second.getBytes()));
+        assertTrue(stunStack.getLastServerTransactionSweepNanos() > 0);
+    }
+
+    @Test
+    public void testSweepSkipsTransactionsRemovedEarlier()
+        throws Exception
+    {
+        TransactionID tid = receiveRequest();
+        StunServerTransaction tran = stunStack.getServerTransaction(tid);
+
+        stunStack.removeServerTransaction(tran);
+        stunStack.sweepExpiredServerTransactions(
+            System.currentTimeMillis() + StunServerTransaction.LIFETIME + 1000);
+
+        assertEquals(0, stunStack.getReclaimedServerTransactionCount());
+    }
+}
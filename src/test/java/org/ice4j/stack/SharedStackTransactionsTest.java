@@ -0,0 +1,178 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.*;
+import java.util.function.*;
+
+import org.ice4j.*;
+import org.ice4j.attribute.*;
+import org.ice4j.message.*;
+import org.ice4j.security.*;
+import org.ice4j.socket.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests the removal of the transactions of one of the users of a shared
+ * {@link StunStack}.
+ */
+public class SharedStackTransactionsTest
+{
+    private StunStack stunStack;
+
+    private IceSocketWrapper localSock;
+
+    private TransportAddress localAddress;
+
+    private DatagramSocket peer;
+
+    @BeforeEach
+    public void setUp()
+        throws Exception
+    {
+        stunStack = new StunStack();
+        localSock = new IceUdpSocketWrapper(
+            new SafeCloseDatagramSocket(new InetSocketAddress("127.0.0.1", 0)));
+        localAddress = new TransportAddress(
+            "127.0.0.1", localSock.getLocalPort(), Transport.UDP);
+        stunStack.addSocket(localSock);
+
+        peer = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+        peer.setSoTimeout(5000);
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        stunStack.removeSocket(localAddress);
+        stunStack.shutDown();
+        localSock.close();
+        peer.close();
+    }
+
+    private static CredentialsAuthority authority(String localUfrag)
+    {
+        return new CredentialsAuthority()
+        {
+            @Override
+            public byte[] getLocalKey(String username)
+            {
+                return null;
+            }
+
+            @Override
+            public byte[] getRemoteKey(String username, String media)
+            {
+                return null;
+            }
+
+            @Override
+            public boolean checkLocalUserName(String username)
+            {
+                return username.equals(localUfrag);
+            }
+        };
+    }
+
+    private static ResponseCollector collector()
+    {
+        return new ResponseCollector()
+        {
+            @Override
+            public void processResponse(StunResponseEvent event)
+            {
+            }
+
+            @Override
+            public void processTimeout(StunTimeoutEvent event)
+            {
+            }
+        };
+    }
+
+    private void awaitCondition(BooleanSupplier condition)
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (!condition.getAsBoolean()
+                && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    public void testExpireServerTransactionsByUfrag()
+        throws Exception
+    {
+        CredentialsManager credentialsManager
+            = stunStack.getCredentialsManager();
+
+        credentialsManager.registerAuthority("alice", authority("alice"));
+        credentialsManager.registerAuthority("carol", authority("carol"));
+
+        for (String username : new String[] { "alice:bob", "carol:dave" })
+        {
+            Request request = MessageFactory.createBindingRequest();
+
+            request.setTransactionID(
+                TransactionID.createNewTransactionID().getBytes());
+            request.putAttribute(
+                AttributeFactory.createUsernameAttribute(username));
+
+            byte[] bytes = request.encode(stunStack);
+
+            peer.send(new DatagramPacket(bytes, bytes.length, localAddress));
+        }
+        awaitCondition(
+            () -> stunStack.getMetricsSnapshot().getServerTransactions() == 2);
+
+        stunStack.expireServerTransactions("alice");
+        assertEquals(1, stunStack.getMetricsSnapshot().getServerTransactions());
+        stunStack.expireServerTransactions("carol");
+        assertEquals(0, stunStack.getMetricsSnapshot().getServerTransactions());
+    }
+
+    @Test
+    public void testCancelClientTransactionsByCollector()
+        throws Exception
+    {
+        ResponseCollector first = collector();
+        ResponseCollector second = collector();
+        TransportAddress peerAddress
+            = new TransportAddress(
+                "127.0.0.1", peer.getLocalPort(), Transport.UDP);
+
+        stunStack.sendRequest(
+            MessageFactory.createBindingRequest(),
+            peerAddress, localAddress, first);
+        stunStack.sendRequest(
+            MessageFactory.createBindingRequest(),
+            peerAddress, localAddress, second);
+        assertEquals(2, stunStack.getMetricsSnapshot().getClientTransactions());
+
+        stunStack.cancelClientTransactions(first);
+        assertEquals(1, stunStack.getMetricsSnapshot().getClientTransactions());
+        stunStack.cancelClientTransactions(second);
+        assertEquals(0, stunStack.getMetricsSnapshot().getClientTransactions());
+    }
+}
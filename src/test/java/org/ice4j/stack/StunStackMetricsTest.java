@@ -0,0 +1,227 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.*;
+import java.util.*;
+import java.util.function.*;
+
+import org.ice4j.*;
+import org.ice4j.attribute.*;
+import org.ice4j.message.*;
+import org.ice4j.socket.*;
+import org.ice4j.stack.StunStackMetrics.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests {@link StunStackMetrics} and the counting of messages by
+ * {@link StunStack}.
+ */
+public class StunStackMetricsTest
+{
+    private StunStack stunStack;
+
+    private IceSocketWrapper localSock;
+
+    private TransportAddress localAddress;
+
+    private DatagramSocket peer;
+
+    @BeforeEach
+    public void setUp()
+        throws Exception
+    {
+        stunStack = new StunStack();
+        localSock = new IceUdpSocketWrapper(
+            new SafeCloseDatagramSocket(new InetSocketAddress("127.0.0.1", 0)));
+        localAddress = new TransportAddress(
+            "127.0.0.1", localSock.getLocalPort(), Transport.UDP);
+        stunStack.addSocket(localSock);
+
+        peer = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+        peer.setSoTimeout(5000);
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        stunStack.removeSocket(localAddress);
+        stunStack.shutDown();
+        localSock.close();
+        peer.close();
+    }
+
+    private void sendFromPeer(byte[] bytes)
+        throws Exception
+    {
+        peer.send(new DatagramPacket(bytes, bytes.length, localAddress));
+    }
+
+    private Snapshot awaitSnapshot(Predicate<Snapshot> condition)
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        Snapshot snapshot = stunStack.getMetricsSnapshot();
+
+        while (!condition.test(snapshot)
+                && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+            snapshot = stunStack.getMetricsSnapshot();
+        }
+        assertTrue(condition.test(snapshot), snapshot.toString());
+        return snapshot;
+    }
+
+    @Test
+    public void testCountsByClassAndMethod()
+    {
+        StunStackMetrics metrics = new StunStackMetrics();
+
+        metrics.messageSent(Message.BINDING_REQUEST);
+        metrics.messageSent(Message.BINDING_REQUEST);
+        metrics.messageSent(Message.ALLOCATE_ERROR_RESPONSE);
+        metrics.messageReceived(Message.BINDING_SUCCESS_RESPONSE);
+        metrics.messageReceived(Message.DATA_INDICATION);
+        metrics.requestRetransmitted();
+        metrics.clientTransactionTimedOut();
+        metrics.decodeFailed(true);
+        metrics.decodeFailed(false);
+        metrics.integrityCheckFailed();
+        metrics.messageProcessed(100, 1000);
+
+        Snapshot snapshot = metrics.snapshot(3, 4, 5);
+
+        // Later updates do not change the snapshot.
+        metrics.messageSent(Message.BINDING_REQUEST);
+
+        assertEquals(2, snapshot.getRequestsSent());
+        assertEquals(
+            2,
+            snapshot.getMessagesSent(
+                MessageClass.REQUEST, Message.STUN_METHOD_BINDING));
+        assertEquals(
+            0,
+            snapshot.getMessagesSent(
+                MessageClass.REQUEST, Message.TURN_METHOD_ALLOCATE));
+        assertEquals(1, snapshot.getResponsesSent());
+        assertEquals(
+            1,
+            snapshot.getMessagesSent(
+                MessageClass.ERROR_RESPONSE, Message.TURN_METHOD_ALLOCATE));
+        assertEquals(1, snapshot.getResponsesReceived());
+        assertEquals(0, snapshot.getRequestsReceived());
+        assertEquals(
+            1, snapshot.getMessagesReceived(MessageClass.INDICATION));
+        assertEquals(1, snapshot.getRequestRetransmissions());
+        assertEquals(1, snapshot.getClientTransactionTimeouts());
+        assertEquals(1, snapshot.getFingerprintFailures());
+        assertEquals(1, snapshot.getDecodeFailures());
+        assertEquals(1, snapshot.getIntegrityFailures());
+        assertEquals(1, snapshot.getProcessedMessages());
+        assertEquals(100, snapshot.getProcessingDelayNanos());
+        assertEquals(1000, snapshot.getProcessingTimeNanos());
+        assertEquals(3, snapshot.getClientTransactions());
+        assertEquals(4, snapshot.getServerTransactions());
+        assertEquals(5, snapshot.getPendingMessages());
+
+        Map<String, Long> map = snapshot.toMap();
+
+        assertEquals(2L, map.get("sent.request.binding"));
+        assertEquals(1L, map.get("sent.error_response.allocate"));
+        assertEquals(1L, map.get("received.indication.data"));
+        assertFalse(map.containsKey("sent.request.allocate"));
+        assertEquals(4L, map.get("server_transactions"));
+        assertThrows(
+            UnsupportedOperationException.class,
+            () -> map.put("sent.request.binding", 0L));
+    }
+
+    @Test
+    public void testStackCountsReceivedRequestsAndSentResponses()
+        throws Exception
+    {
+        stunStack.addRequestListener(localAddress, evt ->
+        {
+            Request request = (Request) evt.getMessage();
+            Response response
+                = MessageFactory.createBindingResponse(
+                    request, evt.getRemoteAddress());
+
+            try
+            {
+                stunStack.sendResponse(
+                    evt.getTransactionID().getBytes(),
+                    response,
+                    evt.getLocalAddress(),
+                    evt.getRemoteAddress());
+            }
+            catch (Exception ex)
+            {
+                throw new RuntimeException(ex);
+            }
+        });
+
+        Request request = MessageFactory.createBindingRequest();
+
+        request.setTransactionID(
+            TransactionID.createNewTransactionID().getBytes());
+        sendFromPeer(request.encode(stunStack));
+        peer.receive(new DatagramPacket(new byte[1500], 1500));
+
+        Snapshot snapshot = awaitSnapshot(s -> s.getProcessedMessages() == 1);
+
+        assertEquals(
+            1,
+            snapshot.getMessagesReceived(
+                MessageClass.REQUEST, Message.STUN_METHOD_BINDING));
+        assertEquals(
+            1,
+            snapshot.getMessagesSent(
+                MessageClass.SUCCESS_RESPONSE, Message.STUN_METHOD_BINDING));
+        assertEquals(1, snapshot.getServerTransactions());
+        assertEquals(0, snapshot.getClientTransactions());
+        assertTrue(snapshot.getProcessingTimeNanos() > 0);
+    }
+
+    @Test
+    public void testStackCountsDecodeAndFingerprintFailures()
+        throws Exception
+    {
+        Request request = MessageFactory.createBindingRequest();
+
+        request.setTransactionID(
+            TransactionID.createNewTransactionID().getBytes());
+        request.putAttribute(AttributeFactory.createFingerprintAttribute());
+
+        byte[] bytes = request.encode(stunStack);
+
+        bytes[bytes.length - 1]++;
+        sendFromPeer(bytes);
+        sendFromPeer(new byte[] { 0, 1, 2, 3 });
+
+        Snapshot snapshot
+            = awaitSnapshot(
+                s -> s.getFingerprintFailures() == 1
+                    && s.getDecodeFailures() == 1);
+
+        assertEquals(0, snapshot.getRequestsReceived());
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Measures the throughput of starting transactions and looking them up as
+ * their responses arrive, across threads. Each operation generates a
+ * transaction ID, registers a transaction under it, looks the transaction up
+ * from the ID in a received buffer and removes it.
+ * <p>
+ * The legacy variant draws the IDs from a single shared <tt>Random</tt>, as
+ * <tt>TransactionID</tt> used to, and allocates a key for each lookup. The
+ * current variant uses {@link TransactionID#createNewTransactionID()} and
+ * {@link TransactionRegistry#get(byte[], int, int)}.
+ * <p>
+ * Not run as part of the tests. Run with
+ * <tt>java -cp target/classes:target/test-classes
+ * org.ice4j.stack.TransactionIDBenchmark [seconds per run]</tt>.
+ */
+public class TransactionIDBenchmark
+{
+    /**
+     * The numbers of threads to measure.
+     */
+    private static final int[] THREADS = { 1, 2, 4, 8, 16 };
+
+    /**
+     * The offset of the transaction ID in a STUN message.
+     */
+    private static final int TRANSACTION_ID_OFFSET = 8;
+
+    /**
+     * The generator shared by all threads in the legacy variant.
+     */
+    private static final Random sharedRandom
+        = new Random(System.currentTimeMillis());
+
+    /**
+     * One operation of a variant, run on a thread with its own buffer.
+     */
+    private interface Operation
+    {
+        void run(byte[] buffer);
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the number of seconds to measure each configuration for,
+     * 2 by default.
+     * @throws Exception if a benchmark thread fails.
+     */
+    public static void main(String[] args)
+        throws Exception
+    {
+        long millis = 1000L * (args.length > 0 ? Integer.parseInt(args[0]) : 2);
+
+        System.out.printf(
+                "%8s %20s %20s%n", "threads", "legacy ops/s", "current ops/s");
+        for (int threads : THREADS)
+        {
+            // Warm up both variants before measuring.
+            run(legacy(), threads, millis / 4);
+            run(current(), threads, millis / 4);
+
+            System.out.printf("%8d %20d %20d%n",
+                    threads,
+                    run(legacy(), threads, millis),
+                    run(current(), threads, millis));
+        }
+    }
+
+    /**
+     * Creates the legacy variant: IDs from a shared <tt>Random</tt> written
+     * into a new array, and a key allocated for each lookup.
+     *
+     * @return the legacy variant.
+     */
+    private static Operation legacy()
+    {
+        ConcurrentHashMap<TransactionKey, Object> transactions
+            = new ConcurrentHashMap<>();
+
+        return buffer ->
+        {
+            byte[] tid = new byte[TransactionID.RFC5389_TRANSACTION_ID_LENGTH];
+            long left = System.currentTimeMillis();
+            long right = sharedRandom.nextLong();
+
+            for (int i = 0; i < 6; i++)
+            {
+                tid[i] = (byte) (left >> (i * 8));
+                tid[i + 6] = (byte) (right >> (i * 8));
+            }
+
+            TransactionKey key = TransactionKey.of(tid);
+
+            transactions.put(key, tid);
+            System.arraycopy(
+                    tid, 0, buffer, TRANSACTION_ID_OFFSET, tid.length);
+            if (transactions.get(
+                        TransactionKey.of(
+                                Arrays.copyOfRange(
+                                        buffer,
+                                        TRANSACTION_ID_OFFSET,
+                                        TRANSACTION_ID_OFFSET + tid.length)))
+                    != tid)
+            {
+                throw new IllegalStateException("Lost a transaction");
+            }
+            transactions.remove(key);
+        };
+    }
+
+    /**
+     * Creates the current variant.
+     *
+     * @return the current variant.
+     */
+    private static Operation current()
+    {
+        TransactionRegistry<Object> transactions = new TransactionRegistry<>();
+
+        return buffer ->
+        {
+            TransactionID tid = TransactionID.createNewTransactionID();
+
+            transactions.put(tid, tid);
+            System.arraycopy(
+                    tid.getBytes(), 0,
+                    buffer, TRANSACTION_ID_OFFSET,
+                    TransactionID.RFC5389_TRANSACTION_ID_LENGTH);
+            if (transactions.get(
+                        buffer,
+                        TRANSACTION_ID_OFFSET,
+                        TransactionID.RFC5389_TRANSACTION_ID_LENGTH)
+                    != tid)
+            {
+                throw new IllegalStateException("Lost " + tid);
+            }
+            transactions.remove(tid);
+        };
+    }
+
+    /**
+     * Measures the throughput of a variant.
+     *
+     * @param operation the variant to measure.
+     * @param threads the number of concurrent threads.
+     * @param millis the duration of the measurement.
+     * @return the number of operations per second.
+     * @throws Exception if a benchmark thread fails.
+     */
+    private static long run(Operation operation, int threads, long millis)
+        throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++)
+        {
+            futures.add(executor.submit(() ->
+            {
+                byte[] buffer = new byte[100];
+
+                start.await();
+
+                long count = 0;
+
+                while (running.get())
+                {
+                    operation.run(buffer);
+                    count++;
+                }
+                operations.add(count);
+                return null;
+            }));
+        }
+
+        long startTime = System.nanoTime();
+
+        start.countDown();
+        Thread.sleep(millis);
+        running.set(false);
+        for (Future<?> future : futures)
+            future.get();
+
+        long elapsed = System.nanoTime() - startTime;
+
+        executor.shutdown();
+        return operations.sum() * TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+}
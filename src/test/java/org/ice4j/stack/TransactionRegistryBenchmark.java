@@ -0,0 +1,217 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A contention benchmark which compares {@link TransactionRegistry} with the
+ * synchronized <tt>Hashtable</tt> that <tt>StunStack</tt> used to keep its
+ * transactions in. Each thread simulates message processing: it registers a
+ * transaction, looks it up by the bytes of its ID as a response would and
+ * removes it, while a background set of transactions keeps the table
+ * populated.
+ * <p>
+ * Not run as part of the tests. Run with
+ * <tt>java -cp target/classes:target/test-classes
+ * org.ice4j.stack.TransactionRegistryBenchmark [seconds per run]</tt>.
+ */
+public class TransactionRegistryBenchmark
+{
+    /**
+     * The numbers of processing threads to measure.
+     */
+    private static final int[] THREADS = { 1, 2, 4, 8, 16, 32 };
+
+    /**
+     * The number of transactions which stay registered during a run.
+     */
+    private static final int BACKGROUND_TRANSACTIONS = 1000;
+
+    /**
+     * The operations of a transaction table exercised by the benchmark.
+     */
+    private interface Table
+    {
+        void put(TransactionID tid, Object transaction);
+
+        Object get(byte[] tid);
+
+        void remove(TransactionID tid);
+    }
+
+    /**
+     * The table as <tt>StunStack</tt> used to implement it.
+     */
+    private static class HashtableTable
+        implements Table
+    {
+        private final Hashtable<TransactionID, Object> transactions
+            = new Hashtable<>();
+
+        @Override
+        public void put(TransactionID tid, Object transaction)
+        {
+            transactions.put(tid, transaction);
+        }
+
+        @Override
+        public Object get(byte[] tid)
+        {
+            synchronized (transactions)
+            {
+                for (Map.Entry<TransactionID, Object> e
+                        : transactions.entrySet())
+                {
+                    if (e.getKey().equals(tid))
+                        return e.getValue();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void remove(TransactionID tid)
+        {
+            synchronized (transactions)
+            {
+                transactions.remove(tid);
+            }
+        }
+    }
+
+    /**
+     * The table backed by a {@link TransactionRegistry}.
+     */
+    private static class RegistryTable
+        implements Table
+    {
+        private final TransactionRegistry<Object> transactions
+            = new TransactionRegistry<>();
+
+        @Override
+        public void put(TransactionID tid, Object transaction)
+        {
+            transactions.put(tid, transaction);
+        }
+
+        @Override
+        public Object get(byte[] tid)
+        {
+            return transactions.get(tid);
+        }
+
+        @Override
+        public void remove(TransactionID tid)
+        {
+            transactions.remove(tid);
+        }
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the number of seconds to measure each configuration for,
+     * 2 by default.
+     * @throws Exception if a benchmark thread fails.
+     */
+    public static void main(String[] args)
+        throws Exception
+    {
+        long millis = 1000L * (args.length > 0 ? Integer.parseInt(args[0]) : 2);
+
+        System.out.printf("%8s %20s %20s%n", "threads", "Hashtable ops/s",
+                "TransactionRegistry ops/s");
+        for (int threads : THREADS)
+        {
+            // Warm up both implementations before measuring.
+            run(new HashtableTable(), threads, millis / 4);
+            run(new RegistryTable(), threads, millis / 4);
+
+            System.out.printf("%8d %20d %20d%n",
+                    threads,
+                    run(new HashtableTable(), threads, millis),
+                    run(new RegistryTable(), threads, millis));
+        }
+    }
+
+    /**
+     * Measures the throughput of a table.
+     *
+     * @param table the table to measure.
+     * @param threads the number of concurrent threads.
+     * @param millis the duration of the measurement.
+     * @return the number of transactions processed per second.
+     * @throws Exception if a benchmark thread fails.
+     */
+    private static long run(Table table, int threads, long millis)
+        throws Exception
+    {
+        for (int i = 0; i < BACKGROUND_TRANSACTIONS; i++)
+            table.put(TransactionID.createNewTransactionID(), i);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++)
+        {
+            futures.add(executor.submit(() ->
+            {
+                TransactionID[] tids = new TransactionID[64];
+
+                for (int i = 0; i < tids.length; i++)
+                    tids[i] = TransactionID.createNewTransactionID();
+
+                start.await();
+
+                long count = 0;
+
+                while (running.get())
+                {
+                    TransactionID tid = tids[(int) (count & 63)];
+
+                    table.put(tid, tid);
+                    if (table.get(tid.getBytes()) != tid)
+                        throw new IllegalStateException("Lost " + tid);
+                    table.remove(tid);
+                    count++;
+                }
+                operations.add(count);
+                return null;
+            }));
+        }
+
+        long startTime = System.nanoTime();
+
+        start.countDown();
+        Thread.sleep(millis);
+        running.set(false);
+        for (Future<?> future : futures)
+            future.get();
+
+        long elapsed = System.nanoTime() - startTime;
+
+        executor.shutdown();
+        return operations.sum() * TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests {@link TransactionRegistry}, {@link TransactionKey} and the
+ * generation of {@link TransactionID}s.
+ */
+public class TransactionRegistryTest
+{
+    @Test
+    public void testLookupByIdAndBytes()
+    {
+        TransactionRegistry<String> registry = new TransactionRegistry<>();
+        TransactionID tid = TransactionID.createNewTransactionID();
+
+        registry.put(tid, "a");
+
+        assertEquals("a", registry.get(tid));
+        assertEquals("a", registry.get(tid.getBytes().clone()));
+        assertNull(registry.get(
+                TransactionID.createNewTransactionID().getBytes()));
+        assertEquals(tid.toString(), tid.getKey().toString());
+    }
+
+    @Test
+    public void testLookupFromBufferOffset()
+    {
+        TransactionRegistry<String> registry = new TransactionRegistry<>();
+        TransactionID tid = TransactionID.createNewTransactionID();
+        TransactionID other = TransactionID.createNewTransactionID();
+        byte[] buffer = new byte[40];
+
+        registry.put(tid, "a");
+        System.arraycopy(tid.getBytes(), 0, buffer, 8, 12);
+        assertEquals("a", registry.get(buffer, 8, 12));
+        assertNull(registry.get(buffer, 7, 12));
+
+        // The probe of the thread is reused by the following lookups.
+        System.arraycopy(other.getBytes(), 0, buffer, 20, 12);
+        assertNull(registry.get(buffer, 20, 12));
+        registry.put(other, "b");
+        assertEquals("b", registry.get(buffer, 20, 12));
+        assertEquals("a", registry.get(buffer, 8, 12));
+        assertEquals(2, registry.size());
+    }
+
+    @Test
+    public void testNewTransactionIDs()
+    {
+        TransactionID tid = TransactionID.createNewTransactionID();
+        byte[] bytes = tid.getBytes();
+
+        assertEquals(TransactionID.RFC5389_TRANSACTION_ID_LENGTH, bytes.length);
+        assertFalse(tid.isRFC3489Compatible());
+        assertSame(bytes, tid.getBytes());
+        assertTrue(tid.equals(bytes.clone()));
+        assertFalse(tid.equals(new byte[bytes.length]));
+        assertEquals(TransactionKey.of(bytes), tid.getKey());
+        assertEquals(TransactionID.toString(bytes), tid.toString());
+
+        // The first 6 bytes are the time, least significant byte first.
+        long time = 0;
+
+        for (int i = 5; i >= 0; i--)
+            time = (time << 8) | (bytes[i] & 0xFF);
+        assertTrue(
+            Math.abs(System.currentTimeMillis() - time) < 60_000,
+            Long.toString(time));
+
+        TransactionID rfc3489 = TransactionID.createNewRFC3489TransactionID();
+
+        assertTrue(rfc3489.isRFC3489Compatible());
+        assertEquals(
+            TransactionID.RFC3489_TRANSACTION_ID_LENGTH,
+            rfc3489.getBytes().length);
+        assertEquals(TransactionKey.of(rfc3489.getBytes()), rfc3489.getKey());
+    }
+
+    @Test
+    public void testConcurrentlyGeneratedIDsAreUnique()
+        throws Exception
+    {
+        int threads = 8;
+        int perThread = 20_000;
+        Set<TransactionID> tids = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++)
+        {
+            futures.add(executor.submit(() ->
+            {
+                for (int i = 0; i < perThread; i++)
+                    tids.add(TransactionID.createNewTransactionID());
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+        assertEquals(threads * perThread, tids.size());
+    }
+
+    @Test
+    public void testRfc3489KeysDoNotCollide()
+    {
+        byte[] rfc5389 = new byte[TransactionID.RFC5389_TRANSACTION_ID_LENGTH];
+        byte[] rfc3489 = new byte[TransactionID.RFC3489_TRANSACTION_ID_LENGTH];
+
+        Arrays.fill(rfc5389, (byte) 7);
+        System.arraycopy(rfc5389, 0, rfc3489, 0, rfc5389.length);
+
+        assertNotEquals(TransactionKey.of(rfc5389), TransactionKey.of(rfc3489));
+        assertEquals(
+                TransactionID.toString(rfc3489),
+                TransactionKey.of(rfc3489).toString());
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> TransactionKey.of(new byte[4]));
+    }
+
+    @Test
+    public void testConditionalRemove()
+    {
+        TransactionRegistry<String> registry = new TransactionRegistry<>();
+        TransactionID tid = TransactionID.createNewTransactionID();
+
+        registry.put(tid, "a");
+        assertFalse(registry.remove(tid, "b"));
+        assertTrue(registry.remove(tid, "a"));
+        assertTrue(registry.isEmpty());
+    }
+
+    /**
+     * Concurrent sweeps must hand every removed transaction to exactly one
+     * caller.
+     */
+    @Test
+    public void testConcurrentRemoveIfRemovesEachTransactionOnce()
+        throws Exception
+    {
+        TransactionRegistry<Integer> registry = new TransactionRegistry<>();
+        int count = 10000;
+
+        for (int i = 0; i < count; i++)
+            registry.put(TransactionID.createNewTransactionID(), i);
+
+        int threads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        AtomicInteger removed = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+
+        try
+        {
+            for (int t = 0; t < threads; t++)
+            {
+                futures.add(executor.submit(() ->
+                {
+                    start.await();
+                    removed.addAndGet(registry.removeIf(i -> true).size());
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures)
+                future.get(10, TimeUnit.SECONDS);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        assertEquals(count, removed.get());
+        assertTrue(registry.isEmpty());
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests {@link HashedWheelTimer} and {@link PeriodicRunnable}s scheduled on
+ * it.
+ */
+public class HashedWheelTimerTest
+{
+    private HashedWheelTimer wheel;
+
+    @BeforeEach
+    void beforeEach()
+    {
+        // A small wheel, so that the tests span several revolutions.
+        wheel = new HashedWheelTimer(
+            "HashedWheelTimerTest", 5, TimeUnit.MILLISECONDS, 8);
+    }
+
+    @AfterEach
+    void afterEach()
+    {
+        wheel.stop();
+    }
+
+    @Test
+    public void timeoutsExpireNoEarlierThanTheirDelay()
+        throws Exception
+    {
+        CountDownLatch latch = new CountDownLatch(2);
+        long start = System.nanoTime();
+        AtomicLong shortElapsed = new AtomicLong();
+        AtomicLong longElapsed = new AtomicLong();
+
+        wheel.newTimeout(() ->
+        {
+            shortElapsed.set(System.nanoTime() - start);
+            latch.countDown();
+        }, 10, TimeUnit.MILLISECONDS);
+        // Longer than one revolution of the wheel (8 * 5ms).
+        wheel.newTimeout(() ->
+        {
+            longElapsed.set(System.nanoTime() - start);
+            latch.countDown();
+        }, 120, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(shortElapsed.get() >= TimeUnit.MILLISECONDS.toNanos(10));
+        assertTrue(longElapsed.get() >= TimeUnit.MILLISECONDS.toNanos(120));
+        assertEquals(0, wheel.getPendingTimeouts());
+    }
+
+    @Test
+    public void cancelledTimeoutDoesNotExpire()
+        throws Exception
+    {
+        AtomicBoolean ran = new AtomicBoolean();
+        CountDownLatch later = new CountDownLatch(1);
+        HashedWheelTimer.Timeout timeout = wheel.newTimeout(
+            () -> ran.set(true), 30, TimeUnit.MILLISECONDS);
+
+        wheel.newTimeout(later::countDown, 60, TimeUnit.MILLISECONDS);
+
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertFalse(ran.get());
+        assertFalse(timeout.isExpired());
+    }
+
+    @Test
+    public void periodicRunnableRunsInlineOnTheWheel()
+        throws Exception
+    {
+        CountDownLatch latch = new CountDownLatch(5);
+        AtomicReference<Thread> runThread = new AtomicReference<>();
+        PeriodicRunnable periodicRunnable = new PeriodicRunnable(wheel, null)
+        {
+            @Override
+            protected Duration getDelayUntilNextRun()
+            {
+                return Duration.ofMillis(latch.getCount() > 0 ? 5 : -1);
+            }
+
+            @Override
+            protected void run()
+            {
+                runThread.set(Thread.currentThread());
+                latch.countDown();
+            }
+        };
+
+        periodicRunnable.schedule();
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals("HashedWheelTimerTest", runThread.get().getName());
+    }
+
+    @Test
+    public void cancelStopsPeriodicRunnableOnTheWheel()
+        throws Exception
+    {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch firstRun = new CountDownLatch(1);
+        PeriodicRunnable periodicRunnable = new PeriodicRunnable(wheel, executor)
+        {
+            @Override
+            protected Duration getDelayUntilNextRun()
+            {
+                return Duration.ofMillis(10);
+            }
+
+            @Override
+            protected void run()
+            {
+                runs.incrementAndGet();
+                firstRun.countDown();
+            }
+        };
+
+        try
+        {
+            periodicRunnable.schedule();
+            assertTrue(firstRun.await(5, TimeUnit.SECONDS));
+            periodicRunnable.cancel();
+            // Let a run which was already in progress complete.
+            Thread.sleep(20);
+
+            int runsAfterCancel = runs.get();
+
+            Thread.sleep(100);
+            assertEquals(runsAfterCancel, runs.get());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests {@link Ice4jExecutors} and the built-in {@link ExecutorProvider}s.
+ */
+public class Ice4jExecutorsTest
+{
+    /**
+     * A provider which is instantiated by name.
+     */
+    public static class CustomProvider
+        extends PlatformExecutorProvider
+    {
+    }
+
+    private static void assertRuns(ExecutorProvider provider)
+        throws Exception
+    {
+        ExecutorService executor = provider.newExecutor("test-");
+        ScheduledExecutorService scheduler
+            = provider.newScheduledExecutor("test-timer-");
+
+        try
+        {
+            assertEquals(1, executor.submit(() -> 1).get(5, TimeUnit.SECONDS));
+            assertEquals(
+                2,
+                scheduler.schedule(() -> 2, 10, TimeUnit.MILLISECONDS)
+                    .get(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            executor.shutdown();
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void testPlatformProvider()
+        throws Exception
+    {
+        ExecutorProvider provider = Ice4jExecutors.createProvider("platform");
+
+        assertTrue(provider instanceof PlatformExecutorProvider);
+        assertRuns(provider);
+    }
+
+    @Test
+    public void testVirtualProvider()
+        throws Exception
+    {
+        ExecutorProvider provider = Ice4jExecutors.createProvider("virtual");
+
+        if (VirtualThreadExecutorProvider.isSupported())
+        {
+            assertTrue(provider instanceof VirtualThreadExecutorProvider);
+            assertRuns(provider);
+        }
+        else
+        {
+            // Falls back to platform threads on JVMs older than Java 21.
+            assertTrue(provider instanceof PlatformExecutorProvider);
+            assertThrows(
+                UnsupportedOperationException.class,
+                VirtualThreadExecutorProvider::new);
+        }
+    }
+
+    @Test
+    public void testVirtualExecutorReusesThreads()
+        throws Exception
+    {
+        // Virtual threads where supported, the same pooling otherwise.
+        ThreadFactory threads
+            = VirtualThreadExecutorProvider.isSupported()
+                ? VirtualThreadExecutorProvider.newThreadFactory("test-")
+                : Executors.defaultThreadFactory();
+        AtomicInteger created = new AtomicInteger();
+        AtomicInteger cachesBuilt = new AtomicInteger();
+        ThreadLocal<Object> cache
+            = ThreadLocal.withInitial(() ->
+            {
+                cachesBuilt.incrementAndGet();
+                return new Object();
+            });
+        ExecutorService executor
+            = VirtualThreadExecutorProvider.newReusingExecutor(task ->
+            {
+                created.incrementAndGet();
+                return threads.newThread(task);
+            });
+
+        try
+        {
+            for (int i = 0; i < 100; i++)
+            {
+                executor.submit(cache::get).get(5, TimeUnit.SECONDS);
+                // Let the thread go back to waiting for a task.
+                Thread.sleep(1);
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        // A thread per task would build the cache 100 times.
+        assertTrue(created.get() < 10, "created " + created);
+        assertEquals(created.get(), cachesBuilt.get());
+    }
+
+    @Test
+    public void testProviderByClassName()
+        throws Exception
+    {
+        assertTrue(
+            Ice4jExecutors.createProvider(CustomProvider.class.getName())
+                instanceof CustomProvider);
+        assertThrows(
+            IllegalArgumentException.class,
+            () -> Ice4jExecutors.createProvider("org.ice4j.NoSuchProvider"));
+        assertThrows(
+            IllegalArgumentException.class,
+            () -> Ice4jExecutors.createProvider(String.class.getName()));
+    }
+
+    @Test
+    public void testProviderCannotBeReplacedOnceUsed()
+    {
+        Ice4jExecutors.newExecutor("test-").shutdown();
+
+        ExecutorProvider provider = Ice4jExecutors.getProvider();
+
+        Ice4jExecutors.setProvider(provider);
+        assertThrows(
+            IllegalStateException.class,
+            () -> Ice4jExecutors.setProvider(new CustomProvider()));
+        assertSame(provider, Ice4jExecutors.getProvider());
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.util;
+
+import java.nio.charset.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.ice4j.security.*;
+
+/**
+ * Compares processing messages on the executors of
+ * {@link VirtualThreadExecutorProvider}, which reuse their threads, with
+ * starting a new thread per message, which is what the provider used to do.
+ * Each message computes a MESSAGE-INTEGRITY HMAC through
+ * {@link HmacSha1Cache}, whose keyed engines are cached per thread like the
+ * other caches on the message path, and the benchmark counts how often these
+ * per-thread caches are built.
+ * <p>
+ * Uses virtual threads on Java 21 or later and platform threads otherwise.
+ * Not run as part of the tests. Run with
+ * <tt>java -cp target/classes:target/test-classes
+ * org.ice4j.util.VirtualThreadCacheBenchmark [messages per round]</tt>.
+ */
+public class VirtualThreadCacheBenchmark
+{
+    /**
+     * The size of a typical connectivity check up to its MESSAGE-INTEGRITY.
+     */
+    private static final int MESSAGE_LENGTH = 80;
+
+    /**
+     * The number of per-thread caches built, i.e. of threads which processed
+     * a message.
+     */
+    private static final AtomicInteger cachesBuilt = new AtomicInteger();
+
+    /**
+     * Counts the threads which build their caches.
+     */
+    private static final ThreadLocal<Boolean> cacheBuilt
+        = ThreadLocal.withInitial(() ->
+        {
+            cachesBuilt.incrementAndGet();
+            return Boolean.TRUE;
+        });
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the number of messages to process per round, 100000 by
+     * default.
+     * @throws Exception if processing fails.
+     */
+    public static void main(String[] args)
+        throws Exception
+    {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        boolean virtual = VirtualThreadExecutorProvider.isSupported();
+        ThreadFactory threads
+            = virtual
+                ? VirtualThreadExecutorProvider.newThreadFactory("bench-")
+                : Executors.defaultThreadFactory();
+
+        System.out.println(
+            "Using " + (virtual ? "virtual" : "platform") + " threads.");
+
+        for (int round = 0; round < 3; round++)
+        {
+            long perTaskNanos
+                = run(task -> threads.newThread(task).start(), messages);
+            int perTaskCaches = cachesBuilt.getAndSet(0);
+            ExecutorService reusing
+                = VirtualThreadExecutorProvider.newReusingExecutor(threads);
+            long reusingNanos;
+
+            try
+            {
+                reusingNanos = run(reusing, messages);
+            }
+            finally
+            {
+                reusing.shutdown();
+            }
+
+            int reusingCaches = cachesBuilt.getAndSet(0);
+
+            System.out.printf(
+                "round %d: thread per message %d ns/msg, %d caches built;"
+                    + " reused threads %d ns/msg, %d caches built%n",
+                round,
+                perTaskNanos / messages,
+                perTaskCaches,
+                reusingNanos / messages,
+                reusingCaches);
+        }
+    }
+
+    /**
+     * Processes messages on an executor.
+     *
+     * @param executor the executor.
+     * @param messages the number of messages.
+     * @return the time it took, in nanoseconds.
+     * @throws Exception if processing fails.
+     */
+    private static long run(Executor executor, int messages)
+        throws Exception
+    {
+        byte[] key = "remote-password".getBytes(StandardCharsets.UTF_8);
+        byte[] message = new byte[MESSAGE_LENGTH + 20];
+        CountDownLatch done = new CountDownLatch(messages);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < messages; i++)
+        {
+            executor.execute(() ->
+            {
+                cacheBuilt.get();
+                try
+                {
+                    HmacSha1Cache.calculate(key, message, 0, MESSAGE_LENGTH);
+                }
+                catch (Exception e)
+                {
+                    throw new IllegalStateException(e);
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+        return System.nanoTime() - start;
+    }
+}